@@ -0,0 +1,235 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.core.query;
+
+import com.google.gson.JsonPrimitive;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aggregate clause for a Json query. The clause is an ordered list of grouping
+ * columns and aggregate functions. Each term has to have a unique column name.
+ * The columns of the aggregate result are in the same order as the terms in
+ * the clause.
+ * 
+ * Null values (i.e., missing paths) are ignored by all aggregate functions
+ * except for COUNT without an argument which counts documents. Missing values
+ * in a grouping column form a separate group.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class AggregateClause {
+    
+    public enum Function {
+        APPROX_COUNT_DISTINCT,
+        COUNT,
+        COUNT_DISTINCT,
+        GROUP,
+        MAX,
+        MIN,
+        SUM
+    }
+    
+    /**
+     * Term in the aggregate clause. The column is the index of the argument
+     * in the internal select clause (-1 for COUNT without argument).
+     */
+    static class Term {
+        
+        private final int _column;
+        private final Function _function;
+        
+        Term(Function function, int column) {
+            
+            _function = function;
+            _column = column;
+        }
+        
+        public int column() {
+            
+            return _column;
+        }
+        
+        public Function function() {
+            
+            return _function;
+        }
+    }
+    
+    private final HashMap<String, Integer> _schema = new HashMap<>();
+    private final SelectClause _select = new SelectClause();
+    private final List<Term> _terms = new ArrayList<>();
+    
+    private AggregateClause add(String name, Function function, JQuery term) {
+        
+        if (_schema.containsKey(name)) {
+            throw new IllegalArgumentException("Duplicate name:" + name);
+        }
+        
+        int column = -1;
+        if (term != null) {
+            column = _select.size();
+            _select.add(name, term);
+        }
+        _schema.put(name, _terms.size());
+        _terms.add(new Term(function, column));
+        
+        return this;
+    }
+    
+    /**
+     * Count the number of documents.
+     * 
+     * @param name
+     * @return 
+     */
+    public AggregateClause count(String name) {
+        
+        return this.add(name, Function.COUNT, null);
+    }
+    
+    /**
+     * Count the number of documents that have a value for the given path.
+     * 
+     * @param name
+     * @param term
+     * @return 
+     */
+    public AggregateClause count(String name, JQuery term) {
+        
+        return this.add(name, Function.COUNT, term);
+    }
+    
+    /**
+     * Count the number of distinct values for the given path. The approximate
+     * count uses a HyperLogLog sketch with constant memory per group. The
+     * exact count keeps all distinct values in memory.
+     * 
+     * @param name
+     * @param term
+     * @param approximate
+     * @return 
+     */
+    public AggregateClause countDistinct(
+            String name,
+            JQuery term,
+            boolean approximate
+    ) {
+        
+        if (approximate) {
+            return this.add(name, Function.APPROX_COUNT_DISTINCT, term);
+        } else {
+            return this.add(name, Function.COUNT_DISTINCT, term);
+        }
+    }
+    
+    public AggregateClause groupBy(String name, JQuery term) {
+        
+        return this.add(name, Function.GROUP, term);
+    }
+    
+    /**
+     * Maximum value for the given path. Numbers are compared by their value
+     * and all other values by their string representation.
+     * 
+     * @param name
+     * @param term
+     * @return 
+     */
+    public AggregateClause max(String name, JQuery term) {
+        
+        return this.add(name, Function.MAX, term);
+    }
+    
+    /**
+     * Minimum value for the given path. Numbers are compared by their value
+     * and all other values by their string representation.
+     * 
+     * @param name
+     * @param term
+     * @return 
+     */
+    public AggregateClause min(String name, JQuery term) {
+        
+        return this.add(name, Function.MIN, term);
+    }
+    
+    public HashMap<String, Integer> schema() {
+        
+        return _schema;
+    }
+    
+    /**
+     * Select clause for all paths that are referenced by the terms in the
+     * aggregate clause.
+     * 
+     * @return 
+     */
+    SelectClause select() {
+        
+        return _select;
+    }
+    
+    public int size() {
+        
+        return _terms.size();
+    }
+    
+    /**
+     * Sum of all numeric values for the given path. Values that are not
+     * numbers are ignored.
+     * 
+     * @param name
+     * @param term
+     * @return 
+     */
+    public AggregateClause sum(String name, JQuery term) {
+        
+        return this.add(name, Function.SUM, term);
+    }
+    
+    /**
+     * Expression that lists the aggregate terms in order. Can be used as a
+     * key for cached query results.
+     * 
+     * @return 
+     */
+    @Override
+    public String toString() {
+        
+        String[] names = new String[_terms.size()];
+        for (Map.Entry<String, Integer> entry : _schema.entrySet()) {
+            names[entry.getValue()] = entry.getKey();
+        }
+        List<String> terms = new ArrayList<>();
+        for (int iTerm = 0; iTerm < names.length; iTerm++) {
+            Term term = _terms.get(iTerm);
+            String expr = term.function() + "(" + new JsonPrimitive(names[iTerm]);
+            if (term.column() >= 0) {
+                expr += "," + new JsonPrimitive(_select.get(term.column()).path().toString());
+            }
+            terms.add(expr + ")");
+        }
+        return "aggregate(" + String.join(",", terms) + ")";
+    }
+    
+    List<Term> terms() {
+        
+        return _terms;
+    }
+}
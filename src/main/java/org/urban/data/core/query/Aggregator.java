@@ -0,0 +1,430 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.core.query;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import org.urban.data.core.util.HyperLogLog;
+
+/**
+ * Compute the result of an aggregate clause from a sequence of tuples. The
+ * tuples contain the values for the select clause of the aggregate clause.
+ * 
+ * Each group is assigned a consecutive index. Accumulators keep their state
+ * in primitive arrays that are indexed by the group index. Tuples are not
+ * retained after they have been added.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+class Aggregator {
+    
+    private static final int INITIAL_CAPACITY = 16;
+    
+    /**
+     * Accumulator for a single aggregate function.
+     */
+    private abstract static class Accumulator {
+        
+        public abstract void add(int group, JsonElement value);
+        public abstract void grow(int capacity);
+        public abstract JsonElement value(int group);
+    }
+    
+    private static class Count extends Accumulator {
+        
+        private long[] _counts = new long[INITIAL_CAPACITY];
+        
+        @Override
+        public void add(int group, JsonElement value) {
+            
+            _counts[group]++;
+        }
+
+        @Override
+        public void grow(int capacity) {
+            
+            _counts = Arrays.copyOf(_counts, capacity);
+        }
+
+        @Override
+        public JsonElement value(int group) {
+            
+            return new JsonPrimitive(_counts[group]);
+        }
+    }
+    
+    private static class CountDistinct extends Accumulator {
+        
+        private final List<HashSet<String>> _values = new ArrayList<>();
+
+        @Override
+        public void add(int group, JsonElement value) {
+            
+            while (_values.size() <= group) {
+                _values.add(new HashSet<>());
+            }
+            _values.get(group).add(value.toString());
+        }
+
+        @Override
+        public void grow(int capacity) {
+            
+        }
+
+        @Override
+        public JsonElement value(int group) {
+            
+            if (group < _values.size()) {
+                return new JsonPrimitive(_values.get(group).size());
+            }
+            return new JsonPrimitive(0);
+        }
+    }
+    
+    private static class ApproxCountDistinct extends Accumulator {
+        
+        private final List<HyperLogLog> _sketches = new ArrayList<>();
+
+        @Override
+        public void add(int group, JsonElement value) {
+            
+            while (_sketches.size() <= group) {
+                _sketches.add(new HyperLogLog());
+            }
+            _sketches.get(group).add(value.toString());
+        }
+
+        @Override
+        public void grow(int capacity) {
+            
+        }
+
+        @Override
+        public JsonElement value(int group) {
+            
+            if (group < _sketches.size()) {
+                return new JsonPrimitive(_sketches.get(group).cardinality());
+            }
+            return new JsonPrimitive(0);
+        }
+    }
+    
+    /**
+     * Minimum or maximum value. Numbers are compared by their value. Other
+     * values are compared by their string representation. Numbers are
+     * considered smaller than all other values.
+     */
+    private static class Extremum extends Accumulator {
+        
+        private final int _sign;
+        private double[] _numbers = new double[INITIAL_CAPACITY];
+        private JsonElement[] _values = new JsonElement[INITIAL_CAPACITY];
+        
+        public Extremum(boolean max) {
+            
+            _sign = (max) ? 1 : -1;
+        }
+
+        @Override
+        public void add(int group, JsonElement value) {
+            
+            JsonElement current = _values[group];
+            boolean isNumber = isNumber(value);
+            double number = 0;
+            if (isNumber) {
+                number = value.getAsDouble();
+                if (Double.isNaN(number)) {
+                    return;
+                }
+            }
+            if (current == null) {
+                _values[group] = value;
+                _numbers[group] = number;
+                return;
+            }
+            int comp;
+            if ((isNumber) && (isNumber(current))) {
+                comp = Double.compare(number, _numbers[group]);
+            } else if (isNumber) {
+                comp = -1;
+            } else if (isNumber(current)) {
+                comp = 1;
+            } else {
+                comp = text(value).compareTo(text(current));
+            }
+            if ((comp * _sign) > 0) {
+                _values[group] = value;
+                _numbers[group] = number;
+            }
+        }
+
+        @Override
+        public void grow(int capacity) {
+            
+            _numbers = Arrays.copyOf(_numbers, capacity);
+            _values = Arrays.copyOf(_values, capacity);
+        }
+        
+        private String text(JsonElement el) {
+            
+            if (el.isJsonPrimitive()) {
+                return el.getAsString();
+            } else {
+                return el.toString();
+            }
+        }
+
+        @Override
+        public JsonElement value(int group) {
+            
+            return _values[group];
+        }
+    }
+    
+    /**
+     * Sum of numeric values. The result is an integer if all added values
+     * were integers.
+     */
+    private static class Sum extends Accumulator {
+        
+        private boolean[] _fraction = new boolean[INITIAL_CAPACITY];
+        private boolean[] _hasValue = new boolean[INITIAL_CAPACITY];
+        private long[] _integers = new long[INITIAL_CAPACITY];
+        private double[] _sums = new double[INITIAL_CAPACITY];
+
+        @Override
+        public void add(int group, JsonElement value) {
+            
+            if (!isNumber(value)) {
+                return;
+            }
+            _hasValue[group] = true;
+            String text = value.getAsString();
+            if ((!_fraction[group]) && (isInteger(text))) {
+                try {
+                    _integers[group] = Math.addExact(
+                            _integers[group],
+                            Long.parseLong(text)
+                    );
+                    return;
+                } catch (ArithmeticException | NumberFormatException ex) {
+                }
+            }
+            if (!_fraction[group]) {
+                _fraction[group] = true;
+                _sums[group] = _integers[group];
+            }
+            _sums[group] += value.getAsDouble();
+        }
+
+        @Override
+        public void grow(int capacity) {
+            
+            _fraction = Arrays.copyOf(_fraction, capacity);
+            _hasValue = Arrays.copyOf(_hasValue, capacity);
+            _integers = Arrays.copyOf(_integers, capacity);
+            _sums = Arrays.copyOf(_sums, capacity);
+        }
+        
+        private boolean isInteger(String text) {
+            
+            for (int iChar = 0; iChar < text.length(); iChar++) {
+                char c = text.charAt(iChar);
+                if (((c < '0') || (c > '9')) && ((iChar > 0) || (c != '-'))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public JsonElement value(int group) {
+            
+            if (!_hasValue[group]) {
+                return null;
+            } else if (_fraction[group]) {
+                return new JsonPrimitive(_sums[group]);
+            } else {
+                return new JsonPrimitive(_integers[group]);
+            }
+        }
+    }
+    
+    private final Accumulator[] _accumulators;
+    private int _capacity = INITIAL_CAPACITY;
+    private final AggregateClause _clause;
+    private final HashMap<Object, Integer> _groups = new HashMap<>();
+    private final List<JsonElement[]> _keys = new ArrayList<>();
+    private final int[] _keyColumns;
+    
+    public Aggregator(AggregateClause clause) {
+        
+        _clause = clause;
+        
+        List<AggregateClause.Term> terms = clause.terms();
+        _accumulators = new Accumulator[terms.size()];
+        List<Integer> keyColumns = new ArrayList<>();
+        for (int iTerm = 0; iTerm < terms.size(); iTerm++) {
+            AggregateClause.Term term = terms.get(iTerm);
+            switch (term.function()) {
+                case APPROX_COUNT_DISTINCT:
+                    _accumulators[iTerm] = new ApproxCountDistinct();
+                    break;
+                case COUNT:
+                    _accumulators[iTerm] = new Count();
+                    break;
+                case COUNT_DISTINCT:
+                    _accumulators[iTerm] = new CountDistinct();
+                    break;
+                case GROUP:
+                    keyColumns.add(term.column());
+                    break;
+                case MAX:
+                    _accumulators[iTerm] = new Extremum(true);
+                    break;
+                case MIN:
+                    _accumulators[iTerm] = new Extremum(false);
+                    break;
+                case SUM:
+                    _accumulators[iTerm] = new Sum();
+                    break;
+            }
+        }
+        _keyColumns = new int[keyColumns.size()];
+        for (int iCol = 0; iCol < _keyColumns.length; iCol++) {
+            _keyColumns[iCol] = keyColumns.get(iCol);
+        }
+        
+        // Without grouping columns there is always exactly one result tuple.
+        if (_keyColumns.length == 0) {
+            _keys.add(new JsonElement[0]);
+        }
+    }
+    
+    /**
+     * Add values for the select clause of the aggregate clause.
+     * 
+     * @param tuple 
+     */
+    public void add(JsonElement[] tuple) {
+        
+        int group = this.group(tuple);
+        List<AggregateClause.Term> terms = _clause.terms();
+        for (int iTerm = 0; iTerm < _accumulators.length; iTerm++) {
+            Accumulator accumulator = _accumulators[iTerm];
+            if (accumulator != null) {
+                int column = terms.get(iTerm).column();
+                if (column < 0) {
+                    accumulator.add(group, null);
+                } else {
+                    JsonElement value = tuple[column];
+                    if ((value != null) && (!value.isJsonNull())) {
+                        accumulator.add(group, value);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Get the index of the group for the given tuple. Adds a new group if the
+     * grouping values have not been seen before.
+     * 
+     * @param tuple
+     * @return 
+     */
+    private int group(JsonElement[] tuple) {
+        
+        if (_keyColumns.length == 0) {
+            return 0;
+        }
+        
+        Object key;
+        if (_keyColumns.length == 1) {
+            key = key(tuple[_keyColumns[0]]);
+        } else {
+            String[] values = new String[_keyColumns.length];
+            for (int iCol = 0; iCol < values.length; iCol++) {
+                values[iCol] = key(tuple[_keyColumns[iCol]]);
+            }
+            key = Arrays.asList(values);
+        }
+        
+        Integer group = _groups.get(key);
+        if (group == null) {
+            group = _keys.size();
+            if (group == _capacity) {
+                _capacity = _capacity * 2;
+                for (Accumulator accumulator : _accumulators) {
+                    if (accumulator != null) {
+                        accumulator.grow(_capacity);
+                    }
+                }
+            }
+            JsonElement[] values = new JsonElement[_keyColumns.length];
+            for (int iCol = 0; iCol < values.length; iCol++) {
+                values[iCol] = tuple[_keyColumns[iCol]];
+            }
+            _groups.put(key, group);
+            _keys.add(values);
+        }
+        return group;
+    }
+    
+    private static boolean isNumber(JsonElement el) {
+        
+        return (el.isJsonPrimitive()) && (el.getAsJsonPrimitive().isNumber());
+    }
+    
+    private static String key(JsonElement el) {
+        
+        if ((el == null) || (el.isJsonNull())) {
+            return null;
+        }
+        return el.toString();
+    }
+    
+    /**
+     * Result tuples for all groups in the order in which the groups were
+     * first encountered.
+     * 
+     * @return 
+     */
+    public List<ResultTuple> result() {
+        
+        List<AggregateClause.Term> terms = _clause.terms();
+        List<ResultTuple> result = new ArrayList<>();
+        for (int iGroup = 0; iGroup < _keys.size(); iGroup++) {
+            JsonElement[] key = _keys.get(iGroup);
+            JsonElement[] values = new JsonElement[terms.size()];
+            int iKey = 0;
+            for (int iTerm = 0; iTerm < values.length; iTerm++) {
+                if (_accumulators[iTerm] != null) {
+                    values[iTerm] = _accumulators[iTerm].value(iGroup);
+                } else {
+                    values[iTerm] = key[iKey++];
+                }
+            }
+            result.add(new ResultTuple(values, _clause.schema()));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,539 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.core.query;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import org.apache.commons.io.IOUtils;
+import org.urban.data.core.util.FileSystem;
+
+/**
+ * Columnar cache for a Json file that contains an array of documents. The
+ * cache is a binary sidecar file next to the Json file. It contains a
+ * dictionary-encoded column for each of a given set of paths and the offset
+ * and length of each document in the (uncompressed) Json file.
+ * 
+ * Queries where all selected paths are covered by the cache are answered
+ * without reading the Json file. The reader also supports queries with paths
+ * that are not covered. For those, the documents are read from the Json file
+ * at the recorded offsets and only the paths that are not covered are parsed.
+ * If null values are not allowed, documents where a covered column is null
+ * are skipped without being parsed.
+ * 
+ * The cache is stamped with the format version, the length and modification
+ * time of the Json file, and the target path. A cache with a different stamp
+ * is ignored.
+ * 
+ * The sidecar file contains (in order) the header, the document offsets and
+ * lengths, one section per column, and the directory (position of the
+ * document offsets and of each column section). The last eight bytes contain
+ * the position of the directory. A column section
+ * contains the dictionary of Json values followed by the dictionary code of
+ * each document (-1 for missing values).
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class ColumnCache {
+    
+    private static final int MAGIC = 0x4A434F4C;
+    private static final int VERSION = 1;
+    
+    /**
+     * Dictionary-encoded column. Dictionary values are parsed into Json
+     * elements when they are first accessed.
+     */
+    private class Column {
+        
+        private final int[] _codes;
+        private final JsonElement[] _elements;
+        private final String[] _values;
+        
+        public Column(String[] values, int[] codes) {
+            
+            _values = values;
+            _codes = codes;
+            _elements = new JsonElement[values.length];
+        }
+        
+        public JsonElement get(int document) {
+            
+            int code = _codes[document];
+            if (code < 0) {
+                return null;
+            }
+            JsonElement el = _elements[code];
+            if (el == null) {
+                el = _parser.parse(_values[code]);
+                _elements[code] = el;
+            }
+            return el;
+        }
+    }
+    
+    /**
+     * Read result tuples from the cache. Paths that are not covered are read
+     * from the documents in the Json file.
+     */
+    private class Reader implements TupleReader {
+        
+        private final Column[] _columns;
+        private int _document = 0;
+        private InputStream _in = null;
+        private int[] _lengths = null;
+        private final boolean _noNullValues;
+        private long[] _offsets = null;
+        private long _position = 0;
+        private final int _size;
+        private final PredicateState _state;
+        private JPathTrie _trie = null;
+        private final int[] _uncovered;
+        
+        public Reader(
+                SelectClause select,
+                JPredicate predicate,
+                boolean noNullValues
+        ) throws java.io.IOException {
+            
+            _noNullValues = noNullValues;
+            _size = select.size();
+            // The values for the filter conditions are maintained in
+            // additional columns after the selected columns.
+            List<JQuery> queries = new ArrayList<>();
+            for (int iCol = 0; iCol < select.size(); iCol++) {
+                queries.add(select.get(iCol));
+            }
+            if (predicate != null) {
+                _state = new PredicateState(predicate);
+                for (JFilter filter : _state.filters()) {
+                    queries.add(filter.query());
+                }
+            } else {
+                _state = null;
+            }
+            _columns = new Column[queries.size()];
+            SelectClause uncovered = new SelectClause();
+            List<Integer> mapping = new ArrayList<>();
+            for (int iCol = 0; iCol < queries.size(); iCol++) {
+                JQuery query = queries.get(iCol);
+                if (covers(query)) {
+                    _columns[iCol] = readColumn(query.path().toString());
+                } else {
+                    uncovered.add(Integer.toString(mapping.size()), query);
+                    mapping.add(iCol);
+                }
+            }
+            _uncovered = new int[mapping.size()];
+            for (int iCol = 0; iCol < _uncovered.length; iCol++) {
+                _uncovered[iCol] = mapping.get(iCol);
+            }
+            if (_uncovered.length > 0) {
+                _trie = new JPathTrie(uncovered);
+                this.readOffsets();
+                _in = FileSystem.openFile(_database);
+            }
+        }
+
+        @Override
+        public void close() throws java.io.IOException {
+            
+            if (_in != null) {
+                _in.close();
+            }
+        }
+
+        @Override
+        public JsonElement[] next() throws java.io.IOException {
+            
+            while (_document < _documents) {
+                int document = _document++;
+                JsonElement[] tuple = new JsonElement[_columns.length];
+                // Evaluate the covered filter conditions first. Documents
+                // that do not satisfy the predicate are skipped before any
+                // other value is read.
+                PredicateState state = null;
+                if (_state != null) {
+                    state = _state.copy();
+                    for (int iCol = _size; iCol < _columns.length; iCol++) {
+                        if (_columns[iCol] != null) {
+                            tuple[iCol] = _columns[iCol].get(document);
+                            state.set(iCol - _size, tuple[iCol]);
+                        }
+                    }
+                    if (state.isRejected()) {
+                        continue;
+                    }
+                }
+                boolean hasNull = false;
+                for (int iCol = 0; iCol < _size; iCol++) {
+                    if (_columns[iCol] != null) {
+                        tuple[iCol] = _columns[iCol].get(document);
+                        hasNull = hasNull || (tuple[iCol] == null);
+                    }
+                }
+                if (_in != null) {
+                    if ((hasNull) && (_noNullValues)) {
+                        continue;
+                    }
+                    IOUtils.skipFully(_in, _offsets[document] - _position);
+                    byte[] buffer = new byte[_lengths[document]];
+                    IOUtils.readFully(_in, buffer);
+                    _position = _offsets[document] + buffer.length;
+                    JsonElement[] values = _trie.read(
+                            new JsonReader(
+                                    new InputStreamReader(
+                                            new ByteArrayInputStream(buffer),
+                                            StandardCharsets.UTF_8
+                                    )
+                            )
+                    );
+                    for (int iCol = 0; iCol < _uncovered.length; iCol++) {
+                        int column = _uncovered[iCol];
+                        tuple[column] = values[iCol];
+                        if (column >= _size) {
+                            state.set(column - _size, values[iCol]);
+                        }
+                    }
+                }
+                if (state != null) {
+                    if (!state.finish()) {
+                        continue;
+                    }
+                    return Arrays.copyOf(tuple, _size);
+                }
+                return tuple;
+            }
+            return null;
+        }
+        
+        private void readOffsets() throws java.io.IOException {
+            
+            _offsets = new long[_documents];
+            _lengths = new int[_documents];
+            try (DataInputStream in = openAt(_offsetsPosition)) {
+                for (int iDoc = 0; iDoc < _documents; iDoc++) {
+                    _offsets[iDoc] = in.readLong();
+                    _lengths[iDoc] = in.readInt();
+                }
+            }
+        }
+    }
+    
+    private final HashMap<String, Long> _columns;
+    private final File _database;
+    private final int _documents;
+    private final File _file;
+    private final long _offsetsPosition;
+    private final JsonParser _parser = new JsonParser();
+    
+    private ColumnCache(
+            File database,
+            File file,
+            int documents,
+            long offsetsPosition,
+            HashMap<String, Long> columns
+    ) {
+        
+        _database = database;
+        _file = file;
+        _documents = documents;
+        _offsetsPosition = offsetsPosition;
+        _columns = columns;
+    }
+    
+    /**
+     * Convert the given Json file into a columnar cache for the given paths.
+     * The cache file is written to a temporary file first that is then moved
+     * to replace any existing cache file.
+     * 
+     * @param database
+     * @param targetPath
+     * @param paths
+     * @return
+     * @throws java.io.IOException 
+     */
+    public static ColumnCache build(
+            File database,
+            String targetPath,
+            List<String> paths
+    ) throws java.io.IOException {
+        
+        // Read the stamp before reading the file. If the file is modified
+        // while the cache is being built the cache will not be used.
+        long length = database.length();
+        long modified = database.lastModified();
+        
+        JQuery[] queries = new JQuery[paths.size()];
+        List<LinkedHashMap<String, Integer>> dictionaries = new ArrayList<>();
+        int[][] codes = new int[paths.size()][];
+        for (int iCol = 0; iCol < paths.size(); iCol++) {
+            queries[iCol] = new JQuery(paths.get(iCol));
+            dictionaries.add(new LinkedHashMap<>());
+            codes[iCol] = new int[1024];
+        }
+        long[] offsets = new long[1024];
+        int[] lengths = new int[1024];
+        int documents = 0;
+        
+        JsonParser parser = new JsonParser();
+        try (DocumentSplitter splitter = new DocumentSplitter(FileSystem.openFile(database))) {
+            if (splitter.open(targetPath)) {
+                byte[] doc;
+                while ((doc = splitter.next()) != null) {
+                    if (documents == offsets.length) {
+                        offsets = Arrays.copyOf(offsets, documents * 2);
+                        lengths = Arrays.copyOf(lengths, documents * 2);
+                        for (int iCol = 0; iCol < codes.length; iCol++) {
+                            codes[iCol] = Arrays.copyOf(codes[iCol], documents * 2);
+                        }
+                    }
+                    offsets[documents] = splitter.offset();
+                    lengths[documents] = doc.length;
+                    JsonElement el = parser.parse(new String(doc, StandardCharsets.UTF_8));
+                    for (int iCol = 0; iCol < queries.length; iCol++) {
+                        JsonElement value = null;
+                        if (el.isJsonObject()) {
+                            value = queries[iCol].eval(el.getAsJsonObject());
+                        }
+                        if (value != null) {
+                            LinkedHashMap<String, Integer> dictionary = dictionaries.get(iCol);
+                            String key = value.toString();
+                            Integer code = dictionary.get(key);
+                            if (code == null) {
+                                code = dictionary.size();
+                                dictionary.put(key, code);
+                            }
+                            codes[iCol][documents] = code;
+                        } else {
+                            codes[iCol][documents] = -1;
+                        }
+                    }
+                    documents++;
+                }
+            }
+        }
+        
+        File file = file(database);
+        File tmpFile = File.createTempFile("tmp.", ".cols", file.getParentFile());
+        HashMap<String, Long> columns = new HashMap<>();
+        long offsetsPosition;
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile))
+        )) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(length);
+            out.writeLong(modified);
+            out.writeUTF(targetPath);
+            out.writeInt(documents);
+            offsetsPosition = out.size();
+            for (int iDoc = 0; iDoc < documents; iDoc++) {
+                out.writeLong(offsets[iDoc]);
+                out.writeInt(lengths[iDoc]);
+            }
+            for (int iCol = 0; iCol < queries.length; iCol++) {
+                columns.put(queries[iCol].path().toString(), (long)out.size());
+                LinkedHashMap<String, Integer> dictionary = dictionaries.get(iCol);
+                out.writeInt(dictionary.size());
+                for (String value : dictionary.keySet()) {
+                    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+                for (int iDoc = 0; iDoc < documents; iDoc++) {
+                    out.writeInt(codes[iCol][iDoc]);
+                }
+            }
+            long directory = out.size();
+            out.writeLong(offsetsPosition);
+            out.writeInt(queries.length);
+            for (JQuery query : queries) {
+                String path = query.path().toString();
+                out.writeUTF(path);
+                out.writeLong(columns.get(path));
+            }
+            out.writeLong(directory);
+        } catch (java.io.IOException ex) {
+            tmpFile.delete();
+            throw ex;
+        }
+        Files.move(
+                tmpFile.toPath(),
+                file.toPath(),
+                StandardCopyOption.ATOMIC_MOVE
+        );
+        
+        return new ColumnCache(database, file, documents, offsetsPosition, columns);
+    }
+    
+    /**
+     * Test if the cache contains a column for the path of the given query.
+     * 
+     * @param query
+     * @return 
+     */
+    public boolean covers(JQuery query) {
+        
+        return _columns.containsKey(query.path().toString());
+    }
+    
+    /**
+     * Number of documents in the Json file.
+     * 
+     * @return 
+     */
+    public int documents() {
+        
+        return _documents;
+    }
+    
+    /**
+     * Sidecar file for the given Json file.
+     * 
+     * @param database
+     * @return 
+     */
+    public static File file(File database) {
+        
+        return new File(database.getAbsolutePath() + ".cols");
+    }
+    
+    private DataInputStream openAt(long position) throws java.io.IOException {
+        
+        FileInputStream in = new FileInputStream(_file);
+        try {
+            in.getChannel().position(position);
+        } catch (java.io.IOException ex) {
+            in.close();
+            throw ex;
+        }
+        return new DataInputStream(new BufferedInputStream(in));
+    }
+    
+    /**
+     * Open the cache for the given Json file. Returns null if the cache file
+     * does not exist or if its stamp does not match the Json file, the target
+     * path, or the given list of paths.
+     * 
+     * @param database
+     * @param targetPath
+     * @param paths
+     * @return
+     * @throws java.io.IOException 
+     */
+    public static ColumnCache open(
+            File database,
+            String targetPath,
+            List<String> paths
+    ) throws java.io.IOException {
+        
+        File file = file(database);
+        if (!file.exists()) {
+            return null;
+        }
+        
+        int documents;
+        long offsetsPosition;
+        HashMap<String, Long> columns = new HashMap<>();
+        try (FileInputStream fis = new FileInputStream(file)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(fis));
+            if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)) {
+                return null;
+            }
+            if ((in.readLong() != database.length()) || (in.readLong() != database.lastModified())) {
+                return null;
+            }
+            if (!in.readUTF().equals(targetPath)) {
+                return null;
+            }
+            documents = in.readInt();
+            fis.getChannel().position(fis.getChannel().size() - 8);
+            in = new DataInputStream(new BufferedInputStream(fis));
+            fis.getChannel().position(in.readLong());
+            in = new DataInputStream(new BufferedInputStream(fis));
+            offsetsPosition = in.readLong();
+            int count = in.readInt();
+            for (int iCol = 0; iCol < count; iCol++) {
+                String path = in.readUTF();
+                columns.put(path, in.readLong());
+            }
+        }
+        for (String path : paths) {
+            if (!columns.containsKey(new JPath(path).toString())) {
+                return null;
+            }
+        }
+        if (columns.size() != paths.size()) {
+            return null;
+        }
+        
+        return new ColumnCache(database, file, documents, offsetsPosition, columns);
+    }
+    
+    private Column readColumn(String path) throws java.io.IOException {
+        
+        try (DataInputStream in = this.openAt(_columns.get(path))) {
+            String[] values = new String[in.readInt()];
+            for (int iValue = 0; iValue < values.length; iValue++) {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                values[iValue] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            int[] codes = new int[_documents];
+            for (int iDoc = 0; iDoc < _documents; iDoc++) {
+                codes[iDoc] = in.readInt();
+            }
+            return new Column(values, codes);
+        }
+    }
+    
+    /**
+     * Get a tuple reader for the given select clause. Only documents that
+     * satisfy the given predicate are returned. The predicate may be null.
+     * 
+     * @param select
+     * @param predicate
+     * @param noNullValues
+     * @return
+     * @throws java.io.IOException 
+     */
+    public TupleReader reader(
+            SelectClause select,
+            JPredicate predicate,
+            boolean noNullValues
+    ) throws java.io.IOException {
+        
+        return new Reader(select, predicate, noNullValues);
+    }
+}
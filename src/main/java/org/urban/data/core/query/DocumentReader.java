@@ -0,0 +1,56 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.core.query;
+
+import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonReader;
+
+/**
+ * Read the selected elements for each document in a Json array. The reader
+ * is expected to be positioned inside the array. Documents that do not
+ * satisfy the filter conditions of the path trie are skipped.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class DocumentReader implements TupleReader {
+
+    private final JsonReader _reader;
+    private final JPathTrie _trie;
+
+    public DocumentReader(JsonReader reader, JPathTrie trie) {
+
+        _reader = reader;
+        _trie = trie;
+    }
+
+    @Override
+    public void close() throws java.io.IOException {
+
+        _reader.close();
+    }
+
+    @Override
+    public JsonElement[] next() throws java.io.IOException {
+
+        while (_reader.hasNext()) {
+            JsonElement[] tuple = _trie.read(_reader);
+            if (tuple != null) {
+                return tuple;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.core.query;
+
+import com.google.gson.JsonParser;
+import java.io.Closeable;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Split the array of documents in a Json file into the raw bytes of the
+ * individual documents. The splitter only keeps track of string literals and
+ * the nesting of objects and arrays. Documents are not parsed.
+ * 
+ * For each document the splitter also maintains the byte offset of the
+ * document in the (uncompressed) input stream.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class DocumentSplitter implements Closeable {
+    
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    private final byte[] _buffer = new byte[BUFFER_SIZE];
+    private byte[] _doc = new byte[BUFFER_SIZE];
+    private int _docLength = 0;
+    private final InputStream _in;
+    private int _length = 0;
+    private long _offset = 0;
+    private int _pos = 0;
+    private long _start = -1;
+    
+    public DocumentSplitter(InputStream in) {
+        
+        _in = in;
+    }
+    
+    private void append(byte[] buffer, int offset, int length) {
+        
+        if (_docLength + length > _doc.length) {
+            _doc = Arrays.copyOf(_doc, Math.max(_doc.length * 2, _docLength + length));
+        }
+        System.arraycopy(buffer, offset, _doc, _docLength, length);
+        _docLength += length;
+    }
+    
+    @Override
+    public void close() throws java.io.IOException {
+        
+        _in.close();
+    }
+    
+    private void expect(char c) throws java.io.IOException {
+        
+        int b = this.skipWhitespace();
+        if (b != c) {
+            throw this.error("Expected '" + c + "'");
+        }
+        this.read();
+    }
+    
+    private java.io.IOException error(String message) {
+        
+        return new java.io.IOException(message + " at offset " + this.position());
+    }
+    
+    /**
+     * Read the next document from the input stream. Returns null if the end of
+     * the document array has been reached.
+     * 
+     * @return
+     * @throws java.io.IOException 
+     */
+    public byte[] next() throws java.io.IOException {
+        
+        int b = this.skipWhitespace();
+        if (b == ',') {
+            this.read();
+            b = this.skipWhitespace();
+        }
+        if ((b == ']') || (b == -1)) {
+            return null;
+        }
+        _start = this.position();
+        _docLength = 0;
+        this.scanValue();
+        return Arrays.copyOf(_doc, _docLength);
+    }
+    
+    /**
+     * Byte offset of the document that was returned by the last call to
+     * next().
+     * 
+     * @return 
+     */
+    public long offset() {
+        
+        return _start;
+    }
+    
+    /**
+     * Position the splitter at the beginning of the document array. If a
+     * target path is given the input is expected to be an object and the
+     * array is the value of the first element in the object. Returns false if
+     * the name of the first element does not match the target path.
+     * 
+     * @param targetPath
+     * @return
+     * @throws java.io.IOException 
+     */
+    public boolean open(String targetPath) throws java.io.IOException {
+        
+        if (!targetPath.equals("")) {
+            this.expect('{');
+            if (this.skipWhitespace() != '"') {
+                throw this.error("Expected name");
+            }
+            _docLength = 0;
+            this.scanValue();
+            String name = new JsonParser()
+                    .parse(new String(_doc, 0, _docLength, StandardCharsets.UTF_8))
+                    .getAsString();
+            if (!name.equals(targetPath)) {
+                return false;
+            }
+            this.expect(':');
+        }
+        this.expect('[');
+        return true;
+    }
+    
+    private int peek() throws java.io.IOException {
+        
+        if (_pos == _length) {
+            _offset += _length;
+            _pos = 0;
+            _length = Math.max(0, _in.read(_buffer));
+            if (_length == 0) {
+                return -1;
+            }
+        }
+        return _buffer[_pos] & 0xFF;
+    }
+    
+    private long position() {
+        
+        return _offset + _pos;
+    }
+    
+    private int read() throws java.io.IOException {
+        
+        int b = this.peek();
+        if (b != -1) {
+            _pos++;
+        }
+        return b;
+    }
+    
+    /**
+     * Copy the next value from the input to the document buffer. The input
+     * buffer is scanned in a tight loop and copied in blocks.
+     * 
+     * @throws java.io.IOException 
+     */
+    private void scanValue() throws java.io.IOException {
+        
+        int first = this.peek();
+        boolean primitive = (first != '{') && (first != '[') && (first != '"');
+        int depth = 0;
+        boolean inString = false;
+        boolean escape = false;
+        while (this.peek() != -1) {
+            byte[] buffer = _buffer;
+            int start = _pos;
+            int end = _length;
+            int pos = start;
+            boolean done = false;
+            if (primitive) {
+                while (pos < end) {
+                    byte b = buffer[pos];
+                    if ((b == ',') || (b == ']') || (b == '}') || ((b >= 0) && (b <= ' '))) {
+                        done = true;
+                        break;
+                    }
+                    pos++;
+                }
+            } else {
+                while ((!done) && (pos < end)) {
+                    byte b = buffer[pos++];
+                    if (inString) {
+                        if (escape) {
+                            escape = false;
+                        } else if (b == '\\') {
+                            escape = true;
+                        } else if (b == '"') {
+                            inString = false;
+                            done = (depth == 0);
+                        }
+                    } else if (b == '"') {
+                        inString = true;
+                    } else if ((b == '{') || (b == '[')) {
+                        depth++;
+                    } else if ((b == '}') || (b == ']')) {
+                        depth--;
+                        done = (depth == 0);
+                    }
+                }
+            }
+            this.append(buffer, start, pos - start);
+            _pos = pos;
+            if (done) {
+                return;
+            }
+        }
+        if (!primitive) {
+            throw this.error("Unexpected end of input");
+        }
+    }
+    
+    private int skipWhitespace() throws java.io.IOException {
+        
+        int b;
+        while (((b = this.peek()) != -1) && (b <= ' ')) {
+            _pos++;
+        }
+        return b;
+    }
+}
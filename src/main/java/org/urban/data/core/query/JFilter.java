@@ -15,18 +15,29 @@
  */
 package org.urban.data.core.query;
 
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import java.util.List;
 
 /**
- *
+ * Filter condition on the value of a single path. By default the condition is
+ * satisfied if the (string) value equals the given value. Other conditions
+ * override accept() (see JPredicate for the available conditions).
+ * 
  * @author Heiko Mueller <heiko.mueller@nyu.edu>
  */
-public class JFilter {
+public class JFilter extends JPredicate {
     
     private final String _condition;
     private final boolean _ignoreCase;
     private final JQuery _query;
     
+    protected JFilter(JQuery query) {
+        
+        this(query, null, false);
+    }
+    
     public JFilter(JQuery query, String condition, boolean ignoreCase) {
         
         _query = query;
@@ -49,9 +60,20 @@ public class JFilter {
         this(new JQuery(query), condition, false);
     }
     
-    public boolean eval(JsonObject doc) {
+    /**
+     * Test if the given value satisfies the filter condition. The value is
+     * the result of evaluating the filter query (null if the path does not
+     * exist).
+     * 
+     * @param value
+     * @return 
+     */
+    public boolean accept(JsonElement value) {
         
-        String val = _query.eval(doc).getAsString();
+        String val = null;
+        if ((value != null) && (!value.isJsonNull())) {
+            val = value.getAsString();
+        }
         if (val != null) {
             if (_ignoreCase) {
                 return val.equalsIgnoreCase(_condition);
@@ -62,4 +84,46 @@ public class JFilter {
             return (_condition == null);
         }
     }
+    
+    @Override
+    void addFilters(List<JFilter> filters) {
+        
+        filters.add(this);
+    }
+    
+    @Override
+    public boolean eval(JsonObject doc) {
+        
+        return this.accept(_query.eval(doc));
+    }
+
+    @Override
+    public Boolean eval(Values values) {
+        
+        return values.result(this);
+    }
+    
+    public JQuery query() {
+        
+        return _query;
+    }
+    
+    /**
+     * Expression for the equality condition. Subclasses that do not override
+     * this method are represented by their object identity. Their expression
+     * therefore never matches the expression of another filter.
+     * 
+     * @return 
+     */
+    @Override
+    public String toString() {
+        
+        if (this.getClass() != JFilter.class) {
+            return super.toString();
+        }
+        return "eq(" +
+                new JsonPrimitive(_query.path().toString()) + "," +
+                ((_condition != null) ? new JsonPrimitive(_condition) : "null") + "," +
+                _ignoreCase + ")";
+    }
 }
@@ -54,4 +54,10 @@ public class JPath implements Iterable<String> {
 
         return Arrays.asList(_path).iterator();
     }
+
+    @Override
+    public String toString() {
+
+        return String.join("/", _path);
+    }
 }
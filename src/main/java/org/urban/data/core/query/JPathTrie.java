@@ -0,0 +1,191 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.core.query;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Trie of the path expressions in a select clause. The trie is used to read
+ * the elements that are referenced by the select clause directly from a Json
+ * reader. Only the values at the end of a path are parsed into Json elements.
+ * All other values in a document are skipped without being materialized.
+ * 
+ * The result is the same as evaluating each query against the fully parsed
+ * document. Paths that are a prefix of another path are handled by
+ * evaluating the remaining path components against the parsed element.
+ * 
+ * The trie may also contain the paths of the filter conditions in a
+ * predicate. Each condition is evaluated as soon as its value has been read.
+ * Once the predicate is false the remainder of the document is skipped and
+ * the document is not returned. The trie does not change after it has been
+ * created and can be shared by multiple threads.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class JPathTrie {
+    
+    private class Node {
+        
+        private final HashMap<String, Node> _children = new HashMap<>();
+        private final List<Integer> _columns = new ArrayList<>();
+        
+        private void add(JPath path, int index, int column) {
+            
+            if (index == path.size()) {
+                _columns.add(column);
+            } else {
+                String key = path.get(index);
+                Node child = _children.get(key);
+                if (child == null) {
+                    child = new Node();
+                    _children.put(key, child);
+                }
+                child.add(path, index + 1, column);
+            }
+        }
+        
+        /**
+         * Assign the given element to all columns that end at this node.
+         * Columns that end below this node are evaluated against the element.
+         * 
+         * @param el
+         * @param tuple
+         * @param state 
+         */
+        private void assign(
+                JsonElement el,
+                JsonElement[] tuple,
+                PredicateState state
+        ) {
+            
+            for (int column : _columns) {
+                if (column < _size) {
+                    tuple[column] = el;
+                } else {
+                    state.set(column - _size, el);
+                }
+            }
+            if (el.isJsonObject()) {
+                JsonObject obj = el.getAsJsonObject();
+                for (Map.Entry<String, Node> child : _children.entrySet()) {
+                    if (obj.has(child.getKey())) {
+                        child.getValue().assign(obj.get(child.getKey()), tuple, state);
+                    }
+                }
+            }
+        }
+        
+        private void read(
+                JsonReader reader,
+                JsonElement[] tuple,
+                PredicateState state
+        ) throws java.io.IOException {
+            
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                Node child = null;
+                if ((state == null) || (!state.isRejected())) {
+                    child = _children.get(name);
+                }
+                if (child == null) {
+                    reader.skipValue();
+                } else if (!child._columns.isEmpty()) {
+                    child.assign(_parser.parse(reader), tuple, state);
+                } else if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    child.read(reader, tuple, state);
+                } else {
+                    // Paths cannot be evaluated against values that are not
+                    // objects.
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+    }
+    
+    private final JsonParser _parser = new JsonParser();
+    private final Node _root = new Node();
+    private final int _size;
+    private final PredicateState _state;
+    
+    /**
+     * Create the trie for the paths in the given select clause and the filter
+     * conditions in the given predicate. The predicate may be null.
+     * 
+     * @param select
+     * @param predicate 
+     */
+    public JPathTrie(SelectClause select, JPredicate predicate) {
+        
+        _size = select.size();
+        for (int iCol = 0; iCol < select.size(); iCol++) {
+            _root.add(select.get(iCol).path(), 0, iCol);
+        }
+        if (predicate != null) {
+            _state = new PredicateState(predicate);
+            List<JFilter> filters = _state.filters();
+            for (int iFilter = 0; iFilter < filters.size(); iFilter++) {
+                JPath path = filters.get(iFilter).query().path();
+                _root.add(path, 0, _size + iFilter);
+            }
+        } else {
+            _state = null;
+        }
+    }
+    
+    public JPathTrie(SelectClause select) {
+        
+        this(select, null);
+    }
+    
+    /**
+     * Read the next document from the given reader. Returns the elements for
+     * all paths in the select clause. The value is null for paths that do not
+     * exist in the document. Documents that are not Json objects are skipped
+     * and all their values are null. Returns null if the document does not
+     * satisfy the predicate.
+     * 
+     * @param reader
+     * @return
+     * @throws java.io.IOException 
+     */
+    public JsonElement[] read(JsonReader reader) throws java.io.IOException {
+        
+        JsonElement[] tuple = new JsonElement[_size];
+        PredicateState state = null;
+        if (_state != null) {
+            state = _state.copy();
+        }
+        if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+            _root.read(reader, tuple, state);
+        } else {
+            reader.skipValue();
+        }
+        if ((state != null) && (!state.finish())) {
+            return null;
+        }
+        return tuple;
+    }
+}
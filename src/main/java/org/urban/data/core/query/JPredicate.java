@@ -0,0 +1,539 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.core.query;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Predicate on Json documents. Predicates are composed from filter conditions
+ * on the values of individual paths (see JFilter) using AND, OR, and NOT.
+ * 
+ * While a document is being read the predicate is evaluated using three-valued
+ * logic. The result is unknown (null) until enough filter conditions have been
+ * evaluated to decide the predicate. This allows to stop reading a document as
+ * soon as the predicate is false.
+ * 
+ * The string representation of a predicate is an expression that identifies
+ * the predicate, e.g., and(eq("metadata/domain","data.cityofnewyork.us"),
+ * exists("resource/id")). It can be used as a key for cached query results.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public abstract class JPredicate {
+    
+    /**
+     * Results of the filter conditions that have been evaluated for the
+     * current document.
+     */
+    public interface Values {
+        
+        /**
+         * Get the result of the given filter condition. Returns null if the
+         * condition has not been evaluated yet.
+         * 
+         * @param filter
+         * @return 
+         */
+        public Boolean result(JFilter filter);
+    }
+    
+    private static class And extends JPredicate {
+        
+        private final JPredicate[] _children;
+        
+        public And(JPredicate[] children) {
+            
+            _children = children;
+        }
+
+        @Override
+        void addFilters(List<JFilter> filters) {
+
+            for (JPredicate child : _children) {
+                child.addFilters(filters);
+            }
+        }
+
+        @Override
+        public boolean eval(JsonObject doc) {
+
+            for (JPredicate child : _children) {
+                if (!child.eval(doc)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Boolean eval(Values values) {
+
+            boolean unknown = false;
+            for (JPredicate child : _children) {
+                Boolean result = child.eval(values);
+                if (result == null) {
+                    unknown = true;
+                } else if (!result) {
+                    return false;
+                }
+            }
+            return (unknown) ? null : true;
+        }
+
+        @Override
+        public String toString() {
+
+            List<String> children = new ArrayList<>();
+            for (JPredicate child : _children) {
+                children.add(child.toString());
+            }
+            return "and(" + String.join(",", children) + ")";
+        }
+    }
+    
+    private static class Not extends JPredicate {
+        
+        private final JPredicate _child;
+        
+        public Not(JPredicate child) {
+            
+            _child = child;
+        }
+
+        @Override
+        void addFilters(List<JFilter> filters) {
+
+            _child.addFilters(filters);
+        }
+
+        @Override
+        public boolean eval(JsonObject doc) {
+
+            return !_child.eval(doc);
+        }
+
+        @Override
+        public Boolean eval(Values values) {
+
+            Boolean result = _child.eval(values);
+            return (result != null) ? !result : null;
+        }
+
+        @Override
+        public String toString() {
+
+            return "not(" + _child + ")";
+        }
+    }
+    
+    private static class Or extends JPredicate {
+        
+        private final JPredicate[] _children;
+        
+        public Or(JPredicate[] children) {
+            
+            _children = children;
+        }
+
+        @Override
+        void addFilters(List<JFilter> filters) {
+
+            for (JPredicate child : _children) {
+                child.addFilters(filters);
+            }
+        }
+
+        @Override
+        public boolean eval(JsonObject doc) {
+
+            for (JPredicate child : _children) {
+                if (child.eval(doc)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Boolean eval(Values values) {
+
+            boolean unknown = false;
+            for (JPredicate child : _children) {
+                Boolean result = child.eval(values);
+                if (result == null) {
+                    unknown = true;
+                } else if (result) {
+                    return true;
+                }
+            }
+            return (unknown) ? null : false;
+        }
+
+        @Override
+        public String toString() {
+
+            List<String> children = new ArrayList<>();
+            for (JPredicate child : _children) {
+                children.add(child.toString());
+            }
+            return "or(" + String.join(",", children) + ")";
+        }
+    }
+    
+    /**
+     * Filter that is created by one of the factory methods. The expression
+     * is the string representation of the filter.
+     */
+    private abstract static class Condition extends JFilter {
+        
+        private final String _expression;
+        
+        public Condition(String path, String function, Object... args) {
+            
+            super(new JQuery(path));
+            
+            StringBuilder buf = new StringBuilder(function)
+                    .append("(")
+                    .append(new JsonPrimitive(this.query().path().toString()));
+            for (Object arg : args) {
+                buf.append(",");
+                if (arg instanceof String) {
+                    buf.append(new JsonPrimitive((String)arg));
+                } else if (arg instanceof Collection) {
+                    List<String> values = new ArrayList<>();
+                    for (Object value : (Collection)arg) {
+                        values.add(new JsonPrimitive(value.toString()).toString());
+                    }
+                    Collections.sort(values);
+                    buf.append("[").append(String.join(",", values)).append("]");
+                } else {
+                    buf.append(arg);
+                }
+            }
+            _expression = buf.append(")").toString();
+        }
+        
+        @Override
+        public String toString() {
+            
+            return _expression;
+        }
+    }
+    
+    /**
+     * Add all filter conditions in the predicate to the given list.
+     * 
+     * @param filters 
+     */
+    abstract void addFilters(List<JFilter> filters);
+    
+    public static JPredicate and(JPredicate... children) {
+        
+        return new And(children);
+    }
+    
+    /**
+     * The value is an array that contains the given value.
+     * 
+     * @param path
+     * @param value
+     * @param ignoreCase
+     * @return 
+     */
+    public static JFilter arrayContains(String path, String value, boolean ignoreCase) {
+        
+        return new Condition(path, "arrayContains", value, ignoreCase) {
+            @Override
+            public boolean accept(JsonElement el) {
+                
+                if ((el == null) || (!el.isJsonArray())) {
+                    return false;
+                }
+                for (JsonElement item : el.getAsJsonArray()) {
+                    if (item.isJsonPrimitive()) {
+                        String val = item.getAsString();
+                        if ((ignoreCase) ? val.equalsIgnoreCase(value) : val.equals(value)) {
+                            return true;
+                        }
+                    }
+                }
+                return false;
+            }
+        };
+    }
+    
+    /**
+     * The value contains the given text.
+     * 
+     * @param path
+     * @param text
+     * @param ignoreCase
+     * @return 
+     */
+    public static JFilter contains(String path, String text, boolean ignoreCase) {
+        
+        String term = (ignoreCase) ? text.toLowerCase() : text;
+        return new Condition(path, "contains", text, ignoreCase) {
+            @Override
+            public boolean accept(JsonElement el) {
+                
+                String val = JPredicate.string(el);
+                if (val == null) {
+                    return false;
+                } else if (ignoreCase) {
+                    val = val.toLowerCase();
+                }
+                return val.contains(term);
+            }
+        };
+    }
+    
+    /**
+     * Parse a date. Accepts ISO-8601 instants (e.g. 2020-01-31T12:00:00.000Z),
+     * local date times, and dates. Local values are interpreted as UTC.
+     * Returns null if the value cannot be parsed.
+     * 
+     * @param value
+     * @return 
+     */
+    public static Instant date(String value) {
+        
+        try {
+            return Instant.parse(value);
+        } catch (DateTimeParseException ex) {
+        }
+        try {
+            return LocalDateTime.parse(value).toInstant(ZoneOffset.UTC);
+        } catch (DateTimeParseException ex) {
+        }
+        try {
+            return LocalDate.parse(value).atStartOfDay().toInstant(ZoneOffset.UTC);
+        } catch (DateTimeParseException ex) {
+        }
+        return null;
+    }
+    
+    /**
+     * The value is a date in the given range. Both boundaries are inclusive
+     * and optional (null).
+     * 
+     * @param path
+     * @param from
+     * @param to
+     * @return 
+     */
+    public static JFilter dateRange(String path, String from, String to) {
+        
+        Instant min = (from != null) ? parseBoundary(from) : null;
+        Instant max = (to != null) ? parseBoundary(to) : null;
+        return new Condition(path, "dateRange", from, to) {
+            @Override
+            public boolean accept(JsonElement el) {
+                
+                String val = JPredicate.string(el);
+                if (val == null) {
+                    return false;
+                }
+                Instant date = JPredicate.date(val);
+                if (date == null) {
+                    return false;
+                }
+                if ((min != null) && (date.isBefore(min))) {
+                    return false;
+                }
+                return !((max != null) && (date.isAfter(max)));
+            }
+        };
+    }
+    
+    public static JFilter eq(String path, String value) {
+        
+        return new JFilter(path, value);
+    }
+    
+    /**
+     * Evaluate the predicate on a complete document.
+     * 
+     * @param doc
+     * @return 
+     */
+    public abstract boolean eval(JsonObject doc);
+    
+    /**
+     * Evaluate the predicate for the filter results that are known so far.
+     * Returns null if the result cannot be decided yet.
+     * 
+     * @param values
+     * @return 
+     */
+    public abstract Boolean eval(Values values);
+    
+    /**
+     * The path exists and its value is not null.
+     * 
+     * @param path
+     * @return 
+     */
+    public static JFilter exists(String path) {
+        
+        return new Condition(path, "exists") {
+            @Override
+            public boolean accept(JsonElement el) {
+                
+                return (el != null) && (!el.isJsonNull());
+            }
+        };
+    }
+    
+    /**
+     * List of all filter conditions in the predicate.
+     * 
+     * @return 
+     */
+    public List<JFilter> filters() {
+        
+        List<JFilter> filters = new ArrayList<>();
+        this.addFilters(filters);
+        return filters;
+    }
+    
+    /**
+     * The value is one of the given values.
+     * 
+     * @param path
+     * @param values
+     * @return 
+     */
+    public static JFilter in(String path, Collection<String> values) {
+        
+        HashSet<String> terms = new HashSet<>(values);
+        return new Condition(path, "in", terms) {
+            @Override
+            public boolean accept(JsonElement el) {
+                
+                String val = JPredicate.string(el);
+                return (val != null) && (terms.contains(val));
+            }
+        };
+    }
+    
+    public static JFilter in(String path, String... values) {
+        
+        return in(path, Arrays.asList(values));
+    }
+    
+    /**
+     * The value matches the given regular expression (anywhere in the value).
+     * 
+     * @param path
+     * @param regex
+     * @return 
+     */
+    public static JFilter matches(String path, String regex) {
+        
+        Pattern pattern = Pattern.compile(regex);
+        return new Condition(path, "matches", regex) {
+            @Override
+            public boolean accept(JsonElement el) {
+                
+                String val = JPredicate.string(el);
+                return (val != null) && (pattern.matcher(val).find());
+            }
+        };
+    }
+    
+    public static JPredicate not(JPredicate child) {
+        
+        return new Not(child);
+    }
+    
+    public static JPredicate or(JPredicate... children) {
+        
+        return new Or(children);
+    }
+    
+    private static Instant parseBoundary(String value) {
+        
+        Instant date = date(value);
+        if (date == null) {
+            throw new IllegalArgumentException("Invalid date: " + value);
+        }
+        return date;
+    }
+    
+    /**
+     * The value is a number in the given range. Both boundaries are inclusive
+     * and optional (null). String values are converted to numbers.
+     * 
+     * @param path
+     * @param min
+     * @param max
+     * @return 
+     */
+    public static JFilter range(String path, Double min, Double max) {
+        
+        return new Condition(path, "range", min, max) {
+            @Override
+            public boolean accept(JsonElement el) {
+                
+                String val = JPredicate.string(el);
+                if (val == null) {
+                    return false;
+                }
+                double number;
+                try {
+                    number = Double.parseDouble(val);
+                } catch (java.lang.NumberFormatException ex) {
+                    return false;
+                }
+                if ((min != null) && (number < min)) {
+                    return false;
+                }
+                return !((max != null) && (number > max));
+            }
+        };
+    }
+    
+    /**
+     * String value of a primitive element. Returns null for missing elements,
+     * null values, arrays, and objects.
+     * 
+     * @param el
+     * @return 
+     */
+    static String string(JsonElement el) {
+        
+        if ((el != null) && (el.isJsonPrimitive())) {
+            return el.getAsString();
+        }
+        return null;
+    }
+}
@@ -55,4 +55,9 @@ public class JQuery {
         }
         return null;
     }
+    
+    public JPath path() {
+        
+        return _path;
+    }
 }
@@ -16,24 +16,23 @@
 package org.urban.data.core.query;
 
 import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonToken;
 import java.io.File;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.urban.data.core.util.FileSystem;
+import org.urban.data.core.util.WorkerPool;
 
 /**
  *
@@ -41,8 +40,13 @@ import org.urban.data.core.util.FileSystem;
  */
 public class JsonQuery {
     
+    private static final int PROFILE_BATCHSIZE = 256;
+    
+    private List<String> _cachedPaths = null;
     private final File _database;
     private final String _targetPath;
+    private JPredicate _predicate = null;
+    private int _threads = 1;
     
     public JsonQuery(File database, String targetPath) {
         
@@ -59,46 +63,119 @@ public class JsonQuery {
         this(database, "");
     }
     
-    private void addPath(
-            Entry<String, JsonElement> entry,
-            String prefix,
-            HashSet<String> schema
-    ) {
-
-        String path = prefix + "/" + entry.getKey();
-        if (!schema.contains(path)) {
-            schema.add(path);
+    /**
+     * Answer queries from a columnar cache that covers the given paths (see
+     * ColumnCache). The cache is built when the first query whose paths are
+     * all covered is evaluated if it does not exist or if it is out of date.
+     * 
+     * @param paths
+     * @return 
+     */
+    public JsonQuery cache(List<String> paths) {
+        
+        _cachedPaths = paths;
+        return this;
+    }
+    
+    /**
+     * Parse documents in parallel using the given number of worker threads
+     * (see ParallelReader). Documents are parsed sequentially if the number
+     * of threads is less than two.
+     * 
+     * @param threads
+     * @return 
+     */
+    public JsonQuery parallel(int threads) {
+        
+        _threads = threads;
+        return this;
+    }
+    
+    /**
+     * Name of the element that contains the array of documents. The target
+     * path is empty if the Json file contains the document array.
+     * 
+     * @return 
+     */
+    public String targetPath() {
+        
+        return _targetPath;
+    }
+    
+    /**
+     * Add a predicate. Only documents that satisfy all predicates are
+     * included in the query result. Predicates are evaluated while documents
+     * are read. Reading a document stops as soon as a predicate is false.
+     * 
+     * @param predicate
+     * @return 
+     */
+    public JsonQuery where(JPredicate predicate) {
+        
+        if (_predicate == null) {
+            _predicate = predicate;
+        } else {
+            _predicate = JPredicate.and(_predicate, predicate);
         }
+        return this;
+    }
+    
+    /**
+     * Evaluate an aggregate query. The aggregates are computed while the
+     * documents are read. Returns one result tuple per group in the order in
+     * which the groups were first encountered. Without grouping columns the
+     * result contains exactly one tuple.
+     * 
+     * @param clause
+     * @return
+     * @throws java.io.IOException 
+     */
+    public List<ResultTuple> aggregate(AggregateClause clause) throws java.io.IOException {
         
-        JsonElement el = entry.getValue();
-        if (el.isJsonObject()) {
-            for (Entry<String, JsonElement> child : el.getAsJsonObject().entrySet()) {
-                this.addPath(child, path, schema);
+        Aggregator aggregator = new Aggregator(clause);
+        try (TupleReader reader = this.reader(clause.select(), false)) {
+            if (reader != null) {
+                JsonElement[] tuple;
+                while ((tuple = reader.next()) != null) {
+                    aggregator.add(tuple);
+                }
             }
         }
+        return aggregator.result();
     }
-
+    
+    /**
+     * Json file that is being queried.
+     * 
+     * @return 
+     */
+    public File database() {
+        
+        return _database;
+    }
+    
+    /**
+     * Evaluate the query and return all result tuples in a list.
+     * 
+     * @param select
+     * @param noNullValues
+     * @return
+     * @throws java.io.IOException 
+     */
     public List<ResultTuple> executeQuery(
             SelectClause select,
             boolean noNullValues
     ) throws java.io.IOException {
 
-        try (JsonReader reader = new JsonReader(
-            new InputStreamReader(FileSystem.openFile(_database)))
-        ) {
-            if (_targetPath.equals("")) {
-                return this.filter(reader, select, noNullValues);
-            } else {
-                reader.beginObject();
-                if (reader.nextName().equals(_targetPath)) {
-                    return this.filter(reader, select, noNullValues);
-                } else {
-                    reader.skipValue();
-                }
-                reader.endObject();
-                return new ArrayList<>();
+        ArrayList<ResultTuple> result = new ArrayList<>();
+        try (ResultStream rs = this.stream(select, noNullValues)) {
+            for (ResultTuple tuple : rs) {
+                result.add(tuple);
             }
+        } catch (java.io.UncheckedIOException ex) {
+            throw ex.getCause();
         }
+        return result;
     }
 
     public List<ResultTuple> executeQuery(SelectClause select) throws java.io.IOException {
@@ -106,76 +183,242 @@ public class JsonQuery {
         return this.executeQuery(select, false);
     }
     
-    private List<ResultTuple> filter(
-            JsonReader reader,
+    /**
+     * Evaluate the query as a stream of result tuples. Documents are read
+     * while the stream is being iterated. The returned stream has to be
+     * closed.
+     * 
+     * @param select
+     * @param noNullValues
+     * @return
+     * @throws java.io.IOException 
+     */
+    public ResultStream stream(
             SelectClause select,
             boolean noNullValues
     ) throws java.io.IOException {
-
-        ArrayList<ResultTuple> result = new ArrayList<>();
-       
-        reader.beginArray();
-        while (reader.hasNext()) {
-            JsonObject doc = new JsonParser().parse(reader).getAsJsonObject();
-            JsonElement[] tuple = new JsonElement[select.size()];
-            boolean hasNull = false;
+        
+        return new ResultStream(
+                this.reader(select, noNullValues),
+                select,
+                noNullValues
+        );
+    }
+    
+    /**
+     * Get a reader for the elements of the given select clause. Returns null
+     * if the database does not contain the target path.
+     * 
+     * If the cache is enabled and covers all of the selected paths and all
+     * paths in the predicate the query is answered from the cache. The cache
+     * is built if necessary. If the cache covers only some of the paths but
+     * at least one of the filter conditions, and documents are parsed
+     * sequentially, an existing cache is used to skip the documents that are
+     * rejected by the covered conditions without parsing them. Otherwise, the
+     * documents are parsed.
+     * 
+     * @param select
+     * @param noNullValues
+     * @return
+     * @throws java.io.IOException 
+     */
+    private TupleReader reader(
+            SelectClause select,
+            boolean noNullValues
+    ) throws java.io.IOException {
+        
+        if (_cachedPaths != null) {
+            HashSet<String> paths = new HashSet<>();
+            for (String path : _cachedPaths) {
+                paths.add(new JPath(path).toString());
+            }
+            boolean covered = true;
             for (int iCol = 0; iCol < select.size(); iCol++) {
-                JsonElement el = select.get(iCol).eval(doc);
-                if (el != null) {
-                    tuple[iCol] = el;
-                } else {
-                    tuple[iCol] = null;
-                    hasNull = true;
+                covered = covered && paths.contains(select.get(iCol).path().toString());
+            }
+            int coveredFilters = 0;
+            int filters = 0;
+            if (_predicate != null) {
+                for (JFilter filter : _predicate.filters()) {
+                    filters++;
+                    if (paths.contains(filter.query().path().toString())) {
+                        coveredFilters++;
+                    }
                 }
             }
-            if ((!hasNull) || (!noNullValues)) {
-                result.add(new ResultTuple(tuple, select.schema()));
+            ColumnCache cache = null;
+            if ((covered) && (coveredFilters == filters)) {
+                cache = this.openCache(true);
+            } else if ((coveredFilters > 0) && (_threads < 2)) {
+                cache = this.openCache(false);
+            }
+            if (cache != null) {
+                return cache.reader(select, _predicate, noNullValues);
             }
         }
-        reader.endArray();
         
-        return result;
-    }
-    
-    public void schema(PrintWriter out) throws java.io.IOException {
+        JPathTrie trie = new JPathTrie(select, _predicate);
         
-        JsonParser parser = new JsonParser();
-                
-        try (InputStream is = FileSystem.openFile(_database)) {
-            JsonReader reader = new JsonReader(new InputStreamReader(is));
-            if (!reader.hasNext()) {
-            	reader.close();
-                return;
-            }
-            JsonToken firstToken = reader.peek();
-            if (JsonToken.BEGIN_OBJECT.equals(firstToken)) {
+        if (_threads > 1) {
+            return new ParallelReader(
+                    FileSystem.openFile(_database),
+                    _targetPath,
+                    trie,
+                    _threads
+            );
+        }
+        
+        JsonReader reader = new JsonReader(
+            new InputStreamReader(FileSystem.openFile(_database))
+        );
+        try {
+            if (!_targetPath.equals("")) {
                 reader.beginObject();
-                reader.nextName();
+                if (!reader.nextName().equals(_targetPath)) {
+                    reader.close();
+                    return null;
+                }
             }
-            HashSet<String> schema = new HashSet<>();
             reader.beginArray();
-            while (reader.hasNext()) {
-                JsonObject doc = parser.parse(reader).getAsJsonObject();
-                for (Map.Entry<String, JsonElement> entry : doc.entrySet()) {
-                    this.addPath(entry, "", schema);
+        } catch (java.io.IOException | RuntimeException ex) {
+            reader.close();
+            throw ex;
+        }
+        return new DocumentReader(reader, trie);
+    }
+    
+    /**
+     * Open the columnar cache for the database file. Builds the cache if
+     * necessary and the build flag is true. Returns null if the cache does not
+     * exist or cannot be built.
+     * 
+     * @param build
+     * @return 
+     */
+    private ColumnCache openCache(boolean build) {
+        
+        try {
+            ColumnCache cache = ColumnCache.open(_database, _targetPath, _cachedPaths);
+            if ((cache == null) && (build)) {
+                cache = ColumnCache.build(_database, _targetPath, _cachedPaths);
+            }
+            return cache;
+        } catch (java.io.IOException | com.google.gson.JsonParseException ex) {
+            LOGGER.log(Level.WARNING, "CACHE " + _database.getName(), ex);
+            return null;
+        }
+    }
+    
+    /**
+     * Compute a schema profile for the documents in the Json file (see
+     * SchemaProfile). Documents are included in the profile with the given
+     * sample rate (between 0 and 1). The sample is drawn using a fixed seed,
+     * i.e., repeated runs profile the same documents. Documents are split
+     * sequentially and parsed by the configured number of worker threads.
+     * 
+     * @param sampleRate
+     * @return
+     * @throws java.io.IOException 
+     */
+    public SchemaProfile profile(double sampleRate) throws java.io.IOException {
+        
+        SchemaProfile profile = new SchemaProfile();
+        AtomicReference<RuntimeException> error = new AtomicReference<>();
+        Random random = new Random(0);
+        long documents = 0;
+        
+        try (
+                DocumentSplitter splitter = new DocumentSplitter(FileSystem.openFile(_database));
+                WorkerPool pool = new WorkerPool(_threads)
+        ) {
+            if (splitter.open(_targetPath)) {
+                List<byte[]> batch = new ArrayList<>();
+                byte[] doc;
+                while ((doc = splitter.next()) != null) {
+                    documents++;
+                    if ((sampleRate < 1) && (random.nextDouble() >= sampleRate)) {
+                        continue;
+                    }
+                    batch.add(doc);
+                    if (batch.size() == PROFILE_BATCHSIZE) {
+                        this.profile(batch, profile, error, pool);
+                        batch = new ArrayList<>();
+                    }
                 }
+                this.profile(batch, profile, error, pool);
             }
-            reader.endArray();
-            List<String> paths = new ArrayList<>(schema);
-            Collections.sort(paths);
-            for (String path : paths) {
-                out.println("\t" + path);
+        }
+        if (error.get() != null) {
+            throw error.get();
+        }
+        profile.setDocuments(documents);
+        return profile;
+    }
+    
+    private void profile(
+            List<byte[]> batch,
+            SchemaProfile profile,
+            AtomicReference<RuntimeException> error,
+            WorkerPool pool
+    ) {
+        
+        if (batch.isEmpty()) {
+            return;
+        }
+        pool.execute(() -> {
+            try {
+                JsonParser parser = new JsonParser();
+                SchemaProfile result = new SchemaProfile();
+                for (byte[] doc : batch) {
+                    JsonElement el = parser.parse(new String(doc, StandardCharsets.UTF_8));
+                    if (el.isJsonObject()) {
+                        result.add(el.getAsJsonObject());
+                    }
+                }
+                profile.merge(result);
+            } catch (RuntimeException ex) {
+                error.compareAndSet(null, ex);
             }
-            if (JsonToken.BEGIN_OBJECT.equals(firstToken)) {
-                reader.endObject();
+        });
+    }
+    
+    /**
+     * Print all paths in the documents of the Json file. If no target path is
+     * given and the file contains an object the documents are read from the
+     * array under the first element of that object.
+     * 
+     * @param out
+     * @throws java.io.IOException 
+     */
+    public void schema(PrintWriter out) throws java.io.IOException {
+        
+        JsonQuery query = this;
+        if (_targetPath.equals("")) {
+            try (JsonReader reader = new JsonReader(
+                    new InputStreamReader(FileSystem.openFile(_database))
+            )) {
+                if (!reader.hasNext()) {
+                    return;
+                }
+                if (JsonToken.BEGIN_OBJECT.equals(reader.peek())) {
+                    reader.beginObject();
+                    if (!reader.hasNext()) {
+                        return;
+                    }
+                    query = new JsonQuery(_database, reader.nextName())
+                            .parallel(_threads);
+                }
             }
         }
+        for (String path : query.profile(1).paths()) {
+            out.println("\t/" + path);
+        }
     }
     
     private static final String COMMAND = 
             "Usage:\n" +
             "  <database-file>" +
-            "  [-s | {-t <target-path>} <path-1>, ...]";
+            "  {-t <target-path>} [-s | <path-1>, ...]";
     
     private static final Logger LOGGER = Logger
             .getLogger(JsonQuery.class.getName());
@@ -190,22 +433,22 @@ public class JsonQuery {
         File databaseFile = new File(args[0]);
         
         try (PrintWriter out = new PrintWriter(System.out)) {
-            if ((args.length == 2) && (args[1].equals("-s"))) {
-                new JsonQuery(databaseFile).schema(out);
-            } else if (args.length >= 2) {
-                int offset;
-                JsonQuery db;
-                if (args[1].equals("-t")) {
-                    if (args.length <= 3) {
-                        System.out.println(COMMAND);
-                        System.exit(-1);
-                    }
-                    db = new JsonQuery(databaseFile, args[2]);
-                    offset = 3;
-                } else {
-                    db = new JsonQuery(databaseFile);
-                    offset = 1;
+            int offset;
+            JsonQuery db;
+            if (args[1].equals("-t")) {
+                if (args.length <= 3) {
+                    System.out.println(COMMAND);
+                    System.exit(-1);
                 }
+                db = new JsonQuery(databaseFile, args[2]);
+                offset = 3;
+            } else {
+                db = new JsonQuery(databaseFile);
+                offset = 1;
+            }
+            if ((args.length == offset + 1) && (args[offset].equals("-s"))) {
+                db.schema(out);
+            } else {
                 SelectClause select = new SelectClause();
                 for (int iArg = offset; iArg < args.length; iArg++) {
                     select.add(args[iArg], new JQuery(args[iArg]));
@@ -213,9 +456,6 @@ public class JsonQuery {
                 for (ResultTuple tuple : db.executeQuery(select)) {
                     out.println(tuple.join("\t"));
                 }
-            } else {
-                System.out.println(COMMAND);
-                System.exit(-1);
             }
         } catch (java.io.IOException ex) {
             LOGGER.log(Level.SEVERE, "RUN", ex);
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.core.query;
+
+import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pipelined reader for the documents in a Json array. One thread reads
+ * (and decompresses) the input stream in blocks. A splitter thread splits the
+ * array into the raw bytes of the individual documents (see
+ * DocumentSplitter). Documents are grouped into
+ * batches that are parsed by a pool of worker threads. Each worker reads the
+ * selected elements and evaluates the filter conditions using the shared path
+ * trie. Batches are returned in the order of the documents in the input.
+ * 
+ * The number of blocks and batches that are in the pipeline is bounded. The
+ * input thread and the splitter block if the consumer of the tuples falls
+ * behind.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class ParallelReader implements TupleReader {
+    
+    private static final int BATCH_BYTES = 1024 * 1024;
+    private static final int BATCH_SIZE = 256;
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final byte[] END_OF_INPUT = new byte[0];
+    
+    /**
+     * Batch of raw documents. The batch is completed by the worker that
+     * parses the documents.
+     */
+    private class Batch {
+        
+        private final List<byte[]> _documents = new ArrayList<>();
+        private Throwable _error = null;
+        private boolean _finished = false;
+        private List<JsonElement[]> _tuples = null;
+        
+        public synchronized List<JsonElement[]> await() throws java.io.IOException {
+            
+            while (!_finished) {
+                try {
+                    this.wait();
+                } catch (java.lang.InterruptedException ex) {
+                    throw new java.io.InterruptedIOException();
+                }
+            }
+            if (_error != null) {
+                if (_error instanceof java.io.IOException) {
+                    throw new java.io.IOException(_error.getMessage(), _error);
+                }
+                throw new java.io.IOException(_error);
+            }
+            return _tuples;
+        }
+        
+        public synchronized void finish(List<JsonElement[]> tuples, Throwable error) {
+            
+            _tuples = tuples;
+            _error = error;
+            _finished = true;
+            this.notifyAll();
+        }
+        
+        private void parse() {
+            
+            List<JsonElement[]> tuples = new ArrayList<>();
+            try {
+                for (byte[] doc : _documents) {
+                    JsonElement[] tuple = _trie.read(
+                            new JsonReader(
+                                    new InputStreamReader(
+                                            new ByteArrayInputStream(doc),
+                                            StandardCharsets.UTF_8
+                                    )
+                            )
+                    );
+                    if (tuple != null) {
+                        tuples.add(tuple);
+                    }
+                }
+            } catch (java.io.IOException | RuntimeException ex) {
+                this.finish(null, ex);
+                return;
+            }
+            this.finish(tuples, null);
+        }
+    }
+    
+    /**
+     * Input stream for the splitter that reads the blocks from the input
+     * thread.
+     */
+    private class BlockStream extends InputStream {
+        
+        private byte[] _block = null;
+        private int _pos = 0;
+        
+        @Override
+        public int read() throws java.io.IOException {
+            
+            byte[] b = new byte[1];
+            if (this.read(b, 0, 1) == -1) {
+                return -1;
+            }
+            return b[0] & 0xFF;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws java.io.IOException {
+            
+            if ((_block == null) || (_pos == _block.length)) {
+                if (_block == END_OF_INPUT) {
+                    return -1;
+                }
+                try {
+                    _block = _blocks.take();
+                } catch (java.lang.InterruptedException ex) {
+                    throw new java.io.InterruptedIOException();
+                }
+                _pos = 0;
+                if (_block == END_OF_INPUT) {
+                    if (_inputError != null) {
+                        throw _inputError;
+                    }
+                    return -1;
+                }
+            }
+            int n = Math.min(len, _block.length - _pos);
+            System.arraycopy(_block, _pos, b, off, n);
+            _pos += n;
+            return n;
+        }
+    }
+    
+    private final BlockingQueue<byte[]> _blocks;
+    private Batch _current = null;
+    private final Batch _end = new Batch();
+    private final ExecutorService _executor;
+    private int _index = 0;
+    private volatile java.io.IOException _inputError = null;
+    private final BlockingQueue<Batch> _output;
+    private final int _threads;
+    private final JPathTrie _trie;
+    private final BlockingQueue<Batch> _work = new LinkedBlockingQueue<>();
+    
+    /**
+     * Start the pipeline for the given input stream. The stream is closed
+     * by the input thread. Documents are read from the array that is the
+     * value of the target path (or from the top-level array if the target
+     * path is empty).
+     * 
+     * @param in
+     * @param targetPath
+     * @param trie
+     * @param threads 
+     */
+    public ParallelReader(
+            InputStream in,
+            String targetPath,
+            JPathTrie trie,
+            int threads
+    ) {
+        
+        _trie = trie;
+        _threads = Math.max(1, threads);
+        _blocks = new ArrayBlockingQueue<>(_threads * 4);
+        _output = new ArrayBlockingQueue<>(_threads * 4);
+        _executor = Executors.newFixedThreadPool(_threads + 2, (Runnable r) -> {
+            Thread thread = new Thread(r, "json-parser");
+            thread.setDaemon(true);
+            return thread;
+        });
+        _executor.execute(() -> {
+            this.read(in);
+        });
+        _executor.execute(() -> {
+            this.split(targetPath);
+        });
+        for (int iThread = 0; iThread < _threads; iThread++) {
+            _executor.execute(() -> {
+                this.work();
+            });
+        }
+    }
+
+    /**
+     * Stop the pipeline. Waits for the input thread to close the input
+     * stream.
+     * 
+     * @throws java.io.IOException 
+     */
+    @Override
+    public void close() throws java.io.IOException {
+        
+        _executor.shutdownNow();
+        try {
+            _executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (java.lang.InterruptedException ex) {
+            throw new java.io.InterruptedIOException();
+        }
+    }
+
+    @Override
+    public JsonElement[] next() throws java.io.IOException {
+        
+        while ((_current == null) || (_index == _current._tuples.size())) {
+            if (_current == _end) {
+                return null;
+            }
+            Batch batch;
+            try {
+                batch = _output.take();
+            } catch (java.lang.InterruptedException ex) {
+                throw new java.io.InterruptedIOException();
+            }
+            batch.await();
+            _current = batch;
+            _index = 0;
+        }
+        return _current._tuples.get(_index++);
+    }
+    
+    /**
+     * Read the input stream in blocks.
+     * 
+     * @param in 
+     */
+    private void read(InputStream in) {
+        
+        try (InputStream is = in) {
+            byte[] block = new byte[BLOCK_SIZE];
+            int length = 0;
+            int n;
+            while ((n = is.read(block, length, block.length - length)) != -1) {
+                length += n;
+                if (length == block.length) {
+                    _blocks.put(block);
+                    block = new byte[BLOCK_SIZE];
+                    length = 0;
+                }
+            }
+            if (length > 0) {
+                _blocks.put(Arrays.copyOf(block, length));
+            }
+        } catch (java.lang.InterruptedException ex) {
+            // The pipeline was closed.
+            return;
+        } catch (java.io.IOException ex) {
+            _inputError = ex;
+        }
+        try {
+            _blocks.put(END_OF_INPUT);
+        } catch (java.lang.InterruptedException ex) {
+        }
+    }
+    
+    /**
+     * Split the input into batches of documents. Each batch is added to the
+     * output queue (to maintain the document order) and to the work queue.
+     * 
+     * @param targetPath 
+     */
+    private void split(String targetPath) {
+        
+        Throwable error = null;
+        try (DocumentSplitter splitter = new DocumentSplitter(new BlockStream())) {
+            if (splitter.open(targetPath)) {
+                Batch batch = new Batch();
+                int bytes = 0;
+                byte[] doc;
+                while ((doc = splitter.next()) != null) {
+                    batch._documents.add(doc);
+                    bytes += doc.length;
+                    if ((batch._documents.size() == BATCH_SIZE) || (bytes >= BATCH_BYTES)) {
+                        _output.put(batch);
+                        _work.put(batch);
+                        batch = new Batch();
+                        bytes = 0;
+                    }
+                }
+                if (!batch._documents.isEmpty()) {
+                    _output.put(batch);
+                    _work.put(batch);
+                }
+            }
+        } catch (java.lang.InterruptedException ex) {
+            // The pipeline was closed.
+            return;
+        } catch (java.io.IOException | RuntimeException ex) {
+            error = ex;
+        }
+        _end.finish(new ArrayList<>(), error);
+        try {
+            _output.put(_end);
+            for (int iThread = 0; iThread < _threads; iThread++) {
+                _work.put(_end);
+            }
+        } catch (java.lang.InterruptedException ex) {
+        }
+    }
+    
+    private void work() {
+        
+        try {
+            Batch batch;
+            while ((batch = _work.take()) != _end) {
+                batch.parse();
+            }
+        } catch (java.lang.InterruptedException ex) {
+            // The pipeline was closed.
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.core.query;
+
+import com.google.gson.JsonElement;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Evaluation state of a predicate for a single document. Filter conditions
+ * are evaluated as their values are read. The predicate is re-evaluated after
+ * each condition until its result is known.
+ * 
+ * A state object is used by one thread at a time. Use copy() to get a new
+ * state for the next document.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+class PredicateState implements JPredicate.Values {
+    
+    private final List<JFilter> _filters;
+    private final JPredicate _predicate;
+    private Boolean _result = null;
+    private final Boolean[] _results;
+    private final IdentityHashMap<JFilter, Integer> _slots;
+    
+    private PredicateState(
+            JPredicate predicate,
+            List<JFilter> filters,
+            IdentityHashMap<JFilter, Integer> slots
+    ) {
+        
+        _predicate = predicate;
+        _filters = filters;
+        _slots = slots;
+        _results = new Boolean[filters.size()];
+    }
+    
+    public PredicateState(JPredicate predicate) {
+        
+        this(predicate, predicate.filters(), new IdentityHashMap<>());
+        for (int iFilter = 0; iFilter < _filters.size(); iFilter++) {
+            _slots.put(_filters.get(iFilter), iFilter);
+        }
+    }
+    
+    /**
+     * Get a new (empty) state for the same predicate.
+     * 
+     * @return 
+     */
+    public PredicateState copy() {
+        
+        return new PredicateState(_predicate, _filters, _slots);
+    }
+    
+    /**
+     * Filter conditions in the predicate. The index of a condition in the list
+     * is used as its slot number.
+     * 
+     * @return 
+     */
+    public List<JFilter> filters() {
+        
+        return _filters;
+    }
+    
+    /**
+     * Evaluate all conditions that have not been evaluated yet for a missing
+     * value and return the result of the predicate.
+     * 
+     * @return 
+     */
+    public boolean finish() {
+        
+        if (_result == null) {
+            for (int iFilter = 0; iFilter < _results.length; iFilter++) {
+                if (_results[iFilter] == null) {
+                    _results[iFilter] = _filters.get(iFilter).accept(null);
+                }
+            }
+            _result = _predicate.eval(this);
+        }
+        return _result;
+    }
+    
+    /**
+     * True if the predicate is known to be false.
+     * 
+     * @return 
+     */
+    public boolean isRejected() {
+        
+        return (_result != null) && (!_result);
+    }
+
+    @Override
+    public Boolean result(JFilter filter) {
+
+        return _results[_slots.get(filter)];
+    }
+    
+    /**
+     * Evaluate the condition in the given slot for the given value.
+     * 
+     * @param slot
+     * @param value 
+     */
+    public void set(int slot, JsonElement value) {
+        
+        if (_result == null) {
+            _results[slot] = _filters.get(slot).accept(value);
+            _result = _predicate.eval(this);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.core.query;
+
+import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonReader;
+import java.io.Closeable;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Stream of result tuples for a Json query. Tuples are read from the
+ * underlying tuple reader one at a time while the stream is iterated. When
+ * reading from a Json reader only the current document is held in memory and
+ * only the elements that are referenced by the select clause are parsed (see
+ * JPathTrie).
+ * 
+ * Similar to a directory stream the result stream can be iterated only once.
+ * I/O errors while reading the next document are thrown as unchecked I/O
+ * exceptions. The stream has to be closed after use. Iteration can be
+ * terminated at any time by closing the stream.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class ResultStream implements Closeable, Iterable<ResultTuple> {
+    
+    private boolean _iterated = false;
+    private ResultTuple _next = null;
+    private final boolean _noNullValues;
+    private final TupleReader _reader;
+    private final HashMap<String, Integer> _schema;
+    
+    /**
+     * Initialize the stream for a given tuple reader. If the reader is null
+     * the stream is empty.
+     * 
+     * @param reader
+     * @param select
+     * @param noNullValues 
+     */
+    public ResultStream(
+            TupleReader reader,
+            SelectClause select,
+            boolean noNullValues
+    ) {
+        
+        _reader = reader;
+        _schema = select.schema();
+        _noNullValues = noNullValues;
+    }
+    
+    /**
+     * Initialize the stream for a reader that is positioned inside the array
+     * of documents (i.e., after beginArray() has been called). If the reader
+     * is null the stream is empty.
+     * 
+     * @param reader
+     * @param select
+     * @param noNullValues 
+     */
+    public ResultStream(
+            JsonReader reader,
+            SelectClause select,
+            boolean noNullValues
+    ) {
+        
+        this(
+                (reader != null) ? new DocumentReader(reader, new JPathTrie(select)) : null,
+                select,
+                noNullValues
+        );
+    }
+    
+    /**
+     * Advance to the next document that produces a result tuple. Returns
+     * false if the end of the document array has been reached.
+     * 
+     * @return
+     * @throws java.io.IOException 
+     */
+    private boolean advance() throws java.io.IOException {
+        
+        if (_reader == null) {
+            return false;
+        }
+        JsonElement[] tuple;
+        while ((tuple = _reader.next()) != null) {
+            boolean hasNull = false;
+            for (JsonElement el : tuple) {
+                if (el == null) {
+                    hasNull = true;
+                    break;
+                }
+            }
+            if ((!hasNull) || (!_noNullValues)) {
+                _next = new ResultTuple(tuple, _schema);
+                return true;
+            }
+        }
+        return false;
+    }
+    @Override
+    public void close() throws java.io.IOException {
+
+        if (_reader != null) {
+            _reader.close();
+        }
+    }
+
+    @Override
+    public Iterator<ResultTuple> iterator() {
+
+        if (_iterated) {
+            throw new IllegalStateException("Result stream can only be iterated once");
+        }
+        _iterated = true;
+        
+        return new Iterator<ResultTuple>() {
+            @Override
+            public boolean hasNext() {
+                
+                if (_next != null) {
+                    return true;
+                }
+                try {
+                    return advance();
+                } catch (java.io.IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+
+            @Override
+            public ResultTuple next() {
+                
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                ResultTuple tuple = _next;
+                _next = null;
+                return tuple;
+            }
+        };
+    }
+}
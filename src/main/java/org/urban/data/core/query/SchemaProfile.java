@@ -0,0 +1,386 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.core.query;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Schema profile for a collection of Json documents. For each path in the
+ * documents the profile records the number of documents that contain the
+ * path, the number of occurrences of each Json type, the minimum, maximum and
+ * total length of array values, and a few example values.
+ * 
+ * Paths are in the same format as the paths of JQuery expressions (without a
+ * leading '/'). Elements of arrays are not profiled separately. If the profile
+ * was computed from a sample of the documents, all counts refer to the
+ * sampled documents.
+ * 
+ * The profile is written and read as a Json object. The paths in the profile
+ * can be used to select the paths for a columnar cache.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class SchemaProfile {
+    
+    public static final int MAX_EXAMPLES = 5;
+    public static final int MAX_EXAMPLE_LENGTH = 100;
+    
+    public static final String[] TYPES = {
+        "array",
+        "boolean",
+        "null",
+        "number",
+        "object",
+        "string"
+    };
+    
+    private static final int ARRAY = 0;
+    private static final int BOOLEAN = 1;
+    private static final int NULL = 2;
+    private static final int NUMBER = 3;
+    private static final int OBJECT = 4;
+    private static final int STRING = 5;
+    
+    /**
+     * Statistics for a single path.
+     */
+    public static class PathStats {
+        
+        private long _count = 0;
+        private final LinkedHashSet<String> _examples = new LinkedHashSet<>();
+        private int _maxLength = -1;
+        private int _minLength = -1;
+        private long _totalLength = 0;
+        private final long[] _types = new long[TYPES.length];
+        
+        private void add(JsonElement el) {
+            
+            _count++;
+            if (el.isJsonArray()) {
+                _types[ARRAY]++;
+                int length = el.getAsJsonArray().size();
+                if ((_minLength < 0) || (length < _minLength)) {
+                    _minLength = length;
+                }
+                if (length > _maxLength) {
+                    _maxLength = length;
+                }
+                _totalLength += length;
+            } else if (el.isJsonObject()) {
+                _types[OBJECT]++;
+            } else if (el.isJsonNull()) {
+                _types[NULL]++;
+            } else {
+                JsonPrimitive value = el.getAsJsonPrimitive();
+                if (value.isBoolean()) {
+                    _types[BOOLEAN]++;
+                } else if (value.isNumber()) {
+                    _types[NUMBER]++;
+                } else {
+                    _types[STRING]++;
+                }
+                if (_examples.size() < MAX_EXAMPLES) {
+                    String example = value.getAsString();
+                    if (example.length() > MAX_EXAMPLE_LENGTH) {
+                        example = example.substring(0, MAX_EXAMPLE_LENGTH);
+                    }
+                    _examples.add(example);
+                }
+            }
+        }
+        
+        /**
+         * Number of documents that contain the path.
+         * 
+         * @return 
+         */
+        public long count() {
+            
+            return _count;
+        }
+        
+        public List<String> examples() {
+            
+            return new ArrayList<>(_examples);
+        }
+        
+        /**
+         * Maximum length of array values (-1 if there are no array values).
+         * 
+         * @return 
+         */
+        public int maxLength() {
+            
+            return _maxLength;
+        }
+        
+        private void merge(PathStats stats) {
+            
+            _count += stats._count;
+            for (int iType = 0; iType < _types.length; iType++) {
+                _types[iType] += stats._types[iType];
+            }
+            if ((stats._minLength >= 0) && ((_minLength < 0) || (stats._minLength < _minLength))) {
+                _minLength = stats._minLength;
+            }
+            _maxLength = Math.max(_maxLength, stats._maxLength);
+            _totalLength += stats._totalLength;
+            for (String example : stats._examples) {
+                if (_examples.size() >= MAX_EXAMPLES) {
+                    break;
+                }
+                _examples.add(example);
+            }
+        }
+        
+        /**
+         * Minimum length of array values (-1 if there are no array values).
+         * 
+         * @return 
+         */
+        public int minLength() {
+            
+            return _minLength;
+        }
+        
+        /**
+         * Number of occurrences of the given type (see TYPES).
+         * 
+         * @param type
+         * @return 
+         */
+        public long type(String type) {
+            
+            for (int iType = 0; iType < TYPES.length; iType++) {
+                if (TYPES[iType].equals(type)) {
+                    return _types[iType];
+                }
+            }
+            return 0;
+        }
+    }
+    
+    private long _documents = 0;
+    private final TreeMap<String, PathStats> _paths = new TreeMap<>();
+    private long _sampled = 0;
+    
+    /**
+     * Add a (sampled) document to the profile.
+     * 
+     * @param doc 
+     */
+    public void add(JsonObject doc) {
+        
+        _sampled++;
+        this.add(doc, null);
+    }
+    
+    private void add(JsonObject doc, String prefix) {
+        
+        for (Map.Entry<String, JsonElement> entry : doc.entrySet()) {
+            String path = entry.getKey();
+            if (prefix != null) {
+                path = prefix + "/" + path;
+            }
+            PathStats stats = _paths.get(path);
+            if (stats == null) {
+                stats = new PathStats();
+                _paths.put(path, stats);
+            }
+            JsonElement el = entry.getValue();
+            stats.add(el);
+            if (el.isJsonObject()) {
+                this.add(el.getAsJsonObject(), path);
+            }
+        }
+    }
+    
+    /**
+     * Total number of documents that were scanned (including documents that
+     * were not sampled).
+     * 
+     * @return 
+     */
+    public long documents() {
+        
+        return _documents;
+    }
+    
+    public PathStats get(String path) {
+        
+        return _paths.get(path);
+    }
+    
+    public synchronized void merge(SchemaProfile profile) {
+        
+        _sampled += profile._sampled;
+        _documents += profile._documents;
+        for (Map.Entry<String, PathStats> entry : profile._paths.entrySet()) {
+            PathStats stats = _paths.get(entry.getKey());
+            if (stats == null) {
+                stats = new PathStats();
+                _paths.put(entry.getKey(), stats);
+            }
+            stats.merge(entry.getValue());
+        }
+    }
+    
+    /**
+     * Sorted list of all paths in the profile.
+     * 
+     * @return 
+     */
+    public List<String> paths() {
+        
+        return new ArrayList<>(_paths.keySet());
+    }
+    
+    /**
+     * Sorted list of paths for values that are not objects and that occur in
+     * at least the given fraction of the sampled documents.
+     * 
+     * @param minFraction
+     * @return 
+     */
+    public List<String> paths(double minFraction) {
+        
+        List<String> result = new ArrayList<>();
+        for (Map.Entry<String, PathStats> entry : _paths.entrySet()) {
+            PathStats stats = entry.getValue();
+            if (stats._types[OBJECT] == stats._count) {
+                continue;
+            }
+            if (stats._count >= minFraction * _sampled) {
+                result.add(entry.getKey());
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Read a profile that was written by write().
+     * 
+     * @param in
+     * @return 
+     */
+    public static SchemaProfile read(Reader in) {
+        
+        JsonObject doc = new JsonParser().parse(in).getAsJsonObject();
+        SchemaProfile profile = new SchemaProfile();
+        profile._documents = doc.get("documents").getAsLong();
+        profile._sampled = doc.get("sampled").getAsLong();
+        for (JsonElement el : doc.getAsJsonArray("paths")) {
+            JsonObject obj = el.getAsJsonObject();
+            PathStats stats = new PathStats();
+            stats._count = obj.get("count").getAsLong();
+            JsonObject types = obj.getAsJsonObject("types");
+            for (int iType = 0; iType < TYPES.length; iType++) {
+                if (types.has(TYPES[iType])) {
+                    stats._types[iType] = types.get(TYPES[iType]).getAsLong();
+                }
+            }
+            if (obj.has("arrayLength")) {
+                JsonObject length = obj.getAsJsonObject("arrayLength");
+                stats._minLength = length.get("min").getAsInt();
+                stats._maxLength = length.get("max").getAsInt();
+                stats._totalLength = length.get("total").getAsLong();
+            }
+            if (obj.has("examples")) {
+                for (JsonElement example : obj.getAsJsonArray("examples")) {
+                    stats._examples.add(example.getAsString());
+                }
+            }
+            profile._paths.put(obj.get("path").getAsString(), stats);
+        }
+        return profile;
+    }
+    
+    /**
+     * Number of documents in the profile.
+     * 
+     * @return 
+     */
+    public long sampled() {
+        
+        return _sampled;
+    }
+    
+    void setDocuments(long documents) {
+        
+        _documents = documents;
+    }
+    
+    /**
+     * Write the profile as a Json object.
+     * 
+     * @param out
+     * @throws java.io.IOException 
+     */
+    public void write(JsonWriter out) throws java.io.IOException {
+        
+        out.beginObject();
+        out.name("documents").value(_documents);
+        out.name("sampled").value(_sampled);
+        out.name("paths");
+        out.beginArray();
+        for (Map.Entry<String, PathStats> entry : _paths.entrySet()) {
+            PathStats stats = entry.getValue();
+            out.beginObject();
+            out.name("path").value(entry.getKey());
+            out.name("count").value(stats._count);
+            if (_sampled > 0) {
+                out.name("frequency").value((double)stats._count / _sampled);
+            }
+            out.name("types");
+            out.beginObject();
+            for (int iType = 0; iType < TYPES.length; iType++) {
+                if (stats._types[iType] > 0) {
+                    out.name(TYPES[iType]).value(stats._types[iType]);
+                }
+            }
+            out.endObject();
+            if (stats._types[ARRAY] > 0) {
+                out.name("arrayLength");
+                out.beginObject();
+                out.name("min").value(stats._minLength);
+                out.name("max").value(stats._maxLength);
+                out.name("total").value(stats._totalLength);
+                out.endObject();
+            }
+            if (!stats._examples.isEmpty()) {
+                out.name("examples");
+                out.beginArray();
+                for (String example : stats._examples) {
+                    out.value(example);
+                }
+                out.endArray();
+            }
+            out.endObject();
+        }
+        out.endArray();
+        out.endObject();
+    }
+}
@@ -15,9 +15,11 @@
  */
 package org.urban.data.core.query;
 
+import com.google.gson.JsonPrimitive;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * A select clause is an ordered list of select terms. Each term has to have a
@@ -56,4 +58,27 @@ public class SelectClause {
         
         return _columns.size();
     }
+    
+    /**
+     * Expression that lists the column names and paths in order. Can be used
+     * as a key for cached query results.
+     * 
+     * @return 
+     */
+    @Override
+    public String toString() {
+        
+        String[] names = new String[_columns.size()];
+        for (Map.Entry<String, Integer> entry : _schema.entrySet()) {
+            names[entry.getValue()] = entry.getKey();
+        }
+        List<String> terms = new ArrayList<>();
+        for (int iCol = 0; iCol < names.length; iCol++) {
+            terms.add(
+                    new JsonPrimitive(names[iCol]) + ":" +
+                    new JsonPrimitive(_columns.get(iCol).path().toString())
+            );
+        }
+        return "select(" + String.join(",", terms) + ")";
+    }
 }
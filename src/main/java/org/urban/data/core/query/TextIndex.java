@@ -0,0 +1,608 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.core.query;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.function.Predicate;
+
+/**
+ * Full-text inverted index for a Json file that contains an array of
+ * documents. The index is a binary sidecar file next to the Json file. The
+ * text of a given set of fields is tokenized into lower-case terms. Each field
+ * has an integer weight that is added to the term frequency for every
+ * occurrence of a term in the field. In addition, the index stores the values
+ * for a set of columns for each document that are returned as the search
+ * result.
+ * 
+ * Search results are ranked using BM25. The result tuples contain the stored
+ * columns followed by a column 'score'.
+ * 
+ * The index file contains (in order) the header, the stored rows, the
+ * postings, the document lengths, the row offsets, the term dictionary, and
+ * the directory (position of the document lengths, row offsets, and
+ * dictionary). The last eight bytes contain the position of the directory.
+ * Posting lists are sequences of variable-length encoded pairs of document
+ * identifier delta and term frequency. The term dictionary is sorted. It is
+ * read into memory when the index is opened. Posting lists and rows are read
+ * on demand.
+ * 
+ * Similar to the columnar cache the index is stamped with the format version,
+ * the length and modification time of the Json file, the target path, and the
+ * indexed fields and stored columns. An index with a different stamp is
+ * ignored.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class TextIndex {
+    
+    public static final String SCORE = "score";
+    
+    private static final float B = 0.75f;
+    private static final float K1 = 1.2f;
+    private static final int MAX_TERM_LENGTH = 255;
+    private static final int MAGIC = 0x4A494458;
+    private static final int VERSION = 1;
+    
+    /**
+     * Posting list for a term while the index is being built.
+     */
+    private static class Postings {
+        
+        private int[] _data = new int[4];
+        private int _size = 0;
+        
+        public void add(int document, int weight) {
+            
+            if ((_size > 0) && (_data[_size - 2] == document)) {
+                _data[_size - 1] += weight;
+                return;
+            }
+            if (_size == _data.length) {
+                _data = Arrays.copyOf(_data, _size * 2);
+            }
+            _data[_size++] = document;
+            _data[_size++] = weight;
+        }
+        
+        public int documents() {
+            
+            return _size / 2;
+        }
+        
+        public void write(DataOutputStream out) throws java.io.IOException {
+            
+            int last = 0;
+            for (int iPos = 0; iPos < _size; iPos += 2) {
+                writeVarInt(out, _data[iPos] - last);
+                writeVarInt(out, _data[iPos + 1]);
+                last = _data[iPos];
+            }
+        }
+    }
+    
+    private final float _avgLength;
+    private final File _file;
+    private final int[] _frequencies;
+    private final int[] _lengths;
+    private final long[] _positions;
+    private final long[] _rows;
+    private final HashMap<String, Integer> _schema;
+    private final String[] _terms;
+    
+    private TextIndex(
+            File file,
+            List<String> columns,
+            int[] lengths,
+            long[] rows,
+            String[] terms,
+            int[] frequencies,
+            long[] positions
+    ) {
+        
+        _file = file;
+        _lengths = lengths;
+        _rows = rows;
+        _terms = terms;
+        _frequencies = frequencies;
+        _positions = positions;
+        
+        _schema = new HashMap<>();
+        for (String name : columns) {
+            _schema.put(name, _schema.size());
+        }
+        _schema.put(SCORE, _schema.size());
+        
+        long total = 0;
+        for (int length : lengths) {
+            total += length;
+        }
+        _avgLength = Math.max(1f, (float)total / Math.max(1, lengths.length));
+    }
+    
+    /**
+     * Build the index for the documents that are returned by the given query.
+     * The index maps terms in the given fields (path and weight) to the
+     * documents. The values of the stored columns are returned by search. The
+     * index file is written to a temporary file first that is then moved to
+     * replace any existing index file.
+     * 
+     * @param query
+     * @param fields
+     * @param stored
+     * @return
+     * @throws java.io.IOException 
+     */
+    public static TextIndex build(
+            JsonQuery query,
+            LinkedHashMap<String, Integer> fields,
+            SelectClause stored
+    ) throws java.io.IOException {
+        
+        File database = query.database();
+        // Read the stamp before reading the file. If the file is modified
+        // while the index is being built the index will not be used.
+        long length = database.length();
+        long modified = database.lastModified();
+        
+        SelectClause select = new SelectClause();
+        int[] weights = new int[fields.size()];
+        for (Entry<String, Integer> field : fields.entrySet()) {
+            weights[select.size()] = field.getValue();
+            select.add("f" + select.size(), new JQuery(field.getKey()));
+        }
+        for (int iCol = 0; iCol < stored.size(); iCol++) {
+            select.add("s" + iCol, stored.get(iCol));
+        }
+        
+        HashMap<String, Postings> index = new HashMap<>();
+        ByteArrayOutputStream rows = new ByteArrayOutputStream();
+        DataOutputStream rowsOut = new DataOutputStream(rows);
+        long[] offsets = new long[1024];
+        int[] lengths = new int[1024];
+        int documents = 0;
+        
+        List<String> tokens = new ArrayList<>();
+        try (ResultStream rs = query.stream(select, false)) {
+            for (ResultTuple tuple : rs) {
+                if (documents == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, documents * 2);
+                    lengths = Arrays.copyOf(lengths, documents * 2);
+                }
+                int docLength = 0;
+                for (int iField = 0; iField < weights.length; iField++) {
+                    tokens.clear();
+                    tokenize(tuple.get(iField), tokens);
+                    for (String token : tokens) {
+                        Postings postings = index.get(token);
+                        if (postings == null) {
+                            postings = new Postings();
+                            index.put(token, postings);
+                        }
+                        postings.add(documents, weights[iField]);
+                        docLength += weights[iField];
+                    }
+                }
+                lengths[documents] = docLength;
+                offsets[documents] = rowsOut.size();
+                for (int iCol = 0; iCol < stored.size(); iCol++) {
+                    JsonElement value = tuple.get(weights.length + iCol);
+                    if (value != null) {
+                        byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+                        writeVarInt(rowsOut, bytes.length + 1);
+                        rowsOut.write(bytes);
+                    } else {
+                        writeVarInt(rowsOut, 0);
+                    }
+                }
+                documents++;
+            }
+        } catch (java.io.UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        
+        String[] terms = index.keySet().toArray(new String[index.size()]);
+        Arrays.sort(terms);
+        int[] frequencies = new int[terms.length];
+        long[] positions = new long[terms.length + 1];
+        
+        File file = file(database);
+        File tmpFile = File.createTempFile("tmp.", ".idx", file.getParentFile());
+        long lengthsPosition;
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile))
+        )) {
+            writeStamp(out, query, length, modified, fields, stored);
+            long rowsPosition = out.size();
+            rows.writeTo(out);
+            for (int iTerm = 0; iTerm < terms.length; iTerm++) {
+                Postings postings = index.get(terms[iTerm]);
+                frequencies[iTerm] = postings.documents();
+                positions[iTerm] = out.size();
+                postings.write(out);
+            }
+            positions[terms.length] = out.size();
+            lengthsPosition = out.size();
+            out.writeInt(documents);
+            for (int iDoc = 0; iDoc < documents; iDoc++) {
+                out.writeInt(lengths[iDoc]);
+            }
+            for (int iDoc = 0; iDoc < documents; iDoc++) {
+                out.writeLong(rowsPosition + offsets[iDoc]);
+            }
+            long dictionaryPosition = out.size();
+            out.writeInt(terms.length);
+            for (int iTerm = 0; iTerm < terms.length; iTerm++) {
+                out.writeUTF(terms[iTerm]);
+                out.writeInt(frequencies[iTerm]);
+                out.writeLong(positions[iTerm]);
+            }
+            out.writeLong(positions[terms.length]);
+            long directory = out.size();
+            out.writeLong(lengthsPosition);
+            out.writeLong(dictionaryPosition);
+            out.writeLong(directory);
+        } catch (java.io.IOException ex) {
+            tmpFile.delete();
+            throw ex;
+        }
+        Files.move(
+                tmpFile.toPath(),
+                file.toPath(),
+                StandardCopyOption.ATOMIC_MOVE
+        );
+        
+        return open(query, fields, stored);
+    }
+    
+    /**
+     * Number of documents in the index.
+     * 
+     * @return 
+     */
+    public int documents() {
+        
+        return _lengths.length;
+    }
+    
+    /**
+     * Sidecar file for the given Json file.
+     * 
+     * @param database
+     * @return 
+     */
+    public static File file(File database) {
+        
+        return new File(database.getAbsolutePath() + ".idx");
+    }
+    
+    /**
+     * Open the index for the given query. Returns null if the index file does
+     * not exist or if its stamp does not match the Json file, the target path,
+     * or the given fields and stored columns.
+     * 
+     * @param query
+     * @param fields
+     * @param stored
+     * @return
+     * @throws java.io.IOException 
+     */
+    public static TextIndex open(
+            JsonQuery query,
+            LinkedHashMap<String, Integer> fields,
+            SelectClause stored
+    ) throws java.io.IOException {
+        
+        File database = query.database();
+        File file = file(database);
+        if (!file.exists()) {
+            return null;
+        }
+        
+        // Compare the stamp in the file with the expected stamp.
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        writeStamp(
+                new DataOutputStream(buffer),
+                query,
+                database.length(),
+                database.lastModified(),
+                fields,
+                stored
+        );
+        byte[] stamp = buffer.toByteArray();
+        
+        try (FileInputStream fis = new FileInputStream(file)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(fis));
+            byte[] header = new byte[stamp.length];
+            try {
+                in.readFully(header);
+            } catch (java.io.EOFException ex) {
+                return null;
+            }
+            if (!Arrays.equals(header, stamp)) {
+                return null;
+            }
+            fis.getChannel().position(fis.getChannel().size() - 8);
+            in = new DataInputStream(new BufferedInputStream(fis));
+            fis.getChannel().position(in.readLong());
+            in = new DataInputStream(new BufferedInputStream(fis));
+            long lengthsPosition = in.readLong();
+            long dictionaryPosition = in.readLong();
+            
+            fis.getChannel().position(lengthsPosition);
+            in = new DataInputStream(new BufferedInputStream(fis));
+            int[] lengths = new int[in.readInt()];
+            for (int iDoc = 0; iDoc < lengths.length; iDoc++) {
+                lengths[iDoc] = in.readInt();
+            }
+            long[] rows = new long[lengths.length];
+            for (int iDoc = 0; iDoc < rows.length; iDoc++) {
+                rows[iDoc] = in.readLong();
+            }
+            
+            fis.getChannel().position(dictionaryPosition);
+            in = new DataInputStream(new BufferedInputStream(fis));
+            String[] terms = new String[in.readInt()];
+            int[] frequencies = new int[terms.length];
+            long[] positions = new long[terms.length + 1];
+            for (int iTerm = 0; iTerm < terms.length; iTerm++) {
+                terms[iTerm] = in.readUTF();
+                frequencies[iTerm] = in.readInt();
+                positions[iTerm] = in.readLong();
+            }
+            positions[terms.length] = in.readLong();
+            
+            List<String> columns = new ArrayList<>();
+            for (int iCol = 0; iCol < stored.size(); iCol++) {
+                columns.add(null);
+            }
+            for (Entry<String, Integer> column : stored.schema().entrySet()) {
+                columns.set(column.getValue(), column.getKey());
+            }
+            return new TextIndex(
+                    file,
+                    columns,
+                    lengths,
+                    rows,
+                    terms,
+                    frequencies,
+                    positions
+            );
+        }
+    }
+    
+    private static int readVarInt(byte[] buffer, int[] pos) {
+        
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer[pos[0]++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+    
+    /**
+     * Search the index for documents that contain any of the terms in the
+     * given query text. Returns the stored columns for the documents with the
+     * highest BM25 score in order of decreasing score. Only documents that
+     * satisfy the given filter are included in the result. If the filter is
+     * null all matching documents are considered.
+     * 
+     * @param text
+     * @param limit
+     * @param filter
+     * @return
+     * @throws java.io.IOException 
+     */
+    public List<ResultTuple> search(
+            String text,
+            int limit,
+            Predicate<ResultTuple> filter
+    ) throws java.io.IOException {
+        
+        List<String> tokens = new ArrayList<>();
+        tokenize(new JsonPrimitive(text), tokens);
+        
+        float[] scores = new float[_lengths.length];
+        boolean[] matched = new boolean[_lengths.length];
+        List<Integer> documents = new ArrayList<>();
+        
+        try (RandomAccessFile file = new RandomAccessFile(_file, "r")) {
+            for (String token : new LinkedHashSet<>(tokens)) {
+                int iTerm = Arrays.binarySearch(_terms, token);
+                if (iTerm < 0) {
+                    continue;
+                }
+                int df = _frequencies[iTerm];
+                float idf = (float)Math.log(
+                        1.0 + (_lengths.length - df + 0.5) / (df + 0.5)
+                );
+                byte[] buffer = new byte[(int)(_positions[iTerm + 1] - _positions[iTerm])];
+                file.seek(_positions[iTerm]);
+                file.readFully(buffer);
+                int[] pos = new int[]{0};
+                int document = 0;
+                for (int iPost = 0; iPost < df; iPost++) {
+                    document += readVarInt(buffer, pos);
+                    int tf = readVarInt(buffer, pos);
+                    float norm = K1 * (1 - B + B * _lengths[document] / _avgLength);
+                    // The score of a matching document may be zero if the term
+                    // only occurs in fields with weight zero.
+                    if (!matched[document]) {
+                        matched[document] = true;
+                        documents.add(document);
+                    }
+                    scores[document] += idf * (tf * (K1 + 1)) / (tf + norm);
+                }
+            }
+            
+            documents.sort((Integer d1, Integer d2) -> {
+                int comp = Float.compare(scores[d2], scores[d1]);
+                if (comp == 0) {
+                    comp = Integer.compare(d1, d2);
+                }
+                return comp;
+            });
+            
+            JsonParser parser = new JsonParser();
+            List<ResultTuple> result = new ArrayList<>();
+            for (int document : documents) {
+                if (result.size() >= limit) {
+                    break;
+                }
+                JsonElement[] values = new JsonElement[_schema.size()];
+                file.seek(_rows[document]);
+                for (int iCol = 0; iCol < values.length - 1; iCol++) {
+                    int length = readVarInt(file);
+                    if (length > 0) {
+                        byte[] bytes = new byte[length - 1];
+                        file.readFully(bytes);
+                        values[iCol] = parser.parse(
+                                new String(bytes, StandardCharsets.UTF_8)
+                        );
+                    }
+                }
+                values[values.length - 1] = new JsonPrimitive(scores[document]);
+                ResultTuple tuple = new ResultTuple(values, _schema);
+                if ((filter == null) || (filter.test(tuple))) {
+                    result.add(tuple);
+                }
+            }
+            return result;
+        }
+    }
+    
+    public List<ResultTuple> search(String text, int limit) throws java.io.IOException {
+        
+        return this.search(text, limit, null);
+    }
+    
+    private static int readVarInt(RandomAccessFile file) throws java.io.IOException {
+        
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = file.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+    
+    /**
+     * Split the text in the given element into lower-case terms. Terms are
+     * maximal sequences of letters and digits. Terms are truncated after 255
+     * characters. Arrays and objects are tokenized recursively.
+     * 
+     * @param el
+     * @param tokens 
+     */
+    public static void tokenize(JsonElement el, List<String> tokens) {
+        
+        if ((el == null) || (el.isJsonNull())) {
+            return;
+        } else if (el.isJsonArray()) {
+            for (JsonElement child : el.getAsJsonArray()) {
+                tokenize(child, tokens);
+            }
+        } else if (el.isJsonObject()) {
+            for (Map.Entry<String, JsonElement> child : el.getAsJsonObject().entrySet()) {
+                tokenize(child.getValue(), tokens);
+            }
+        } else {
+            String text = el.getAsString();
+            StringBuilder token = new StringBuilder();
+            for (int iChar = 0; iChar < text.length(); iChar++) {
+                char c = text.charAt(iChar);
+                if (Character.isLetterOrDigit(c)) {
+                    if (token.length() < MAX_TERM_LENGTH) {
+                        token.append(Character.toLowerCase(c));
+                    }
+                } else if (token.length() > 0) {
+                    tokens.add(token.toString());
+                    token.setLength(0);
+                }
+            }
+            if (token.length() > 0) {
+                tokens.add(token.toString());
+            }
+        }
+    }
+    
+    private static void writeStamp(
+            DataOutputStream out,
+            JsonQuery query,
+            long length,
+            long modified,
+            LinkedHashMap<String, Integer> fields,
+            SelectClause stored
+    ) throws java.io.IOException {
+        
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(length);
+        out.writeLong(modified);
+        out.writeUTF(query.targetPath());
+        out.writeInt(fields.size());
+        for (Entry<String, Integer> field : fields.entrySet()) {
+            out.writeUTF(new JPath(field.getKey()).toString());
+            out.writeInt(field.getValue());
+        }
+        String[] columns = new String[stored.size()];
+        for (Entry<String, Integer> column : stored.schema().entrySet()) {
+            columns[column.getValue()] = column.getKey();
+        }
+        out.writeInt(columns.length);
+        for (int iCol = 0; iCol < columns.length; iCol++) {
+            out.writeUTF(columns[iCol]);
+            out.writeUTF(stored.get(iCol).path().toString());
+        }
+    }
+    
+    private static void writeVarInt(DataOutputStream out, int value) throws java.io.IOException {
+        
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.core.query;
+
+import com.google.gson.JsonElement;
+import java.io.Closeable;
+
+/**
+ * Source of result tuples for a result stream. Each tuple contains the
+ * elements for the columns of a select clause (in order). Missing elements
+ * are null.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public interface TupleReader extends Closeable {
+    
+    /**
+     * Read the next tuple. Returns null if there are no more tuples.
+     * 
+     * @return
+     * @throws java.io.IOException 
+     */
+    public JsonElement[] next() throws java.io.IOException;
+}
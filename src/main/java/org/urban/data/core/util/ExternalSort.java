@@ -0,0 +1,204 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.core.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sort lines of text with bounded memory. Lines are buffered in memory until
+ * the buffer is full. The buffer is then sorted and written to a temporary
+ * run file. The sorted output is produced by merging all runs. If all lines
+ * fit into the buffer no run file is written.
+ * 
+ * Lines must not contain line breaks. Lines are compared using natural string
+ * order. The sorter has to be closed to delete the run files.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class ExternalSort implements Closeable {
+    
+    public static final int DEFAULT_BUFFERSIZE = 100000;
+    
+    /**
+     * Reader for a sorted run file. Maintains the current line.
+     */
+    private static class Run implements Comparable<Run> {
+        
+        private String _line;
+        private final BufferedReader _reader;
+        
+        public Run(File file) throws java.io.IOException {
+            
+            _reader = new BufferedReader(
+                    new InputStreamReader(
+                            new FileInputStream(file),
+                            StandardCharsets.UTF_8
+                    )
+            );
+            _line = _reader.readLine();
+        }
+        
+        public void close() throws java.io.IOException {
+            
+            _reader.close();
+        }
+
+        @Override
+        public int compareTo(Run run) {
+            
+            return _line.compareTo(run._line);
+        }
+        
+        public String line() {
+            
+            return _line;
+        }
+        
+        public boolean next() throws java.io.IOException {
+            
+            _line = _reader.readLine();
+            return (_line != null);
+        }
+    }
+    
+    private final List<String> _buffer = new ArrayList<>();
+    private final int _bufferSize;
+    private final File _directory;
+    private int _index = 0;
+    private PriorityQueue<Run> _queue = null;
+    private final List<Run> _readers = new ArrayList<>();
+    private final List<File> _runs = new ArrayList<>();
+    
+    /**
+     * Initialize the directory for run files and the maximum number of lines
+     * that are kept in memory. If the directory is null the default directory
+     * for temporary files is used.
+     * 
+     * @param directory
+     * @param bufferSize 
+     */
+    public ExternalSort(File directory, int bufferSize) {
+        
+        _directory = directory;
+        _bufferSize = bufferSize;
+    }
+    
+    public ExternalSort() {
+        
+        this(null, DEFAULT_BUFFERSIZE);
+    }
+    
+    public void add(String line) throws java.io.IOException {
+        
+        if (_queue != null) {
+            throw new IllegalStateException("Sorter is already reading");
+        }
+        _buffer.add(line);
+        if (_buffer.size() >= _bufferSize) {
+            this.flush();
+        }
+    }
+    
+    @Override
+    public void close() throws java.io.IOException {
+        
+        for (Run run : _readers) {
+            run.close();
+        }
+        _readers.clear();
+        for (File file : _runs) {
+            file.delete();
+        }
+        _runs.clear();
+        _buffer.clear();
+    }
+    
+    private void flush() throws java.io.IOException {
+        
+        Collections.sort(_buffer);
+        File file = File.createTempFile("sort.", ".run", _directory);
+        _runs.add(file);
+        try (BufferedWriter out = new BufferedWriter(
+                new OutputStreamWriter(
+                        new FileOutputStream(file),
+                        StandardCharsets.UTF_8
+                )
+        )) {
+            for (String line : _buffer) {
+                out.write(line);
+                out.newLine();
+            }
+        }
+        _buffer.clear();
+    }
+    
+    /**
+     * Get the next line in sort order. Returns null after the last line. No
+     * more lines can be added once the first line has been read.
+     * 
+     * @return
+     * @throws java.io.IOException 
+     */
+    public String next() throws java.io.IOException {
+        
+        if (_queue == null) {
+            _queue = new PriorityQueue<>();
+            if (_runs.isEmpty()) {
+                Collections.sort(_buffer);
+            } else {
+                if (!_buffer.isEmpty()) {
+                    this.flush();
+                }
+                for (File file : _runs) {
+                    Run run = new Run(file);
+                    _readers.add(run);
+                    if (run.line() != null) {
+                        _queue.add(run);
+                    }
+                }
+            }
+        }
+        
+        if (_runs.isEmpty()) {
+            if (_index < _buffer.size()) {
+                return _buffer.get(_index++);
+            }
+            return null;
+        }
+        
+        Run run = _queue.poll();
+        if (run == null) {
+            return null;
+        }
+        String line = run.line();
+        if (run.next()) {
+            _queue.add(run);
+        }
+        return line;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.core.util;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Access to virtual threads. Virtual threads are only available in Java 21 and
+ * later. This is the default implementation for older Java versions. The
+ * jar file is a multi-release jar that contains a separate implementation of
+ * this class for Java 21 and later (see src/main/java21).
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public final class VirtualThreads {
+    
+    /**
+     * True if virtual threads are supported by the Java runtime.
+     * 
+     * @return 
+     */
+    public static boolean isSupported() {
+        
+        return false;
+    }
+    
+    /**
+     * Executor that starts a new virtual thread for each task.
+     * 
+     * @return 
+     */
+    public static ExecutorService newExecutor() {
+        
+        throw new UnsupportedOperationException("Virtual threads require Java 21");
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.core.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool for running one task per work item with a limit on the number of tasks
+ * that run concurrently. The limit is enforced by a semaphore. Submitting a
+ * task blocks until a permit is available.
+ * 
+ * By default tasks run on a fixed number of platform threads. If virtual
+ * threads are requested (and supported by the Java runtime) each task runs in
+ * its own virtual thread. This allows for a large number of concurrent tasks
+ * that block on network or disk I/O.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class WorkerPool implements AutoCloseable {
+    
+    private static final Logger LOGGER = Logger
+            .getLogger(WorkerPool.class.getName());
+    
+    private final ExecutorService _executor;
+    private final Semaphore _permits;
+    
+    public WorkerPool(int concurrency, boolean virtualThreads) {
+        
+        concurrency = Math.max(1, concurrency);
+        
+        if ((virtualThreads) && (!VirtualThreads.isSupported())) {
+            LOGGER.log(
+                    Level.WARNING,
+                    "Virtual threads not supported by Java {0}. Use platform threads.",
+                    System.getProperty("java.version")
+            );
+            virtualThreads = false;
+        }
+        
+        if (virtualThreads) {
+            _executor = VirtualThreads.newExecutor();
+        } else {
+            _executor = Executors.newFixedThreadPool(concurrency);
+        }
+        _permits = new Semaphore(concurrency);
+    }
+    
+    public WorkerPool(int concurrency) {
+        
+        this(concurrency, false);
+    }
+    
+    /**
+     * Wait for all submitted tasks to finish.
+     */
+    @Override
+    public void close() {
+        
+        _executor.shutdown();
+        try {
+            _executor.awaitTermination(7, TimeUnit.DAYS);
+        } catch (java.lang.InterruptedException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+    
+    /**
+     * Run the given task. Blocks until the number of running tasks is below
+     * the concurrency limit.
+     * 
+     * @param task 
+     */
+    public void execute(Runnable task) {
+        
+        try {
+            _permits.acquire();
+        } catch (java.lang.InterruptedException ex) {
+            throw new RuntimeException(ex);
+        }
+        try {
+            _executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    _permits.release();
+                }
+            });
+        } catch (java.util.concurrent.RejectedExecutionException ex) {
+            _permits.release();
+            throw ex;
+        }
+    }
+}
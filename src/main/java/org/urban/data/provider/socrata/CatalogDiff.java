@@ -0,0 +1,435 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.provider.socrata;
+
+import com.google.gson.JsonElement;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.function.Consumer;
+import org.urban.data.core.query.JQuery;
+import org.urban.data.core.query.JPredicate;
+import org.urban.data.core.query.JsonQuery;
+import org.urban.data.core.query.ResultStream;
+import org.urban.data.core.query.ResultTuple;
+import org.urban.data.core.query.SelectClause;
+import org.urban.data.core.util.ExternalSort;
+
+/**
+ * Compare the catalogs from two harvest dates. Each catalog is reduced to one
+ * line per dataset that contains the dataset identifier, domain, name, column
+ * names, the last data update, and hash values for the remaining metadata
+ * fields and the column types. The lines of each catalog are sorted by
+ * dataset identifier and domain (externally if they do not fit into the sort
+ * buffer). The two sorted streams are then merge-joined in a single pass.
+ * 
+ * For each dataset the diff emits one change record per type of change. A
+ * dataset can therefore have multiple change records. Datasets that occur
+ * more than once in a catalog are compared only once.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class CatalogDiff {
+    
+    public enum ChangeType {
+        ADDED,
+        COLUMNS,
+        DATA,
+        METADATA,
+        REMOVED
+    }
+    
+    /**
+     * Change record for a single dataset. The details describe the change,
+     * e.g., the names of modified metadata fields or added (+) and removed
+     * (-) columns.
+     */
+    public static class Change {
+        
+        private final String _dataset;
+        private final String _details;
+        private final String _domain;
+        private final String _name;
+        private final ChangeType _type;
+        
+        public Change(
+                ChangeType type,
+                String domain,
+                String dataset,
+                String name,
+                String details
+        ) {
+            
+            _type = type;
+            _domain = domain;
+            _dataset = dataset;
+            _name = name;
+            _details = details;
+        }
+        
+        public String dataset() {
+            
+            return _dataset;
+        }
+        
+        public String details() {
+            
+            return _details;
+        }
+        
+        public String domain() {
+            
+            return _domain;
+        }
+        
+        public String name() {
+            
+            return _name;
+        }
+        
+        @Override
+        public String toString() {
+            
+            return _type + "\t" + _domain + "\t" + _dataset + "\t" + _name + "\t" + _details;
+        }
+        
+        public ChangeType type() {
+            
+            return _type;
+        }
+    }
+    
+    /**
+     * Metadata fields that are compared by their hash value. The names are
+     * used in the details of metadata change records.
+     */
+    private static final String[] METADATA_FIELDS = {
+        "attribution",
+        "category",
+        "description",
+        "domain_tags",
+        "tags"
+    };
+    private static final String[] METADATA_PATHS = {
+        "/resource/attribution",
+        "/classification/domain_category",
+        "/resource/description",
+        "/classification/domain_tags",
+        "/classification/tags"
+    };
+    
+    // Index positions in the lines for a dataset
+    private static final int COL_DATASET = 0;
+    private static final int COL_DOMAIN = 1;
+    private static final int COL_NAME = 2;
+    private static final int COL_COLUMNS = 3;
+    private static final int COL_TYPES = 4;
+    private static final int COL_UPDATED = 5;
+    private static final int COL_METADATA = 6;
+    
+    private final int _bufferSize;
+    private final File _from;
+    private final JPredicate _predicate;
+    private final File _to;
+    
+    public CatalogDiff(File from, File to, JPredicate predicate, int bufferSize) {
+        
+        _from = from;
+        _to = to;
+        _predicate = predicate;
+        _bufferSize = bufferSize;
+    }
+    
+    public CatalogDiff(File from, File to) {
+        
+        this(from, to, null, ExternalSort.DEFAULT_BUFFERSIZE);
+    }
+    
+    private static String clean(String value) {
+        
+        if (value == null) {
+            return "";
+        }
+        return value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+    
+    private void compare(String[] from, String[] to, Consumer<Change> consumer) {
+        
+        String domain = to[COL_DOMAIN];
+        String dataset = to[COL_DATASET];
+        String name = to[COL_NAME];
+        
+        List<String> fields = new ArrayList<>();
+        if (!from[COL_NAME].equals(to[COL_NAME])) {
+            fields.add("name");
+        }
+        for (int iField = 0; iField < METADATA_FIELDS.length; iField++) {
+            if (!from[COL_METADATA + iField].equals(to[COL_METADATA + iField])) {
+                fields.add(METADATA_FIELDS[iField]);
+            }
+        }
+        if (!fields.isEmpty()) {
+            consumer.accept(
+                    new Change(
+                            ChangeType.METADATA,
+                            domain,
+                            dataset,
+                            name,
+                            String.join(",", fields)
+                    )
+            );
+        }
+        
+        if (!from[COL_COLUMNS].equals(to[COL_COLUMNS])) {
+            List<String> oldColumns = split(from[COL_COLUMNS]);
+            List<String> newColumns = split(to[COL_COLUMNS]);
+            HashSet<String> oldSet = new HashSet<>(oldColumns);
+            HashSet<String> newSet = new HashSet<>(newColumns);
+            List<String> changes = new ArrayList<>();
+            for (String column : newColumns) {
+                if (!oldSet.contains(column)) {
+                    changes.add("+" + column);
+                }
+            }
+            for (String column : oldColumns) {
+                if (!newSet.contains(column)) {
+                    changes.add("-" + column);
+                }
+            }
+            if (changes.isEmpty()) {
+                changes.add("order");
+            }
+            consumer.accept(
+                    new Change(
+                            ChangeType.COLUMNS,
+                            domain,
+                            dataset,
+                            name,
+                            String.join(",", changes)
+                    )
+            );
+        } else if (!from[COL_TYPES].equals(to[COL_TYPES])) {
+            consumer.accept(
+                    new Change(ChangeType.COLUMNS, domain, dataset, name, "types")
+            );
+        }
+        
+        if (!from[COL_UPDATED].equals(to[COL_UPDATED])) {
+            consumer.accept(
+                    new Change(
+                            ChangeType.DATA,
+                            domain,
+                            dataset,
+                            name,
+                            from[COL_UPDATED] + " -> " + to[COL_UPDATED]
+                    )
+            );
+        }
+    }
+    
+    /**
+     * Compare the two catalogs. Change records are passed to the consumer in
+     * order of dataset identifier and domain.
+     * 
+     * @param consumer
+     * @throws java.io.IOException 
+     */
+    public void diff(Consumer<Change> consumer) throws java.io.IOException {
+        
+        try (
+                ExternalSort from = this.sort(_from);
+                ExternalSort to = this.sort(_to)
+        ) {
+            String[] left = next(from, null);
+            String[] right = next(to, null);
+            while ((left != null) || (right != null)) {
+                int comp;
+                if (left == null) {
+                    comp = 1;
+                } else if (right == null) {
+                    comp = -1;
+                } else {
+                    comp = key(left).compareTo(key(right));
+                }
+                if (comp < 0) {
+                    consumer.accept(
+                            new Change(
+                                    ChangeType.REMOVED,
+                                    left[COL_DOMAIN],
+                                    left[COL_DATASET],
+                                    left[COL_NAME],
+                                    ""
+                            )
+                    );
+                    left = next(from, left);
+                } else if (comp > 0) {
+                    consumer.accept(
+                            new Change(
+                                    ChangeType.ADDED,
+                                    right[COL_DOMAIN],
+                                    right[COL_DATASET],
+                                    right[COL_NAME],
+                                    ""
+                            )
+                    );
+                    right = next(to, right);
+                } else {
+                    this.compare(left, right, consumer);
+                    left = next(from, left);
+                    right = next(to, right);
+                }
+            }
+        }
+    }
+    
+    /**
+     * 64-bit FNV-1a hash for the Json representation of the given element.
+     * Returns an empty string for null.
+     * 
+     * @param el
+     * @return 
+     */
+    private static String hash(JsonElement el) {
+        
+        if (el == null) {
+            return "";
+        }
+        String value = el.toString();
+        long h = 0xcbf29ce484222325L;
+        for (int iChar = 0; iChar < value.length(); iChar++) {
+            h ^= value.charAt(iChar);
+            h *= 0x100000001b3L;
+        }
+        return Long.toHexString(h);
+    }
+    
+    private static String key(String[] tuple) {
+        
+        return tuple[COL_DATASET] + "\t" + tuple[COL_DOMAIN];
+    }
+    
+    /**
+     * Get the next dataset from a sorted catalog. A catalog may contain the
+     * same dataset more than once. Only the first line (in sort order) for
+     * each dataset is used. All following lines with the same dataset
+     * identifier and domain as the current line are skipped.
+     * 
+     * @param sorter
+     * @param current
+     * @return
+     * @throws java.io.IOException 
+     */
+    private static String[] next(
+            ExternalSort sorter,
+            String[] current
+    ) throws java.io.IOException {
+        
+        String[] tuple;
+        while ((tuple = split(sorter.next(), COL_METADATA + METADATA_FIELDS.length)) != null) {
+            if ((current == null) || (!key(tuple).equals(key(current)))) {
+                return tuple;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Reduce the catalog to one line per dataset and sort the lines.
+     * 
+     * @param catalogFile
+     * @return
+     * @throws java.io.IOException 
+     */
+    private ExternalSort sort(File catalogFile) throws java.io.IOException {
+        
+        SelectClause select = new SelectClause()
+                .add("dataset", new JQuery("/resource/id"))
+                .add("domain", new JQuery("/metadata/domain"))
+                .add("name", new JQuery("/resource/name"))
+                .add("columns", new JQuery("/resource/columns_field_name"))
+                .add("types", new JQuery("/resource/columns_datatype"))
+                .add("updated", new JQuery("/resource/data_updated_at"));
+        for (int iField = 0; iField < METADATA_PATHS.length; iField++) {
+            select.add(METADATA_FIELDS[iField], new JQuery(METADATA_PATHS[iField]));
+        }
+        
+        JsonQuery query = CatalogQuery.query(catalogFile);
+        if (_predicate != null) {
+            query.where(_predicate);
+        }
+        
+        ExternalSort sorter = new ExternalSort(null, _bufferSize);
+        try (ResultStream rs = query.stream(select, false)) {
+            for (ResultTuple tuple : rs) {
+                if ((tuple.get("dataset") == null) || (tuple.get("domain") == null)) {
+                    continue;
+                }
+                String[] values = new String[select.size()];
+                values[COL_DATASET] = clean(tuple.getAsString("dataset"));
+                values[COL_DOMAIN] = clean(tuple.getAsString("domain"));
+                values[COL_NAME] = clean(tuple.getAsString("name"));
+                List<String> columns = new ArrayList<>();
+                JsonElement el = tuple.get("columns");
+                if ((el != null) && (el.isJsonArray())) {
+                    for (JsonElement column : el.getAsJsonArray()) {
+                        if (column.isJsonPrimitive()) {
+                            columns.add(clean(column.getAsString()));
+                        } else {
+                            columns.add(clean(column.toString()));
+                        }
+                    }
+                }
+                values[COL_COLUMNS] = String.join(",", columns);
+                values[COL_TYPES] = hash(tuple.get("types"));
+                values[COL_UPDATED] = clean(tuple.getAsString("updated"));
+                for (int iField = 0; iField < METADATA_FIELDS.length; iField++) {
+                    values[COL_METADATA + iField] = hash(tuple.get(METADATA_FIELDS[iField]));
+                }
+                sorter.add(String.join("\t", values));
+            }
+        } catch (java.io.UncheckedIOException ex) {
+            sorter.close();
+            throw ex.getCause();
+        } catch (java.io.IOException | RuntimeException ex) {
+            sorter.close();
+            throw ex;
+        }
+        return sorter;
+    }
+    
+    private static String[] split(String line, int columns) {
+        
+        if (line == null) {
+            return null;
+        }
+        String[] tokens = line.split("\t", -1);
+        if (tokens.length < columns) {
+            return Arrays.copyOf(tokens, columns);
+        }
+        return tokens;
+    }
+    
+    private static List<String> split(String columns) {
+        
+        if (columns.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return Arrays.asList(columns.split(","));
+    }
+}
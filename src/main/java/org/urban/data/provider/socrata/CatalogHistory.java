@@ -0,0 +1,435 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.provider.socrata;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.urban.data.core.query.AggregateClause;
+import org.urban.data.core.query.JPredicate;
+import org.urban.data.core.query.JsonQuery;
+import org.urban.data.core.query.ResultTuple;
+import org.urban.data.core.query.SelectClause;
+import org.urban.data.core.util.FileSystem;
+import org.urban.data.core.util.WorkerPool;
+import org.urban.data.provider.socrata.db.DB;
+
+/**
+ * Query the catalogs for all harvest dates in the archive. The harvest date is
+ * an additional column 'date' that is the first column in all result tuples.
+ * Result tuples are ordered by date.
+ * 
+ * The catalogs are scanned in parallel (one catalog per worker thread) and
+ * the query predicate is evaluated while each catalog is read. The result for
+ * each catalog is cached in a file in the folder 'cache' next to the catalog
+ * file. The cache file is identified by a hash of the query expression. It
+ * is stamped with the query expression and the length and modification time
+ * of the catalog file. Repeated queries only scan catalogs that changed since
+ * the cached result was written.
+ * 
+ * In the cache file each value is wrapped in a single-element array. Missing
+ * values are written as null. This keeps them apart from Json null values.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class CatalogHistory {
+    
+    public static final String DATE = "date";
+    
+    private interface DateQuery {
+        
+        public List<ResultTuple> eval(JsonQuery query) throws java.io.IOException;
+    }
+    
+    private static final int CACHE_FORMAT = 2;
+    private static final Logger LOGGER = Logger.getGlobal();
+    
+    private final DB _db;
+    private String _from = null;
+    private JPredicate _predicate = null;
+    private int _threads;
+    private String _to = null;
+    private boolean _useCache = true;
+    
+    public CatalogHistory(DB db) {
+        
+        _db = db;
+        _threads = Runtime.getRuntime().availableProcessors();
+    }
+    
+    /**
+     * Evaluate an aggregate query for each catalog.
+     * 
+     * @param clause
+     * @return
+     * @throws java.io.IOException 
+     */
+    public List<ResultTuple> aggregate(AggregateClause clause) throws java.io.IOException {
+        
+        return this.run(
+                clause.toString(),
+                clause.schema(),
+                (JsonQuery query) -> query.aggregate(clause)
+        );
+    }
+    
+    /**
+     * Disable or enable the per-date result cache.
+     * 
+     * @param useCache
+     * @return 
+     */
+    public CatalogHistory cache(boolean useCache) {
+        
+        _useCache = useCache;
+        return this;
+    }
+    
+    private File cacheFile(String date, String key) {
+        
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (java.security.NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+        StringBuilder name = new StringBuilder();
+        for (byte b : digest.digest(key.getBytes(StandardCharsets.UTF_8))) {
+            name.append(String.format("%02x", b));
+        }
+        return FileSystem.joinPath(
+                _db.catalogFile(date).getParentFile(),
+                new String[]{"cache", name.append(".json.gz").toString()}
+        );
+    }
+    
+    /**
+     * Restrict the query to catalogs between the given dates (inclusive). If
+     * a date is null the range is unbounded.
+     * 
+     * @param from
+     * @param to
+     * @return 
+     */
+    public CatalogHistory dates(String from, String to) {
+        
+        _from = from;
+        _to = to;
+        return this;
+    }
+    
+    /**
+     * Sorted list of catalog dates that are queried.
+     * 
+     * @return 
+     */
+    public List<String> dates() {
+        
+        List<String> result = new ArrayList<>();
+        for (String date : _db.catalogDates()) {
+            if ((_from != null) && (date.compareTo(_from) < 0)) {
+                continue;
+            }
+            if ((_to != null) && (date.compareTo(_to) > 0)) {
+                continue;
+            }
+            result.add(date);
+        }
+        return result;
+    }
+    
+    /**
+     * Evaluate the select clause for each catalog.
+     * 
+     * @param select
+     * @return
+     * @throws java.io.IOException 
+     */
+    public List<ResultTuple> executeQuery(SelectClause select) throws java.io.IOException {
+        
+        return this.run(
+                select.toString(),
+                select.schema(),
+                (JsonQuery query) -> query.executeQuery(select, false)
+        );
+    }
+    
+    /**
+     * Set the number of catalogs that are scanned concurrently.
+     * 
+     * @param threads
+     * @return 
+     */
+    public CatalogHistory parallel(int threads) {
+        
+        _threads = threads;
+        return this;
+    }
+    
+    /**
+     * Read cached result for a catalog. Returns null if the cache file does
+     * not exist or if it does not match the query or the catalog file.
+     * 
+     * @param file
+     * @param key
+     * @param catalogFile
+     * @return
+     * @throws java.io.IOException 
+     */
+    private List<JsonElement[]> readCache(
+            File file,
+            String key,
+            File catalogFile
+    ) throws java.io.IOException {
+        
+        if (!file.exists()) {
+            return null;
+        }
+        JsonParser parser = new JsonParser();
+        try (BufferedReader in = FileSystem.openReader(file)) {
+            String line = in.readLine();
+            if (line == null) {
+                return null;
+            }
+            JsonObject header = parser.parse(line).getAsJsonObject();
+            if ((!header.has("format")) || (header.get("format").getAsInt() != CACHE_FORMAT)) {
+                return null;
+            }
+            if (!header.get("query").getAsString().equals(key)) {
+                return null;
+            }
+            if (header.get("length").getAsLong() != catalogFile.length()) {
+                return null;
+            }
+            if (header.get("modified").getAsLong() != catalogFile.lastModified()) {
+                return null;
+            }
+            List<JsonElement[]> result = new ArrayList<>();
+            while ((line = in.readLine()) != null) {
+                JsonArray row = parser.parse(line).getAsJsonArray();
+                JsonElement[] values = new JsonElement[row.size()];
+                for (int iCol = 0; iCol < values.length; iCol++) {
+                    JsonElement el = row.get(iCol);
+                    if (!el.isJsonNull()) {
+                        values[iCol] = el.getAsJsonArray().get(0);
+                    }
+                }
+                result.add(values);
+            }
+            return result;
+        } catch (com.google.gson.JsonParseException | IllegalStateException | IndexOutOfBoundsException ex) {
+            // Treat incomplete or invalid cache files as missing.
+            return null;
+        }
+    }
+    
+    private List<ResultTuple> run(
+            String expression,
+            HashMap<String, Integer> schema,
+            DateQuery query
+    ) throws java.io.IOException {
+        
+        if (schema.containsKey(DATE)) {
+            throw new IllegalArgumentException("Duplicate name:" + DATE);
+        }
+        String key;
+        if (_predicate != null) {
+            key = expression + " where " + _predicate;
+        } else {
+            key = expression;
+        }
+        
+        HashMap<String, Integer> columns = new HashMap<>();
+        columns.put(DATE, 0);
+        for (Map.Entry<String, Integer> column : schema.entrySet()) {
+            columns.put(column.getKey(), column.getValue() + 1);
+        }
+        
+        List<String> dates = this.dates();
+        List<List<JsonElement[]>> results = new ArrayList<>();
+        for (String date : dates) {
+            results.add(null);
+        }
+        AtomicReference<java.io.IOException> error = new AtomicReference<>();
+        try (WorkerPool pool = new WorkerPool(_threads)) {
+            for (int iDate = 0; iDate < dates.size(); iDate++) {
+                int index = iDate;
+                String date = dates.get(iDate);
+                pool.execute(() -> {
+                    try {
+                        results.set(index, this.scan(date, key, query));
+                    } catch (java.io.IOException ex) {
+                        error.compareAndSet(null, ex);
+                    } catch (java.io.UncheckedIOException ex) {
+                        error.compareAndSet(null, ex.getCause());
+                    } catch (RuntimeException ex) {
+                        error.compareAndSet(null, new java.io.IOException(date, ex));
+                    }
+                });
+            }
+        }
+        if (error.get() != null) {
+            throw error.get();
+        }
+        
+        List<ResultTuple> result = new ArrayList<>();
+        for (int iDate = 0; iDate < dates.size(); iDate++) {
+            JsonPrimitive date = new JsonPrimitive(dates.get(iDate));
+            for (JsonElement[] row : results.get(iDate)) {
+                JsonElement[] values = new JsonElement[row.length + 1];
+                values[0] = date;
+                System.arraycopy(row, 0, values, 1, row.length);
+                result.add(new ResultTuple(values, columns));
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Get the query result for a single catalog. The result is read from the
+     * cache if possible. Otherwise, the catalog is scanned and the result is
+     * written to the cache.
+     * 
+     * @param date
+     * @param key
+     * @param query
+     * @return
+     * @throws java.io.IOException 
+     */
+    private List<JsonElement[]> scan(
+            String date,
+            String key,
+            DateQuery query
+    ) throws java.io.IOException {
+        
+        File catalogFile = _db.catalogFile(date);
+        File file = this.cacheFile(date, key);
+        if (_useCache) {
+            List<JsonElement[]> rows = this.readCache(file, key, catalogFile);
+            if (rows != null) {
+                return rows;
+            }
+        }
+        
+        // Read the stamp before reading the file. If the file is modified
+        // while it is being scanned the cached result will not be used.
+        long length = catalogFile.length();
+        long modified = catalogFile.lastModified();
+        
+        // Catalogs are scanned concurrently. Each catalog is therefore parsed
+        // by a single thread.
+        JsonQuery catalog = CatalogQuery.query(catalogFile).parallel(1);
+        if (_predicate != null) {
+            catalog.where(_predicate);
+        }
+        List<JsonElement[]> rows = new ArrayList<>();
+        for (ResultTuple tuple : query.eval(catalog)) {
+            JsonElement[] values = new JsonElement[tuple.size()];
+            for (int iCol = 0; iCol < values.length; iCol++) {
+                values[iCol] = tuple.get(iCol);
+            }
+            rows.add(values);
+        }
+        
+        if (_useCache) {
+            try {
+                this.writeCache(file, key, length, modified, rows);
+            } catch (java.io.IOException ex) {
+                LOGGER.log(Level.WARNING, "CACHE " + file.getName(), ex);
+            }
+        }
+        return rows;
+    }
+    
+    /**
+     * Add a predicate. Only catalog entries that satisfy all predicates are
+     * included in the query result.
+     * 
+     * @param predicate
+     * @return 
+     */
+    public CatalogHistory where(JPredicate predicate) {
+        
+        if (_predicate == null) {
+            _predicate = predicate;
+        } else {
+            _predicate = JPredicate.and(_predicate, predicate);
+        }
+        return this;
+    }
+    
+    private void writeCache(
+            File file,
+            String key,
+            long length,
+            long modified,
+            List<JsonElement[]> rows
+    ) throws java.io.IOException {
+        
+        FileSystem.createParentFolder(file);
+        File tmpFile = File.createTempFile("tmp.", ".json.gz", file.getParentFile());
+        try (PrintWriter out = FileSystem.openPrintWriter(tmpFile)) {
+            JsonObject header = new JsonObject();
+            header.addProperty("format", CACHE_FORMAT);
+            header.addProperty("query", key);
+            header.addProperty("length", length);
+            header.addProperty("modified", modified);
+            out.println(header);
+            for (JsonElement[] row : rows) {
+                JsonArray values = new JsonArray();
+                for (JsonElement value : row) {
+                    if (value != null) {
+                        JsonArray wrapper = new JsonArray();
+                        wrapper.add(value);
+                        values.add(wrapper);
+                    } else {
+                        values.add(JsonNull.INSTANCE);
+                    }
+                }
+                out.println(values);
+            }
+            if (out.checkError()) {
+                throw new java.io.IOException("Error writing " + tmpFile.getName());
+            }
+        } catch (java.io.IOException ex) {
+            tmpFile.delete();
+            throw ex;
+        }
+        Files.move(
+                tmpFile.toPath(),
+                file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE
+        );
+    }
+}
@@ -15,24 +15,22 @@
  */
 package org.urban.data.provider.socrata;
 
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-import com.google.gson.stream.JsonReader;
 import java.io.File;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map.Entry;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.urban.data.core.query.JQuery;
-import org.urban.data.core.util.FileSystem;
+import org.urban.data.core.query.JsonQuery;
+import org.urban.data.core.query.ResultStream;
+import org.urban.data.core.query.ResultTuple;
+import org.urban.data.core.query.SelectClause;
+import org.urban.data.core.query.TextIndex;
 import org.urban.data.core.util.StringHelper;
 
 /**
@@ -42,6 +40,23 @@ import org.urban.data.core.util.StringHelper;
  */
 public class CatalogQuery {
     
+    /**
+     * Catalog paths that are maintained in the columnar catalog cache. These
+     * are the paths that are queried by the catalog commands.
+     */
+    public static final List<String> CACHED_PATHS = Collections.unmodifiableList(
+            Arrays.asList(
+                    "metadata/domain",
+                    "permalink",
+                    "resource/columns_datatype",
+                    "resource/columns_field_name",
+                    "resource/columns_name",
+                    "resource/data_updated_at",
+                    "resource/id",
+                    "resource/name"
+            )
+    );
+    
     private final File _catalogFile;
     
     public CatalogQuery(File catalogFile) {
@@ -49,55 +64,20 @@ public class CatalogQuery {
         _catalogFile = catalogFile;
     }
     
-    private void addPath(
-            Entry<String, JsonElement> entry,
-            String prefix,
-            HashSet<String> schema
-    ) {
-
-        String path = prefix + "/" + entry.getKey();
-        if (!schema.contains(path)) {
-            schema.add(path);
-        }
-        
-        JsonElement el = entry.getValue();
-        if (el.isJsonObject()) {
-            for (Entry<String, JsonElement> child : el.getAsJsonObject().entrySet()) {
-                this.addPath(child, path, schema);
-            }
-        }
-    }
-    
     public List<String[]> eval(List<JQuery> select, boolean noNullValues) throws java.io.IOException {
 
         List<String[]> result = new ArrayList<>();
         
-        JsonParser parser = new JsonParser();
-        try (InputStream is = FileSystem.openFile(_catalogFile)) {
-            JsonReader reader = new JsonReader(new InputStreamReader(is));
-            reader.beginArray();
-            while (reader.hasNext()) {
-                JsonObject doc = parser.parse(reader).getAsJsonObject();
-                String[] tuple = new String[select.size()];
-                boolean hasNull = false;
-                for (int iCol = 0; iCol < select.size(); iCol++) {
-                    JsonElement el = select.get(iCol).eval(doc);
-                    if (el != null) {
-                        if (el.isJsonPrimitive()) {
-                            tuple[iCol] = el.getAsString();
-                        } else {
-                            tuple[iCol] = el.toString();
-                        }
-                    } else {
-                        tuple[iCol] = "";
-                        hasNull = true;
-                    }
-                }
-                if ((!hasNull) || (!noNullValues)) {
-                    result.add(tuple);
+        try (ResultStream rs = this.stream(select, noNullValues)) {
+            for (ResultTuple tuple : rs) {
+                String[] values = new String[tuple.size()];
+                for (int iCol = 0; iCol < tuple.size(); iCol++) {
+                    values[iCol] = tuple.getAsString(iCol);
                 }
+                result.add(values);
             }
-            reader.endArray();
+        } catch (java.io.UncheckedIOException ex) {
+            throw ex.getCause();
         }
         
         return result;
@@ -108,28 +88,88 @@ public class CatalogQuery {
         return this.eval(select, false);
     }
     
-    public void schema(PrintWriter out) throws java.io.IOException {
+    /**
+     * Evaluate the given path expressions for all catalog entries as a stream.
+     * Columns in the result tuples are named by their index position. The
+     * returned stream has to be closed.
+     * 
+     * @param select
+     * @param noNullValues
+     * @return
+     * @throws java.io.IOException 
+     */
+    public ResultStream stream(List<JQuery> select, boolean noNullValues) throws java.io.IOException {
+        
+        SelectClause clause = new SelectClause();
+        for (int iCol = 0; iCol < select.size(); iCol++) {
+            clause.add(Integer.toString(iCol), select.get(iCol));
+        }
+        return query(_catalogFile).stream(clause, noNullValues);
+    }
+    
+    /**
+     * Json query for the given catalog file that uses the columnar catalog
+     * cache. Queries that cannot be answered from the cache parse the catalog
+     * using one worker thread per available processor.
+     * 
+     * @param catalogFile
+     * @return 
+     */
+    public static JsonQuery query(File catalogFile) {
         
-        JsonParser parser = new JsonParser();
+        return new JsonQuery(catalogFile)
+                .cache(CACHED_PATHS)
+                .parallel(Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Full-text index for the given catalog file. The index covers dataset
+     * names, descriptions, tags, categories and column names. Matches in the
+     * dataset name and tags are weighted higher than matches in descriptions.
+     * Search results contain the domain, dataset identifier and name. The
+     * index is built if it does not exist or if it is out of date.
+     * 
+     * @param catalogFile
+     * @return
+     * @throws java.io.IOException 
+     */
+    public static TextIndex index(File catalogFile) throws java.io.IOException {
         
-        HashSet<String> schema = new HashSet<>();
+        LinkedHashMap<String, Integer> fields = new LinkedHashMap<>();
+        fields.put("classification/categories", 2);
+        fields.put("classification/domain_category", 2);
+        fields.put("classification/domain_tags", 2);
+        fields.put("classification/tags", 2);
+        fields.put("resource/columns_description", 1);
+        fields.put("resource/columns_field_name", 1);
+        fields.put("resource/columns_name", 2);
+        fields.put("resource/description", 1);
+        fields.put("resource/name", 3);
         
-        try (InputStream is = FileSystem.openFile(_catalogFile)) {
-            JsonReader reader = new JsonReader(new InputStreamReader(is));
-            reader.beginArray();
-            while (reader.hasNext()) {
-                JsonObject doc = parser.parse(reader).getAsJsonObject();
-                for (Entry<String, JsonElement> entry : doc.entrySet()) {
-                    this.addPath(entry, "", schema);
-                }
-            }
-            reader.endArray();
+        SelectClause stored = new SelectClause()
+                .add("domain", new JQuery("/metadata/domain"))
+                .add("dataset", new JQuery("/resource/id"))
+                .add("name", new JQuery("/resource/name"));
+        
+        JsonQuery query = query(catalogFile);
+        TextIndex index = TextIndex.open(query, fields, stored);
+        if (index == null) {
+            Logger.getGlobal().log(Level.INFO, "INDEX {0}", catalogFile.getName());
+            index = TextIndex.build(query, fields, stored);
         }
+        return index;
+    }
+    
+    /**
+     * Print all paths in the catalog entries.
+     * 
+     * @param out
+     * @throws java.io.IOException 
+     */
+    public void schema(PrintWriter out) throws java.io.IOException {
         
-        List<String> paths = new ArrayList<>(schema);
-        Collections.sort(paths);
-        for (String path : paths) {
-            out.println(path);
+        for (String path : query(_catalogFile).profile(1).paths()) {
+            out.println("/" + path);
         }
     }
     
@@ -0,0 +1,427 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.provider.socrata;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.urban.data.core.util.FileSystem;
+import org.urban.data.core.util.WorkerPool;
+
+/**
+ * Convert datasets in SODA JSON format (an array of objects) into TSV files.
+ * The JSON input is parsed as a stream. Objects are never materialized as
+ * trees. Nested objects and arrays are written as JSON strings.
+ * 
+ * SODA omits null values from the result objects. The set of columns is
+ * therefore the union of all keys in all objects. Keys are added to the header
+ * in the order in which they are first encountered. Rows are written while the
+ * input is parsed to a (compressed) body file. When the converter is closed the
+ * header is written to the output file and the body is appended. If all keys
+ * were known before the first row was written (e.g., because they were given
+ * as the initial header) the compressed body is appended as is, without
+ * decompressing it again. Otherwise, the body is rewritten once to add empty
+ * values for the columns that were discovered after a row was written.
+ * 
+ * Multiple JSON arrays (e.g., the result pages of a dataset download) can be
+ * added to the same converter.
+ * 
+ * The main method converts all JSON files in a directory in parallel.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class JsonDatasetConverter implements AutoCloseable {
+    
+    private static final String COMMAND =
+            "Usage:\n" +
+            "  <input-directory>\n" +
+            "  <output-directory>\n" +
+            "  <threads>\n" +
+            "  {overwrite}";
+    
+    private static final Logger LOGGER = Logger
+            .getLogger(JsonDatasetConverter.class.getName());
+    
+    public static final String VERSION = "0.1.0";
+    
+    private CSVPrinter _body;
+    private final File _bodyFile;
+    private final HashMap<String, Integer> _columns = new HashMap<>();
+    private final List<String> _header = new ArrayList<>();
+    private final File _outputFile;
+    private long _rows = 0;
+    private int _width = -1;
+    
+    /**
+     * Initialize the converter with a list of known column names. Columns for
+     * all other keys are added as they are encountered.
+     * 
+     * @param outputFile
+     * @param columns
+     * @throws java.io.IOException 
+     */
+    public JsonDatasetConverter(File outputFile, List<String> columns) throws java.io.IOException {
+        
+        _outputFile = outputFile;
+        _bodyFile = new File(outputFile.getAbsolutePath() + ".body");
+        for (String column : columns) {
+            this.column(column);
+        }
+        FileSystem.createParentFolder(outputFile);
+        _body = new CSVPrinter(
+                new OutputStreamWriter(
+                        new GZIPOutputStream(new FileOutputStream(_bodyFile), 64 * 1024),
+                        StandardCharsets.UTF_8
+                ),
+                SocrataHelper.TSV_FORMAT
+        );
+    }
+    
+    public JsonDatasetConverter(File outputFile) throws java.io.IOException {
+        
+        this(outputFile, new ArrayList<>());
+    }
+    
+    /**
+     * Convert a JSON array of objects. Returns the number of objects in the
+     * array.
+     * 
+     * @param in
+     * @return
+     * @throws java.io.IOException 
+     */
+    public long add(InputStream in) throws java.io.IOException {
+        
+        long count = 0;
+        JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        List<String> row = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            row.clear();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                int index = this.column(reader.nextName());
+                while (row.size() <= index) {
+                    row.add("");
+                }
+                row.set(index, value(reader));
+            }
+            reader.endObject();
+            while (row.size() < _header.size()) {
+                row.add("");
+            }
+            if (_width == -1) {
+                _width = _header.size();
+            }
+            _body.printRecord(row);
+            count++;
+        }
+        reader.endArray();
+        _rows += count;
+        return count;
+    }
+    
+    /**
+     * Discard the converted rows. Nothing is written to the output file.
+     */
+    public void abort() {
+        
+        try {
+            _body.close();
+        } catch (java.io.IOException ex) {
+        }
+        _bodyFile.delete();
+    }
+    
+    /**
+     * Write the output file.
+     * 
+     * @throws java.io.IOException 
+     */
+    @Override
+    public void close() throws java.io.IOException {
+        
+        _body.close();
+        
+        File partFile = new File(_outputFile.getAbsolutePath() + ".part");
+        try {
+            try (CSVPrinter out = this.open(partFile)) {
+                if (!_header.isEmpty()) {
+                    out.printRecord(_header);
+                }
+                if ((_width != -1) && (_width < _header.size())) {
+                    // Rows that were written before all columns were known
+                    // are shorter than the header.
+                    try (CSVParser parser = new CSVParser(
+                            new InputStreamReader(
+                                    new GZIPInputStream(new FileInputStream(_bodyFile)),
+                                    StandardCharsets.UTF_8
+                            ),
+                            SocrataHelper.TSV_FORMAT
+                    )) {
+                        List<String> row = new ArrayList<>(_header.size());
+                        for (CSVRecord record : parser) {
+                            row.clear();
+                            for (String value : record) {
+                                row.add(value);
+                            }
+                            while (row.size() < _header.size()) {
+                                row.add("");
+                            }
+                            out.printRecord(row);
+                        }
+                    }
+                }
+            }
+            if ((_width == -1) || (_width == _header.size())) {
+                // Append the compressed body as a second gzip member.
+                try (
+                        FileChannel in = new FileInputStream(_bodyFile).getChannel();
+                        FileChannel out = new FileOutputStream(partFile, true).getChannel()
+                ) {
+                    long position = 0;
+                    long size = in.size();
+                    while (position < size) {
+                        position += in.transferTo(position, size - position, out);
+                    }
+                }
+            }
+            Files.move(
+                    partFile.toPath(),
+                    _outputFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE
+            );
+        } catch (java.io.IOException ex) {
+            partFile.delete();
+            throw ex;
+        } finally {
+            _bodyFile.delete();
+        }
+    }
+    
+    /**
+     * Get the index of the column for the given key. Adds a new column if the
+     * key has not been seen before.
+     * 
+     * @param key
+     * @return 
+     */
+    private int column(String key) {
+        
+        Integer index = _columns.get(key);
+        if (index == null) {
+            index = _header.size();
+            _columns.put(key, index);
+            _header.add(key);
+        }
+        return index;
+    }
+    
+    /**
+     * Convert a single JSON file into a TSV file.
+     * 
+     * @param inputFile
+     * @param outputFile
+     * @return
+     * @throws java.io.IOException 
+     */
+    public static long convert(File inputFile, File outputFile) throws java.io.IOException {
+        
+        JsonDatasetConverter converter = new JsonDatasetConverter(outputFile);
+        long rows;
+        try (InputStream in = FileSystem.openFile(inputFile)) {
+            rows = converter.add(in);
+        } catch (java.io.IOException | java.lang.RuntimeException ex) {
+            converter.abort();
+            throw ex;
+        }
+        converter.close();
+        return rows;
+    }
+    
+    /**
+     * Copy a nested object or array from the reader to the writer.
+     * 
+     * @param reader
+     * @param writer
+     * @throws java.io.IOException 
+     */
+    private static void copy(JsonReader reader, JsonWriter writer) throws java.io.IOException {
+        
+        switch (reader.peek()) {
+            case BEGIN_ARRAY:
+                reader.beginArray();
+                writer.beginArray();
+                while (reader.hasNext()) {
+                    copy(reader, writer);
+                }
+                reader.endArray();
+                writer.endArray();
+                break;
+            case BEGIN_OBJECT:
+                reader.beginObject();
+                writer.beginObject();
+                while (reader.hasNext()) {
+                    writer.name(reader.nextName());
+                    copy(reader, writer);
+                }
+                reader.endObject();
+                writer.endObject();
+                break;
+            case BOOLEAN:
+                writer.value(reader.nextBoolean());
+                break;
+            case NULL:
+                reader.nextNull();
+                writer.nullValue();
+                break;
+            case NUMBER:
+                writer.jsonValue(reader.nextString());
+                break;
+            default:
+                writer.value(reader.nextString());
+                break;
+        }
+    }
+    
+    public List<String> header() {
+        
+        return _header;
+    }
+    
+    private CSVPrinter open(File file) throws java.io.IOException {
+        
+        return new CSVPrinter(
+                new OutputStreamWriter(
+                        new GZIPOutputStream(new FileOutputStream(file)),
+                        StandardCharsets.UTF_8
+                ),
+                SocrataHelper.TSV_FORMAT
+        );
+    }
+    
+    public long rows() {
+        
+        return _rows;
+    }
+    
+    /**
+     * Read the next value as a string. Nested objects and arrays are returned
+     * as JSON strings. Null values are returned as empty strings.
+     * 
+     * @param reader
+     * @return
+     * @throws java.io.IOException 
+     */
+    private static String value(JsonReader reader) throws java.io.IOException {
+        
+        JsonToken token = reader.peek();
+        switch (token) {
+            case BEGIN_ARRAY:
+            case BEGIN_OBJECT:
+                StringWriter buf = new StringWriter();
+                try (JsonWriter writer = new JsonWriter(buf)) {
+                    copy(reader, writer);
+                }
+                return buf.toString();
+            case BOOLEAN:
+                return Boolean.toString(reader.nextBoolean());
+            case NULL:
+                reader.nextNull();
+                return "";
+            default:
+                return reader.nextString();
+        }
+    }
+    
+    public static void main(String[] args) {
+        
+	System.out.println("Urban Data Integration - Socrata JSON to TSV Converter - Version (" + VERSION + ")\n");
+
+        if ((args.length < 3) || (args.length > 4)) {
+            System.out.println(COMMAND);
+            System.exit(-1);
+        }
+        
+        File inputDir = new File(args[0]);
+        File outputDir = new File(args[1]);
+        int threads = Integer.parseInt(args[2]);
+        boolean overwrite = false;
+        if (args.length == 4) {
+            if (args[3].equals("overwrite")) {
+                overwrite = true;
+            } else {
+                System.out.println(COMMAND);
+                System.exit(-1);
+            }
+        }
+        
+        List<File> files = new ArrayList<>();
+        for (File file : FileSystem.getSortedListOfFiles(inputDir)) {
+            String name = file.getName();
+            if ((name.endsWith(".json")) || (name.endsWith(".json.gz"))) {
+                files.add(file);
+            }
+        }
+        
+        AtomicInteger count = new AtomicInteger(0);
+        AtomicInteger failed = new AtomicInteger(0);
+        final boolean replace = overwrite;
+        try (WorkerPool pool = new WorkerPool(Math.max(1, threads))) {
+            for (File file : files) {
+                String name = file.getName();
+                name = name.substring(0, name.indexOf(".json")) + ".tsv.gz";
+                File outputFile = new File(outputDir, name);
+                if ((outputFile.exists()) && (!replace)) {
+                    continue;
+                }
+                pool.execute(() -> {
+                    try {
+                        long rows = convert(file, outputFile);
+                        System.out.println(outputFile.getName() + " " + rows + " (" + count.incrementAndGet() + ")");
+                    } catch (java.io.IOException | java.lang.RuntimeException ex) {
+                        failed.incrementAndGet();
+                        LOGGER.log(Level.SEVERE, file.getName(), ex);
+                    }
+                });
+            }
+        }
+        System.out.println("CONVERTED " + count.get() + " FILES, " + failed.get() + " FAILED");
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.provider.socrata;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.urban.data.core.util.FileSystem;
+
+/**
+ * Persistent cache for the resource Urls of datasets. Maps the permalink of a
+ * dataset to the resource Url that is contained in the dataset landing page.
+ * 
+ * The cache is stored in a tab-delimited file with three columns: permalink,
+ * resource Url, and the time (in milliseconds) when the Url was resolved. An
+ * empty resource Url is a negative entry for a landing page that did not
+ * contain a resource Url. Negative entries expire after a shorter time than
+ * resolved Urls. Landing pages that could not be retrieved are not cached.
+ * 
+ * New entries are appended to the cache file as they are added. The file is
+ * rewritten without expired and duplicate entries when the cache is closed.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class ResourceUrlCache implements AutoCloseable {
+    
+    public static final long DEFAULT_NEGATIVE_TTL = 24L * 60L * 60L * 1000L;
+    public static final long DEFAULT_TTL = 30L * 24L * 60L * 60L * 1000L;
+    
+    /**
+     * Cache entry. The resource Url is null for negative entries.
+     */
+    public static class Entry {
+        
+        private final long _resolvedAt;
+        private final String _url;
+        
+        public Entry(String url, long resolvedAt) {
+            
+            _url = url;
+            _resolvedAt = resolvedAt;
+        }
+        
+        public boolean isNegative() {
+            
+            return (_url == null);
+        }
+        
+        public long resolvedAt() {
+            
+            return _resolvedAt;
+        }
+        
+        public String url() {
+            
+            return _url;
+        }
+    }
+    
+    private final Map<String, Entry> _entries = new ConcurrentHashMap<>();
+    private final File _file;
+    private int _hits = 0;
+    private int _misses = 0;
+    private final long _negativeTtl;
+    private PrintWriter _out = null;
+    private final long _ttl;
+    
+    /**
+     * Read the cache from the given file. The file is created when the first
+     * entry is added.
+     * 
+     * @param file
+     * @param ttl
+     * @param negativeTtl
+     * @throws java.io.IOException 
+     */
+    public ResourceUrlCache(File file, long ttl, long negativeTtl) throws java.io.IOException {
+        
+        _file = file;
+        _ttl = ttl;
+        _negativeTtl = negativeTtl;
+        
+        if (file.exists()) {
+            try (BufferedReader in = FileSystem.openReader(file)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] tokens = line.split("\t", -1);
+                    if (tokens.length != 3) {
+                        // Ignore lines that were not written completely
+                        continue;
+                    }
+                    Entry entry;
+                    try {
+                        entry = new Entry(
+                                (tokens[1].isEmpty()) ? null : tokens[1],
+                                Long.parseLong(tokens[2])
+                        );
+                    } catch (java.lang.NumberFormatException ex) {
+                        continue;
+                    }
+                    if (!this.isExpired(entry)) {
+                        _entries.put(tokens[0], entry);
+                    }
+                }
+            }
+        }
+    }
+    
+    public ResourceUrlCache(File file) throws java.io.IOException {
+        
+        this(file, DEFAULT_TTL, DEFAULT_NEGATIVE_TTL);
+    }
+    
+    /**
+     * Rewrite the cache file with all entries that have not expired.
+     * 
+     * @throws java.io.IOException 
+     */
+    @Override
+    public synchronized void close() throws java.io.IOException {
+        
+        if (_out != null) {
+            _out.close();
+            _out = null;
+        }
+        if (_entries.isEmpty()) {
+            return;
+        }
+        FileSystem.createParentFolder(_file);
+        File tmpFile = new File(_file.getParentFile(), "tmp." + _file.getName());
+        try (PrintWriter out = FileSystem.openPrintWriter(tmpFile)) {
+            for (Map.Entry<String, Entry> entry : _entries.entrySet()) {
+                if (!this.isExpired(entry.getValue())) {
+                    this.write(out, entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        Files.move(
+                tmpFile.toPath(),
+                _file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE
+        );
+    }
+    
+    /**
+     * Get the cache entry for the given permalink. The result is null if the
+     * permalink is not in the cache or if the entry has expired.
+     * 
+     * @param permalink
+     * @return 
+     */
+    public Entry get(String permalink) {
+        
+        Entry entry = _entries.get(permalink);
+        if ((entry != null) && (this.isExpired(entry))) {
+            entry = null;
+        }
+        synchronized (this) {
+            if (entry != null) {
+                _hits++;
+            } else {
+                _misses++;
+            }
+        }
+        return entry;
+    }
+    
+    public synchronized int hits() {
+        
+        return _hits;
+    }
+    
+    private boolean isExpired(Entry entry) {
+        
+        long ttl = (entry.isNegative()) ? _negativeTtl : _ttl;
+        return (System.currentTimeMillis() - entry.resolvedAt() > ttl);
+    }
+    
+    public synchronized int misses() {
+        
+        return _misses;
+    }
+    
+    /**
+     * Add a resolved resource Url to the cache. Use null as the Url for a
+     * landing page that does not contain a resource Url.
+     * 
+     * @param permalink
+     * @param url
+     * @throws java.io.IOException 
+     */
+    public synchronized void put(String permalink, String url) throws java.io.IOException {
+        
+        Entry entry = new Entry(url, System.currentTimeMillis());
+        _entries.put(permalink, entry);
+        if (_out == null) {
+            FileSystem.createParentFolder(_file);
+            _out = FileSystem.openPrintWriter(_file, true);
+        }
+        this.write(_out, permalink, entry);
+        _out.flush();
+    }
+    
+    public int size() {
+        
+        return _entries.size();
+    }
+    
+    private void write(PrintWriter out, String permalink, Entry entry) {
+        
+        out.println(
+                permalink + "\t" +
+                ((entry.isNegative()) ? "" : entry.url()) + "\t" +
+                entry.resolvedAt()
+        );
+    }
+}
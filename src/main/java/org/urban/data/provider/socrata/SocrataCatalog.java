@@ -20,9 +20,12 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonWriter;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.net.URI;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -30,12 +33,19 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
 import org.urban.data.core.query.JFilter;
 import org.urban.data.core.query.JQuery;
+import org.urban.data.core.query.JsonQuery;
+import org.urban.data.core.query.ResultTuple;
+import org.urban.data.core.query.SelectClause;
 import org.urban.data.core.util.FileSystem;
+import org.urban.data.provider.socrata.download.HedgedRequests;
+import org.urban.data.provider.socrata.download.TransferWatchdog;
 
 /**
  * Methods for downloading and querying the Socrata resource catalog.
@@ -88,6 +98,14 @@ public class SocrataCatalog {
         {"api.us.socrata.com", "/api/catalog/v1"},
         {"api.eu.socrata.com", "/api/catalog/v1"}
     };
+    
+    /**
+     * System property that overrides the default catalog Urls. The value is a
+     * comma-separated list of base Urls for the catalog API, e.g.,
+     * http://localhost:8080/api/catalog/v1. Primarily intended for testing
+     * against a local stand-in for the Socrata API.
+     */
+    public static final String API_PROPERTY = "socrata.api";
 
     /**
      * Default limit of results when downloading the catalog
@@ -100,6 +118,25 @@ public class SocrataCatalog {
      */
     private final File _catalog;
     
+    /**
+     * Optional hedging for catalog page requests.
+     */
+    private final HedgedRequests _hedger;
+    
+    /**
+     * Initialize the file on local disk that contains the catalog version. The
+     * file may not exist if the catalog hasn't been downloaded yet. Requests
+     * for catalog pages are hedged if the hedger is not null.
+     * 
+     * @param catalog 
+     * @param hedger 
+     */
+    public SocrataCatalog(File catalog, HedgedRequests hedger) {
+        
+        _catalog = catalog;
+        _hedger = hedger;
+    }
+    
     /**
      * Initialize the file on local disk that contains the catalog version. The
      * file may not exist if the catalog hasn't been downloaded yet.
@@ -108,7 +145,57 @@ public class SocrataCatalog {
      */
     public SocrataCatalog(File catalog) {
         
-        _catalog = catalog;
+        this(catalog, null);
+    }
+    
+    /**
+     * Http client for catalog requests. Uses the default connect and read
+     * timeouts for downloads.
+     * 
+     * @return 
+     */
+    private static HttpClient httpClient() {
+        
+        RequestConfig config = RequestConfig.custom()
+                .setConnectTimeout(TransferWatchdog.DEFAULT_CONNECTTIMEOUT)
+                .setSocketTimeout(TransferWatchdog.DEFAULT_READTIMEOUT)
+                .build();
+        return HttpClientBuilder.create()
+                .setDefaultRequestConfig(config)
+                .setMaxConnPerRoute(10)
+                .setMaxConnTotal(20)
+                .build();
+    }
+    
+    /**
+     * Get the base Urls for the catalog API. Returns the default Urls unless
+     * they are overridden by the socrata.api system property.
+     * 
+     * @return 
+     */
+    public static List<URIBuilder> apis() {
+        
+        List<URIBuilder> result = new ArrayList<>();
+        String property = System.getProperty(API_PROPERTY);
+        if (property != null) {
+            for (String url : property.split(",")) {
+                try {
+                    result.add(new URIBuilder(url.trim()));
+                } catch (java.net.URISyntaxException ex) {
+                    throw new IllegalArgumentException(url, ex);
+                }
+            }
+        } else {
+            for (String[] api : URLS) {
+                result.add(
+                        new URIBuilder()
+                            .setScheme("http")
+                            .setHost(api[0])
+                            .setPath(api[1])
+                );
+            }
+        }
+        return result;
     }
     
     /**
@@ -168,30 +255,24 @@ public class SocrataCatalog {
      */
     private void downloadAndWriteResources(String domain, String type, JsonWriter out) throws java.net.URISyntaxException, java.io.IOException {
         
-        HttpClient client = HttpClientBuilder.create().build();
+        HttpClient client = httpClient();
 
         Gson gson = new Gson();
-        for (String[] api : URLS) {
+        for (URIBuilder api : apis()) {
             String scrollId = null;
             boolean done = false;
             int entryCount = 0;
             int resultSetSize = -1;
             while (!done) {
-                URIBuilder uri = new URIBuilder()
-                    .setScheme("http")
-                    .setHost(api[0])
-                    .setPath(api[1])
+                URIBuilder uri = new URIBuilder(api.build())
                     .setParameter("domains", domain)
                     .setParameter("only", type)
                     .setParameter("limit", Integer.toString(LIMIT));
                 if (scrollId != null) {
-                    uri.setParameter("&scroll_id=", scrollId);
+                    uri.setParameter("scroll_id", scrollId);
                 }
-                HttpGet request = new HttpGet(uri.build());
-                request.addHeader("X-App-Token", APP_TOKEN);
-                HttpResponse response = client.execute(request);
                 try (JsonReader reader = new JsonReader(
-                    new InputStreamReader(response.getEntity().getContent(), "UTF-8"))
+                    new InputStreamReader(this.fetch(client, uri.build()), "UTF-8"))
                 ) {
                     int resultCount = 0;
                     reader.beginObject();
@@ -218,7 +299,8 @@ public class SocrataCatalog {
                     }
                     reader.endObject();
                     if (!done) {
-                        done = (entryCount >= resultCount);
+                        // The last page contains less than LIMIT results.
+                        done = (resultCount < LIMIT);
                     }
                 }
             }
@@ -228,6 +310,34 @@ public class SocrataCatalog {
         }
     }
     
+    /**
+     * Get the content for a catalog page. If hedging is enabled the page is
+     * read into memory by the request that completes first.
+     * 
+     * @param client
+     * @param uri
+     * @return
+     * @throws java.io.IOException 
+     */
+    private InputStream fetch(HttpClient client, URI uri) throws java.io.IOException {
+        
+        if (_hedger == null) {
+            return client.execute(get(uri)).getEntity().getContent();
+        }
+        byte[] page = _hedger.execute(
+                () -> EntityUtils.toByteArray(client.execute(get(uri)).getEntity()),
+                null
+        );
+        return new ByteArrayInputStream(page);
+    }
+    
+    private static HttpGet get(URI uri) {
+        
+        HttpGet request = new HttpGet(uri);
+        request.addHeader("X-App-Token", APP_TOKEN);
+        return request;
+    }
+    
     /**
      * Get a list of all domains that are available at the Socrata API.
      * 
@@ -238,15 +348,13 @@ public class SocrataCatalog {
         
         List<SocrataDomain> result = new ArrayList<>();
         
-        HttpClient client = HttpClientBuilder.create().build();
+        HttpClient client = httpClient();
 
-        for (String[] api : URLS) {
-            URIBuilder uri = new URIBuilder()
-                .setScheme("http")
-                .setHost(api[0])
-                .setPath(api[1] + "/domains");
+        for (URIBuilder api : apis()) {
             HttpGet request;
             try {
+                URIBuilder uri = new URIBuilder(api.build());
+                uri.setPath(uri.getPath() + "/domains");
                 request = new HttpGet(uri.build());
             } catch (java.net.URISyntaxException ex) {
               throw new RuntimeException(ex);      
@@ -290,28 +398,21 @@ public class SocrataCatalog {
         
         ArrayList<String[]> result = new ArrayList<>();
         
-        try (JsonReader reader = new JsonReader(
-            new InputStreamReader(FileSystem.openFile(_catalog)))
-        ) {
-            reader.beginArray();
-            while (reader.hasNext()) {
-                JsonObject doc = new JsonParser().parse(reader).getAsJsonObject();
-                boolean accept = true;
-                for (JFilter cond : filter) {
-                    if (!cond.eval(doc)) {
-                        accept = false;
-                        break;
-                    }
-                }
-                if (accept) {
-                    String[] tuple = new String[select.size()];
-                    for (int iCol = 0; iCol < select.size(); iCol++) {
-                        tuple[iCol] = select.get(iCol).eval(doc).getAsString();
-                    }
-                    result.add(tuple);
-                }
+        JsonQuery query = new JsonQuery(_catalog)
+                .parallel(Runtime.getRuntime().availableProcessors());
+        for (JFilter cond : filter) {
+            query.where(cond);
+        }
+        SelectClause clause = new SelectClause();
+        for (int iCol = 0; iCol < select.size(); iCol++) {
+            clause.add(Integer.toString(iCol), select.get(iCol));
+        }
+        for (ResultTuple tuple : query.executeQuery(clause)) {
+            String[] values = new String[tuple.size()];
+            for (int iCol = 0; iCol < tuple.size(); iCol++) {
+                values[iCol] = tuple.getAsString(iCol);
             }
-            reader.endArray();
+            result.add(values);
         }
         
         return result;
@@ -29,12 +29,17 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.client.utils.URIBuilder;
 import org.urban.data.core.util.FileSystem;
+import org.urban.data.provider.socrata.download.HedgedRequests;
+import org.urban.data.provider.socrata.download.TransferWatchdog;
 
 /**
  *
@@ -56,44 +61,46 @@ public class SocrataDataset {
         }
         
         if (retrieveTrueResource) {
-            try (BufferedReader in = new BufferedReader(
-                    new InputStreamReader(new URL(resourceUrl).openStream(), "UTF-8")
-            )) {
-                String line;
-                while ((line = in.readLine()) != null) {
-                    int pos = line.indexOf("\"resourceUrl\"");
-                    if (pos != -1) {
-                        line = line.substring(pos + 13);
-                        pos = line.indexOf("\"");
-                        line = line.substring(pos + 1, line.indexOf("\"", pos + 1));
-                        _url = new URL(line);
-                        break;
-                    }
-                    while ((pos = line.indexOf(" value=\"")) != -1) {
-                        line = line.substring(pos + 8);
-                        pos = line.indexOf("\"");
-                        String url = line.substring(0, pos);
-                        if (url.endsWith(".json")) {
-                            _url = new URL(line);
-                            break;
-                        }
-                        line = line.substring(pos + 1);
-                    }
-                }
-            }
-            if (_url == null) {
-                throw new IllegalArgumentException("No resource Url found");
-            }
+            _url = resolve(resourceUrl);
         } else {
             _url = new URL(resourceUrl);
         }
     }
     
+    /**
+     * Initialize the dataset with an identifier and a resource Url that has
+     * already been resolved.
+     * 
+     * @param identifier
+     * @param url 
+     */
+    public SocrataDataset(String identifier, URL url) {
+        
+        _identifier = identifier;
+        _url = url;
+    }
+    
     public SocrataDataset(String resourceUrl) throws java.io.IOException, java.net.MalformedURLException {
         
         this(resourceUrl, true);
     }
 
+    /**
+     * Open a connection for the given Url using the default connect and read
+     * timeouts for downloads.
+     * 
+     * @param url
+     * @return
+     * @throws java.io.IOException 
+     */
+    private static InputStream openStream(URL url) throws java.io.IOException {
+        
+        URLConnection con = url.openConnection();
+        con.setConnectTimeout(TransferWatchdog.DEFAULT_CONNECTTIMEOUT);
+        con.setReadTimeout(TransferWatchdog.DEFAULT_READTIMEOUT);
+        return con.getInputStream();
+    }
+    
     private void concat(Iterable<File> files, OutputStream os) throws java.io.IOException {
         
         try (JsonWriter writer = new JsonWriter(new OutputStreamWriter(os, "UTF-8"))) {
@@ -116,11 +123,59 @@ public class SocrataDataset {
     }
     
     public void download(File directory, boolean overwrite, int maxAttempts) throws java.net.URISyntaxException, java.io.IOException {
+        
+        this.download(directory, overwrite, maxAttempts, null);
+    }
+    
+    /**
+     * Download all pages for the dataset and write them into a single JSON
+     * file. Page requests are hedged if the hedger is not null.
+     * 
+     * @param directory
+     * @param overwrite
+     * @param maxAttempts
+     * @param hedger
+     * @throws java.net.URISyntaxException
+     * @throws java.io.IOException 
+     */
+    public void download(
+            File directory,
+            boolean overwrite,
+            int maxAttempts,
+            HedgedRequests hedger
+    ) throws java.net.URISyntaxException, java.io.IOException {
+        
+        this.download(directory, overwrite, maxAttempts, hedger, false);
+    }
+    
+    /**
+     * Download all pages for the dataset and write them into a single JSON
+     * file or (if the tsv flag is true) into a single TSV file. In TSV mode
+     * each page is converted as soon as it has been downloaded and verified.
+     * The page file is deleted right away. Page requests are hedged if the
+     * hedger is not null.
+     * 
+     * @param directory
+     * @param overwrite
+     * @param maxAttempts
+     * @param hedger
+     * @param tsv
+     * @throws java.net.URISyntaxException
+     * @throws java.io.IOException 
+     */
+    public void download(
+            File directory,
+            boolean overwrite,
+            int maxAttempts,
+            HedgedRequests hedger,
+            boolean tsv
+    ) throws java.net.URISyntaxException, java.io.IOException {
 	
         String entryUrl = _url.toExternalForm();
 	String filename = _identifier + ".json.gz";
 	File dataFile = new File(
-            directory.getAbsolutePath() + File.separator + filename
+            directory.getAbsolutePath() + File.separator +
+            ((tsv) ? _identifier + ".tsv.gz" : filename)
         );
 	if ((dataFile.exists()) && (!overwrite)) {
 	    return;
@@ -130,6 +185,7 @@ public class SocrataDataset {
 	boolean done = false;
 	int offset = 0;
 	int attempt = 0;
+	int page = 0;
 	
         int posScheme = entryUrl.indexOf("://");
         String protocol = entryUrl.substring(0, posScheme);
@@ -144,9 +200,15 @@ public class SocrataDataset {
             path = entryUrl.substring(posPath + 1);
         }
         
+        // Pages are converted to TSV while the remaining pages are downloaded.
+        JsonDatasetConverter converter = null;
+        if (tsv) {
+            converter = new JsonDatasetConverter(dataFile);
+        }
+        
         while (!done) {
 	    File file = new File(
-                directory.getAbsolutePath() + File.separator + filename + "." + files.size()
+                directory.getAbsolutePath() + File.separator + filename + "." + page
             );
 	    if ((!file.exists()) || (overwrite)) {
                 URIBuilder uri = new URIBuilder()
@@ -156,11 +218,8 @@ public class SocrataDataset {
                     .setParameter("$offset", Integer.toString(offset))
                     .setParameter("$limit", Integer.toString(LIMIT));
 		System.out.println(uri.toString());
-		try (
-                    InputStream is = new URL(uri.toString()).openStream();
-                    OutputStream os = new FileOutputStream(file)
-                ) {
-		    IOUtils.copy(is, os);
+		try {
+		    this.fetchPage(new URL(uri.toString()), file, hedger);
 		} catch (java.io.IOException ex) {
 		    file.delete();
                     Logger.getLogger(
@@ -183,6 +242,9 @@ public class SocrataDataset {
 			for (File downloadedFile : files) {
 			    downloadedFile.delete();
 			}
+                        if (converter != null) {
+                            converter.abort();
+                        }
                         String msg = "Max. number of attempts for file " + file.getName() + " (" + _url.toExternalForm() + ") reached";
                         Logger.getLogger(
                             this.getClass().getPackage().getName()
@@ -195,9 +257,20 @@ public class SocrataDataset {
 		    file.delete();
 		    break;
 	    	default:
-		    files.add(file);
+                    if (converter != null) {
+                        try (InputStream in = new FileInputStream(file)) {
+                            converter.add(in);
+                        } catch (java.io.IOException | java.lang.RuntimeException ex) {
+                            converter.abort();
+                            throw ex;
+                        }
+                        file.delete();
+                    } else {
+                        files.add(file);
+                    }
 		    done = (objectCount < LIMIT);
 		    offset += objectCount;
+		    page++;
 		    attempt = 0;
 		    break;
 	    }
@@ -205,12 +278,53 @@ public class SocrataDataset {
 	
         // Create final output file. May require to concatenate multiple
         // downloaded files.
-        this.concat(files, FileSystem.openOutputFile(dataFile));
+        if (converter != null) {
+            converter.close();
+        } else {
+            this.concat(files, FileSystem.openOutputFile(dataFile));
+        }
         for (File file : files) {
             file.delete();
         }
     }
 
+    /**
+     * Write the content of a single page to the given file. With hedging,
+     * each request writes to its own temporary file. The file of the request
+     * that completes first is renamed.
+     * 
+     * @param url
+     * @param file
+     * @param hedger
+     * @throws java.io.IOException 
+     */
+    private void fetchPage(URL url, File file, HedgedRequests hedger) throws java.io.IOException {
+        
+        if (hedger == null) {
+            try (
+                InputStream is = openStream(url);
+                OutputStream os = new FileOutputStream(file)
+            ) {
+                IOUtils.copy(is, os);
+            }
+            return;
+        }
+        File page = hedger.execute(() -> {
+            File part = File.createTempFile(file.getName() + ".", ".part", file.getParentFile());
+            try (
+                InputStream is = openStream(url);
+                OutputStream os = new FileOutputStream(part)
+            ) {
+                IOUtils.copy(is, os);
+            } catch (java.io.IOException ex) {
+                part.delete();
+                throw ex;
+            }
+            return part;
+        }, (File part) -> part.delete());
+        Files.move(page.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
     public void download(File directory, boolean overwrite) throws java.net.URISyntaxException, java.io.IOException {
         
         this.download(directory, overwrite, DEFAULT_MAXATTEMPTS);
@@ -221,6 +335,64 @@ public class SocrataDataset {
         this.download(directory, true, DEFAULT_MAXATTEMPTS);
     }
 
+    /**
+     * Get a query against the SODA endpoint of the dataset resource. Result
+     * pages are requested in CSV format.
+     * 
+     * @return 
+     */
+    public SodaQuery query() {
+        
+        String url = _url.toExternalForm();
+        int pos = url.lastIndexOf(".");
+        if (pos > url.lastIndexOf("/")) {
+            url = url.substring(0, pos);
+        }
+        return new SodaQuery(url);
+    }
+    
+    /**
+     * Get the resource Url from the landing page of a dataset. Raises an
+     * IllegalArgumentException if the page does not contain a resource Url.
+     * 
+     * @param permalink
+     * @return
+     * @throws java.io.IOException 
+     */
+    public static URL resolve(String permalink) throws java.io.IOException {
+        
+        URL url = null;
+        try (BufferedReader in = new BufferedReader(
+                new InputStreamReader(openStream(new URL(permalink)), "UTF-8")
+        )) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int pos = line.indexOf("\"resourceUrl\"");
+                if (pos != -1) {
+                    line = line.substring(pos + 13);
+                    pos = line.indexOf("\"");
+                    line = line.substring(pos + 1, line.indexOf("\"", pos + 1));
+                    url = new URL(line);
+                    break;
+                }
+                while ((pos = line.indexOf(" value=\"")) != -1) {
+                    line = line.substring(pos + 8);
+                    pos = line.indexOf("\"");
+                    String value = line.substring(0, pos);
+                    if (value.endsWith(".json")) {
+                        url = new URL(value);
+                        break;
+                    }
+                    line = line.substring(pos + 1);
+                }
+            }
+        }
+        if (url == null) {
+            throw new IllegalArgumentException("No resource Url found");
+        }
+        return url;
+    }
+    
     public String identifier() {
         
         return _identifier;
@@ -17,18 +17,19 @@ package org.urban.data.provider.socrata;
 
 import java.io.File;
 import java.io.PrintWriter;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.urban.data.core.query.JQuery;
 import org.urban.data.core.util.FileSystem;
+import org.urban.data.core.util.WorkerPool;
+import org.urban.data.provider.socrata.download.HedgedRequests;
 
 /**
  * Download all dataset files for a given domain from the Socrata API.
@@ -37,7 +38,22 @@ import org.urban.data.core.util.FileSystem;
  * is created if it does not exist. The names of downloaded files are the
  * Socrata dataset identifier plus suffix .json.
  * 
+ * Alternatively, datasets can be converted into TSV format while they are
+ * downloaded. The result files then have suffix .tsv.gz.
+ * 
  * Download is multi-threaded to allow for parallel download of multiple files.
+ * With Java 21 or later each dataset can be downloaded in its own virtual
+ * thread. The number of threads then limits the number of concurrent
+ * downloads.
+ * 
+ * Requests for catalog and dataset pages can be hedged. A duplicate request
+ * is sent if a request does not complete within the given percentile of the
+ * latency of recent requests.
+ * 
+ * The resource Urls of datasets are resolved in parallel. Resolved Urls are
+ * kept in a persistent cache (by default in file .resources.tsv in the output
+ * directory) so that repeated runs do not have to retrieve the dataset landing
+ * pages again.
  * 
  * If the overwrite flag is true existing files will be overwritten, otherwise
  * they will be ignored and not downloaded. This flag is primarily intended for
@@ -55,49 +71,107 @@ public class SocrataDatasets {
             "  <threads>\n" +
             "  <overwrite>\n" +
             "  <dataset-file>\n" +
-            "  <output-directory>";
+            "  <output-directory>\n" +
+            "  {virtual}\n" +
+            "  {hedge=<percentile>}\n" +
+            "  {cache=<file>}\n" +
+            "  {tsv}";
     
     private static final Logger LOGGER = Logger.getGlobal();
     
-    public static final String VERSION = "0.1.1";
+    public static final String RESOURCE_CACHE = ".resources.tsv";
     
-    private class DatasetDownloadTask implements Runnable {
+    public static final String VERSION = "0.1.2";
+    
+    private class DatasetDownloadTask {
         
-        private final ConcurrentLinkedQueue<SocrataDataset> _datasets;
-        private final int _id;
+        private final AtomicInteger _count = new AtomicInteger(0);
+        private final HedgedRequests _hedger;
         private final File _outputDir;
+        private final boolean _tsv;
 
         /**
-         * Initialize the download thread. Each thread has a unique identifier. The
-         * identifier is used to decide which elements in the dataset list are
-         * downloaded by the thread.
+         * Initialize the download task. All datasets are downloaded into the
+         * given output directory.
          * 
-         * @param id
-         * @param datasets
          * @param outputDir 
+         * @param hedger 
+         * @param tsv 
          */
-        public DatasetDownloadTask(
-                int id,
-                ConcurrentLinkedQueue<SocrataDataset> datasets,
-                File outputDir
-        ) {
-            _id = id;
-            _datasets = datasets;
+        public DatasetDownloadTask(File outputDir, HedgedRequests hedger, boolean tsv) {
+            
             _outputDir = outputDir;
+            _hedger = hedger;
+            _tsv = tsv;
         }
 
-        @Override
-        public void run() {
+        public void run(SocrataDataset dataset) {
 
-            int count = 0;
-            SocrataDataset dataset;
-            while ((dataset = _datasets.poll()) != null) {
-                try {
-                    dataset.download(_outputDir);
-                    System.out.println(_id + ": " + dataset.identifier() + " (" + (++count) + ")");
-                } catch (java.net.URISyntaxException | java.io.IOException ex) {
-                    LOGGER.log(Level.SEVERE, null, ex);
+            try {
+                dataset.download(
+                        _outputDir,
+                        true,
+                        SocrataDataset.DEFAULT_MAXATTEMPTS,
+                        _hedger,
+                        _tsv
+                );
+                System.out.println(dataset.identifier() + " (" + _count.incrementAndGet() + ")");
+            } catch (java.net.URISyntaxException | java.io.IOException ex) {
+                LOGGER.log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+    
+    private class ResolveTask {
+        
+        private final ResourceUrlCache _cache;
+        private final ConcurrentLinkedQueue<SocrataDataset> _datasets;
+        private final PrintWriter _out;
+        
+        /**
+         * Initialize the task. Datasets with a resource Url are added to the
+         * given queue and written to the dataset file.
+         * 
+         * @param cache
+         * @param datasets
+         * @param out 
+         */
+        public ResolveTask(
+                ResourceUrlCache cache,
+                ConcurrentLinkedQueue<SocrataDataset> datasets,
+                PrintWriter out
+        ) {
+            
+            _cache = cache;
+            _datasets = datasets;
+            _out = out;
+        }
+        
+        public void run(String id, String name, String permalink) {
+            
+            try {
+                String url;
+                ResourceUrlCache.Entry entry = _cache.get(permalink);
+                if (entry != null) {
+                    url = entry.url();
+                } else {
+                    try {
+                        url = SocrataDataset.resolve(permalink).toExternalForm();
+                    } catch (java.lang.IllegalArgumentException ex) {
+                        url = null;
+                    }
+                    _cache.put(permalink, url);
+                }
+                if (url == null) {
+                    LOGGER.log(Level.INFO, "No resource Url for {0} ({1})", new Object[]{id, permalink});
+                    return;
                 }
+                _datasets.add(new SocrataDataset(id, new URL(url)));
+                synchronized (_out) {
+                    _out.println(id + "\t" + name);
+                }
+            } catch (java.io.IOException ex) {
+                LOGGER.log(Level.INFO, "Dataset " + id + " " + permalink, ex);
             }
         }
     }
@@ -108,7 +182,11 @@ public class SocrataDatasets {
             boolean overwrite,
             int threads,
             File datasetFile,
-            File outputDir
+            File outputDir,
+            boolean virtualThreads,
+            HedgedRequests hedger,
+            File cacheFile,
+            boolean tsv
     ) throws java.io.IOException, java.lang.InterruptedException, java.net.URISyntaxException {
         
         // Create output directory if it does not exist
@@ -128,7 +206,7 @@ public class SocrataDatasets {
 		    if (tokens.length == 2) {
 			existingFiles.add(tokens[0]);
 		    }
-		} else if (file.getName().endsWith(".json.gz")) {
+		} else if (file.getName().endsWith((tsv) ? ".tsv.gz" : ".json.gz")) {
 		    String[] tokens = file.getName().split("\\.");
 		    if (tokens.length == 3) {
 			existingFiles.add(tokens[0]);
@@ -139,7 +217,7 @@ public class SocrataDatasets {
         
         // Download catalog if file does not exists
         if (!catalogFile.exists()) {
-            new SocrataCatalog(catalogFile).download(domain, "dataset");
+            new SocrataCatalog(catalogFile, hedger).download(domain, "dataset");
         }
         
         // Query catalog to get dataset identifier and permalink information
@@ -158,43 +236,51 @@ public class SocrataDatasets {
         
         System.out.println("GET DOWNLOAD URL FOR " + tuples.size() + " DATASET RESOURCES");
         
-        // Fetch download Url's for datasets and write dataset infor file.
+        // Fetch download Url's for datasets (in parallel) and write dataset
+        // info file.
         ConcurrentLinkedQueue<SocrataDataset> datasets;
         datasets = new ConcurrentLinkedQueue<>();
-        try (PrintWriter out = FileSystem.openPrintWriter(datasetFile)) {
-            for (String id : tuples.keySet()) {
-                if (!existingFiles.contains(id)) {
-                    String name = tuples.get(id)[1];
-                    String permalink = tuples.get(id)[2];
-                    try {
-                        datasets.add(new SocrataDataset(permalink));
-                        out.println(id + "\t" + name);
-                    } catch (java.lang.IllegalArgumentException ex) {
-                        LOGGER.log(Level.INFO, "No resource Url for {0} ({1})", new Object[]{id, permalink});
-                    } catch (java.io.IOException ex) {
-                        LOGGER.log(Level.INFO, "Dataset " + id + " " + permalink, ex);
+        try (
+                ResourceUrlCache cache = new ResourceUrlCache(cacheFile);
+                PrintWriter out = FileSystem.openPrintWriter(datasetFile)
+        ) {
+            ResolveTask resolver = new ResolveTask(cache, datasets, out);
+            try (WorkerPool pool = new WorkerPool(Math.max(1, threads), virtualThreads)) {
+                for (String id : tuples.keySet()) {
+                    if (!existingFiles.contains(id)) {
+                        String name = tuples.get(id)[1];
+                        String permalink = tuples.get(id)[2];
+                        pool.execute(() -> resolver.run(id, name, permalink));
                     }
                 }
             }
+            System.out.println(
+                    "RESOURCE URL CACHE " + cache.hits() + " HITS, " +
+                    cache.misses() + " MISSES"
+            );
         }
         
         System.out.println("DOWNLOAD " + datasets.size() + " DATASETS");
         
         // Start parallel downloading of all dataset files.
 	threads = Math.max(1, Math.min(datasets.size(), threads));
-        ExecutorService es = Executors.newCachedThreadPool();
-        for (int iThread = 0; iThread < threads; iThread++) {
-            es.execute(new DatasetDownloadTask(iThread, datasets, outputDir));
+        DatasetDownloadTask task = new DatasetDownloadTask(outputDir, hedger, tsv);
+        try (WorkerPool pool = new WorkerPool(threads, virtualThreads)) {
+            for (SocrataDataset dataset : datasets) {
+                pool.execute(() -> task.run(dataset));
+            }
+        }
+        
+        if (hedger != null) {
+            System.out.println("HEDGING " + hedger);
         }
-        es.shutdown();
-        es.awaitTermination(1, TimeUnit.DAYS);
     }
     
     public static void main(String[] args) {
         
 	System.out.println("Urban Data Integration - Socrata Dataset Download - Version (" + VERSION + ")\n");
 
-        if (args.length != 6) {
+        if ((args.length < 6) || (args.length > 10)) {
             System.out.println(COMMAND);
             System.exit(-1);
         }
@@ -205,6 +291,24 @@ public class SocrataDatasets {
         boolean overwrite = Boolean.parseBoolean(args[3]);
         File datasetFile = new File(args[4]);
         File outputDir = new File(args[5]);
+        boolean virtualThreads = false;
+        HedgedRequests hedger = null;
+        File cacheFile = new File(outputDir, RESOURCE_CACHE);
+        boolean tsv = false;
+        for (int iArg = 6; iArg < args.length; iArg++) {
+            if (args[iArg].equals("virtual")) {
+                virtualThreads = true;
+            } else if (args[iArg].startsWith("hedge=")) {
+                hedger = new HedgedRequests(Double.parseDouble(args[iArg].substring(6)));
+            } else if (args[iArg].startsWith("cache=")) {
+                cacheFile = new File(args[iArg].substring(6));
+            } else if (args[iArg].equals("tsv")) {
+                tsv = true;
+            } else {
+                System.out.println(COMMAND);
+                System.exit(-1);
+            }
+        }
         
         try {
             new SocrataDatasets()
@@ -214,7 +318,11 @@ public class SocrataDatasets {
                             overwrite,
                             threads,
                             datasetFile,
-                            outputDir
+                            outputDir,
+                            virtualThreads,
+                            hedger,
+                            cacheFile,
+                            tsv
                     );
         } catch (java.lang.InterruptedException | java.io.IOException | java.net.URISyntaxException ex) {
             LOGGER.log(Level.SEVERE, "RUN", ex);
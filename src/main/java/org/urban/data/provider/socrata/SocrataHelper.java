@@ -29,6 +29,31 @@ import org.urban.data.core.util.FileSystem;
  */
 public final class SocrataHelper {
     
+    /**
+     * Format for writing dataset files. Leading and trailing spaces are part
+     * of the values. Records are separated by a single newline.
+     */
+    public static final CSVFormat TSV_FORMAT = CSVFormat.TDF
+            .withIgnoreSurroundingSpaces(false)
+            .withRecordSeparator('\n');
+    
+    /**
+     * Derive the SODA field name for a column display name. Field names are
+     * lower case and contain only letters, digits and underscores. Socrata
+     * keeps the field name when a column is renamed. The result therefore
+     * only matches the actual field name of columns that were never renamed.
+     * 
+     * @param name
+     * @return 
+     */
+    public static String fieldName(String name) {
+        
+        return name
+                .toLowerCase()
+                .replaceAll("[^a-z0-9]+", "_")
+                .replaceAll("^_+|_+$", "");
+    }
+    
     public static CSVParser tsvParser(File file) throws java.io.IOException {
         
         return new CSVParser(
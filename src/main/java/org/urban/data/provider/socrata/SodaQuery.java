@@ -0,0 +1,233 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.provider.socrata;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.http.client.utils.URIBuilder;
+import org.urban.data.provider.socrata.download.DownloadJob;
+import org.urban.data.provider.socrata.download.TransferAbortedException;
+import org.urban.data.provider.socrata.download.TransferWatchdog;
+
+/**
+ * Query against the SODA endpoint of a dataset resource. Results are requested
+ * in CSV format page by page (using $limit and $offset) and passed to a row
+ * handler. The query is ordered by the row identifier by default to ensure
+ * stable paging.
+ * 
+ * The resource Url is the Url of the dataset resource without a format
+ * extension, e.g., https://data.cityofnewyork.us/resource/erm2-nwe9.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class SodaQuery {
+    
+    public static final int DEFAULT_LIMIT = 50000;
+    
+    /**
+     * Consumer for query results.
+     */
+    public interface RowHandler {
+        
+        /**
+         * Called once with the column names of the query result before the
+         * first row.
+         * 
+         * @param columns
+         * @throws java.io.IOException 
+         */
+        public void header(List<String> columns) throws java.io.IOException;
+        
+        public void row(CSVRecord row) throws java.io.IOException;
+    }
+    
+    private long _bytes = 0;
+    private DownloadJob _job = null;
+    private int _limit = DEFAULT_LIMIT;
+    private String _order = ":id";
+    private final String _resourceUrl;
+    private String _select = null;
+    private TransferWatchdog _watchdog = null;
+    private String _where = null;
+    
+    public SodaQuery(String resourceUrl) {
+        
+        _resourceUrl = resourceUrl;
+    }
+    
+    /**
+     * Number of (possibly compressed) bytes received from the server.
+     * 
+     * @return 
+     */
+    public long bytes() {
+        
+        return _bytes;
+    }
+    
+    /**
+     * Execute the query and pass all result rows to the given handler.
+     * Returns the number of rows in the query result.
+     * 
+     * @param handler
+     * @return
+     * @throws java.io.IOException 
+     */
+    public long execute(RowHandler handler) throws java.io.IOException {
+        
+        long offset = 0;
+        while (true) {
+            int count = this.page(offset, handler);
+            offset += count;
+            if (count < _limit) {
+                break;
+            }
+        }
+        return offset;
+    }
+    
+    public SodaQuery limit(int limit) {
+        
+        _limit = limit;
+        return this;
+    }
+    
+    /**
+     * Monitor all page requests with the given transfer watchdog.
+     * 
+     * @param watchdog
+     * @param job
+     * @return 
+     */
+    public SodaQuery monitor(TransferWatchdog watchdog, DownloadJob job) {
+        
+        _watchdog = watchdog;
+        _job = job;
+        return this;
+    }
+    
+    public SodaQuery order(String order) {
+        
+        _order = order;
+        return this;
+    }
+    
+    /**
+     * Request a single result page. Returns the number of rows in the page.
+     * The header is passed to the handler for the first page only.
+     * 
+     * @param offset
+     * @param handler
+     * @return
+     * @throws java.io.IOException 
+     */
+    private int page(long offset, RowHandler handler) throws java.io.IOException {
+        
+        URIBuilder uri;
+        try {
+            uri = new URIBuilder(_resourceUrl + ".csv");
+        } catch (java.net.URISyntaxException ex) {
+            throw new java.io.IOException(ex);
+        }
+        if (_select != null) {
+            uri.setParameter("$select", _select);
+        }
+        if (_where != null) {
+            uri.setParameter("$where", _where);
+        }
+        if (_order != null) {
+            uri.setParameter("$order", _order);
+        }
+        uri.setParameter("$limit", Integer.toString(_limit));
+        uri.setParameter("$offset", Long.toString(offset));
+        
+        HttpURLConnection con = (HttpURLConnection)new URL(uri.toString()).openConnection();
+        con.setRequestProperty("X-App-Token", SocrataCatalog.APP_TOKEN);
+        con.setRequestProperty("Accept-Encoding", "gzip");
+        TransferWatchdog.Transfer transfer = null;
+        if (_watchdog != null) {
+            transfer = _watchdog.start(_job, con);
+        } else {
+            con.setConnectTimeout(TransferWatchdog.DEFAULT_CONNECTTIMEOUT);
+            con.setReadTimeout(TransferWatchdog.DEFAULT_READTIMEOUT);
+        }
+        
+        int count = 0;
+        CountingInputStream counter = null;
+        try {
+            InputStream in = con.getInputStream();
+            if (transfer != null) {
+                in = transfer.wrap(in);
+            }
+            counter = new CountingInputStream(in);
+            in = counter;
+            if ("gzip".equalsIgnoreCase(con.getContentEncoding())) {
+                in = new GZIPInputStream(in);
+            }
+            try (CSVParser parser = new CSVParser(
+                    new InputStreamReader(in, "UTF-8"),
+                    CSVFormat.DEFAULT.withFirstRecordAsHeader().withAllowMissingColumnNames()
+            )) {
+                if (offset == 0) {
+                    handler.header(parser.getHeaderNames());
+                }
+                for (CSVRecord row : parser) {
+                    handler.row(row);
+                    count++;
+                }
+            }
+        } catch (java.io.IOException | java.lang.RuntimeException ex) {
+            // The CSV parser raises unchecked exceptions for malformed or
+            // truncated content (and for duplicate column names). Handlers
+            // may fail on rows with missing values.
+            if ((transfer != null) && (transfer.abortReason() != null)) {
+                throw new TransferAbortedException(transfer.abortReason(), ex);
+            } else if (ex instanceof java.io.IOException) {
+                throw (java.io.IOException)ex;
+            }
+            throw new java.io.IOException(ex);
+        } finally {
+            if (counter != null) {
+                _bytes += counter.getByteCount();
+            }
+            if (transfer != null) {
+                _watchdog.finish(transfer);
+            }
+            con.disconnect();
+        }
+        return count;
+    }
+    
+    public SodaQuery select(String select) {
+        
+        _select = select;
+        return this;
+    }
+    
+    public SodaQuery where(String where) {
+        
+        _where = where;
+        return this;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.provider.socrata.benchmark;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.urban.data.core.util.FileSystem;
+import org.urban.data.provider.socrata.SocrataCatalog;
+import org.urban.data.provider.socrata.cli.Args;
+import org.urban.data.provider.socrata.cli.DownloadDatasets;
+import org.urban.data.provider.socrata.download.DownloadMetrics;
+
+/**
+ * End-to-end benchmark for the download command. Starts a local stand-in for
+ * the Socrata API and runs the download command against it. Each run uses a
+ * new database directory under the given working directory.
+ * 
+ * Reports the number of datasets and bytes per second as well as the tail
+ * latency of dataset transfers.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class DownloadBenchmark {
+    
+    private static final String COMMAND =
+            "Usage:\n" +
+            "  <working-directory>\n" +
+            "  {<option>=<value>}\n\n" +
+            "Options:\n" +
+            "  domains       Number of domains (default: 10)\n" +
+            "  datasets      Number of datasets per domain (default: 100)\n" +
+            "  minrows       Minimum number of rows per dataset (default: 100)\n" +
+            "  maxrows       Maximum number of rows per dataset (default: 100000)\n" +
+            "  latency       Latency per request in ms (default: 0)\n" +
+            "  jitter        Max. random latency per request in ms (default: 0)\n" +
+            "  slow          Fraction of slow requests (default: 0)\n" +
+            "  slowlatency   Additional latency for slow requests in ms (default: 1000)\n" +
+            "  errors        Fraction of failing requests (default: 0)\n" +
+            "  failing       Number of domains that always fail (default: 0)\n" +
+            "  bandwidth     Bytes per second per connection (default: unlimited)\n" +
+            "  maxrequests   Max. concurrent requests before 429 (default: unlimited)\n" +
+            "  gzip          Send gzip content if accepted (default: true)\n" +
+            "  threads       Number of download threads (default: 6)\n" +
+            "  retries       Number of retries for failed downloads (default: 2)\n" +
+            "  virtual       Use virtual threads (default: false)\n" +
+            "  port          Server port (default: any free port)";
+    
+    private static final List<String> OPTIONS = Arrays.asList(new String[]{
+        "bandwidth",
+        "datasets",
+        "domains",
+        "errors",
+        "failing",
+        "gzip",
+        "jitter",
+        "latency",
+        "maxrequests",
+        "maxrows",
+        "minrows",
+        "port",
+        "retries",
+        "slow",
+        "slowlatency",
+        "threads",
+        "virtual"
+    });
+    
+    private static final Logger LOGGER = Logger.getGlobal();
+    
+    public static final String VERSION = "0.1.0";
+    
+    private static String get(HashMap<String, String> options, String key, String defaultValue) {
+        
+        if (options.containsKey(key)) {
+            return options.get(key);
+        }
+        return defaultValue;
+    }
+    
+    public void run(File workDir, HashMap<String, String> options) throws java.io.IOException {
+        
+        MockSocrataServer server = new MockSocrataServer()
+                .domains(Integer.parseInt(get(options, "domains", "10")))
+                .datasets(Integer.parseInt(get(options, "datasets", "100")))
+                .rows(
+                        Long.parseLong(get(options, "minrows", "100")),
+                        Long.parseLong(get(options, "maxrows", "100000"))
+                )
+                .latency(
+                        Long.parseLong(get(options, "latency", "0")),
+                        Long.parseLong(get(options, "jitter", "0"))
+                )
+                .slowRequests(
+                        Double.parseDouble(get(options, "slow", "0")),
+                        Long.parseLong(get(options, "slowlatency", "1000"))
+                )
+                .errorRate(Double.parseDouble(get(options, "errors", "0")))
+                .bandwidth(Long.parseLong(get(options, "bandwidth", "0")))
+                .gzip(Boolean.parseBoolean(get(options, "gzip", "true")))
+                .maxConcurrentRequests(Integer.parseInt(get(options, "maxrequests", "0")));
+        int failing = Integer.parseInt(get(options, "failing", "0"));
+        for (int iDomain = 0; iDomain < failing; iDomain++) {
+            server.failingDomain(server.domainName(iDomain));
+        }
+        
+        try (MockSocrataServer api = server.start(Integer.parseInt(get(options, "port", "0")))) {
+            System.setProperty(
+                    SocrataCatalog.API_PROPERTY,
+                    api.url() + MockSocrataServer.CATALOG_PATH
+            );
+            FileSystem.createFolder(workDir);
+            File baseDir = Files.createTempDirectory(workDir.toPath(), "run").toFile();
+            
+            List<String> params = new ArrayList<>();
+            params.add("download");
+            params.add("--" + Args.PARA_BASEDIR + "=" + baseDir.getAbsolutePath());
+            params.add("--" + Args.PARA_THREADS + "=" + get(options, "threads", "6"));
+            params.add("--" + Args.PARA_RETRIES + "=" + get(options, "retries", "2"));
+            if (Boolean.parseBoolean(get(options, "virtual", "false"))) {
+                params.add("--" + Args.PARA_VIRTUAL);
+            }
+            
+            DownloadDatasets command = new DownloadDatasets();
+            long start = System.currentTimeMillis();
+            command.run(new Args(params.toArray(new String[params.size()])));
+            long elapsed = System.currentTimeMillis() - start;
+            
+            DownloadMetrics metrics = command.metrics();
+            double seconds = Math.max(1, metrics.elapsed()) / 1000.0;
+            System.out.println("\nDIRECTORY      " + baseDir.getAbsolutePath());
+            System.out.println("TOTAL TIME     " + String.format("%.1f s", elapsed / 1000.0));
+            System.out.println("DOWNLOAD TIME  " + String.format("%.1f s", seconds));
+            System.out.println("DATASETS       " + metrics.successes() + " (" + metrics.failures() + " failed, " + metrics.retries() + " retries)");
+            System.out.println("DATA           " + FileSystem.humanReadableByteCount(metrics.bytes()));
+            System.out.println("DATASETS/SEC   " + String.format("%.2f", metrics.successes() / seconds));
+            System.out.println("MB/SEC         " + String.format("%.2f", (metrics.bytes() / (1024.0 * 1024.0)) / seconds));
+            System.out.println("LATENCY (ms)   p50=" + metrics.latency(50) + ", p95=" + metrics.latency(95) + ", p99=" + metrics.latency(99) + ", max=" + metrics.latency(100));
+            System.out.println("REQUESTS       " + api.requests() + " (" + api.errors() + " errors, " + api.throttled() + " throttled)");
+        } finally {
+            System.clearProperty(SocrataCatalog.API_PROPERTY);
+        }
+    }
+    
+    public static void main(String[] args) {
+        
+        System.out.println("Urban Data Integration - Socrata Download Benchmark - Version (" + VERSION + ")\n");
+
+        if (args.length < 1) {
+            System.out.println(COMMAND);
+            System.exit(-1);
+        }
+        
+        File workDir = new File(args[0]);
+        HashMap<String, String> options = new HashMap<>();
+        for (int iArg = 1; iArg < args.length; iArg++) {
+            String arg = args[iArg];
+            int pos = arg.indexOf("=");
+            String key;
+            String value;
+            if (pos > 0) {
+                key = arg.substring(0, pos).toLowerCase();
+                value = arg.substring(pos + 1);
+            } else {
+                key = arg.toLowerCase();
+                value = Boolean.toString(true);
+            }
+            if (!OPTIONS.contains(key)) {
+                System.out.println(COMMAND);
+                System.exit(-1);
+            }
+            options.put(key, value);
+        }
+        
+        try {
+            new DownloadBenchmark().run(workDir, options);
+        } catch (java.io.IOException ex) {
+            LOGGER.log(Level.SEVERE, "RUN", ex);
+            System.exit(-1);
+        }
+    }
+}
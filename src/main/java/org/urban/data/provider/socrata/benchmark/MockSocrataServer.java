@@ -0,0 +1,1097 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.provider.socrata.benchmark;
+
+import com.google.gson.stream.JsonWriter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+
+/**
+ * Local stand-in for the Socrata API. Serves a synthetic catalog and synthetic
+ * dataset files for a configurable number of domains and datasets. The server
+ * is intended for measuring download performance without sending requests to
+ * the production portals.
+ * 
+ * The following endpoints are supported:
+ * 
+ * /api/catalog/v1/domains - List of domains and their dataset counts
+ * /api/catalog/v1 - Catalog entries (domains, only, limit, offset, scroll_id)
+ * /api/views/{id}/rows.tsv - Dataset file in TSV format (supports ranges)
+ * /resource/{id}.json - Dataset rows in JSON format ($offset, $limit)
+ * /resource/{id}.csv - Dataset rows in CSV format ($select, $where, $offset,
+ *                      $limit)
+ * /d/{id} - Dataset landing page that contains the resource Url
+ * 
+ * The number of rows per dataset follows a heavy-tailed (Pareto) distribution
+ * between the configured minimum and maximum. All generated data is
+ * deterministic for a given seed.
+ * 
+ * Requests for dataset endpoints can be delayed, throttled (429 if the number
+ * of concurrent requests exceeds the limit), fail at random (500), or fail for
+ * all datasets of a domain (503). The bandwidth of each connection can be
+ * limited.
+ * 
+ * Dataset content is gzip-compressed if the client accepts gzip encoding
+ * (unless compression is disabled). Range requests are always answered with
+ * uncompressed content.
+ * 
+ * The CSV endpoint supports a small subset of SoQL. $select is a list of
+ * column names, including the system fields :id, :created_at and :updated_at,
+ * and the wildcards * (all data columns) and :* (system fields and all data
+ * columns). $where is a conjunction (AND) of comparisons between a column and
+ * a constant. Rows are always returned in the order of their identifier.
+ * Rows can be appended to or modified in a dataset to simulate changes
+ * between downloads.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class MockSocrataServer implements AutoCloseable {
+    
+    public static final String CATALOG_PATH = "/api/catalog/v1";
+    
+    public static final String[] COLUMNS = {"id", "name", "value", "created_at"};
+    public static final String[] DATATYPES = {"number", "text", "number", "calendar_date"};
+    public static final String[] SYSTEM_FIELDS = {":id", ":created_at", ":updated_at"};
+    
+    private static final Pattern CONDITION = Pattern
+            .compile("(:?\\w+)\\s*(!=|<=|>=|=|<|>)\\s*('[^']*'|[-\\w.]+)");
+    
+    private static final ThreadLocal<SimpleDateFormat> TIMESTAMP = ThreadLocal
+            .withInitial(() -> {
+                SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+                df.setTimeZone(TimeZone.getTimeZone("UTC"));
+                return df;
+            });
+    
+    /**
+     * Shape parameter for the distribution of dataset sizes. A value of 1.16
+     * results in approx. 80% of the data being in 20% of the datasets.
+     */
+    private static final double PARETO_ALPHA = 1.16;
+    
+    private class MockDataset {
+        
+        private final long _createdAt;
+        private final String _domain;
+        private final String _identifier;
+        private final long _initialRows;
+        private volatile long _rows;
+        private final long _seed;
+        private volatile String _updatedAt;
+        /**
+         * Modification timestamp and version for rows that have been appended
+         * or modified.
+         */
+        private final HashMap<Long, long[]> _versions = new HashMap<>();
+        
+        public MockDataset(
+                String identifier,
+                String domain,
+                long rows,
+                long seed,
+                long updatedAt
+        ) {
+            
+            _identifier = identifier;
+            _domain = domain;
+            _rows = rows;
+            _initialRows = rows;
+            _seed = seed;
+            _createdAt = updatedAt;
+            _updatedAt = timestamp(updatedAt);
+        }
+        
+        /**
+         * Get the modification timestamp and version of a row. All rows that
+         * have not been changed since the dataset was created are at version
+         * zero.
+         * 
+         * @param rowIndex
+         * @return 
+         */
+        public synchronized long[] version(long rowIndex) {
+            
+            long[] version = _versions.get(rowIndex);
+            if (version != null) {
+                return version;
+            }
+            // Rows of the original dataset were modified one second apart
+            // with the last row being modified when the dataset was created.
+            return new long[]{_createdAt - (_initialRows - rowIndex - 1) * 1000L, 0};
+        }
+    }
+    
+    /**
+     * Output stream that limits the rate at which data is written.
+     */
+    private class ThrottledOutputStream extends FilterOutputStream {
+        
+        private final long _start = System.currentTimeMillis();
+        private long _written = 0;
+        
+        public ThrottledOutputStream(OutputStream out) {
+            
+            super(out);
+        }
+        
+        @Override
+        public void write(int b) throws java.io.IOException {
+            
+            this.write(new byte[]{(byte)b}, 0, 1);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws java.io.IOException {
+            
+            out.write(b, off, len);
+            _written += len;
+            _bytes.addAndGet(len);
+            if (_bandwidth > 0) {
+                long expected = (_written * 1000L) / _bandwidth;
+                long elapsed = System.currentTimeMillis() - _start;
+                if (expected > elapsed) {
+                    sleep(expected - elapsed);
+                }
+            }
+        }
+    }
+    
+    private final AtomicInteger _active = new AtomicInteger(0);
+    private long _bandwidth = 0;
+    private final AtomicLong _bytes = new AtomicLong(0);
+    private int _datasetsPerDomain = 100;
+    private final TreeMap<String, MockDataset> _datasets = new TreeMap<>();
+    private int _domains = 10;
+    private double _errorRate = 0;
+    private final AtomicInteger _errors = new AtomicInteger(0);
+    private ExecutorService _executor = null;
+    private final HashSet<String> _failingDomains = new HashSet<>();
+    private boolean _gzip = true;
+    private long _jitter = 0;
+    private long _latency = 0;
+    private int _maxConcurrentRequests = 0;
+    private long _maxRows = 100000;
+    private long _minRows = 100;
+    private final AtomicInteger _requests = new AtomicInteger(0);
+    private long _seed = 42;
+    private HttpServer _server = null;
+    private long _slowLatency = 0;
+    private double _slowProbability = 0;
+    private final AtomicInteger _throttled = new AtomicInteger(0);
+    
+    /**
+     * Append the given number of rows to a dataset. The new rows and the
+     * dataset are marked as modified now.
+     * 
+     * @param identifier
+     * @param rows
+     * @return 
+     */
+    public MockSocrataServer appendRows(String identifier, int rows) {
+        
+        MockDataset dataset = _datasets.get(identifier);
+        long now = System.currentTimeMillis();
+        synchronized (dataset) {
+            for (int iRow = 0; iRow < rows; iRow++) {
+                dataset._versions.put(dataset._rows + iRow, new long[]{now, 0});
+            }
+            dataset._rows += rows;
+            dataset._updatedAt = timestamp(now);
+        }
+        return this;
+    }
+    
+    /**
+     * Maximum number of bytes per second for each connection. A value of zero
+     * or less disables the limit.
+     * 
+     * @param bytesPerSecond
+     * @return 
+     */
+    public MockSocrataServer bandwidth(long bytesPerSecond) {
+        
+        _bandwidth = bytesPerSecond;
+        return this;
+    }
+    
+    /**
+     * Total number of bytes that have been sent for dataset requests.
+     * 
+     * @return 
+     */
+    public long bytes() {
+        
+        return _bytes.get();
+    }
+    
+    @Override
+    public void close() {
+        
+        if (_server != null) {
+            _server.stop(0);
+            _executor.shutdownNow();
+            _server = null;
+        }
+    }
+    
+    private void createDatasets() {
+        
+        _datasets.clear();
+        Random rand = new Random(_seed);
+        for (int iDomain = 0; iDomain < _domains; iDomain++) {
+            String domain = this.domainName(iDomain);
+            for (int iDataset = 0; iDataset < _datasetsPerDomain; iDataset++) {
+                String identifier = String.format("%04d-%04d", iDomain, iDataset);
+                long rows = _minRows;
+                if (_maxRows > _minRows) {
+                    double scale = Math.pow(1.0 - rand.nextDouble(), 1.0 / PARETO_ALPHA);
+                    rows = Math.min(_maxRows, (long)(_minRows / scale));
+                }
+                // Last update within the year before Jan. 1, 2020.
+                long updatedAt = 1577836800000L - (long)(rand.nextDouble() * 365L * 86400000L);
+                _datasets.put(
+                        identifier,
+                        new MockDataset(
+                                identifier,
+                                domain,
+                                rows,
+                                rand.nextLong(),
+                                updatedAt
+                        )
+                );
+            }
+        }
+    }
+    
+    /**
+     * Number of datasets that are generated for each domain.
+     * 
+     * @param datasetsPerDomain
+     * @return 
+     */
+    public MockSocrataServer datasets(int datasetsPerDomain) {
+        
+        _datasetsPerDomain = datasetsPerDomain;
+        return this;
+    }
+    
+    public String domainName(int index) {
+        
+        return "data" + index + ".example.org";
+    }
+    
+    public MockSocrataServer domains(int domains) {
+        
+        _domains = domains;
+        return this;
+    }
+    
+    /**
+     * Probability that a request for a dataset fails with an internal server
+     * error.
+     * 
+     * @param errorRate
+     * @return 
+     */
+    public MockSocrataServer errorRate(double errorRate) {
+        
+        _errorRate = errorRate;
+        return this;
+    }
+    
+    /**
+     * Number of requests that were answered with an error (excluding
+     * throttled requests).
+     * 
+     * @return 
+     */
+    public int errors() {
+        
+        return _errors.get();
+    }
+    
+    /**
+     * All requests for datasets of the given domain fail with 503 (Service
+     * Unavailable).
+     * 
+     * @param domain
+     * @return 
+     */
+    public MockSocrataServer failingDomain(String domain) {
+        
+        _failingDomains.add(domain);
+        return this;
+    }
+    
+    /**
+     * Compress dataset content if the client accepts gzip encoding.
+     * 
+     * @param gzip
+     * @return 
+     */
+    public MockSocrataServer gzip(boolean gzip) {
+        
+        _gzip = gzip;
+        return this;
+    }
+    
+    private void handleCatalog(HttpExchange exchange) throws java.io.IOException {
+        
+        String path = exchange.getRequestURI().getPath();
+        HashMap<String, String> params = params(exchange);
+        if (path.equals(CATALOG_PATH + "/domains")) {
+            TreeMap<String, Integer> counts = new TreeMap<>();
+            for (MockDataset dataset : _datasets.values()) {
+                Integer count = counts.get(dataset._domain);
+                counts.put(dataset._domain, (count == null) ? 1 : count + 1);
+            }
+            this.sleep();
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, 0);
+            try (JsonWriter out = this.jsonWriter(exchange.getResponseBody())) {
+                out.beginObject();
+                out.name("results");
+                out.beginArray();
+                for (String domain : counts.keySet()) {
+                    out.beginObject();
+                    out.name("domain").value(domain);
+                    out.name("count").value(counts.get(domain));
+                    out.endObject();
+                }
+                out.endArray();
+                out.name("resultSetSize").value(counts.size());
+                out.endObject();
+            }
+        } else if (path.equals(CATALOG_PATH)) {
+            String domain = params.get("domains");
+            String only = params.get("only");
+            int limit = 100;
+            if (params.containsKey("limit")) {
+                limit = Integer.parseInt(params.get("limit"));
+            }
+            int offset = 0;
+            if (params.containsKey("offset")) {
+                offset = Integer.parseInt(params.get("offset"));
+            }
+            String scrollId = params.get("scroll_id");
+            List<MockDataset> results = new ArrayList<>();
+            if ((only == null) || (only.equals("dataset"))) {
+                for (MockDataset dataset : _datasets.values()) {
+                    if ((domain == null) || (dataset._domain.equals(domain))) {
+                        results.add(dataset);
+                    }
+                }
+            }
+            int resultSetSize = results.size();
+            List<MockDataset> page = new ArrayList<>();
+            for (MockDataset dataset : results) {
+                if ((scrollId != null) && (dataset._identifier.compareTo(scrollId) <= 0)) {
+                    continue;
+                } else if (offset > 0) {
+                    offset--;
+                    continue;
+                } else if (page.size() >= limit) {
+                    break;
+                }
+                page.add(dataset);
+            }
+            this.sleep();
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, 0);
+            try (JsonWriter out = this.jsonWriter(exchange.getResponseBody())) {
+                out.beginObject();
+                out.name("results");
+                out.beginArray();
+                for (MockDataset dataset : page) {
+                    this.writeCatalogEntry(dataset, out);
+                }
+                out.endArray();
+                out.name("resultSetSize").value(resultSetSize);
+                out.endObject();
+            }
+        } else {
+            this.sendError(exchange, 404);
+        }
+    }
+    
+    private void handleDataset(HttpExchange exchange) throws java.io.IOException {
+        
+        String path = exchange.getRequestURI().getPath();
+        String identifier = null;
+        String format = null;
+        if ((path.startsWith("/api/views/")) && (path.endsWith("/rows.tsv"))) {
+            identifier = path.substring(11, path.length() - 9);
+            format = "tsv";
+        } else if ((path.startsWith("/resource/")) && (path.endsWith(".json"))) {
+            identifier = path.substring(10, path.length() - 5);
+            format = "json";
+        } else if ((path.startsWith("/resource/")) && (path.endsWith(".csv"))) {
+            identifier = path.substring(10, path.length() - 4);
+            format = "csv";
+        } else if (path.startsWith("/d/")) {
+            identifier = path.substring(3);
+            format = "html";
+        }
+        MockDataset dataset = null;
+        if (identifier != null) {
+            dataset = _datasets.get(identifier);
+        }
+        if (dataset == null) {
+            this.sendError(exchange, 404);
+            return;
+        }
+        
+        int active = _active.incrementAndGet();
+        if ((_maxConcurrentRequests > 0) && (active > _maxConcurrentRequests)) {
+            _active.decrementAndGet();
+            _throttled.incrementAndGet();
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            this.sendError(exchange, 429);
+            return;
+        }
+        try {
+            this.sleep();
+            if (_failingDomains.contains(dataset._domain)) {
+                _errors.incrementAndGet();
+                this.sendError(exchange, 503);
+                return;
+            } else if (ThreadLocalRandom.current().nextDouble() < _errorRate) {
+                _errors.incrementAndGet();
+                this.sendError(exchange, 500);
+                return;
+            }
+            switch (format) {
+                case "tsv":
+                    this.writeTSV(dataset, exchange);
+                    break;
+                case "json":
+                    this.writeJSON(dataset, exchange);
+                    break;
+                case "csv":
+                    this.writeCSV(dataset, exchange);
+                    break;
+                default:
+                    this.writeHTML(dataset, exchange);
+                    break;
+            }
+        } finally {
+            _active.decrementAndGet();
+        }
+    }
+    
+    /**
+     * Evaluate the conditions of a $where clause for a row. Values are
+     * compared as numbers if both of them are numeric. Otherwise, they are
+     * compared as strings. A trailing Z on timestamps is ignored.
+     * 
+     * @param conditions
+     * @param row
+     * @return 
+     */
+    private static boolean matches(List<String[]> conditions, HashMap<String, String> row) {
+        
+        for (String[] condition : conditions) {
+            String value = row.get(condition[0]);
+            if (value == null) {
+                throw new IllegalArgumentException(condition[0]);
+            }
+            String constant = condition[2];
+            int comp;
+            try {
+                comp = Double.compare(
+                        Double.parseDouble(value),
+                        Double.parseDouble(constant)
+                );
+            } catch (java.lang.NumberFormatException ex) {
+                comp = stripZ(value).compareTo(stripZ(constant));
+            }
+            boolean result;
+            switch (condition[1]) {
+                case "=":
+                    result = (comp == 0);
+                    break;
+                case "!=":
+                    result = (comp != 0);
+                    break;
+                case "<":
+                    result = (comp < 0);
+                    break;
+                case "<=":
+                    result = (comp <= 0);
+                    break;
+                case ">":
+                    result = (comp > 0);
+                    break;
+                default:
+                    result = (comp >= 0);
+                    break;
+            }
+            if (!result) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Parse a $where clause. The clause is a conjunction of comparisons of the
+     * form column op constant. Returns a triple (column, operator, constant)
+     * for each comparison.
+     * 
+     * @param where
+     * @return 
+     */
+    private static List<String[]> parseWhere(String where) {
+        
+        List<String[]> conditions = new ArrayList<>();
+        if (where != null) {
+            for (String condition : where.split("(?i)\\s+AND\\s+")) {
+                Matcher m = CONDITION.matcher(condition.trim());
+                if (!m.matches()) {
+                    throw new IllegalArgumentException(condition);
+                }
+                String constant = m.group(3);
+                if (constant.startsWith("'")) {
+                    constant = constant.substring(1, constant.length() - 1);
+                }
+                conditions.add(new String[]{m.group(1), m.group(2), constant});
+            }
+        }
+        return conditions;
+    }
+    
+    /**
+     * Modify a row in a dataset. The row gets new values and the row and the
+     * dataset are marked as modified now.
+     * 
+     * @param identifier
+     * @param rowIndex
+     * @return 
+     */
+    public MockSocrataServer modifyRow(String identifier, long rowIndex) {
+        
+        MockDataset dataset = _datasets.get(identifier);
+        long now = System.currentTimeMillis();
+        synchronized (dataset) {
+            long[] version = dataset.version(rowIndex);
+            dataset._versions.put(rowIndex, new long[]{now, version[1] + 1});
+            dataset._updatedAt = timestamp(now);
+        }
+        return this;
+    }
+    
+    /**
+     * Send the response headers for dataset content and return the output
+     * stream for the response body. The content is compressed if the client
+     * accepts gzip encoding.
+     * 
+     * @param exchange
+     * @param code
+     * @param compress
+     * @return
+     * @throws java.io.IOException 
+     */
+    private OutputStream openDataset(
+            HttpExchange exchange,
+            int code,
+            boolean compress
+    ) throws java.io.IOException {
+        
+        String encoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if ((compress) && (_gzip) && (encoding != null) && (encoding.contains("gzip"))) {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            exchange.sendResponseHeaders(code, 0);
+            return new BufferedOutputStream(
+                    new GZIPOutputStream(
+                            new ThrottledOutputStream(exchange.getResponseBody()),
+                            64 * 1024
+                    ),
+                    64 * 1024
+            );
+        } else {
+            exchange.sendResponseHeaders(code, 0);
+            return new BufferedOutputStream(
+                    new ThrottledOutputStream(exchange.getResponseBody()),
+                    64 * 1024
+            );
+        }
+    }
+    
+    private JsonWriter jsonWriter(OutputStream out) {
+        
+        return new JsonWriter(
+                new OutputStreamWriter(
+                        new BufferedOutputStream(out),
+                        StandardCharsets.UTF_8
+                )
+        );
+    }
+    
+    /**
+     * Fixed delay (in milliseconds) for every request plus a random delay
+     * between zero and the given jitter.
+     * 
+     * @param millis
+     * @param jitter
+     * @return 
+     */
+    public MockSocrataServer latency(long millis, long jitter) {
+        
+        _latency = millis;
+        _jitter = jitter;
+        return this;
+    }
+    
+    /**
+     * Maximum number of concurrent dataset requests. Additional requests are
+     * rejected with 429 (Too Many Requests). A value of zero or less disables
+     * the limit.
+     * 
+     * @param maxRequests
+     * @return 
+     */
+    public MockSocrataServer maxConcurrentRequests(int maxRequests) {
+        
+        _maxConcurrentRequests = maxRequests;
+        return this;
+    }
+    
+    private static HashMap<String, String> params(HttpExchange exchange) throws java.io.IOException {
+        
+        HashMap<String, String> result = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+            for (String param : query.split("&")) {
+                int pos = param.indexOf("=");
+                if (pos > 0) {
+                    result.put(
+                            URLDecoder.decode(param.substring(0, pos), "UTF-8"),
+                            URLDecoder.decode(param.substring(pos + 1), "UTF-8")
+                    );
+                }
+            }
+        }
+        return result;
+    }
+    
+    public int port() {
+        
+        return _server.getAddress().getPort();
+    }
+    
+    /**
+     * Total number of requests that were received by the server.
+     * 
+     * @return 
+     */
+    public int requests() {
+        
+        return _requests.get();
+    }
+    
+    /**
+     * Generate the values for a row in the given dataset.
+     * 
+     * @param dataset
+     * @param rowIndex
+     * @return 
+     */
+    private String[] row(MockDataset dataset, long rowIndex) {
+        
+        Random rand = new Random(
+                dataset._seed + rowIndex + dataset.version(rowIndex)[1] * 1000003L
+        );
+        return new String[]{
+            Long.toString(rowIndex),
+            "Name " + Long.toHexString(rand.nextLong()),
+            String.format("%.4f", rand.nextDouble() * 1000),
+            String.format(
+                    "2019-%02d-%02dT00:00:00.000",
+                    rand.nextInt(12) + 1,
+                    rand.nextInt(28) + 1
+            )
+        };
+    }
+    
+    /**
+     * Number of rows for each dataset. The actual number of rows is drawn
+     * from a heavy-tailed distribution between min and max.
+     * 
+     * @param min
+     * @param max
+     * @return 
+     */
+    public MockSocrataServer rows(long min, long max) {
+        
+        _minRows = min;
+        _maxRows = max;
+        return this;
+    }
+    
+    public MockSocrataServer seed(long seed) {
+        
+        _seed = seed;
+        return this;
+    }
+    
+    private void sendError(HttpExchange exchange, int code) throws java.io.IOException {
+        
+        exchange.sendResponseHeaders(code, -1);
+        exchange.close();
+    }
+    
+    private static String stripZ(String value) {
+        
+        if (value.endsWith("Z")) {
+            return value.substring(0, value.length() - 1);
+        }
+        return value;
+    }
+    
+    private static void sleep(long millis) {
+        
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (java.lang.InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    private void sleep() {
+        
+        long delay = _latency;
+        ThreadLocalRandom rand = ThreadLocalRandom.current();
+        if (_jitter > 0) {
+            delay += rand.nextLong(_jitter + 1);
+        }
+        if ((_slowProbability > 0) && (rand.nextDouble() < _slowProbability)) {
+            delay += _slowLatency;
+        }
+        sleep(delay);
+    }
+    
+    /**
+     * A fraction of requests is delayed by the given number of milliseconds
+     * (in addition to the regular latency).
+     * 
+     * @param probability
+     * @param millis
+     * @return 
+     */
+    public MockSocrataServer slowRequests(double probability, long millis) {
+        
+        _slowProbability = probability;
+        _slowLatency = millis;
+        return this;
+    }
+    
+    /**
+     * Start the server on the given port. Use port 0 to start the server on
+     * an arbitrary free port.
+     * 
+     * @param port
+     * @return
+     * @throws java.io.IOException 
+     */
+    public MockSocrataServer start(int port) throws java.io.IOException {
+        
+        this.createDatasets();
+        
+        _server = HttpServer.create(new InetSocketAddress("localhost", port), 1024);
+        _server.createContext(CATALOG_PATH, (HttpExchange exchange) -> {
+            _requests.incrementAndGet();
+            try {
+                this.handleCatalog(exchange);
+            } finally {
+                exchange.close();
+            }
+        });
+        _server.createContext("/", (HttpExchange exchange) -> {
+            _requests.incrementAndGet();
+            try {
+                this.handleDataset(exchange);
+            } finally {
+                exchange.close();
+            }
+        });
+        _executor = Executors.newCachedThreadPool();
+        _server.setExecutor(_executor);
+        _server.start();
+        return this;
+    }
+    
+    /**
+     * Number of requests that were rejected because the maximum number of
+     * concurrent requests was exceeded.
+     * 
+     * @return 
+     */
+    public int throttled() {
+        
+        return _throttled.get();
+    }
+    
+    private static String timestamp(long millis) {
+        
+        return TIMESTAMP.get().format(millis);
+    }
+    
+    /**
+     * Base Url for the server.
+     * 
+     * @return 
+     */
+    public String url() {
+        
+        return "http://localhost:" + this.port();
+    }
+    
+    private void writeCatalogEntry(MockDataset dataset, JsonWriter out) throws java.io.IOException {
+        
+        out.beginObject();
+        out.name("resource");
+        out.beginObject();
+        out.name("name").value("Dataset " + dataset._identifier);
+        out.name("id").value(dataset._identifier);
+        out.name("description").value("Synthetic dataset with " + dataset._rows + " rows");
+        out.name("type").value("dataset");
+        out.name("updatedAt").value(dataset._updatedAt);
+        out.name("data_updated_at").value(dataset._updatedAt);
+        out.name("metadata_updated_at").value(dataset._updatedAt);
+        out.name("columns_name");
+        out.beginArray();
+        for (String column : COLUMNS) {
+            out.value(column);
+        }
+        out.endArray();
+        out.name("columns_field_name");
+        out.beginArray();
+        for (String column : COLUMNS) {
+            out.value(column);
+        }
+        out.endArray();
+        out.name("columns_datatype");
+        out.beginArray();
+        for (String datatype : DATATYPES) {
+            out.value(datatype);
+        }
+        out.endArray();
+        out.endObject();
+        out.name("classification");
+        out.beginObject();
+        out.name("categories").beginArray().endArray();
+        out.name("tags").beginArray().endArray();
+        out.endObject();
+        out.name("metadata");
+        out.beginObject();
+        out.name("domain").value(dataset._domain);
+        out.endObject();
+        String link = this.url() + "/d/" + dataset._identifier;
+        out.name("permalink").value(link);
+        out.name("link").value(link);
+        out.endObject();
+    }
+    
+    private void writeCSV(MockDataset dataset, HttpExchange exchange) throws java.io.IOException {
+        
+        HashMap<String, String> params = params(exchange);
+        long offset = 0;
+        if (params.containsKey("$offset")) {
+            offset = Long.parseLong(params.get("$offset"));
+        }
+        long limit = 1000;
+        if (params.containsKey("$limit")) {
+            limit = Long.parseLong(params.get("$limit"));
+        }
+        List<String[]> where;
+        try {
+            where = parseWhere(params.get("$where"));
+        } catch (java.lang.IllegalArgumentException ex) {
+            this.sendError(exchange, 400);
+            return;
+        }
+        
+        List<String> columns = new ArrayList<>();
+        String select = params.get("$select");
+        if (select == null) {
+            select = "*";
+        }
+        for (String name : select.split(",")) {
+            name = name.trim();
+            if (name.equals(":*")) {
+                columns.addAll(Arrays.asList(SYSTEM_FIELDS));
+                columns.addAll(Arrays.asList(COLUMNS));
+            } else if (name.equals("*")) {
+                columns.addAll(Arrays.asList(COLUMNS));
+            } else {
+                columns.add(name);
+            }
+        }
+        
+        HashMap<String, String> values = new HashMap<>();
+        List<String> result = new ArrayList<>(columns.size());
+        try {
+            exchange.getResponseHeaders().set("Content-Type", "text/csv");
+            OutputStream out = this.openDataset(exchange, 200, true);
+            try (CSVPrinter csv = new CSVPrinter(
+                    new OutputStreamWriter(out, StandardCharsets.UTF_8),
+                    CSVFormat.DEFAULT
+            )) {
+                csv.printRecord(columns);
+                long rows = dataset._rows;
+                String createdAt = timestamp(dataset._createdAt);
+                long count = 0;
+                for (long iRow = 0; (iRow < rows) && (count < limit); iRow++) {
+                    String[] row = this.row(dataset, iRow);
+                    values.clear();
+                    for (int iColumn = 0; iColumn < COLUMNS.length; iColumn++) {
+                        values.put(COLUMNS[iColumn], row[iColumn]);
+                    }
+                    values.put(SYSTEM_FIELDS[0], String.format("row-%08d", iRow));
+                    values.put(SYSTEM_FIELDS[1], createdAt);
+                    values.put(SYSTEM_FIELDS[2], timestamp(dataset.version(iRow)[0]));
+                    if (!matches(where, values)) {
+                        continue;
+                    } else if (offset > 0) {
+                        offset--;
+                        continue;
+                    }
+                    result.clear();
+                    for (String name : columns) {
+                        String value = values.get(name);
+                        if (value == null) {
+                            throw new IllegalArgumentException(name);
+                        }
+                        result.add(value);
+                    }
+                    csv.printRecord(result);
+                    count++;
+                }
+            }
+        } catch (java.lang.IllegalArgumentException ex) {
+            // Query errors are only detected while the response is written.
+            // Close the connection to signal the failure.
+            exchange.close();
+        }
+    }
+    
+    private void writeHTML(MockDataset dataset, HttpExchange exchange) throws java.io.IOException {
+        
+        exchange.getResponseHeaders().set("Content-Type", "text/html");
+        exchange.sendResponseHeaders(200, 0);
+        try (PrintWriter out = new PrintWriter(
+                new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8)
+        )) {
+            out.println("<html>");
+            out.println("<script>");
+            out.println(
+                    "var dataset = {\"resourceUrl\":\"" + this.url() +
+                    "/resource/" + dataset._identifier + ".json\"};"
+            );
+            out.println("</script>");
+            out.println("</html>");
+        }
+    }
+    
+    private void writeJSON(MockDataset dataset, HttpExchange exchange) throws java.io.IOException {
+        
+        HashMap<String, String> params = params(exchange);
+        long offset = 0;
+        if (params.containsKey("$offset")) {
+            offset = Long.parseLong(params.get("$offset"));
+        }
+        long limit = 1000;
+        if (params.containsKey("$limit")) {
+            limit = Long.parseLong(params.get("$limit"));
+        }
+        long end = Math.min(dataset._rows, offset + limit);
+        
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        try (JsonWriter out = this.jsonWriter(this.openDataset(exchange, 200, true))) {
+            out.beginArray();
+            for (long iRow = offset; iRow < end; iRow++) {
+                String[] row = this.row(dataset, iRow);
+                out.beginObject();
+                for (int iColumn = 0; iColumn < COLUMNS.length; iColumn++) {
+                    out.name(COLUMNS[iColumn]).value(row[iColumn]);
+                }
+                out.endObject();
+            }
+            out.endArray();
+        }
+    }
+    
+    private void writeTSV(MockDataset dataset, HttpExchange exchange) throws java.io.IOException {
+        
+        // Support for range requests of the form bytes=<start>-
+        long skip = 0;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if ((range != null) && (range.startsWith("bytes=")) && (range.endsWith("-"))) {
+            skip = Long.parseLong(range.substring(6, range.length() - 1));
+        }
+        
+        exchange.getResponseHeaders().set("Content-Type", "text/tab-separated-values");
+        int code = 200;
+        if (skip > 0) {
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + skip + "-*/*");
+            code = 206;
+        }
+        try (OutputStream out = this.openDataset(exchange, code, (skip == 0))) {
+            long position = 0;
+            for (long iRow = -1; iRow < dataset._rows; iRow++) {
+                String[] row = (iRow < 0) ? COLUMNS : this.row(dataset, iRow);
+                byte[] line = (String.join("\t", row) + "\n")
+                        .getBytes(StandardCharsets.UTF_8);
+                if (position + line.length <= skip) {
+                    position += line.length;
+                    continue;
+                }
+                int off = (int)Math.max(0, skip - position);
+                out.write(line, off, line.length - off);
+                position += line.length;
+            }
+        }
+    }
+}
@@ -26,6 +26,8 @@ import org.urban.data.core.set.StringSet;
 import org.urban.data.core.util.StringHelper;
 import org.urban.data.provider.socrata.db.DB;
 import org.urban.data.provider.socrata.db.DatasetQuery;
+import org.urban.data.provider.socrata.download.DownloadProfile;
+import org.urban.data.provider.socrata.download.HedgedRequests;
 
 /**
  * Helper class for default command line arguments of archive management tools.
@@ -40,6 +42,7 @@ public class Args {
     public static final String ENV_DATABASEDIR = "SOCRATA_DBDIR";
     public static final String ENV_DOMAIN = "SOCRATA_DOMAIN";
     public static final String ENV_THREADS = "SOCRATA_THREADS";
+    public static final String ENV_VIRTUAL = "SOCRATA_VIRTUAL";
     
     /**
      * Argument value for order by parameter
@@ -53,39 +56,79 @@ public class Args {
     public final static String PARA_BASEDIR = "dir";
     public final static String PARA_CLEAN = "clean";
     public final static String PARA_COLUMN = "column";
+    public final static String PARA_CONNECTTIMEOUT = "connecttimeout";
     public final static String PARA_DATASET = "dataset";
     public final static String PARA_DATE = "date";
     public final static String PARA_DOMAIN = "domain";
     public final static String PARA_EXISTING = "existing";
+    public final static String PARA_FROM = "from";
+    public final static String PARA_HEDGE = "hedge";
+    public final static String PARA_HEDGEBUDGET = "hedgebudget";
     public final static String PARA_HELP = "help";
     public final static String PARA_HTML = "html";
+    public final static String PARA_INCREMENTAL = "incremental";
+    public final static String PARA_LEASE = "lease";
+    public final static String PARA_LIMIT = "limit";
+    public final static String PARA_MINRATE = "minrate";
+    public final static String PARA_NODE = "node";
     public final static String PARA_ORDERBY = "orderby";
     public final static String PARA_OUTPUT = "output";
     public final static String PARA_OVERWRITE = "overwrite";
+    public final static String PARA_PORT = "port";
+    public final static String PARA_PROFILE = "profile";
+    public final static String PARA_QUERY = "query";
+    public final static String PARA_READTIMEOUT = "readtimeout";
     public final static String PARA_REPORT = "report";
+    public final static String PARA_RETRIES = "retries";
     public final static String PARA_REVERSE = "reverse";
+    public final static String PARA_SAMPLE = "sample";
+    public final static String PARA_SHARDS = "shards";
     public final static String PARA_STATS = "stats";
+    public final static String PARA_TARGET = "target";
     public final static String PARA_THREADS = "threads";
+    public final static String PARA_TO = "to";
+    public final static String PARA_TRANSFERTIMEOUT = "transfertimeout";
     public final static String PARA_VALUES = "values";
+    public final static String PARA_VIRTUAL = "virtual";
     private final static HashSet<String> PARAMETERS = new HashSet<>(
             Arrays.asList(new String[]{
                 PARA_BASEDIR,
                 PARA_CLEAN,
                 PARA_COLUMN,
+                PARA_CONNECTTIMEOUT,
                 PARA_DATASET,
                 PARA_DATE,
                 PARA_DOMAIN,
                 PARA_EXISTING,
+                PARA_FROM,
+                PARA_HEDGE,
+                PARA_HEDGEBUDGET,
                 PARA_HELP,
                 PARA_HTML,
+                PARA_INCREMENTAL,
+                PARA_LEASE,
+                PARA_LIMIT,
+                PARA_MINRATE,
+                PARA_NODE,
                 PARA_ORDERBY,
                 PARA_OUTPUT,
                 PARA_OVERWRITE,
+                PARA_PORT,
+                PARA_PROFILE,
+                PARA_QUERY,
+                PARA_READTIMEOUT,
                 PARA_REPORT,
+                PARA_RETRIES,
                 PARA_REVERSE,
+                PARA_SAMPLE,
+                PARA_SHARDS,
                 PARA_STATS,
+                PARA_TARGET,
                 PARA_THREADS,
-                PARA_VALUES
+                PARA_TO,
+                PARA_TRANSFERTIMEOUT,
+                PARA_VALUES,
+                PARA_VIRTUAL
             })
     );
     
@@ -165,6 +208,17 @@ public class Args {
         return _parameters.get(PARA_COLUMN);
     }
     
+    public int getConnectTimeout() {
+        
+        if (_parameters.containsKey(PARA_CONNECTTIMEOUT)) {
+            try {
+                return Integer.parseInt(_parameters.get(PARA_CONNECTTIMEOUT));
+            } catch (java.lang.NumberFormatException ex) {
+            }
+        }
+        return 30;
+    }
+    
     public String getDataset() {
         
         return _parameters.get(PARA_DATASET);
@@ -260,6 +314,43 @@ public class Args {
         }
     }
     
+    public String getFrom() {
+        
+        return _parameters.get(PARA_FROM);
+    }
+    
+    /**
+     * Get the hedging policy for page requests. The value of the hedge
+     * parameter is the latency percentile after which a duplicate request is
+     * sent. The result is null if the parameter is not given. An invalid
+     * budget is replaced by the default budget.
+     * 
+     * @return 
+     */
+    public HedgedRequests getHedger() {
+        
+        if (_parameters.containsKey(PARA_HEDGE)) {
+            String value = _parameters.get(PARA_HEDGE);
+            double percentile = -1;
+            try {
+                percentile = Double.parseDouble(value);
+            } catch (java.lang.NumberFormatException ex) {
+            }
+            if (!((percentile > 0) && (percentile <= 100))) {
+                throw new IllegalArgumentException("Invalid hedge percentile: " + value);
+            }
+            double budget = HedgedRequests.DEFAULT_BUDGET;
+            if (_parameters.containsKey(PARA_HEDGEBUDGET)) {
+                try {
+                    budget = Double.parseDouble(_parameters.get(PARA_HEDGEBUDGET));
+                } catch (java.lang.NumberFormatException ex) {
+                }
+            }
+            return new HedgedRequests(percentile, budget);
+        }
+        return null;
+    }
+    
     public boolean getHelp() {
         
         return Boolean.parseBoolean(_parameters.get(PARA_HELP));
@@ -274,6 +365,67 @@ public class Args {
         }
     }
     
+    public boolean getIncremental() {
+        
+        if (_parameters.containsKey(PARA_INCREMENTAL)) {
+            return Boolean.parseBoolean(_parameters.get(PARA_INCREMENTAL));
+        } else {
+            return false;
+        }
+    }
+    
+    public int getLease() {
+        
+        if (_parameters.containsKey(PARA_LEASE)) {
+            try {
+                return Integer.parseInt(_parameters.get(PARA_LEASE));
+            } catch (java.lang.NumberFormatException ex) {
+            }
+        }
+        return 300;
+    }
+    
+    public int getLimit() {
+        
+        if (_parameters.containsKey(PARA_LIMIT)) {
+            try {
+                return Integer.parseInt(_parameters.get(PARA_LIMIT));
+            } catch (java.lang.NumberFormatException ex) {
+            }
+        }
+        return 20;
+    }
+    
+    public long getMinRate() {
+        
+        if (_parameters.containsKey(PARA_MINRATE)) {
+            try {
+                return Long.parseLong(_parameters.get(PARA_MINRATE));
+            } catch (java.lang.NumberFormatException ex) {
+            }
+        }
+        return 1024;
+    }
+    
+    /**
+     * Name of the harvest node in a multi-node download. The name is used in
+     * file names and may only contain letters, digits, '.', '_' and '-'. The
+     * result is null if no node name is given.
+     * 
+     * @return 
+     */
+    public String getNode() {
+        
+        if (_parameters.containsKey(PARA_NODE)) {
+            String node = _parameters.get(PARA_NODE).trim();
+            if (!node.matches("[A-Za-z0-9._-]+")) {
+                throw new IllegalArgumentException("Invalid node name: " + node);
+            }
+            return node;
+        }
+        return null;
+    }
+    
     public boolean getOverwrite() {
         
         if (_parameters.containsKey(PARA_OVERWRITE)) {
@@ -283,6 +435,57 @@ public class Args {
         }
     }
    
+    public int getPort() {
+        
+        if (_parameters.containsKey(PARA_PORT)) {
+            try {
+                return Integer.parseInt(_parameters.get(PARA_PORT));
+            } catch (java.lang.NumberFormatException ex) {
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Get the download profile. The result is null if no profile file is
+     * given.
+     * 
+     * @return
+     * @throws java.io.IOException 
+     */
+    public DownloadProfile getProfile() throws java.io.IOException {
+        
+        File file = this.getProfileFile();
+        if (file != null) {
+            return new DownloadProfile(file);
+        }
+        return null;
+    }
+    
+    public File getProfileFile() {
+        
+        if (_parameters.containsKey(PARA_PROFILE)) {
+            return new File(_parameters.get(PARA_PROFILE));
+        }
+        return null;
+    }
+    
+    public String getQuery() {
+        
+        return _parameters.get(PARA_QUERY);
+    }
+    
+    public int getReadTimeout() {
+        
+        if (_parameters.containsKey(PARA_READTIMEOUT)) {
+            try {
+                return Integer.parseInt(_parameters.get(PARA_READTIMEOUT));
+            } catch (java.lang.NumberFormatException ex) {
+            }
+        }
+        return 600;
+    }
+    
     public boolean getReport() {
         
         if (_parameters.containsKey(PARA_REPORT)) {
@@ -292,6 +495,23 @@ public class Args {
         }
     }
     
+    /**
+     * Get the number of times that a failed download is retried. The default
+     * is 2, i.e., every download is attempted at most three times.
+     * 
+     * @return 
+     */
+    public int getRetries() {
+        
+        if (_parameters.containsKey(PARA_RETRIES)) {
+            try {
+                return Integer.parseInt(_parameters.get(PARA_RETRIES));
+            } catch (java.lang.NumberFormatException ex) {
+            }
+        }
+        return 2;
+    }
+    
     public boolean getReverse() {
         
         if (_parameters.containsKey(PARA_REVERSE)) {
@@ -301,6 +521,25 @@ public class Args {
         }
     }
     
+    public double getSample() {
+        
+        if (_parameters.containsKey(PARA_SAMPLE)) {
+            try {
+                return Double.parseDouble(_parameters.get(PARA_SAMPLE));
+            } catch (java.lang.NumberFormatException ex) {
+            }
+        }
+        return 1;
+    }
+    
+    public File getShards() {
+        
+        if (_parameters.containsKey(PARA_SHARDS)) {
+            return new File(_parameters.get(PARA_SHARDS));
+        }
+        return null;
+    }
+    
     public boolean getStatsOnly() {
         
         if (_parameters.containsKey(PARA_STATS)) {
@@ -310,6 +549,14 @@ public class Args {
         }
     }
     
+    public String getTarget() {
+        
+        if (_parameters.containsKey(PARA_TARGET)) {
+            return _parameters.get(PARA_TARGET);
+        }
+        return null;
+    }
+    
     /**
      * Get the value for the number of threads. If the threads parameter was
      * given this value is returned. Otherwise, we first try to get he value
@@ -335,6 +582,46 @@ public class Args {
         return 6;
     }
     
+    public String getTo() {
+        
+        return _parameters.get(PARA_TO);
+    }
+    
+    public long getTransferTimeout() {
+        
+        if (_parameters.containsKey(PARA_TRANSFERTIMEOUT)) {
+            try {
+                return Long.parseLong(_parameters.get(PARA_TRANSFERTIMEOUT));
+            } catch (java.lang.NumberFormatException ex) {
+            }
+        }
+        return 21600;
+    }
+    
+    /**
+     * Flag indicating whether tasks should run in virtual threads (requires
+     * Java 21 or later). If the parameter is not given the value of the
+     * respective environment variable is used. The default is false.
+     * 
+     * In virtual thread mode the value of the threads parameter is the
+     * maximum number of tasks that run concurrently.
+     * 
+     * @return 
+     */
+    public boolean getVirtual() {
+        
+        String val;
+        if (_parameters.containsKey(PARA_VIRTUAL)) {
+            val = _parameters.get(PARA_VIRTUAL);
+        } else {
+            val = System.getenv().get(ENV_VIRTUAL);
+        }
+        if (val != null) {
+            return Boolean.parseBoolean(val.trim());
+        }
+        return false;
+    }
+    
     public String getOrderBy() {
         
         if (_parameters.containsKey(PARA_ORDERBY)) {
@@ -384,6 +671,11 @@ public class Args {
         return _parameters.containsKey(PARA_OUTPUT);
     }
     
+    public boolean hasQuery() {
+        
+        return _parameters.containsKey(PARA_QUERY);
+    }
+    
     public boolean hasValues() {
         
         return _parameters.containsKey(PARA_VALUES);
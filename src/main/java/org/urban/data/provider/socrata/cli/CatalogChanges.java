@@ -0,0 +1,82 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.provider.socrata.cli;
+
+import java.io.PrintWriter;
+import org.urban.data.core.query.JPredicate;
+import org.urban.data.core.util.ExternalSort;
+import org.urban.data.core.util.FileSystem;
+import org.urban.data.provider.socrata.CatalogDiff;
+import org.urban.data.provider.socrata.db.DB;
+
+/**
+ * Compare the catalogs from two harvest dates. Outputs one tab-delimited line
+ * per change with the change type (ADDED, REMOVED, METADATA, COLUMNS, DATA),
+ * domain, dataset identifier, dataset name, and change details.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class CatalogChanges extends CommandImpl implements Command {
+   
+    public CatalogChanges() {
+
+        super(
+                "catalog diff",
+                "Compare catalogs from two dates",
+                "Lists datasets that were added or removed, and datasets with\n" +
+                "changed metadata, changed columns, or updated data."
+        );
+        this.addParameter(Args.PARA_FROM);
+        this.addParameter(Args.PARA_TO);
+        this.addParameter(Args.PARA_DOMAIN);
+        this.addParameter(Args.PARA_OUTPUT, "Output file (default: standard output)");
+    }
+
+    @Override
+    public void run(Args args) throws java.io.IOException {
+        
+        if (args.getFrom() == null) {
+            throw new IllegalArgumentException("Missing date to compare from");
+        }
+        
+        DB db = args.getDB();
+        String to = args.getTo();
+        if (to == null) {
+            to = db.lastDownloadDate();
+        }
+        
+        JPredicate predicate = null;
+        if (args.getDomain() != null) {
+            predicate = JPredicate.eq("/metadata/domain", args.getDomain());
+        }
+        
+        CatalogDiff diff = new CatalogDiff(
+                db.catalogFile(args.getFrom()),
+                db.catalogFile(to),
+                predicate,
+                ExternalSort.DEFAULT_BUFFERSIZE
+        );
+        
+        PrintWriter out;
+        if (args.hasOutput()) {
+            out = FileSystem.openPrintWriter(args.getOutput());
+        } else {
+            out = new PrintWriter(System.out);
+        }
+        diff.diff((CatalogDiff.Change change) -> out.println(change));
+        out.close();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.provider.socrata.cli;
+
+import com.google.gson.stream.JsonWriter;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import org.urban.data.core.query.JsonQuery;
+import org.urban.data.core.query.SchemaProfile;
+import org.urban.data.core.util.FileSystem;
+import org.urban.data.provider.socrata.CatalogQuery;
+import org.urban.data.provider.socrata.db.DB;
+
+/**
+ * Compute a schema profile for a catalog file (see SchemaProfile). The profile
+ * is written as a Json object that contains the number of occurrences, Json
+ * types, array lengths, and example values for each path in the catalog.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class CatalogSchema extends CommandImpl implements Command {
+   
+    public CatalogSchema() {
+
+        super(
+                "catalog schema",
+                "Schema profile for catalog file",
+                "Outputs a Json object with the number of occurrences, types,\n" +
+                "array lengths and example values for each path in the catalog."
+        );
+        this.addParameter(Args.PARA_DATE, "Date for catalog file (default: last download date)");
+        this.addParameter(Args.PARA_SAMPLE);
+        this.addParameter(Args.PARA_OUTPUT, "Output file (default: standard output)");
+    }
+
+    @Override
+    public void run(Args args) throws java.io.IOException {
+        
+        DB db = args.getDB();
+        String date = args.getDateDefaultLast();
+        
+        double sampleRate = args.getSample();
+        if ((sampleRate <= 0) || (sampleRate > 1)) {
+            throw new IllegalArgumentException("Invalid sample rate: " + sampleRate);
+        }
+        
+        JsonQuery query = CatalogQuery.query(db.catalogFile(date));
+        SchemaProfile profile = query.profile(sampleRate);
+        
+        JsonWriter out;
+        if (args.hasOutput()) {
+            out = FileSystem.openJsonWriter(args.getOutput());
+        } else {
+            out = new JsonWriter(
+                    new OutputStreamWriter(System.out, StandardCharsets.UTF_8)
+            );
+        }
+        out.setIndent("  ");
+        profile.write(out);
+        out.flush();
+        if (args.hasOutput()) {
+            out.close();
+        } else {
+            System.out.println();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.provider.socrata.cli;
+
+import java.io.PrintWriter;
+import org.urban.data.core.query.AggregateClause;
+import org.urban.data.core.query.JPredicate;
+import org.urban.data.core.query.JQuery;
+import org.urban.data.core.query.ResultTuple;
+import org.urban.data.core.util.FileSystem;
+import org.urban.data.provider.socrata.CatalogHistory;
+
+/**
+ * Print the number of datasets and domains in the catalogs for all harvest
+ * dates. The catalog entries can be restricted to a given domain and dataset,
+ * e.g., to see when a dataset first appeared in the catalog or how the number
+ * of datasets for a domain changed over time.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class CatalogTimeline extends CommandImpl implements Command {
+   
+    public CatalogTimeline() {
+
+        super(
+                "catalog history",
+                "Number of datasets and domains for each catalog date",
+                "Scans the catalogs for all harvest dates in parallel. Results\n" +
+                "for each catalog are cached next to the catalog file."
+        );
+        this.addParameter(Args.PARA_DOMAIN);
+        this.addParameter(Args.PARA_DATASET);
+        this.addParameter(Args.PARA_FROM, "First catalog date (default: none)");
+        this.addParameter(Args.PARA_TO, "Last catalog date (default: none)");
+        this.addParameter(Args.PARA_OUTPUT, "Output file (default: standard output)");
+    }
+
+    @Override
+    public void run(Args args) throws java.io.IOException {
+        
+        CatalogHistory history = new CatalogHistory(args.getDB())
+                .dates(args.getFrom(), args.getTo());
+        if (args.getDomain() != null) {
+            history.where(JPredicate.eq("/metadata/domain", args.getDomain()));
+        }
+        if (args.getDataset() != null) {
+            history.where(JPredicate.eq("/resource/id", args.getDataset()));
+        }
+        
+        AggregateClause clause = new AggregateClause()
+                .count("datasets", new JQuery("/resource/id"))
+                .countDistinct("domains", new JQuery("/metadata/domain"), false);
+        
+        PrintWriter out;
+        if (args.hasOutput()) {
+            out = FileSystem.openPrintWriter(args.getOutput());
+        } else {
+            out = new PrintWriter(System.out);
+        }
+        for (ResultTuple tuple : history.aggregate(clause)) {
+            out.println(tuple.join("\t"));
+        }
+        out.close();
+    }
+}
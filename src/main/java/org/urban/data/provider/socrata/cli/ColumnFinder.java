@@ -17,10 +17,6 @@ package org.urban.data.provider.socrata.cli;
 
 import java.io.PrintWriter;
 import java.util.HashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.csv.CSVParser;
@@ -28,6 +24,7 @@ import org.apache.commons.csv.CSVRecord;
 import org.urban.data.core.set.StringSet;
 import org.urban.data.core.util.FileSystem;
 import org.urban.data.core.util.SynchronizedWriter;
+import org.urban.data.core.util.WorkerPool;
 import org.urban.data.provider.socrata.db.DB;
 import org.urban.data.provider.socrata.db.Dataset;
 import org.urban.data.provider.socrata.db.DatasetQuery;
@@ -41,29 +38,26 @@ import org.urban.data.provider.socrata.db.DatasetQuery;
  */
 public class ColumnFinder extends CommandImpl implements Command {
 
-    private class DatasetParser implements Runnable {
+    private class DatasetParser {
 
         private final DB _db;
         private final boolean _printToStdOut;
-        private final ConcurrentLinkedQueue<Dataset> _queue;
         private final SynchronizedWriter _out;
         private final StringSet _values;
         
         public DatasetParser(
                 DB db,
-                ConcurrentLinkedQueue<Dataset> queue,
                 StringSet values,
                 boolean printToStdOut,
                 SynchronizedWriter out
         ) {
             _db = db;
-            _queue = queue;
             _values = values;
             _printToStdOut = printToStdOut;
             _out = out;
         }
         
-        private void parse(Dataset dataset) {
+        public void parse(Dataset dataset) {
 
             HashMap<String, StringSet> matches = new HashMap<>();
             
@@ -102,15 +96,6 @@ public class ColumnFinder extends CommandImpl implements Command {
                 }
             }
         }
-
-        @Override
-        public void run() {
-
-            Dataset dataset;
-            while ((dataset = _queue.poll()) != null) {
-                this.parse(dataset);
-            }
-        }
     }
     
     private static final Logger LOGGER = Logger
@@ -131,6 +116,7 @@ public class ColumnFinder extends CommandImpl implements Command {
         this.addParameter(Args.PARA_DATE, "Parse files downloaded on this date (default: last download date)");
         this.addParameter(Args.PARA_OUTPUT, "Output file (default: standard output)");
         this.addParameter(Args.PARA_THREADS);
+        this.addParameter(Args.PARA_VIRTUAL);
         this.addParameter(Args.PARA_VALUES, "Comma-separated list of query terms");
     }
 
@@ -139,24 +125,17 @@ public class ColumnFinder extends CommandImpl implements Command {
             DatasetQuery query,
             StringSet values,
             int threads,
+            boolean virtualThreads,
             SynchronizedWriter out,
             boolean printToStdOut
     ) throws java.io.IOException {
         
-        ConcurrentLinkedQueue<Dataset> datasets;
-        datasets = new ConcurrentLinkedQueue<>(db.getDatasets(query));
+        DatasetParser parser = new DatasetParser(db, values, printToStdOut, out);
         
-        ExecutorService es = Executors.newCachedThreadPool();
-        for (int iThread = 0; iThread < threads; iThread++) {
-            es.execute(
-                    new DatasetParser(db, datasets, values, printToStdOut, out)
-            );
-        }
-        es.shutdown();
-        try {
-            es.awaitTermination(7, TimeUnit.DAYS);
-        } catch (java.lang.InterruptedException ex) {
-            throw new RuntimeException(ex);
+        try (WorkerPool pool = new WorkerPool(threads, virtualThreads)) {
+            for (Dataset dataset : db.getDatasets(query)) {
+                pool.execute(() -> parser.parse(dataset));
+            }
         }
     }
     
@@ -188,6 +167,7 @@ public class ColumnFinder extends CommandImpl implements Command {
                     query,
                     args.getValues(),
                     args.getThreads(),
+                    args.getVirtual(),
                     writer,
                     printToStdOut
             );
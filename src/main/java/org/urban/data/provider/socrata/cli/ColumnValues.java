@@ -20,12 +20,18 @@ import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
 import org.urban.data.core.util.ValueCounter;
 import org.urban.data.core.util.ValueIndex;
+import org.urban.data.provider.socrata.SocrataHelper;
 import org.urban.data.provider.socrata.db.DB;
 import org.urban.data.provider.socrata.db.Dataset;
 
 /**
  * List value and frequency for the distinct terms in a dataset column.
  * 
+ * The column is given by its position or by its name. Dataset files in SODA
+ * layout (see DB.layout) have field names in their header. For these files
+ * the field name is derived from the given column name if the name itself is
+ * not found.
+ * 
  * @author Heiko Mueller <heiko.mueller@nyu.edu>
  */
 public class ColumnValues extends CommandImpl implements Command {
@@ -59,16 +65,24 @@ public class ColumnValues extends CommandImpl implements Command {
 
         for (Dataset dataset : db.getSnapshot(args.asQuery())) {
             try (CSVParser in = db.open(dataset)) {
-                if (columnIndex == -1) {
-                    if (in.getHeaderMap().containsKey(columnPara)) {
-                        columnIndex = in.getHeaderMap().get(columnPara);
+                // The position of a named column is resolved for each
+                // dataset file since files may differ in their layout.
+                int index = columnIndex;
+                if (index == -1) {
+                    String name = columnPara;
+                    if ((!in.getHeaderMap().containsKey(name))
+                            && (DB.layout(dataset).equals(DB.LAYOUT_SODA))) {
+                        name = SocrataHelper.fieldName(name);
+                    }
+                    if (in.getHeaderMap().containsKey(name)) {
+                        index = in.getHeaderMap().get(name);
                     } else {
                         continue;
                     }
                 }
                 ValueIndex values = new ValueIndex();
                 for (CSVRecord record : in) {
-                    values.add(record.get(columnIndex));
+                    values.add(record.get(index));
                 }
                 List<ValueCounter> valueList;
                 if (args.getOrderBy().equalsIgnoreCase(Args.ORDER_BY_COUNT)) {
@@ -50,6 +50,8 @@ public abstract class CommandImpl implements Command {
         if (text == null) {
             if (name.equals(Args.PARA_COLUMN)) {
                 _parameters.put(name, "Column name or index");
+            } else if (name.equals(Args.PARA_CONNECTTIMEOUT)) {
+                _parameters.put(name, "Connect timeout in seconds (default: 30)");
             } else if (name.equals(Args.PARA_DATE)) {
                 _parameters.put(name, "Download date");
             } else if (name.equals(Args.PARA_DATASET)) {
@@ -58,24 +60,62 @@ public abstract class CommandImpl implements Command {
                 _parameters.put(name, "Unique domain name");
             } else if (name.equals(Args.PARA_EXISTING)) {
                 _parameters.put(name, "Include downloaded datasets only");
+            } else if (name.equals(Args.PARA_FROM)) {
+                _parameters.put(name, "Catalog date to compare from");
+            } else if (name.equals(Args.PARA_HEDGE)) {
+                _parameters.put(name, "Hedge page requests slower than the given latency percentile");
+            } else if (name.equals(Args.PARA_HEDGEBUDGET)) {
+                _parameters.put(name, "Max. fraction of hedged requests (default: 0.05)");
             } else if (name.equals(Args.PARA_HTML)) {
                 _parameters.put(name, "Delete (potential) HTML files");
+            } else if (name.equals(Args.PARA_INCREMENTAL)) {
+                _parameters.put(name, "Download only new and modified rows via the SODA API (default: false)");
+            } else if (name.equals(Args.PARA_LEASE)) {
+                _parameters.put(name, "Lease time in seconds for multi-node downloads (default: 300)");
+            } else if (name.equals(Args.PARA_LIMIT)) {
+                _parameters.put(name, "Maximum number of results (default: 20)");
+            } else if (name.equals(Args.PARA_MINRATE)) {
+                _parameters.put(name, "Min. transfer rate in bytes/sec, 0 to disable (default: 1024)");
+            } else if (name.equals(Args.PARA_NODE)) {
+                _parameters.put(name, "Node name for multi-node downloads over a shared archive");
             } else if (name.equals(Args.PARA_ORDERBY)) {
                 _parameters.put(name, "Order by value of count");
             } else if (name.equals(Args.PARA_OUTPUT)) {
                 _parameters.put(name, "Output file");
             } else if (name.equals(Args.PARA_OVERWRITE)) {
                 _parameters.put(name, "Overwrite existing file");
+            } else if (name.equals(Args.PARA_PORT)) {
+                _parameters.put(name, "Port on which the replica server listens");
+            } else if (name.equals(Args.PARA_PROFILE)) {
+                _parameters.put(name, "Download profile with $select and $where clauses per dataset (default: none)");
+            } else if (name.equals(Args.PARA_QUERY)) {
+                _parameters.put(name, "Search terms");
+            } else if (name.equals(Args.PARA_READTIMEOUT)) {
+                _parameters.put(name, "Read timeout in seconds (default: 600)");
             } else if (name.equals(Args.PARA_REPORT)) {
                 _parameters.put(name, "Print actions but do not execute");
+            } else if (name.equals(Args.PARA_RETRIES)) {
+                _parameters.put(name, "Number of retries for failed downloads (default: 2)");
             } else if (name.equals(Args.PARA_REVERSE)) {
                 _parameters.put(name, "Reverse default output order");
+            } else if (name.equals(Args.PARA_SAMPLE)) {
+                _parameters.put(name, "Fraction of documents to sample, between 0 and 1 (default: 1)");
+            } else if (name.equals(Args.PARA_SHARDS)) {
+                _parameters.put(name, "Shard map file with the new placement of dataset files");
             } else if (name.equals(Args.PARA_STATS)) {
                 _parameters.put(name, "Only output statistics");
+            } else if (name.equals(Args.PARA_TARGET)) {
+                _parameters.put(name, "Replica directory or <host>:<port> of a replica server");
             } else if (name.equals(Args.PARA_THREADS)) {
                 _parameters.put(name, "Number of parallel threads used");
+            } else if (name.equals(Args.PARA_TO)) {
+                _parameters.put(name, "Catalog date to compare to (default: last download date)");
+            } else if (name.equals(Args.PARA_TRANSFERTIMEOUT)) {
+                _parameters.put(name, "Max. duration of a single transfer in seconds (default: 21600)");
             } else if (name.equals(Args.PARA_VALUES)) {
                 _parameters.put(name, "List of values");
+            } else if (name.equals(Args.PARA_VIRTUAL)) {
+                _parameters.put(name, "Run one virtual thread per dataset (Java 21+)");
             } else{
                 _parameters.put(name, "");
             }
@@ -21,8 +21,10 @@ import java.util.List;
 
 import org.urban.data.core.query.JQuery;
 import org.urban.data.core.query.JsonQuery;
+import org.urban.data.core.query.ResultStream;
 import org.urban.data.core.query.ResultTuple;
 import org.urban.data.core.query.SelectClause;
+import org.urban.data.provider.socrata.CatalogQuery;
 import org.urban.data.provider.socrata.db.DB;
 import org.urban.data.provider.socrata.db.Dataset;
 import org.urban.data.provider.socrata.db.DatasetQuery;
@@ -54,13 +56,12 @@ public class DatabaseSnapshot extends CommandImpl implements Command {
         String date = args.getDateDefaultLast();
 
         // Query the catalog to get all datasets.
-        JsonQuery stmt = new JsonQuery(db.catalogFile(date));
+        JsonQuery stmt = CatalogQuery.query(db.catalogFile(date));
         SelectClause select = new SelectClause()
                 .add("domain", new JQuery("/metadata/domain"))
                 .add("dataset", new JQuery("/resource/id"))
                 .add("name", new JQuery("/resource/name"))
                 .add("link", new JQuery("/permalink"));
-        List<ResultTuple> rs =  stmt.executeQuery(select, true);
 
         DatasetQuery query = args.asQuery();
         if (!args.hasDate()) {
@@ -74,29 +75,31 @@ public class DatabaseSnapshot extends CommandImpl implements Command {
         
         boolean statsOnly = args.getStatsOnly();
         
-        for (ResultTuple t : rs) {
-            String domainKey = t.getAsString("domain");
-            String dsId = t.getAsString("dataset");
-            if (!query.matchesAtOrBefore(new Dataset(dsId, domainKey, date))) {
-                continue;
-            }
-            Dataset ds = null;
-            if (datasets.containsKey(domainKey)) {
-                HashMap<String, Dataset> domain = datasets.get(domainKey);
-                if (domain.containsKey(dsId)) {
-                    ds = domain.get(dsId);
+        try (ResultStream rs = stmt.stream(select, true)) {
+            for (ResultTuple t : rs) {
+                String domainKey = t.getAsString("domain");
+                String dsId = t.getAsString("dataset");
+                if (!query.matchesAtOrBefore(new Dataset(dsId, domainKey, date))) {
+                    continue;
+                }
+                Dataset ds = null;
+                if (datasets.containsKey(domainKey)) {
+                    HashMap<String, Dataset> domain = datasets.get(domainKey);
+                    if (domain.containsKey(dsId)) {
+                        ds = domain.get(dsId);
+                    }
+                }
+                datasetCount++;
+                String lineSuffix;
+                if (ds != null) {
+                    lineSuffix = "true\t" + db.datasetFile(ds).getAbsolutePath();
+                } else {
+                    lineSuffix = "false\t" + t.get("link");
+                    missingDatasets++;
+                }
+                if (!statsOnly) {
+                    System.out.print(domainKey + "\t" + dsId + "\t" + t.get("name") + "\t" + lineSuffix);
                 }
-            }
-            datasetCount++;
-            String lineSuffix;
-            if (ds != null) {
-                lineSuffix = "true\t" + db.datasetFile(ds).getAbsolutePath();
-            } else {
-                lineSuffix = "false\t" + t.get("link");
-                missingDatasets++;
-            }
-            if (!statsOnly) {
-                System.out.print(domainKey + "\t" + dsId + "\t" + t.get("name") + "\t" + lineSuffix);
             }
         }
         System.out.println();
@@ -19,9 +19,11 @@ import java.io.PrintWriter;
 
 import org.urban.data.core.query.JQuery;
 import org.urban.data.core.query.JsonQuery;
+import org.urban.data.core.query.ResultStream;
 import org.urban.data.core.query.ResultTuple;
 import org.urban.data.core.query.SelectClause;
 import org.urban.data.core.util.FileSystem;
+import org.urban.data.provider.socrata.CatalogQuery;
 import org.urban.data.provider.socrata.db.DB;
 import org.urban.data.provider.socrata.db.Dataset;
 import org.urban.data.provider.socrata.db.DatasetQuery;
@@ -69,20 +71,22 @@ public class DatasetNames extends CommandImpl implements Command {
                 .domain(args.getDomain())
                 .dataset(args.getDataset());
         
-        JsonQuery con = new JsonQuery(db.catalogFile(date));
-        for (ResultTuple tuple : con.executeQuery(select, true)) {
-            Dataset dataset = new Dataset(
-                    tuple.getAsString("dataset"),
-                    tuple.getAsString("domain"),
-                    date
-            );
-            if (query.matches(dataset)) {
-                if (existingOnly) {
-                    if (!db.datasetFile(dataset).exists()) {
-                        continue;
+        JsonQuery con = CatalogQuery.query(db.catalogFile(date));
+        try (ResultStream rs = con.stream(select, true)) {
+            for (ResultTuple tuple : rs) {
+                Dataset dataset = new Dataset(
+                        tuple.getAsString("dataset"),
+                        tuple.getAsString("domain"),
+                        date
+                );
+                if (query.matches(dataset)) {
+                    if (existingOnly) {
+                        if (!db.datasetFile(dataset).exists()) {
+                            continue;
+                        }
                     }
+                    out.println(tuple.join("\t"));
                 }
-                out.println(tuple.join("\t"));
             }
         }
         
@@ -20,7 +20,9 @@ import org.urban.data.provider.socrata.db.DB;
 import org.urban.data.provider.socrata.db.Dataset;
 
 /**
- * Print the name of columns for a given dataset.
+ * Print the name of columns for a given dataset. Datasets whose files are in
+ * SODA layout (see DB.layout) are marked since their columns are listed by
+ * field name instead of display name.
  * 
  * @author Heiko Mueller <heiko.mueller@nyu.edu>
  */
@@ -44,7 +46,11 @@ public class DatasetSchema extends CommandImpl implements Command {
             if (count > 0) {
                 System.out.println();
             }
-            System.out.println(dataset);
+            if (DB.layout(dataset).equals(DB.LAYOUT_SODA)) {
+                System.out.println(dataset + " (SODA field names)");
+            } else {
+                System.out.println(dataset);
+            }
             try (CSVParser in = db.open(dataset)) {
                 int iColumn = 1;
                 for (String name : in.getHeaderNames()) {
@@ -21,11 +21,11 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 
+import org.urban.data.core.query.AggregateClause;
 import org.urban.data.core.query.JQuery;
 import org.urban.data.core.query.JsonQuery;
 import org.urban.data.core.query.ResultTuple;
-import org.urban.data.core.query.SelectClause;
-import org.urban.data.core.util.Counter;
+import org.urban.data.provider.socrata.CatalogQuery;
 import org.urban.data.provider.socrata.db.DB;
 
 /**
@@ -49,19 +49,21 @@ public class DomainNames extends CommandImpl implements Command {
         DB db = args.getDB();
         String date = args.getDateDefaultLast();
         
-        SelectClause select = new SelectClause()
-                .add("domain", new JQuery("/metadata/domain"));
+        AggregateClause clause = new AggregateClause()
+                .groupBy("domain", new JQuery("/metadata/domain"))
+                .count("datasets");
         
-        HashMap<String, Counter> domains = new HashMap<>();
+        HashMap<String, Integer> domains = new HashMap<>();
         
-        JsonQuery con = new JsonQuery(db.catalogFile(date));
-        for (ResultTuple tuple : con.executeQuery(select, true)) {
-        	String domain = tuple.getAsString("domain");
-        	if (domains.containsKey(domain)) {
-        		domains.get(domain).inc();
-        	} else {
-        		domains.put(domain, new Counter(1));
-        	}
+        JsonQuery con = CatalogQuery.query(db.catalogFile(date));
+        for (ResultTuple tuple : con.aggregate(clause)) {
+            // Ignore datasets that do not have a domain.
+            if (tuple.get("domain") != null) {
+                domains.put(
+                        tuple.getAsString("domain"),
+                        tuple.get("datasets").getAsInt()
+                );
+            }
         }
         
         List<String> domainNames = new ArrayList<>(domains.keySet());
@@ -72,7 +74,7 @@ public class DomainNames extends CommandImpl implements Command {
         
         int datasetCount = 0;
         for (String domain : domainNames) {
-        	int datasets = domains.get(domain).value();
+        	int datasets = domains.get(domain);
         	out.println(String.format("%s\t%d", domain, datasets));
         	datasetCount += datasets;
         }
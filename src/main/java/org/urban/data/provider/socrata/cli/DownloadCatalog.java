@@ -20,6 +20,7 @@ import java.io.IOException;
 import org.urban.data.core.util.FileSystem;
 import org.urban.data.provider.socrata.SocrataCatalog;
 import org.urban.data.provider.socrata.db.DB;
+import org.urban.data.provider.socrata.download.HedgedRequests;
 
 /**
  * Download the current Socrata dataset catalog.
@@ -32,6 +33,8 @@ public class DownloadCatalog extends CommandImpl implements Command {
 
         super("download catalog", "Download dataset catalog");
         this.addParameter(Args.PARA_OVERWRITE, "Overwrite existing catalog file (default: false)");
+        this.addParameter(Args.PARA_HEDGE);
+        this.addParameter(Args.PARA_HEDGEBUDGET);
     }
 
     @Override
@@ -47,7 +50,11 @@ public class DownloadCatalog extends CommandImpl implements Command {
         File catalogFile = db.catalogFile(date);
         if ((!catalogFile.exists()) || (overwrite)) {
             FileSystem.createParentFolder(catalogFile);
-            new SocrataCatalog(catalogFile).download("dataset");
+            HedgedRequests hedger = args.getHedger();
+            new SocrataCatalog(catalogFile, hedger).download("dataset");
+            if (hedger != null) {
+                System.out.println("HEDGING " + hedger);
+            }
         }
     }
 }
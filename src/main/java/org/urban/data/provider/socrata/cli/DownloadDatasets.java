@@ -15,33 +15,49 @@
  */
 package org.urban.data.provider.socrata.cli;
 
+import com.google.gson.JsonElement;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
-import org.apache.commons.io.IOUtils;
+import org.urban.data.core.query.JPredicate;
 import org.urban.data.core.query.JQuery;
 import org.urban.data.core.query.JsonQuery;
+import org.urban.data.core.query.ResultStream;
 import org.urban.data.core.query.ResultTuple;
 import org.urban.data.core.query.SelectClause;
 import org.urban.data.core.util.FileSystem;
+import org.urban.data.core.util.WorkerPool;
+import org.urban.data.provider.socrata.CatalogQuery;
 import org.urban.data.provider.socrata.SocrataCatalog;
 import org.urban.data.provider.socrata.db.DB;
 import org.urban.data.provider.socrata.db.DatabaseWriter;
 import org.urban.data.provider.socrata.db.Dataset;
-import org.urban.data.provider.socrata.db.DatasetQuery;
+import org.urban.data.provider.socrata.download.CircuitBreaker;
+import org.urban.data.provider.socrata.download.DownloadCoordinator;
+import org.urban.data.provider.socrata.download.FileDownloader;
+import org.urban.data.provider.socrata.download.HedgedRequests;
+import org.urban.data.provider.socrata.download.IncrementalDownloader;
+import org.urban.data.provider.socrata.download.ProjectedDownloader;
+import org.urban.data.provider.socrata.download.DownloadJob;
+import org.urban.data.provider.socrata.download.DownloadJournal;
+import org.urban.data.provider.socrata.download.DownloadMetrics;
+import org.urban.data.provider.socrata.download.DownloadProfile;
+import org.urban.data.provider.socrata.download.DownloadQueue;
+import org.urban.data.provider.socrata.download.DownloadSchedule;
+import org.urban.data.provider.socrata.download.RetryPolicy;
+import org.urban.data.provider.socrata.download.SizeEstimator;
+import org.urban.data.provider.socrata.download.TransferWatchdog;
 
 /**
  * Download all datasets from the Socrata API that have been modified since the
@@ -53,75 +69,235 @@ import org.urban.data.provider.socrata.db.DatasetQuery;
  * All files are downloaded into sub-folders under a base directory. The folders
  * are named by the dataset domain name.
  * 
+ * Several nodes that share the same archive can download datasets for the
+ * same date in parallel. Each node is given a unique name. Nodes claim leases
+ * on datasets before downloading them and write their results to separate
+ * database segments that are merged into the database file once all downloads
+ * have finished.
+ * 
+ * Downloads are scheduled largest-first based on the size of the previous
+ * download of each dataset (or an estimate based on the number of columns).
+ * Idle workers always take the largest remaining download. The predicted
+ * makespan of the schedule is reported together with the actual makespan.
+ * 
+ * Failed downloads are retried with exponential backoff. Requests for a domain
+ * are suspended for a while if downloads from that domain keep failing.
+ * 
+ * Transfers are monitored by a watchdog. Transfers that exceed the transfer
+ * deadline or whose transfer rate drops below the minimum are aborted and
+ * rescheduled like any other failed download. Stalled transfers are reported
+ * in the log.
+ * 
+ * The state of all download jobs is recorded in a journal. If a run is
+ * interrupted and the command is run again for the same date with the same
+ * parameters, only the jobs that were not finished in the previous run are
+ * resumed. Once all jobs are done or failed the journal is closed, and the
+ * next run for the date compiles a new list of changed datasets.
+ * 
+ * In incremental mode datasets are downloaded via the SODA API. Only rows that
+ * were added or modified since the last incremental download are requested and
+ * merged with the previous version of the dataset. The lineage of each download
+ * is recorded in the database.
+ * 
+ * A download profile restricts the columns and rows that are downloaded for
+ * individual datasets. These datasets are downloaded via the SODA API and the
+ * projection is recorded with the downloaded version in the database. A
+ * dataset is downloaded again if its projection in the profile differs from
+ * the projection of the last download.
+ * 
  * @author Heiko Mueller <heiko.mueller@nyu.edu>
  */
 public class DownloadDatasets extends CommandImpl implements Command {
     
     private static final Logger LOGGER = Logger
             .getLogger(DownloadDatasets.class.getName());
+    
+    private static final String RESOURCE_PATH = "/resource/";
+    
+    private DownloadMetrics _metrics = null;
 
-    private class DownloadTask implements Runnable {
+    private class DownloadTask {
 
-        private final ConcurrentLinkedQueue<ResultTuple> _datasets;
+        private final CircuitBreaker _breaker;
+        private final DownloadCoordinator _coordinator;
         private final DB _db;
-        private final String _date;
+        private final FileDownloader _downloader;
+        private final IncrementalDownloader _incremental;
+        private final ProjectedDownloader _projected;
+        private final DownloadJournal _journal;
+        private final DownloadMetrics _metrics;
+        private final DownloadQueue _queue;
+        private final RetryPolicy _retryPolicy;
+        private final DownloadSchedule _schedule;
         private final DatabaseWriter _writer;
         
         public DownloadTask(
-                ConcurrentLinkedQueue<ResultTuple> datasets,
+                DownloadQueue queue,
                 DB db,
-                String date,
-                DatabaseWriter writer
+                RetryPolicy retryPolicy,
+                CircuitBreaker breaker,
+                DatabaseWriter writer,
+                DownloadJournal journal,
+                DownloadMetrics metrics,
+                TransferWatchdog watchdog,
+                IncrementalDownloader incremental,
+                DownloadSchedule schedule,
+                DownloadCoordinator coordinator
         ) {
         
-            _datasets = datasets;
+            _queue = queue;
             _db = db;
-            _date = date;
+            _retryPolicy = retryPolicy;
+            _breaker = breaker;
             _writer = writer;
+            _journal = journal;
+            _metrics = metrics;
+            _downloader = new FileDownloader(journal, watchdog);
+            _incremental = incremental;
+            _projected = new ProjectedDownloader(watchdog);
+            _schedule = schedule;
+            _coordinator = coordinator;
         }
         
-        private void download(File outputFile, String url) throws java.io.IOException {
-
-            FileSystem.createParentFolder(outputFile);
+        /**
+         * Reschedule a failed job if it has attempts left. Otherwise, record
+         * the download as failed.
+         * 
+         * @param job
+         * @param minDelay 
+         */
+        private void fail(DownloadJob job, long minDelay) {
             
-            if (!outputFile.exists()) {
-                try (
-                        InputStream in = new URL(url).openStream();
-                        OutputStream out = FileSystem.openOutputFile(outputFile)
-                ) {
-                    IOUtils.copy(in, out);
-                }
-            }            
+            int attempts = job.fail();
+            if (_retryPolicy.retry(attempts)) {
+                long delay = Math.max(minDelay, _retryPolicy.delay(attempts));
+                LOGGER.log(
+                        Level.INFO,
+                        "RETRY {0} IN {1} ms",
+                        new Object[]{job.url(), delay}
+                );
+                _journal.pending(job);
+                _metrics.retry();
+                _queue.retry(job, delay);
+            } else {
+                this.finish(job, DB.DOWNLOAD_FAILED);
+            }
         }
-
-        @Override
-        public void run() {
-
-            ResultTuple tuple;
-            while ((tuple = _datasets.poll()) != null) {
-                String domain = tuple.getAsString("domain");
-                String dataset = tuple.getAsString("dataset");
-                String permalink = tuple.getAsString("link");
-                if (permalink.contains("/d/")) {
-                    String url = permalink.replace("/d/", "/api/views/");
-                    url += "/rows.tsv?accessType=DOWNLOAD";
-                    LOGGER.log(Level.INFO, url);
-                    String state;
+        
+        private void finish(DownloadJob job, String state) {
+            
+            // The job is marked as done even if recording the result fails.
+            // Otherwise, the queue would wait for the job forever.
+            try {
+                if ((_coordinator != null) && (!_coordinator.holds(job))) {
+                    // The lease was taken over by another node. The result is
+                    // recorded by that node.
+                    LOGGER.log(Level.WARNING, "LOST LEASE {0}", job.url());
+                    return;
+                }
+                if (state.equals(DB.DOWNLOAD_FAILED)) {
+                    _metrics.failure();
+                }
+                DownloadDatasets.finish(job, state, _writer, _journal);
+                if (_coordinator != null) {
                     try {
-                        File file = _db.datasetFile(dataset, domain, _date);
-                        this.download(file, url);
-                        state = DB.DOWNLOAD_SUCCESS;
+                        _coordinator.finish(job, state);
                     } catch (java.io.IOException ex) {
-                        LOGGER.log(Level.SEVERE, url, ex);
-                        state = DB.DOWNLOAD_FAILED;
+                        LOGGER.log(Level.SEVERE, job.url(), ex);
                     }
-                    _writer.write(new Dataset(dataset, domain, _date, state));
+                }
+            } finally {
+                _queue.done(job);
+            }
+        }
+
+        public void run(DownloadJob job) {
+            
+            String domain = job.domain();
+            if (!_breaker.allowRequest(domain)) {
+                // Do not send requests to a domain that has been failing
+                // repeatedly. The job is rescheduled for when the domain is
+                // probed again. Jobs that are held back by the circuit do not
+                // use up any of their retry attempts.
+                LOGGER.log(Level.INFO, "CIRCUIT OPEN {0}", job.url());
+                _queue.retry(job, _breaker.retryDelay(domain));
+                return;
+            }
+            if (_coordinator != null) {
+                DownloadCoordinator.Claim claim;
+                try {
+                    claim = _coordinator.claim(job);
+                } catch (java.io.IOException ex) {
+                    LOGGER.log(Level.SEVERE, job.url(), ex);
+                    _breaker.release(domain);
+                    this.fail(job, 0);
+                    return;
+                }
+                if (claim != DownloadCoordinator.Claim.ACQUIRED) {
+                    // No request is sent for the job by this node.
+                    _breaker.release(domain);
+                }
+                if (claim == DownloadCoordinator.Claim.FINISHED) {
+                    _journal.done(job);
+                    _queue.done(job);
+                    return;
+                } else if (claim == DownloadCoordinator.Claim.HELD) {
+                    // Check again later whether the other node has finished
+                    // the download or its lease has expired.
+                    _queue.retry(job, _coordinator.renewalInterval());
+                    return;
+                }
+            }
+            LOGGER.log(Level.INFO, job.url());
+            _journal.inFlight(job);
+            long start = System.currentTimeMillis();
+            String state;
+            try {
+                File outputFile = _db.datasetFile(job.dataset());
+                long bytes;
+                if (ProjectedDownloader.accepts(job)) {
+                    bytes = _projected.download(job, outputFile);
+                } else if (job.url().contains(RESOURCE_PATH)) {
+                    bytes = _incremental.download(job, outputFile);
                 } else {
-                    LOGGER.log(Level.WARNING, permalink);
+                    bytes = _downloader.download(job, outputFile);
+                }
+                long duration = System.currentTimeMillis() - start;
+                _metrics.success(bytes, duration);
+                if (bytes >= 0) {
+                    _schedule.finished(outputFile.length(), duration);
+                }
+                _breaker.success(domain);
+                state = DB.DOWNLOAD_SUCCESS;
+            } catch (java.io.IOException ex) {
+                LOGGER.log(Level.SEVERE, job.url(), ex);
+                if (_retryPolicy.isTransient(ex)) {
+                    _breaker.failure(domain);
+                    this.fail(job, 0);
+                    return;
+                }
+                // There is no need to try again. Only a missing file means
+                // that the server responded and the domain itself is alive.
+                // A host name that cannot be resolved counts against the
+                // domain.
+                if (ex instanceof java.net.UnknownHostException) {
+                    _breaker.failure(domain);
+                } else if (ex instanceof java.io.FileNotFoundException) {
+                    _breaker.success(domain);
+                } else {
+                    _breaker.release(domain);
                 }
+                state = DB.DOWNLOAD_FAILED;
+            } catch (RuntimeException ex) {
+                // Unexpected response content (or a bug in one of the
+                // downloaders). The job has to be finished in any case.
+                // Otherwise, the queue would wait for it forever.
+                LOGGER.log(Level.SEVERE, job.url(), ex);
+                _breaker.release(domain);
+                state = DB.DOWNLOAD_FAILED;
             }
+            this.finish(job, state);
         }
-        
     }
 
     public DownloadDatasets() {
@@ -131,99 +307,414 @@ public class DownloadDatasets extends CommandImpl implements Command {
         this.addParameter(Args.PARA_DATASET);
         this.addParameter(Args.PARA_DATE, "Date for catalog file (default: today)");
         this.addParameter(Args.PARA_CLEAN, "Clean-up 404 and HTML files (default: false)");
+        this.addParameter(Args.PARA_INCREMENTAL);
+        this.addParameter(Args.PARA_PROFILE);
+        this.addParameter(Args.PARA_NODE);
+        this.addParameter(Args.PARA_LEASE);
         this.addParameter(Args.PARA_THREADS);
+        this.addParameter(Args.PARA_RETRIES);
+        this.addParameter(Args.PARA_CONNECTTIMEOUT);
+        this.addParameter(Args.PARA_READTIMEOUT);
+        this.addParameter(Args.PARA_TRANSFERTIMEOUT);
+        this.addParameter(Args.PARA_MINRATE);
+        this.addParameter(Args.PARA_HEDGE);
+        this.addParameter(Args.PARA_HEDGEBUDGET);
+        this.addParameter(Args.PARA_VIRTUAL);
     }
 
-    @Override
-    public void run(Args args) throws IOException {
-        
-        DB db = args.getDB();
-        String date = args.getDateDefaultToday();
-        int threads = args.getThreads();
-        
-        // Configure the log file
-        File logFile = db.logFile(date);
-        FileSystem.createParentFolder(logFile);
-        FileHandler fh = new FileHandler(logFile.getAbsolutePath());
-        fh.setFormatter(new SimpleFormatter());
-        LOGGER.addHandler(fh);
-        LOGGER.setLevel(Level.INFO);
+    /**
+     * Query the catalog to get all datasets and their last modification date.
+     * Returns download jobs for all datasets that have changed since their
+     * last successful download or whose projection in the download profile
+     * has changed.
+     * 
+     * @param args
+     * @param db
+     * @param date
+     * @param profile
+     * @param estimator
+     * @return
+     * @throws java.io.IOException 
+     */
+    private List<DownloadJob> changedDatasets(
+            Args args,
+            DB db,
+            String date,
+            DownloadProfile profile,
+            SizeEstimator estimator
+    ) throws java.io.IOException {
         
         // Read the database file containing information about previously
         // downloaded files
         HashMap<String, HashMap<String, Dataset>> datasets = db.getIndex();
         
         // Download the current Socrata catalog
+        // The catalog is written to a temporary file first. Other nodes
+        // therefore never read an incomplete catalog file.
         File catalogFile = db.catalogFile(date);
         if (!catalogFile.exists()) {
             FileSystem.createParentFolder(catalogFile);
-            new SocrataCatalog(catalogFile).download("dataset");
+            String prefix = "tmp.";
+            if (args.getNode() != null) {
+                prefix += args.getNode() + ".";
+            }
+            File tmpFile = new File(
+                    catalogFile.getParentFile(),
+                    prefix + catalogFile.getName()
+            );
+            HedgedRequests hedger = args.getHedger();
+            new SocrataCatalog(tmpFile, hedger).download("dataset");
+            if (hedger != null) {
+                LOGGER.log(Level.INFO, "HEDGING {0}", hedger);
+            }
+            Files.move(
+                    tmpFile.toPath(),
+                    catalogFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE
+            );
         }
         
-        // Query the catalog to get all datasets and their last modification
-        // date. Compiles a list of tuples for datasets that need to be
-        // downloaded.
         SelectClause select = new SelectClause()
                 .add("domain", new JQuery("/metadata/domain"))
                 .add("dataset", new JQuery("/resource/id"))
                 .add("updatedAt", new JQuery("/resource/data_updated_at"))
-                .add("link", new JQuery("/permalink"));
+                .add("link", new JQuery("/permalink"))
+                .add("columns", new JQuery("/resource/columns_field_name"));
         
-        ConcurrentLinkedQueue<ResultTuple> downloads = new ConcurrentLinkedQueue<>();
+        List<DownloadJob> downloads = new ArrayList<>();
         
-        DatasetQuery query = args.asQuery();
+        // The column names are optional. All other values are required.
+        // Catalog entries for other domains or datasets are rejected while
+        // the catalog is read.
+        JsonQuery catalog = CatalogQuery.query(catalogFile)
+                .where(JPredicate.and(
+                        JPredicate.exists("/metadata/domain"),
+                        JPredicate.exists("/resource/id"),
+                        JPredicate.exists("/resource/data_updated_at"),
+                        JPredicate.exists("/permalink")
+                ));
+        if (args.getDomain() != null) {
+            catalog.where(JPredicate.eq("/metadata/domain", args.getDomain()));
+        }
+        if (args.getDataset() != null) {
+            catalog.where(JPredicate.eq("/resource/id", args.getDataset()));
+        }
         
-        List<ResultTuple> rs =  new JsonQuery(catalogFile).executeQuery(select, true);
-        for (ResultTuple tuple : rs) {
-            String domain = tuple.getAsString("domain");
-            String dataset = tuple.getAsString("dataset");
-            if (!query.matches(new Dataset(dataset, domain, date))) {
-                continue;
-            }
-            Date lastDownload = null;
-            if (datasets.containsKey(domain)) {
-                if (datasets.get(domain).containsKey(dataset)) {
-                    Dataset ds = datasets.get(domain).get(dataset);
-                    if (ds.successfulDownload()) {
-                        lastDownload = ds.getDate();
+        try (ResultStream rs = catalog.stream(select, false)) {
+            for (ResultTuple tuple : rs) {
+                String domain = tuple.getAsString("domain");
+                String dataset = tuple.getAsString("dataset");
+                JsonElement columns = tuple.get("columns");
+                if ((columns != null) && (columns.isJsonArray())) {
+                    estimator.add(domain, dataset, columns.getAsJsonArray().size());
+                }
+                DownloadProfile.Projection projection = null;
+                if (profile != null) {
+                    projection = profile.get(domain, dataset);
+                }
+                Date lastDownload = null;
+                if (datasets.containsKey(domain)) {
+                    if (datasets.get(domain).containsKey(dataset)) {
+                        Dataset ds = datasets.get(domain).get(dataset);
+                        // A projection is not a substitute for a full snapshot
+                        // (or a different projection) of the dataset.
+                        boolean sameProjection;
+                        if (projection != null) {
+                            sameProjection = projection.matches(ds);
+                        } else {
+                            sameProjection = !DownloadProfile.isProjection(ds);
+                        }
+                        if ((ds.successfulDownload()) && (sameProjection)) {
+                            lastDownload = ds.getDate();
+                        }
                     }
                 }
+                Date lastUpdate;
+                try {
+                    String dt = tuple.getAsString("updatedAt")
+                            .substring(0, tuple.getAsString("updatedAt").indexOf("T"))
+                            .replaceAll("-", "");
+                    lastUpdate = DB.DF.parse(dt);
+                } catch (java.text.ParseException ex) {
+                    LOGGER.log(Level.WARNING, tuple.getAsString("updatedAt"), ex);
+                    continue;
+                }
+                if ((lastDownload != null) && (!lastUpdate.after(lastDownload))) {
+                    continue;
+                }
+                String permalink = tuple.getAsString("link");
+                if (permalink.contains("/d/")) {
+                    String url;
+                    if ((args.getIncremental()) || (projection != null)) {
+                        url = permalink.replace("/d/", RESOURCE_PATH);
+                    } else {
+                        url = permalink.replace("/d/", "/api/views/");
+                        url += "/rows.tsv?accessType=DOWNLOAD";
+                    }
+                    DownloadJob job = new DownloadJob(
+                            new Dataset(dataset, domain, date),
+                            url
+                    );
+                    if (projection != null) {
+                        projection.setProperties(job);
+                    }
+                    downloads.add(job);
+                } else {
+                    LOGGER.log(Level.WARNING, permalink);
+                }
             }
-            Date lastUpdate;
-            try {
-                String dt = tuple.getAsString("updatedAt")
-                        .substring(0, tuple.getAsString("updatedAt").indexOf("T"))
-                        .replaceAll("-", "");
-                lastUpdate = DB.DF.parse(dt);
-            } catch (java.text.ParseException ex) {
-                LOGGER.log(Level.WARNING, tuple.getAsString("updatedAt"), ex);
-                continue;
-            }
-            if (lastDownload == null) {
-                downloads.add(tuple);
-            } else if (lastUpdate.after(lastDownload)) {
-                downloads.add(tuple);
+        
+        }
+        
+        for (DownloadJob job : downloads) {
+            job.setEstimatedSize(estimator.estimate(job));
+        }
+        
+        return downloads;
+    }
+    
+    /**
+     * Record the final state of a download job in the database and the
+     * download journal. For successful downloads the job properties are
+     * recorded with the dataset.
+     * 
+     * @param job
+     * @param state
+     * @param writer
+     * @param journal 
+     */
+    private static void finish(
+            DownloadJob job,
+            String state,
+            DatabaseWriter writer,
+            DownloadJournal journal
+    ) {
+        
+        Dataset dataset = job.dataset();
+        boolean success = state.equals(DB.DOWNLOAD_SUCCESS);
+        Map<String, String> properties = Collections.emptyMap();
+        if (success) {
+            properties = job.properties();
+        }
+        writer.write(
+                new Dataset(
+                        dataset.identifier(),
+                        dataset.domain(),
+                        dataset.downloadDate(),
+                        success,
+                        properties
+                )
+        );
+        if (success) {
+            journal.done(job);
+        } else {
+            journal.failed(job);
+        }
+    }
+    
+    /**
+     * Parameters that determine the list of jobs for a download run. A
+     * journal is only resumed by a run with the same parameters.
+     * 
+     * @param args
+     * @return 
+     */
+    private static String runParameters(Args args) {
+        
+        File profileFile = args.getProfileFile();
+        String profile = null;
+        if (profileFile != null) {
+            profile = profileFile.getAbsolutePath();
+        }
+        return "domain=" + args.getDomain()
+                + " dataset=" + args.getDataset()
+                + " incremental=" + args.getIncremental()
+                + " profile=" + profile;
+    }
+    
+    /**
+     * Statistics for the last download run. The result is null if the
+     * command has not been run yet.
+     * 
+     * @return 
+     */
+    public DownloadMetrics metrics() {
+        
+        return _metrics;
+    }
+    
+    @Override
+    public void run(Args args) throws IOException {
+        
+        DB db = args.getDB();
+        String date = args.getDateDefaultToday();
+        int threads = args.getThreads();
+        String node = args.getNode();
+        
+        // Configure the log file
+        File logFile;
+        if (node != null) {
+            logFile = db.logFile(date, node);
+        } else {
+            logFile = db.logFile(date);
+        }
+        FileSystem.createParentFolder(logFile);
+        FileHandler fh = new FileHandler(logFile.getAbsolutePath());
+        fh.setFormatter(new SimpleFormatter());
+        LOGGER.addHandler(fh);
+        LOGGER.setLevel(Level.INFO);
+        Logger.getLogger(TransferWatchdog.class.getName()).addHandler(fh);
+        Logger.getLogger(DownloadCoordinator.class.getName()).addHandler(fh);
+        
+        RetryPolicy retryPolicy = new RetryPolicy(args.getRetries() + 1);
+        CircuitBreaker breaker = new CircuitBreaker();
+        
+        // In a multi-node download every node maintains its own journal and
+        // database segment.
+        File journalFile;
+        File databaseFile = null;
+        DownloadCoordinator coordinator = null;
+        if (node != null) {
+            journalFile = db.journalFile(date, node);
+            databaseFile = db.segmentFile(date, node);
+            coordinator = new DownloadCoordinator(
+                    db,
+                    date,
+                    node,
+                    args.getLease() * 1000L
+            );
+        } else {
+            journalFile = db.journalFile(date);
+        }
+        String parameters = runParameters(args);
+        boolean resume = false;
+        if (journalFile.exists()) {
+            if (parameters.equals(DownloadJournal.parameters(journalFile))) {
+                resume = true;
+            } else {
+                // The interrupted run selected a different set of datasets.
+                // Its unfinished datasets are picked up from the catalog
+                // again if they are selected by this run.
+                LOGGER.log(Level.INFO, "IGNORE JOURNAL {0}", journalFile.getName());
             }
         }
         
-        LOGGER.log(Level.INFO, "DOWNLOAD {0} FILES", downloads.size());
-        LOGGER.log(Level.INFO, "START {0}", new Date());
+        DownloadProfile profile = args.getProfile();
+        SizeEstimator estimator = new SizeEstimator(db, date);
         
-        // Download all updated datasets
-        try (DatabaseWriter writer = db.writer()) {
-            ExecutorService es = Executors.newCachedThreadPool();
-            for (int iThread = 0; iThread < threads; iThread++) {
-                es.execute(new DownloadTask(downloads, db, date, writer));
+        // Compile the list of datasets that need to be downloaded from the
+        // catalog unless an interrupted download run is resumed. The journal
+        // is only created once the full list of jobs is known. A failure
+        // while downloading or querying the catalog therefore never leaves
+        // an incomplete journal behind.
+        List<DownloadJob> changed = null;
+        if (!resume) {
+            changed = this.changedDatasets(args, db, date, profile, estimator);
+            DownloadJournal.create(journalFile, parameters, changed);
+        }
+        
+        try (
+                DatabaseWriter writer = (databaseFile != null)
+                        ? new DatabaseWriter(databaseFile, true)
+                        : db.writer();
+                DownloadJournal journal = new DownloadJournal(journalFile);
+                TransferWatchdog watchdog = new TransferWatchdog(
+                        args.getConnectTimeout() * 1000,
+                        args.getReadTimeout() * 1000,
+                        args.getTransferTimeout() * 1000L,
+                        args.getMinRate()
+                )
+        ) {
+            // Resume an interrupted download run from the journal. Otherwise,
+            // schedule all datasets that have changed.
+            DownloadQueue downloads = new DownloadQueue();
+            List<DownloadJob> scheduled = new ArrayList<>();
+            if (resume) {
+                FileDownloader downloader = new FileDownloader();
+                List<DownloadJob> jobs = DownloadJournal.unfinished(journalFile);
+                LOGGER.log(Level.INFO, "RESUME {0} JOBS", jobs.size());
+                for (DownloadJob job : jobs) {
+                    // Projections are not recorded in the journal. They are
+                    // taken from the profile again.
+                    if ((profile != null) && (job.url().contains(RESOURCE_PATH))) {
+                        DownloadProfile.Projection projection = profile.get(job);
+                        if (projection != null) {
+                            projection.setProperties(job);
+                        }
+                    }
+                    // Files for jobs that were in-flight may be complete or
+                    // partially written. In a multi-node download the files
+                    // may belong to another node that holds the lease now.
+                    if (coordinator != null) {
+                        job.checkpoint(0, 0);
+                        job.setEstimatedSize(estimator.estimate(job));
+                        scheduled.add(job);
+                        downloads.add(job);
+                    } else if (downloader.verify(job, db.datasetFile(job.dataset()))) {
+                        finish(job, DB.DOWNLOAD_SUCCESS, writer, journal);
+                    } else {
+                        job.setEstimatedSize(estimator.estimate(job));
+                        scheduled.add(job);
+                        downloads.add(job);
+                    }
+                }
+            } else {
+                for (DownloadJob job : changed) {
+                    scheduled.add(job);
+                    downloads.add(job);
+                }
             }
-            es.shutdown();
-            try {
-                es.awaitTermination(7, TimeUnit.DAYS);
+
+            LOGGER.log(Level.INFO, "DOWNLOAD {0} FILES", downloads.size());
+            LOGGER.log(Level.INFO, "START {0}", new Date());
+            _metrics = new DownloadMetrics();
+            DownloadSchedule schedule = new DownloadSchedule(scheduled, threads);
+
+            // Download all updated datasets. Jobs are taken from the queue
+            // until all of them have finished (including retries).
+            DownloadTask task = new DownloadTask(
+                    downloads,
+                    db,
+                    retryPolicy,
+                    breaker,
+                    writer,
+                    journal,
+                    _metrics,
+                    watchdog,
+                    new IncrementalDownloader(db, date, watchdog),
+                    schedule,
+                    coordinator
+            );
+            try (WorkerPool pool = new WorkerPool(threads, args.getVirtual())) {
+                DownloadJob job;
+                while ((job = downloads.take()) != null) {
+                    final DownloadJob next = job;
+                    pool.execute(() -> task.run(next));
+                }
             } catch (java.lang.InterruptedException ex) {
                 throw new RuntimeException(ex);
             }
+            LOGGER.log(Level.INFO, "SCHEDULE {0}", schedule.report(_metrics.elapsed()));
+            if ((coordinator != null) && (!coordinator.merge())) {
+                LOGGER.log(Level.INFO, "SEGMENTS NOT MERGED BY THIS NODE");
+            }
+        } finally {
+            // Stop renewing the leases of this node.
+            if (coordinator != null) {
+                coordinator.close();
+            }
+        }
+        
+        // Close the journal if all jobs have finished. Jobs whose lease was
+        // lost to another node are still unfinished. They are resumed (and
+        // found finished) by the next run.
+        if (!DownloadJournal.finish(journalFile)) {
+            LOGGER.log(Level.INFO, "JOURNAL HAS UNFINISHED JOBS");
         }
 
         LOGGER.log(Level.INFO, "DONE {0}", new Date());
+        LOGGER.log(Level.INFO, "STATS {0}", _metrics);
         
         // Run clean-up if flag is set.
         if (args.getClean()) {
@@ -19,12 +19,12 @@ import com.google.gson.JsonArray;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.List;
 import org.urban.data.core.query.JQuery;
-import org.urban.data.core.query.JsonQuery;
+import org.urban.data.core.query.ResultStream;
 import org.urban.data.core.query.ResultTuple;
 import org.urban.data.core.query.SelectClause;
 import org.urban.data.core.util.FileSystem;
+import org.urban.data.provider.socrata.CatalogQuery;
 import org.urban.data.provider.socrata.SocrataCatalog;
 import org.urban.data.provider.socrata.db.DB;
 import org.urban.data.provider.socrata.db.Dataset;
@@ -74,25 +74,26 @@ public class ExportColumnTypes extends CommandImpl implements Command {
         FileSystem.createParentFolder(outputFile);
         
         try (PrintWriter out = FileSystem.openPrintWriter(outputFile)) {
-            List<ResultTuple> rs =  new JsonQuery(catalogFile).executeQuery(select, true);
-            for (ResultTuple tuple : rs) {
-                String domain = tuple.get("domain").getAsString();
-                String dataset = tuple.get("dataset").getAsString();
-                if (!query.matches(new Dataset(dataset, domain, date))) {
-                    continue;
-                }
-                JsonArray names = tuple.get("names").getAsJsonArray();
-                JsonArray datatypes = tuple.get("datatypes").getAsJsonArray();
-                for (int iColumn = 0; iColumn < names.size(); iColumn++) {
-                    out.println(
-                            String.format(
-                                    "%s\t%s\t%s\t%s",
-                                    domain,
-                                    dataset,
-                                    names.get(iColumn).getAsString().replaceAll("\\s+", " ").trim(),
-                                    datatypes.get(iColumn).getAsString().replaceAll("\\s+", " ").trim().toLowerCase()
-                            )
-                    );
+            try (ResultStream rs = CatalogQuery.query(catalogFile).stream(select, true)) {
+                for (ResultTuple tuple : rs) {
+                    String domain = tuple.get("domain").getAsString();
+                    String dataset = tuple.get("dataset").getAsString();
+                    if (!query.matches(new Dataset(dataset, domain, date))) {
+                        continue;
+                    }
+                    JsonArray names = tuple.get("names").getAsJsonArray();
+                    JsonArray datatypes = tuple.get("datatypes").getAsJsonArray();
+                    for (int iColumn = 0; iColumn < names.size(); iColumn++) {
+                        out.println(
+                                String.format(
+                                        "%s\t%s\t%s\t%s",
+                                        domain,
+                                        dataset,
+                                        names.get(iColumn).getAsString().replaceAll("\\s+", " ").trim(),
+                                        datatypes.get(iColumn).getAsString().replaceAll("\\s+", " ").trim().toLowerCase()
+                                )
+                        );
+                    }
                 }
             }
         }
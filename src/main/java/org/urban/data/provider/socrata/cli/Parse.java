@@ -16,16 +16,13 @@
 package org.urban.data.provider.socrata.cli;
 
 import java.io.PrintWriter;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
 import org.urban.data.core.util.FileSystem;
 import org.urban.data.core.util.SynchronizedWriter;
+import org.urban.data.core.util.WorkerPool;
 import org.urban.data.provider.socrata.db.DB;
 import org.urban.data.provider.socrata.db.Dataset;
 import org.urban.data.provider.socrata.db.DatasetQuery;
@@ -47,27 +44,25 @@ import org.urban.data.provider.socrata.db.DatasetQuery;
  * 6) number of successful parsed rows
  * 
  * Expects a given date key as argument. Will parse all downloaded files for
- * the given date.
+ * the given date. If the archive is sharded the files are parsed in an order
+ * that spreads the reads across all volumes.
  * 
  * @author Heiko Mueller <heiko.mueller@nyu.edu>
  */
 public class Parse extends CommandImpl implements Command {
 
-    private class DatasetParser implements Runnable {
+    private class DatasetParser {
 
         private final DB _db;
         private final boolean _printToStdOut;
-        private final ConcurrentLinkedQueue<Dataset> _queue;
         private final SynchronizedWriter _out;
         
         public DatasetParser(
                 DB db,
-                ConcurrentLinkedQueue<Dataset> queue,
                 boolean printToStdOut,
                 SynchronizedWriter out
         ) {
             _db = db;
-            _queue = queue;
             _printToStdOut = printToStdOut;
             _out = out;
         }
@@ -97,22 +92,18 @@ public class Parse extends CommandImpl implements Command {
             return new int[]{Math.max(columnCount, 0), rowCount, validCount};
         }
 
-        @Override
-        public void run() {
+        public void run(Dataset dataset) {
 
-            Dataset dataset;
-            while ((dataset = _queue.poll()) != null) {
-                int[] stats = this.parse(dataset);
-                String line = dataset.domain() + "\t"
-                        + dataset.identifier() + "\t"
-                        + dataset.downloadDate() + "\t" 
-                        + stats[0] + "\t" 
-                        + stats[1] + "\t" 
-                        + stats[2];
-                _out.write(line);
-                if (_printToStdOut) {
-                    System.out.println(line);
-                }
+            int[] stats = this.parse(dataset);
+            String line = dataset.domain() + "\t"
+                    + dataset.identifier() + "\t"
+                    + dataset.downloadDate() + "\t" 
+                    + stats[0] + "\t" 
+                    + stats[1] + "\t" 
+                    + stats[2];
+            _out.write(line);
+            if (_printToStdOut) {
+                System.out.println(line);
             }
         }
     }
@@ -136,6 +127,7 @@ public class Parse extends CommandImpl implements Command {
         this.addParameter(Args.PARA_DATE, "Stats for files downloaded on this date (default: today)");
         this.addParameter(Args.PARA_OUTPUT, "Output file (default: standard output)");
         this.addParameter(Args.PARA_THREADS);
+        this.addParameter(Args.PARA_VIRTUAL);
     }
 
     @Override
@@ -148,22 +140,17 @@ public class Parse extends CommandImpl implements Command {
             DB db,
             DatasetQuery query,
             int threads,
+            boolean virtualThreads,
             SynchronizedWriter out,
             boolean printToStdOut
     ) throws java.io.IOException {
         
-        ConcurrentLinkedQueue<Dataset> datasets;
-        datasets = new ConcurrentLinkedQueue<>(db.getDatasets(query));
+        DatasetParser parser = new DatasetParser(db, printToStdOut, out);
         
-        ExecutorService es = Executors.newCachedThreadPool();
-        for (int iThread = 0; iThread < threads; iThread++) {
-            es.execute(new DatasetParser(db, datasets, printToStdOut, out));
-        }
-        es.shutdown();
-        try {
-            es.awaitTermination(7, TimeUnit.DAYS);
-        } catch (java.lang.InterruptedException ex) {
-            throw new RuntimeException(ex);
+        try (WorkerPool pool = new WorkerPool(threads, virtualThreads)) {
+            for (Dataset dataset : db.interleave(db.getDatasets(query))) {
+                pool.execute(() -> parser.run(dataset));
+            }
         }
     }
     
@@ -184,6 +171,7 @@ public class Parse extends CommandImpl implements Command {
                    args.getDB(),
                     args.asQuery(),
                     args.getThreads(),
+                    args.getVirtual(),
                     writer,
                     printToStdOut
             );
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.provider.socrata.cli;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.urban.data.core.util.FileSystem;
+import org.urban.data.core.util.WorkerPool;
+import org.urban.data.provider.socrata.db.ArchiveManifest;
+import org.urban.data.provider.socrata.db.DB;
+import org.urban.data.provider.socrata.db.ShardMap;
+
+/**
+ * Move dataset files to the volumes that are defined in a new shard map. The
+ * archive remains usable while files are being moved:
+ * 
+ * 1) All files whose volume changes are copied to their new volume. Files
+ *    are written to a temporary file first that is then renamed.
+ * 2) The new shard map replaces the shard map of the archive.
+ * 3) The files on the old volumes are deleted.
+ * 
+ * Readers find every file at its old location until the shard map has been
+ * replaced. Readers that still use the old shard map afterwards reload the
+ * map when they do not find a file. Files that are added to the old volumes
+ * while the archive is rebalanced are found on any volume and are moved when
+ * the command is run again.
+ * 
+ * If any file cannot be copied the shard map is not replaced and no file is
+ * deleted. The command fails and can be run again.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class Rebalance extends CommandImpl implements Command {
+    
+    private static final Logger LOGGER = Logger
+            .getLogger(Rebalance.class.getName());
+    
+    public Rebalance() {
+
+        super("rebalance", "Move dataset files to the volumes in a new shard map");
+        this.addParameter(Args.PARA_SHARDS);
+        this.addParameter(Args.PARA_THREADS);
+        this.addParameter(Args.PARA_VIRTUAL);
+    }
+
+    /**
+     * Copy a file to its new location.
+     * 
+     * @param source
+     * @param target
+     * @throws java.io.IOException 
+     */
+    private void copy(File source, File target) throws java.io.IOException {
+        
+        FileSystem.createParentFolder(target);
+        File tmpFile = new File(target.getParentFile(), "tmp." + target.getName());
+        Files.copy(
+                source.toPath(),
+                tmpFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.COPY_ATTRIBUTES
+        );
+        Files.move(
+                tmpFile.toPath(),
+                target.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE
+        );
+    }
+    
+    /**
+     * Test if two files have the same content. Files are compared by their
+     * length first and by their hash only if the lengths are equal.
+     * 
+     * @param file1
+     * @param file2
+     * @return
+     * @throws java.io.IOException 
+     */
+    private static boolean isCopy(File file1, File file2) throws java.io.IOException {
+        
+        long size = file1.length();
+        if (size != file2.length()) {
+            return false;
+        }
+        return ArchiveManifest.hash(file1, size).equals(ArchiveManifest.hash(file2, size));
+    }
+    
+    private static boolean isSameFile(File file1, File file2) {
+        
+        return file1.getAbsoluteFile().toPath().normalize().equals(
+                file2.getAbsoluteFile().toPath().normalize()
+        );
+    }
+    
+    @Override
+    public void run(Args args) throws java.io.IOException {
+        
+        DB db = args.getDB();
+        
+        File mapFile = args.getShards();
+        if (mapFile == null) {
+            throw new IllegalArgumentException("Missing shard map");
+        }
+        ShardMap target = new ShardMap(db.baseDir(), mapFile);
+        
+        // Files may be located on any volume of the current or the new map
+        LinkedHashSet<File> volumes = new LinkedHashSet<>(db.shards().volumes());
+        volumes.addAll(target.volumes());
+        
+        List<File> moved = Collections.synchronizedList(new ArrayList<>());
+        AtomicLong bytes = new AtomicLong(0);
+        AtomicInteger failed = new AtomicInteger(0);
+        try (WorkerPool pool = new WorkerPool(args.getThreads(), args.getVirtual())) {
+            for (String path : db.archiveFiles()) {
+                if (!path.contains("/tsv/")) {
+                    continue;
+                }
+                pool.execute(() -> {
+                    File dest = target.file(path);
+                    for (File volume : volumes) {
+                        File source = FileSystem.joinPath(volume, path.split("/"));
+                        if ((!source.exists()) || (isSameFile(source, dest))) {
+                            continue;
+                        }
+                        try {
+                            // A file at the destination may be left over
+                            // from an interrupted run or may be a different
+                            // version of the file. The source is only deleted
+                            // once the destination is known to be a copy.
+                            if ((!dest.exists()) || (!isCopy(source, dest))) {
+                                this.copy(source, dest);
+                                bytes.addAndGet(source.length());
+                            }
+                            moved.add(source);
+                        } catch (java.io.IOException ex) {
+                            LOGGER.log(Level.SEVERE, path, ex);
+                            failed.incrementAndGet();
+                        }
+                    }
+                });
+            }
+        }
+        
+        // The shard map is only replaced if all files are at their new
+        // location. Otherwise, readers would no longer find the files that
+        // could not be copied. Files that were copied are skipped when the
+        // command is run again.
+        if (failed.get() > 0) {
+            throw new java.io.IOException(
+                    "Failed to copy " + failed.get() + " files. Shard map not replaced"
+            );
+        }
+        
+        // Replace the shard map of the archive
+        File archiveMap = new File(db.baseDir(), ShardMap.FILENAME);
+        if (!archiveMap.getCanonicalFile().equals(mapFile.getCanonicalFile())) {
+            File tmpFile = new File(db.baseDir(), "tmp." + ShardMap.FILENAME);
+            Files.copy(
+                    mapFile.toPath(),
+                    tmpFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING
+            );
+            Files.move(
+                    tmpFile.toPath(),
+                    archiveMap.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE
+            );
+        }
+        
+        for (File file : moved) {
+            file.delete();
+        }
+        
+        System.out.println(
+                "Moved " + moved.size() + " files (" +
+                FileSystem.humanReadableByteCount(bytes.get()) + ")"
+        );
+    }
+}
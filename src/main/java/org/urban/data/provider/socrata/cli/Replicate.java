@@ -0,0 +1,72 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.provider.socrata.cli;
+
+import java.io.File;
+import org.urban.data.core.util.FileSystem;
+import org.urban.data.provider.socrata.db.ArchiveReplica;
+import org.urban.data.provider.socrata.db.ArchiveReplicator;
+import org.urban.data.provider.socrata.db.DB;
+
+/**
+ * Replicate the archive to a standby copy. The target is either a local
+ * directory or a replica server (given as host:port). If a port is given
+ * instead of a target the command runs a replica server for the archive in
+ * the base directory.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class Replicate extends CommandImpl implements Command {
+
+    public Replicate() {
+
+        super("replicate", "Replicate archive to a standby copy");
+        this.addParameter(Args.PARA_TARGET);
+        this.addParameter(Args.PARA_PORT);
+    }
+
+    @Override
+    public void run(Args args) throws java.io.IOException {
+
+        DB db = args.getDB();
+        
+        String target = args.getTarget();
+        if (target == null) {
+            int port = args.getPort();
+            if (port < 0) {
+                throw new IllegalArgumentException("Missing target or port");
+            }
+            ArchiveReplicator.serve(db.baseDir(), port);
+            return;
+        }
+        
+        ArchiveReplicator replicator = new ArchiveReplicator(db);
+        int pos = target.lastIndexOf(':');
+        if ((pos > 0) && (!new File(target).isDirectory())) {
+            String host = target.substring(0, pos);
+            int port = Integer.parseInt(target.substring(pos + 1));
+            replicator.replicate(host, port);
+        } else {
+            try (ArchiveReplica replica = new ArchiveReplica(new File(target))) {
+                replicator.replicate(replica);
+            }
+        }
+        System.out.println(
+                "Replicated " + replicator.files() + " files (" +
+                FileSystem.humanReadableByteCount(replicator.bytes()) + ")"
+        );
+    }
+}
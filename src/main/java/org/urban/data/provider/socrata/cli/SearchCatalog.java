@@ -0,0 +1,93 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.provider.socrata.cli;
+
+import java.io.PrintWriter;
+import java.util.List;
+
+import org.urban.data.core.query.ResultTuple;
+import org.urban.data.core.query.TextIndex;
+import org.urban.data.core.util.FileSystem;
+import org.urban.data.provider.socrata.CatalogQuery;
+import org.urban.data.provider.socrata.db.DB;
+import org.urban.data.provider.socrata.db.Dataset;
+import org.urban.data.provider.socrata.db.DatasetQuery;
+
+/**
+ * Keyword search over the catalog metadata. Uses the full-text index for the
+ * catalog file (see CatalogQuery.index). Outputs domain, dataset identifier,
+ * name and score for the best matching datasets in order of decreasing score.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class SearchCatalog extends CommandImpl implements Command {
+   
+    public SearchCatalog() {
+
+        super(
+                "search",
+                "Search catalog for datasets",
+                "Ranks datasets by matches of the search terms in names,\n" +
+                "descriptions, tags, categories and column names. The index\n" +
+                "for the catalog file is built by the first search."
+        );
+        this.addParameter(Args.PARA_QUERY);
+        this.addParameter(Args.PARA_DOMAIN);
+        this.addParameter(Args.PARA_DATASET);
+        this.addParameter(Args.PARA_DATE, "Date for catalog file (default: last download date)");
+        this.addParameter(Args.PARA_LIMIT);
+        this.addParameter(Args.PARA_OUTPUT, "Output file (default: standard output)");
+    }
+
+    @Override
+    public void run(Args args) throws java.io.IOException {
+        
+        if (!args.hasQuery()) {
+            throw new IllegalArgumentException("Search terms are missing");
+        }
+        
+        DB db = args.getDB();
+        String date = args.getDateDefaultLast();
+        
+        DatasetQuery query = new DatasetQuery()
+                .domain(args.getDomain())
+                .dataset(args.getDataset());
+        
+        TextIndex index = CatalogQuery.index(db.catalogFile(date));
+        List<ResultTuple> result = index.search(
+                args.getQuery(),
+                args.getLimit(),
+                (ResultTuple tuple) -> query.matches(
+                        new Dataset(
+                                tuple.getAsString("dataset"),
+                                tuple.getAsString("domain"),
+                                date
+                        )
+                )
+        );
+        
+        PrintWriter out;
+        if (args.hasOutput()) {
+            out = FileSystem.openPrintWriter(args.getOutput());
+        } else {
+            out = new PrintWriter(System.out);
+        }
+        for (ResultTuple tuple : result) {
+            out.println(tuple.join("\t"));
+        }
+        out.close();
+    }
+}
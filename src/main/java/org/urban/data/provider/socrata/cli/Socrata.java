@@ -23,18 +23,38 @@ import java.util.logging.Logger;
 import static org.urban.data.provider.socrata.cli.Args.PARA_BASEDIR;
 import static org.urban.data.provider.socrata.cli.Args.PARA_CLEAN;
 import static org.urban.data.provider.socrata.cli.Args.PARA_COLUMN;
+import static org.urban.data.provider.socrata.cli.Args.PARA_CONNECTTIMEOUT;
 import static org.urban.data.provider.socrata.cli.Args.PARA_DATASET;
 import static org.urban.data.provider.socrata.cli.Args.PARA_DATE;
 import static org.urban.data.provider.socrata.cli.Args.PARA_DOMAIN;
 import static org.urban.data.provider.socrata.cli.Args.PARA_EXISTING;
+import static org.urban.data.provider.socrata.cli.Args.PARA_FROM;
+import static org.urban.data.provider.socrata.cli.Args.PARA_HEDGE;
+import static org.urban.data.provider.socrata.cli.Args.PARA_HEDGEBUDGET;
 import static org.urban.data.provider.socrata.cli.Args.PARA_HTML;
+import static org.urban.data.provider.socrata.cli.Args.PARA_INCREMENTAL;
+import static org.urban.data.provider.socrata.cli.Args.PARA_LEASE;
+import static org.urban.data.provider.socrata.cli.Args.PARA_LIMIT;
+import static org.urban.data.provider.socrata.cli.Args.PARA_MINRATE;
+import static org.urban.data.provider.socrata.cli.Args.PARA_NODE;
 import static org.urban.data.provider.socrata.cli.Args.PARA_ORDERBY;
 import static org.urban.data.provider.socrata.cli.Args.PARA_OUTPUT;
 import static org.urban.data.provider.socrata.cli.Args.PARA_OVERWRITE;
+import static org.urban.data.provider.socrata.cli.Args.PARA_PORT;
+import static org.urban.data.provider.socrata.cli.Args.PARA_PROFILE;
+import static org.urban.data.provider.socrata.cli.Args.PARA_QUERY;
+import static org.urban.data.provider.socrata.cli.Args.PARA_READTIMEOUT;
 import static org.urban.data.provider.socrata.cli.Args.PARA_REPORT;
+import static org.urban.data.provider.socrata.cli.Args.PARA_RETRIES;
 import static org.urban.data.provider.socrata.cli.Args.PARA_REVERSE;
+import static org.urban.data.provider.socrata.cli.Args.PARA_SAMPLE;
+import static org.urban.data.provider.socrata.cli.Args.PARA_SHARDS;
 import static org.urban.data.provider.socrata.cli.Args.PARA_STATS;
+import static org.urban.data.provider.socrata.cli.Args.PARA_TARGET;
 import static org.urban.data.provider.socrata.cli.Args.PARA_THREADS;
+import static org.urban.data.provider.socrata.cli.Args.PARA_TO;
+import static org.urban.data.provider.socrata.cli.Args.PARA_TRANSFERTIMEOUT;
+import static org.urban.data.provider.socrata.cli.Args.PARA_VIRTUAL;
 
 /**
  * Socrata command line interface.
@@ -44,6 +64,9 @@ import static org.urban.data.provider.socrata.cli.Args.PARA_THREADS;
 public class Socrata {
     
     private static final Command[] COMMANDS = {
+        new CatalogChanges(),
+        new CatalogSchema(),
+        new CatalogTimeline(),
         new Clean(),
         new ColumnFinder(),
         new ColumnValues(),
@@ -57,7 +80,10 @@ public class Socrata {
         new DatasetSchema(),
         new DatabaseSnapshot(),
         new ExportColumnTypes(),
-        new Parse()
+        new Parse(),
+        new Rebalance(),
+        new Replicate(),
+        new SearchCatalog()
     };
 
     private static final Logger LOGGER = Logger
@@ -71,14 +97,34 @@ public class Socrata {
         PARA_DATE,
         PARA_COLUMN,
         PARA_OUTPUT,
+        PARA_CONNECTTIMEOUT,
         PARA_EXISTING,
+        PARA_FROM,
+        PARA_HEDGE,
+        PARA_HEDGEBUDGET,
         PARA_HTML,
+        PARA_INCREMENTAL,
+        PARA_LEASE,
+        PARA_LIMIT,
+        PARA_MINRATE,
+        PARA_NODE,
         PARA_ORDERBY,
         PARA_OVERWRITE,
+        PARA_PORT,
+        PARA_PROFILE,
+        PARA_QUERY,
+        PARA_READTIMEOUT,
         PARA_REPORT,
+        PARA_RETRIES,
         PARA_REVERSE,
+        PARA_SAMPLE,
+        PARA_SHARDS,
         PARA_STATS,
-        PARA_THREADS
+        PARA_TARGET,
+        PARA_THREADS,
+        PARA_TO,
+        PARA_TRANSFERTIMEOUT,
+        PARA_VIRTUAL
     };
     
     private static final String VERSION = "0.1.9";
@@ -191,6 +237,9 @@ public class Socrata {
         } catch (java.io.IOException ex) {
             LOGGER.log(Level.SEVERE, "RUN", ex);
             System.exit(-1);
-        }        
+        } catch (java.io.UncheckedIOException ex) {
+            LOGGER.log(Level.SEVERE, "RUN", ex.getCause());
+            System.exit(-1);
+        }
     }
 }
@@ -0,0 +1,335 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.provider.socrata.db;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import org.urban.data.core.util.FileSystem;
+
+/**
+ * Content hashes for the files in an archive. The manifest is maintained in a
+ * tab-delimited file in the archive base directory with the relative path,
+ * size, last modification time, and SHA-1 hash of each file.
+ * 
+ * Dataset and catalog files are never modified once they have been written.
+ * Their hashes are therefore computed only once. Files that may change (i.e.,
+ * the database file) are hashed again if their size or modification time
+ * changes.
+ * 
+ * Files are grouped by the directory that contains them. The digest of a
+ * group is the hash over the sorted entries of all files in the group. Two
+ * archives contain the same versions of the files in a group if the group
+ * digests are equal.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class ArchiveManifest {
+    
+    public static final String FILENAME = ".manifest.tsv";
+    
+    /**
+     * Manifest entry for a single file.
+     */
+    public static class Entry {
+        
+        private final String _hash;
+        private final long _modified;
+        private final String _path;
+        private final long _size;
+        
+        public Entry(String path, long size, long modified, String hash) {
+            
+            _path = path;
+            _size = size;
+            _modified = modified;
+            _hash = hash;
+        }
+        
+        /**
+         * Name of the group (directory) that contains the file.
+         * 
+         * @return 
+         */
+        public String group() {
+            
+            return ArchiveManifest.group(_path);
+        }
+        
+        public String hash() {
+            
+            return _hash;
+        }
+        
+        public long modified() {
+            
+            return _modified;
+        }
+        
+        public String path() {
+            
+            return _path;
+        }
+        
+        public long size() {
+            
+            return _size;
+        }
+    }
+    
+    private final File _baseDir;
+    private boolean _changed = false;
+    private final HashMap<String, Entry> _entries = new HashMap<>();
+    private final HashMap<String, List<Entry>> _groups = new HashMap<>();
+    
+    public ArchiveManifest(File baseDir) throws java.io.IOException {
+        
+        _baseDir = baseDir;
+        
+        File file = this.file();
+        if (file.exists()) {
+            try (BufferedReader in = FileSystem.openReader(file)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] tokens = line.split("\t");
+                    if (tokens.length == 4) {
+                        this.add(
+                                new Entry(
+                                        tokens[0],
+                                        Long.parseLong(tokens[1]),
+                                        Long.parseLong(tokens[2]),
+                                        tokens[3]
+                                )
+                        );
+                    }
+                }
+            }
+        }
+    }
+    
+    private void add(Entry entry) {
+        
+        Entry previous = _entries.put(entry.path(), entry);
+        List<Entry> group = _groups.get(entry.group());
+        if (group == null) {
+            group = new ArrayList<>();
+            _groups.put(entry.group(), group);
+        } else if (previous != null) {
+            group.remove(previous);
+        }
+        group.add(entry);
+    }
+    
+    /**
+     * Digest for a group of files. The result is null if the manifest does
+     * not contain any file in the group.
+     * 
+     * @param group
+     * @return 
+     */
+    public String digest(String group) {
+        
+        List<Entry> entries = _groups.get(group);
+        if (entries == null) {
+            return null;
+        }
+        return digest(entries);
+    }
+    
+    /**
+     * Digest for a list of manifest entries. The digest does not depend on
+     * the order of entries in the list.
+     * 
+     * @param entries
+     * @return 
+     */
+    public static String digest(List<Entry> entries) {
+        
+        List<String> lines = new ArrayList<>();
+        for (Entry entry : entries) {
+            lines.add(entry.path() + "\t" + entry.size() + "\t" + entry.hash());
+        }
+        Collections.sort(lines);
+        MessageDigest digest = sha1();
+        for (String line : lines) {
+            digest.update(line.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte)'\n');
+        }
+        return hex(digest.digest());
+    }
+    
+    private File file() {
+        
+        return new File(_baseDir, FILENAME);
+    }
+    
+    /**
+     * Get the manifest entry for the file with the given relative path. The
+     * file is the location of the file in the archive. For
+     * files that are not in the manifest (or that may have been modified) the
+     * file is hashed and the manifest is updated. The result is null if the
+     * file does not exist.
+     * 
+     * @param path
+     * @param file
+     * @param mutable
+     * @return
+     * @throws java.io.IOException 
+     */
+    public Entry get(String path, File file, boolean mutable) throws java.io.IOException {
+        
+        Entry entry = _entries.get(path);
+        if ((entry != null) && (!mutable)) {
+            return entry;
+        }
+        if (!file.exists()) {
+            return null;
+        }
+        if ((entry != null) && (entry.size() == file.length()) && (entry.modified() == file.lastModified())) {
+            return entry;
+        }
+        // Files that may be modified are only appended to. The hash covers
+        // the content up to the recorded size.
+        long size = file.length();
+        long modified = file.lastModified();
+        entry = new Entry(path, size, modified, hash(file, size));
+        this.put(entry);
+        return entry;
+    }
+    
+    /**
+     * Get the cached manifest entry for the given path. Does not access the
+     * file. The result is null if the file is not in the manifest.
+     * 
+     * @param path
+     * @return 
+     */
+    public Entry getCached(String path) {
+        
+        return _entries.get(path);
+    }
+    
+    /**
+     * Group name for a relative file path.
+     * 
+     * @param path
+     * @return 
+     */
+    public static String group(String path) {
+        
+        int pos = path.lastIndexOf('/');
+        if (pos == -1) {
+            return "";
+        }
+        return path.substring(0, pos);
+    }
+    
+    /**
+     * Compute the SHA-1 hash for the first given number of bytes in a file.
+     * 
+     * @param file
+     * @param size
+     * @return
+     * @throws java.io.IOException 
+     */
+    public static String hash(File file, long size) throws java.io.IOException {
+        
+        MessageDigest digest = sha1();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            long remaining = size;
+            while (remaining > 0) {
+                int n = in.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+                if (n == -1) {
+                    throw new java.io.EOFException(file.getAbsolutePath());
+                }
+                digest.update(buffer, 0, n);
+                remaining -= n;
+            }
+        }
+        return hex(digest.digest());
+    }
+    
+    private static String hex(byte[] bytes) {
+        
+        StringBuilder buf = new StringBuilder();
+        for (byte b : bytes) {
+            buf.append(String.format("%02x", b));
+        }
+        return buf.toString();
+    }
+    
+    /**
+     * Add or replace the manifest entry for a file.
+     * 
+     * @param entry 
+     */
+    public void put(Entry entry) {
+        
+        this.add(entry);
+        _changed = true;
+    }
+    
+    /**
+     * Write the manifest file if it has been modified. The manifest is written
+     * to a temporary file first that then replaces the manifest file.
+     * 
+     * @throws java.io.IOException 
+     */
+    public void save() throws java.io.IOException {
+        
+        if (!_changed) {
+            return;
+        }
+        File file = this.file();
+        File tmpFile = new File(_baseDir, "tmp" + FILENAME);
+        try (PrintWriter out = FileSystem.openPrintWriter(tmpFile)) {
+            for (Entry entry : _entries.values()) {
+                out.println(
+                        entry.path() + "\t" +
+                        entry.size() + "\t" +
+                        entry.modified() + "\t" +
+                        entry.hash()
+                );
+            }
+        }
+        Files.move(
+                tmpFile.toPath(),
+                file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE
+        );
+        _changed = false;
+    }
+    
+    private static MessageDigest sha1() {
+        
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (java.security.NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.provider.socrata.db;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.urban.data.core.util.FileSystem;
+
+/**
+ * Standby copy of an archive. The replica maintains its own manifest with the
+ * hashes of all files that it received. The manifest is used to determine the
+ * files that are missing or outdated without accessing the files in the
+ * replica.
+ * 
+ * Received files are written to a temporary file first. The file is verified
+ * against its hash before it replaces the file in the replica.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class ArchiveReplica implements AutoCloseable {
+    
+    private final File _baseDir;
+    private long _bytes = 0;
+    private int _files = 0;
+    private final ArchiveManifest _manifest;
+    
+    public ArchiveReplica(File baseDir) throws java.io.IOException {
+        
+        FileSystem.createFolder(baseDir);
+        _baseDir = baseDir;
+        _manifest = new ArchiveManifest(baseDir);
+    }
+    
+    /**
+     * Number of bytes received.
+     * 
+     * @return 
+     */
+    public long bytes() {
+        
+        return _bytes;
+    }
+    
+    /**
+     * Get the groups whose digest in the replica differs from the given
+     * digest.
+     * 
+     * @param digests
+     * @return 
+     */
+    public List<String> changedGroups(Map<String, String> digests) {
+        
+        List<String> result = new ArrayList<>();
+        for (Map.Entry<String, String> group : digests.entrySet()) {
+            if (!group.getValue().equals(_manifest.digest(group.getKey()))) {
+                result.add(group.getKey());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void close() throws java.io.IOException {
+        
+        _manifest.save();
+    }
+    
+    /**
+     * Number of files received.
+     * 
+     * @return 
+     */
+    public int files() {
+        
+        return _files;
+    }
+    
+    /**
+     * Get the index positions of all entries in the given list for which the
+     * replica does not contain the same version of the file.
+     * 
+     * @param entries
+     * @return 
+     */
+    public List<Integer> missing(List<ArchiveManifest.Entry> entries) {
+        
+        List<Integer> result = new ArrayList<>();
+        for (int iEntry = 0; iEntry < entries.size(); iEntry++) {
+            ArchiveManifest.Entry entry = entries.get(iEntry);
+            ArchiveManifest.Entry local = _manifest.getCached(entry.path());
+            if ((local == null) || (!local.hash().equals(entry.hash()))) {
+                result.add(iEntry);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Receive the content of the file for the given manifest entry from a
+     * channel. Reads exactly the number of bytes in the entry.
+     * 
+     * @param entry
+     * @param in
+     * @throws java.io.IOException 
+     */
+    public void receive(
+            ArchiveManifest.Entry entry,
+            ReadableByteChannel in
+    ) throws java.io.IOException {
+        
+        for (String element : entry.path().split("/")) {
+            if ((element.isEmpty()) || (element.equals("..")) || (element.equals("."))) {
+                throw new java.io.IOException("invalid path " + entry.path());
+            }
+        }
+        
+        File file = new File(_baseDir, entry.path());
+        FileSystem.createParentFolder(file);
+        File tmpFile = new File(file.getParentFile(), "tmp." + file.getName());
+        try {
+            try (FileChannel out = FileChannel.open(
+                    tmpFile.toPath(),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING
+            )) {
+                long position = 0;
+                while (position < entry.size()) {
+                    long n = out.transferFrom(in, position, entry.size() - position);
+                    if (n <= 0) {
+                        throw new java.io.EOFException(entry.path());
+                    }
+                    position += n;
+                }
+            }
+            String hash = ArchiveManifest.hash(tmpFile, entry.size());
+            if (!hash.equals(entry.hash())) {
+                throw new java.io.IOException("hash mismatch for " + entry.path());
+            }
+            Files.move(
+                    tmpFile.toPath(),
+                    file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE
+            );
+        } finally {
+            tmpFile.delete();
+        }
+        
+        _manifest.put(
+                new ArchiveManifest.Entry(
+                        entry.path(),
+                        entry.size(),
+                        file.lastModified(),
+                        entry.hash()
+                )
+        );
+        _files++;
+        _bytes += entry.size();
+    }
+}
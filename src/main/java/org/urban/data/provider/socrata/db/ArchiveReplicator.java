@@ -0,0 +1,415 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.provider.socrata.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Replicate an archive to a standby copy. The files that need to be
+ * replicated are taken from the database index. Their hashes are maintained
+ * in the archive manifest. Only the files that the replica does not have in
+ * the same version are transferred. Files are never deleted in the replica.
+ * 
+ * The replica is either a local (e.g., mounted) directory or a replica server
+ * that is reachable via a socket. The exchange with a replica server consists
+ * of the following steps:
+ * 
+ * 1) Sender: digest for each group (directory) of files
+ * 2) Replica: list of groups with a different digest
+ * 3) Sender: manifest entries for all files in the changed groups
+ * 4) Replica: index positions of the entries that are missing
+ * 5) Sender: content of all missing files (in the order of the entries)
+ * 6) Replica: number of files that were stored
+ * 
+ * Messages are gzip-compressed and prefixed with their length. File contents
+ * are sent as they are using FileChannel.transferTo. The size of the manifest
+ * exchange is therefore proportional to the number of changed directories and
+ * not to the number of files in the archive. The database file is always
+ * transferred last so that the replica never references files that it does
+ * not contain.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class ArchiveReplicator {
+    
+    private static final Logger LOGGER = Logger
+            .getLogger(ArchiveReplicator.class.getName());
+    
+    private long _bytes = 0;
+    private final DB _db;
+    private int _files = 0;
+    private final ArchiveManifest _manifest;
+    
+    public ArchiveReplicator(DB db) throws java.io.IOException {
+        
+        _db = db;
+        _manifest = new ArchiveManifest(db.baseDir());
+    }
+    
+    /**
+     * Number of bytes that were transferred in the last replication.
+     * 
+     * @return 
+     */
+    public long bytes() {
+        
+        return _bytes;
+    }
+    
+    /**
+     * Digests for all groups in the given list of entries.
+     * 
+     * @param entries
+     * @return 
+     */
+    private static LinkedHashMap<String, String> digests(List<ArchiveManifest.Entry> entries) {
+        
+        LinkedHashMap<String, List<ArchiveManifest.Entry>> groups = new LinkedHashMap<>();
+        for (ArchiveManifest.Entry entry : entries) {
+            List<ArchiveManifest.Entry> group = groups.get(entry.group());
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(entry.group(), group);
+            }
+            group.add(entry);
+        }
+        LinkedHashMap<String, String> result = new LinkedHashMap<>();
+        for (String group : groups.keySet()) {
+            result.put(group, ArchiveManifest.digest(groups.get(group)));
+        }
+        return result;
+    }
+    
+    /**
+     * Manifest entries for all files in the archive. The database file is
+     * the last entry.
+     * 
+     * @return
+     * @throws java.io.IOException 
+     */
+    private List<ArchiveManifest.Entry> entries() throws java.io.IOException {
+        
+        List<ArchiveManifest.Entry> result = new ArrayList<>();
+        for (String path : _db.archiveFiles()) {
+            boolean mutable = path.equals(DB.DBFILE);
+            ArchiveManifest.Entry entry = _manifest.get(path, _db.file(path), mutable);
+            if (entry != null) {
+                result.add(entry);
+            } else {
+                LOGGER.log(Level.WARNING, "MISSING {0}", path);
+            }
+        }
+        _manifest.save();
+        return result;
+    }
+    
+    /**
+     * Number of files that were transferred in the last replication.
+     * 
+     * @return 
+     */
+    public int files() {
+        
+        return _files;
+    }
+    
+    private File file(ArchiveManifest.Entry entry) {
+        
+        return _db.file(entry.path());
+    }
+    
+    private static byte[] read(ReadableByteChannel in, int length) throws java.io.IOException {
+        
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) == -1) {
+                throw new java.io.EOFException();
+            }
+        }
+        return buffer.array();
+    }
+    
+    /**
+     * Read a length-prefixed, compressed message.
+     * 
+     * @param in
+     * @return
+     * @throws java.io.IOException 
+     */
+    private static DataInputStream readMessage(ReadableByteChannel in) throws java.io.IOException {
+        
+        int length = ByteBuffer.wrap(read(in, 4)).getInt();
+        return new DataInputStream(
+                new GZIPInputStream(new ByteArrayInputStream(read(in, length)))
+        );
+    }
+    
+    /**
+     * Replicate the archive to the given replica.
+     * 
+     * @param replica
+     * @throws java.io.IOException 
+     */
+    public void replicate(ArchiveReplica replica) throws java.io.IOException {
+        
+        _files = 0;
+        _bytes = 0;
+        
+        List<ArchiveManifest.Entry> entries = this.entries();
+        HashSet<String> changed = new HashSet<>(replica.changedGroups(digests(entries)));
+        List<ArchiveManifest.Entry> candidates = new ArrayList<>();
+        for (ArchiveManifest.Entry entry : entries) {
+            if (changed.contains(entry.group())) {
+                candidates.add(entry);
+            }
+        }
+        for (int index : replica.missing(candidates)) {
+            ArchiveManifest.Entry entry = candidates.get(index);
+            try (FileChannel in = FileChannel.open(
+                    this.file(entry).toPath(),
+                    StandardOpenOption.READ
+            )) {
+                replica.receive(entry, in);
+            }
+            _files++;
+            _bytes += entry.size();
+        }
+    }
+    
+    /**
+     * Replicate the archive to a replica server.
+     * 
+     * @param host
+     * @param port
+     * @throws java.io.IOException 
+     */
+    public void replicate(String host, int port) throws java.io.IOException {
+        
+        _files = 0;
+        _bytes = 0;
+        
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port))) {
+            List<ArchiveManifest.Entry> entries = this.entries();
+            // Group digests
+            LinkedHashMap<String, String> digests = digests(entries);
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(buf))) {
+                out.writeInt(digests.size());
+                for (String group : digests.keySet()) {
+                    out.writeUTF(group);
+                    out.writeUTF(digests.get(group));
+                }
+            }
+            writeMessage(channel, buf.toByteArray());
+            // Changed groups
+            HashSet<String> changed = new HashSet<>();
+            try (DataInputStream in = readMessage(channel)) {
+                int count = in.readInt();
+                for (int iGroup = 0; iGroup < count; iGroup++) {
+                    changed.add(in.readUTF());
+                }
+            }
+            // Manifest entries for the changed groups
+            List<ArchiveManifest.Entry> candidates = new ArrayList<>();
+            for (ArchiveManifest.Entry entry : entries) {
+                if (changed.contains(entry.group())) {
+                    candidates.add(entry);
+                }
+            }
+            buf = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(buf))) {
+                out.writeInt(candidates.size());
+                for (ArchiveManifest.Entry entry : candidates) {
+                    out.writeUTF(entry.path());
+                    out.writeLong(entry.size());
+                    out.writeUTF(entry.hash());
+                }
+            }
+            writeMessage(channel, buf.toByteArray());
+            // Missing files
+            List<Integer> missing = new ArrayList<>();
+            try (DataInputStream in = readMessage(channel)) {
+                int count = in.readInt();
+                for (int iEntry = 0; iEntry < count; iEntry++) {
+                    missing.add(in.readInt());
+                }
+            }
+            for (int index : missing) {
+                ArchiveManifest.Entry entry = candidates.get(index);
+                try (FileChannel in = FileChannel.open(
+                        this.file(entry).toPath(),
+                        StandardOpenOption.READ
+                )) {
+                    // The file may have been truncated since the manifest
+                    // was computed. transferTo then makes no progress.
+                    long position = 0;
+                    while (position < entry.size()) {
+                        long n = in.transferTo(position, entry.size() - position, channel);
+                        if (n <= 0) {
+                            throw new java.io.EOFException(entry.path());
+                        }
+                        position += n;
+                    }
+                }
+                _files++;
+                _bytes += entry.size();
+            }
+            try (DataInputStream in = readMessage(channel)) {
+                int stored = in.readInt();
+                if (stored != missing.size()) {
+                    throw new java.io.IOException(
+                            "replica stored " + stored + " of " + missing.size() + " files"
+                    );
+                }
+            }
+        }
+    }
+    
+    /**
+     * Receive replications from senders. Handles one sender at a time. The
+     * method does not return unless the server socket cannot be opened.
+     * 
+     * @param baseDir
+     * @param port
+     * @throws java.io.IOException 
+     */
+    public static void serve(File baseDir, int port) throws java.io.IOException {
+        
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port));
+            LOGGER.log(Level.INFO, "LISTEN {0}", server.getLocalAddress());
+            while (true) {
+                try (SocketChannel channel = server.accept()) {
+                    LOGGER.log(Level.INFO, "CONNECT {0}", channel.getRemoteAddress());
+                    try (ArchiveReplica replica = new ArchiveReplica(baseDir)) {
+                        session(replica, channel);
+                        LOGGER.log(
+                                Level.INFO,
+                                "RECEIVED {0} FILES ({1} bytes)",
+                                new Object[]{replica.files(), replica.bytes()}
+                        );
+                    }
+                } catch (java.io.IOException ex) {
+                    LOGGER.log(Level.SEVERE, "SESSION", ex);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Replica side of the exchange with a sender.
+     * 
+     * @param replica
+     * @param channel
+     * @throws java.io.IOException 
+     */
+    public static void session(
+            ArchiveReplica replica,
+            SocketChannel channel
+    ) throws java.io.IOException {
+        
+        // Group digests
+        LinkedHashMap<String, String> digests = new LinkedHashMap<>();
+        try (DataInputStream in = readMessage(channel)) {
+            int count = in.readInt();
+            for (int iGroup = 0; iGroup < count; iGroup++) {
+                String group = in.readUTF();
+                digests.put(group, in.readUTF());
+            }
+        }
+        List<String> changed = replica.changedGroups(digests);
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(buf))) {
+            out.writeInt(changed.size());
+            for (String group : changed) {
+                out.writeUTF(group);
+            }
+        }
+        writeMessage(channel, buf.toByteArray());
+        // Manifest entries
+        List<ArchiveManifest.Entry> entries = new ArrayList<>();
+        try (DataInputStream in = readMessage(channel)) {
+            int count = in.readInt();
+            for (int iEntry = 0; iEntry < count; iEntry++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                String hash = in.readUTF();
+                entries.add(new ArchiveManifest.Entry(path, size, 0, hash));
+            }
+        }
+        List<Integer> missing = replica.missing(entries);
+        buf = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(buf))) {
+            out.writeInt(missing.size());
+            for (int index : missing) {
+                out.writeInt(index);
+            }
+        }
+        writeMessage(channel, buf.toByteArray());
+        // File contents
+        int stored = 0;
+        for (int index : missing) {
+            replica.receive(entries.get(index), channel);
+            stored++;
+        }
+        buf = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(buf))) {
+            out.writeInt(stored);
+        }
+        writeMessage(channel, buf.toByteArray());
+    }
+    
+    /**
+     * Write a length-prefixed message.
+     * 
+     * @param out
+     * @param message
+     * @throws java.io.IOException 
+     */
+    private static void writeMessage(
+            WritableByteChannel out,
+            byte[] message
+    ) throws java.io.IOException {
+        
+        ByteBuffer buffer = ByteBuffer.allocate(4 + message.length);
+        buffer.putInt(message.length);
+        buffer.put(message);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+}
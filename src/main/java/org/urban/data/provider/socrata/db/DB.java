@@ -17,12 +17,20 @@ package org.urban.data.provider.socrata.db;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import org.apache.commons.csv.CSVParser;
 import org.urban.data.core.util.FileSystem;
 import org.urban.data.core.util.Counter;
@@ -33,6 +41,11 @@ import org.urban.data.provider.socrata.SocrataHelper;
  * data and statistic files. Maintains the index of downloaded datasets and
  * provides access to these files.
  * 
+ * Dataset files may be distributed across several volumes. Their location is
+ * defined by the shard map in the archive base directory. If a dataset file
+ * is not found on its volume (e.g., while the archive is being rebalanced) it
+ * is looked up on all other volumes.
+ * 
  * @author Heiko Mueller <heiko.mueller@nyu.edu>
  */
 public class DB {
@@ -45,11 +58,68 @@ public class DB {
     public static final String DOWNLOAD_FAILED = "F";
     public static final String DOWNLOAD_SUCCESS = "S";
     
+    // Layout of dataset files. Files that are exported by Socrata (rows.tsv)
+    // have the column display names in the header. Files that are written
+    // from SODA query results have the column field names in the header and
+    // values in SODA format.
+    public static final String LAYOUT_ROWS = "rows";
+    public static final String LAYOUT_SODA = "soda";
+    public static final String PROPERTY_LAYOUT = "layout";
+    
     private final File _baseDir;
+    private volatile ShardMap _shards;
     
     public DB(File baseDir) {
         
         _baseDir = baseDir;
+        try {
+            _shards = new ShardMap(baseDir);
+        } catch (java.io.IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+    
+    /**
+     * Relative paths of all files in the archive that are referenced by the
+     * database. Paths of dataset files are relative to the volume that
+     * contains them (use file() to get the file for a path). Includes the dataset files of successful downloads (and
+     * their row identifier files), the catalog files for all download dates,
+     * and the database file itself (as the last element).
+     * 
+     * @return
+     * @throws java.io.IOException 
+     */
+    public List<String> archiveFiles() throws java.io.IOException {
+        
+        LinkedHashSet<String> result = new LinkedHashSet<>();
+        for (String date : this.downloadDates()) {
+            File file = this.catalogFile(date);
+            if (file.exists()) {
+                result.add(this.relativePath(file));
+            }
+        }
+        for (Dataset dataset : this.getDatasets()) {
+            if (!dataset.successfulDownload()) {
+                continue;
+            }
+            String dir = dataset.domain() + "/" + dataset.downloadDate() + "/tsv/";
+            result.add(dir + dataset.identifier() + ".tsv.gz");
+            // Only datasets that were downloaded via the SODA API have
+            // properties and may have a row identifier file.
+            if (!dataset.properties().isEmpty()) {
+                if (this.rowIdFile(dataset).exists()) {
+                    result.add(dir + dataset.identifier() + ".rowids.gz");
+                }
+            }
+        }
+        result.remove(DBFILE);
+        result.add(DBFILE);
+        return new ArrayList<>(result);
+    }
+    
+    public File baseDir() {
+        
+        return _baseDir;
     }
     
     /**
@@ -72,6 +142,26 @@ public class DB {
         );
     }
     
+    /**
+     * Get sorted list of dates for which a catalog file has been downloaded.
+     * 
+     * @return 
+     */
+    public List<String> catalogDates() {
+        
+        List<String> result = new ArrayList<>();
+        File[] dirs = new File(_baseDir, "api.socrata.com").listFiles();
+        if (dirs != null) {
+            for (File dir : dirs) {
+                if (new File(dir, "catalog.json.gz").isFile()) {
+                    result.add(dir.getName());
+                }
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+    
     /**
      * File containing the database download information.
      * 
@@ -91,15 +181,7 @@ public class DB {
      */
     public File datasetFile(Dataset dataset) {
         
-        return FileSystem.joinPath(
-                _baseDir,
-                new String[]{
-                    dataset.domain(),
-                    dataset.downloadDate(),
-                    "tsv",
-                    dataset.identifier() + ".tsv.gz"
-                }
-        );
+        return this.locate(dataset, dataset.identifier() + ".tsv.gz");
     }
 
     /**
@@ -143,6 +225,23 @@ public class DB {
         }
     }
     
+    /**
+     * Get the file for a path that was returned by archiveFiles().
+     * 
+     * @param path
+     * @return 
+     */
+    public File file(String path) {
+        
+        String[] tokens = path.split("/");
+        if ((tokens.length == 4) && (tokens[2].equals("tsv"))) {
+            String name = tokens[3];
+            String identifier = name.substring(0, name.indexOf('.'));
+            return this.locate(new Dataset(identifier, tokens[0], tokens[1]), name);
+        }
+        return _shards.file(path);
+    }
+    
     public List<String> downloadDates() {
     
         HashSet<String> dates = new HashSet<>();
@@ -216,7 +315,7 @@ public class DB {
                 while ((line = in.readLine()) != null) {
                     String[] tokens = line.split("\t");
                     Dataset ds;
-                    ds = new Dataset(tokens[1], tokens[0], tokens[2], tokens[3]);
+                    ds = parse(tokens);
                     if (query.matchesAtOrBefore(ds)) {
                         if (!db.containsKey(ds.domain())) {
                             db.put(ds.domain(), new HashMap<>());
@@ -247,7 +346,7 @@ public class DB {
                 while ((line = in.readLine()) != null) {
                     String[] tokens = line.split("\t");
                     Dataset ds;
-                    ds = new Dataset(tokens[1], tokens[0], tokens[2], tokens[3]);
+                    ds = parse(tokens);
                     if (query.matches(ds)) {
                         db.add(ds);
                     }
@@ -287,10 +386,43 @@ public class DB {
                     if (!db.containsKey(domain)) {
                         db.put(domain, new HashMap<>());
                     }
-                    db.get(domain).put(
-                            dataset,
-                            new Dataset(dataset, domain, tokens[2], tokens[3])
-                    );
+                    db.get(domain).put(dataset, parse(tokens));
+                }
+            }
+        }
+        
+        return db;
+    }
+    
+    /**
+     * Get the last successful download for each dataset that was downloaded
+     * before the given date.
+     * 
+     * @param date
+     * @return
+     * @throws java.io.IOException 
+     */
+    public HashMap<String, HashMap<String, Dataset>> getLastSuccessful(String date) throws java.io.IOException {
+        
+        HashMap<String, HashMap<String, Dataset>> db = new HashMap<>();
+        
+        File file = this.databaseFile();
+        if (file.exists()) {
+            try (BufferedReader in = FileSystem.openReader(file)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] tokens = line.split("\t");
+                    Dataset ds = parse(tokens);
+                    if ((!ds.successfulDownload()) || (ds.downloadDate().compareTo(date) >= 0)) {
+                        continue;
+                    }
+                    if (!db.containsKey(ds.domain())) {
+                        db.put(ds.domain(), new HashMap<>());
+                    }
+                    Dataset last = db.get(ds.domain()).get(ds.identifier());
+                    if ((last == null) || (last.downloadDate().compareTo(ds.downloadDate()) <= 0)) {
+                        db.get(ds.domain()).put(ds.identifier(), ds);
+                    }
                 }
             }
         }
@@ -328,6 +460,141 @@ public class DB {
         return maxDate;
     }
     
+    /**
+     * Download journal for a given date. Journals are stored in a separate
+     * jobs directory. Files are named after the download date.
+     * 
+     * @param date
+     * @return 
+     */
+    public File journalFile(String date) {
+        
+        return FileSystem.joinPath(
+                _baseDir,
+                new String[]{
+                    "jobs",
+                    date + ".tsv"
+                }
+        );
+    }
+    
+    /**
+     * Download journal of a single node in a multi-node download.
+     * 
+     * @param date
+     * @param node
+     * @return 
+     */
+    public File journalFile(String date, String node) {
+        
+        return FileSystem.joinPath(
+                _baseDir,
+                new String[]{
+                    "jobs",
+                    date + "." + node + ".tsv"
+                }
+        );
+    }
+    
+    /**
+     * Directory containing the dataset leases for a multi-node download.
+     * 
+     * @param date
+     * @return 
+     */
+    public File leaseDir(String date) {
+        
+        return FileSystem.joinPath(
+                _baseDir,
+                new String[]{
+                    "jobs",
+                    date + ".leases"
+                }
+        );
+    }
+    
+    /**
+     * Order datasets such that consecutive datasets are stored on different
+     * volumes (if possible). Datasets on the same volume keep their relative
+     * order. Parallel scans over the result spread their I/O across all
+     * volumes.
+     * 
+     * @param datasets
+     * @return 
+     */
+    public List<Dataset> interleave(List<Dataset> datasets) {
+        
+        ShardMap shards = this.shards();
+        if (shards.isEmpty()) {
+            return datasets;
+        }
+        LinkedHashMap<File, LinkedList<Dataset>> volumes = new LinkedHashMap<>();
+        for (Dataset dataset : datasets) {
+            File volume = shards.volume(dataset.domain(), dataset.identifier());
+            LinkedList<Dataset> queue = volumes.get(volume);
+            if (queue == null) {
+                queue = new LinkedList<>();
+                volumes.put(volume, queue);
+            }
+            queue.add(dataset);
+        }
+        List<Dataset> result = new ArrayList<>();
+        while (result.size() < datasets.size()) {
+            for (LinkedList<Dataset> queue : volumes.values()) {
+                if (!queue.isEmpty()) {
+                    result.add(queue.poll());
+                }
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Get the file with the given name in the tsv folder of a dataset
+     * version. The file is located on the volume that is assigned to the
+     * dataset by the shard map. If it does not exist there the other volumes
+     * are checked. The shard map is reloaded first if it has been modified
+     * since it was read.
+     * 
+     * @param dataset
+     * @param name
+     * @return 
+     */
+    private File locate(Dataset dataset, String name) {
+        
+        String[] path = new String[]{
+            dataset.domain(),
+            dataset.downloadDate(),
+            "tsv",
+            name
+        };
+        ShardMap shards = _shards;
+        File file = FileSystem.joinPath(
+                shards.volume(dataset.domain(), dataset.identifier()),
+                path
+        );
+        if (file.exists()) {
+            return file;
+        }
+        if (shards.isModified()) {
+            shards = this.shards();
+            file = FileSystem.joinPath(
+                    shards.volume(dataset.domain(), dataset.identifier()),
+                    path
+            );
+        }
+        if (shards.isEmpty()) {
+            return file;
+        }
+        for (File volume : shards.volumes()) {
+            File candidate = FileSystem.joinPath(volume, path);
+            if (candidate.exists()) {
+                return candidate;
+            }
+        }
+        return file;
+    }
+    
     /**
      * Log files are stored in a separate logs directory. Files are named after
      * the download date.
@@ -346,11 +613,191 @@ public class DB {
         );
     }
     
+    /**
+     * Log file of a single node in a multi-node download.
+     * 
+     * @param date
+     * @param node
+     * @return 
+     */
+    public File logFile(String date, String node) {
+        
+        return FileSystem.joinPath(
+                _baseDir,
+                new String[]{
+                    "logs",
+                    date + "." + node + ".log"
+                }
+        );
+    }
+    
+    /**
+     * Append the given database segment files to the database file. The
+     * merged database is written to a temporary file first that then replaces
+     * the database file. Readers therefore either see the database before or
+     * after the merge.
+     * 
+     * @param segments
+     * @throws java.io.IOException 
+     */
+    public void merge(List<File> segments) throws java.io.IOException {
+        
+        File file = this.databaseFile();
+        File tmpFile = FileSystem.joinPath(_baseDir, "tmp." + DBFILE);
+        try (OutputStream out = new FileOutputStream(tmpFile)) {
+            if (file.exists()) {
+                Files.copy(file.toPath(), out);
+            }
+            for (File segment : segments) {
+                Files.copy(segment.toPath(), out);
+            }
+        }
+        Files.move(
+                tmpFile.toPath(),
+                file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE
+        );
+    }
+    
+    /**
+     * Create dataset from a line in the database file.
+     * 
+     * @param tokens
+     * @return 
+     */
+    private static Dataset parse(String[] tokens) {
+        
+        Map<String, String> properties = Collections.emptyMap();
+        if (tokens.length > 4) {
+            properties = Dataset.decodeProperties(tokens[4]);
+        }
+        return new Dataset(
+                tokens[1],
+                tokens[0],
+                tokens[2],
+                tokens[3].equals(DOWNLOAD_SUCCESS),
+                properties
+        );
+    }
+    
+    /**
+     * Get the layout of the file for the given version of a dataset. Versions
+     * that were downloaded before the layout was recorded are in SODA layout
+     * if they have any properties. Only downloads via the SODA API record
+     * properties.
+     * 
+     * @param dataset
+     * @return 
+     */
+    public static String layout(Dataset dataset) {
+        
+        String layout = dataset.getProperty(PROPERTY_LAYOUT);
+        if (layout != null) {
+            return layout;
+        } else if (!dataset.properties().isEmpty()) {
+            return LAYOUT_SODA;
+        }
+        return LAYOUT_ROWS;
+    }
+    
     public CSVParser open(Dataset dataset) throws java.io.IOException {
         
         return SocrataHelper.tsvParser(this.datasetFile(dataset));
     }
     
+    /**
+     * Path of a file in the archive relative to the base directory. Path
+     * elements are separated by '/'.
+     * 
+     * @param file
+     * @return 
+     */
+    public String relativePath(File file) {
+        
+        return _baseDir.toPath()
+                .relativize(file.toPath())
+                .toString()
+                .replace(File.separatorChar, '/');
+    }
+    
+    /**
+     * File containing the row identifier and last modification timestamp for
+     * each row in an incrementally downloaded dataset file. The file is stored
+     * next to the dataset file. Lines are in the same order as the rows in the
+     * dataset file.
+     * 
+     * @param dataset
+     * @return 
+     */
+    public File rowIdFile(Dataset dataset) {
+        
+        return this.locate(dataset, dataset.identifier() + ".rowids.gz");
+    }
+    
+    /**
+     * Database segment of a single node in a multi-node download. Nodes
+     * write the results of their downloads to their own segment. Segments are
+     * merged into the database file once all downloads have finished.
+     * 
+     * @param date
+     * @param node
+     * @return 
+     */
+    public File segmentFile(String date, String node) {
+        
+        return FileSystem.joinPath(
+                _baseDir,
+                new String[]{
+                    "jobs",
+                    date + ".segments",
+                    node + ".tsv"
+                }
+        );
+    }
+    
+    /**
+     * Get all database segment files for the given date (sorted by name).
+     * 
+     * @param date
+     * @return 
+     */
+    public List<File> segmentFiles(String date) {
+        
+        List<File> result = new ArrayList<>();
+        File[] files = FileSystem.joinPath(
+                _baseDir,
+                new String[]{"jobs", date + ".segments"}
+        ).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".tsv")) {
+                    result.add(file);
+                }
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+    
+    /**
+     * Shard map for the archive. The map is read again if the shard map file
+     * has been modified.
+     * 
+     * @return 
+     */
+    public synchronized ShardMap shards() {
+        
+        if (_shards.isModified()) {
+            try {
+                _shards = new ShardMap(_baseDir);
+            } catch (java.io.IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+        return _shards;
+    }
+    
     /**
      * Get writer for the database index file.
      * 
@@ -21,7 +21,8 @@ import java.io.PrintWriter;
 import org.urban.data.core.util.FileSystem;
 
 /**
- * Synchronized writer that appends datasets to the database file.
+ * Synchronized writer that appends datasets to the database file. Dataset
+ * properties are written in an optional fifth column.
  * 
  * @author Heiko Mueller <heiko.mueller@nyu.edu>
  */
@@ -48,12 +49,15 @@ public class DatabaseWriter implements AutoCloseable {
         } else {
             state = DB.DOWNLOAD_FAILED;
         }
-        _out.println(
-                dataset.domain() + "\t" + 
+        String line = dataset.domain() + "\t" + 
                 dataset.identifier() + "\t" + 
                 dataset.downloadDate() + "\t" + 
-                state
-        );
+                state;
+        String properties = dataset.encodeProperties();
+        if (!properties.isEmpty()) {
+            line += "\t" + properties;
+        }
+        _out.println(line);
         _out.flush();
     }
 }
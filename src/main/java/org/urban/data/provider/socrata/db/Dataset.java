@@ -15,11 +15,21 @@
  */
 package org.urban.data.provider.socrata.db;
 
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Information about a downloaded dataset.
  * 
+ * A dataset may have an optional set of properties, e.g., to record the
+ * lineage of an incrementally downloaded dataset. Properties are stored as a
+ * list of key=value pairs (separated by ';') in the database file. Values are
+ * Url-encoded.
+ * 
  * @author Heiko Mueller <heiko.mueller@nyu.edu>
  */
 public class Dataset {
@@ -27,14 +37,27 @@ public class Dataset {
     private final String _domain;
     private final String _downloadDate;
     private final String _identifier;
+    private final Map<String, String> _properties;
     private final boolean _success;
     
-    public Dataset(String identifier, String domain, String date, boolean success) {
+    public Dataset(
+            String identifier,
+            String domain,
+            String date,
+            boolean success,
+            Map<String, String> properties
+    ) {
         
         _identifier = identifier;
         _domain = domain;
         _downloadDate = date;
         _success = success;
+        _properties = properties;
+    }
+    
+    public Dataset(String identifier, String domain, String date, boolean success) {
+        
+        this(identifier, domain, date, success, Collections.emptyMap());
     }
     
     public Dataset(String identifier, String domain, String date, String success) {
@@ -47,6 +70,31 @@ public class Dataset {
         this(identifier, domain, date, true);
     }
 
+    /**
+     * Parse a list of properties from the database file.
+     * 
+     * @param text
+     * @return 
+     */
+    public static Map<String, String> decodeProperties(String text) {
+        
+        Map<String, String> properties = new LinkedHashMap<>();
+        for (String pair : text.split(";")) {
+            int pos = pair.indexOf("=");
+            if (pos > 0) {
+                try {
+                    properties.put(
+                            pair.substring(0, pos),
+                            URLDecoder.decode(pair.substring(pos + 1), "UTF-8")
+                    );
+                } catch (java.io.UnsupportedEncodingException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        }
+        return properties;
+    }
+    
     public String domain() {
         
         return _domain;
@@ -57,6 +105,30 @@ public class Dataset {
         return _downloadDate;
     }
     
+    /**
+     * Serialize the dataset properties for the database file. The result is
+     * an empty string if the dataset has no properties.
+     * 
+     * @return 
+     */
+    public String encodeProperties() {
+        
+        StringBuilder buf = new StringBuilder();
+        for (Map.Entry<String, String> property : _properties.entrySet()) {
+            if (buf.length() > 0) {
+                buf.append(";");
+            }
+            try {
+                buf.append(property.getKey())
+                        .append("=")
+                        .append(URLEncoder.encode(property.getValue(), "UTF-8"));
+            } catch (java.io.UnsupportedEncodingException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+        return buf.toString();
+    }
+    
     public Date getDate() {
         
         try {
@@ -66,6 +138,18 @@ public class Dataset {
         }
     }
     
+    /**
+     * Get the value for the given property. The result is null if the
+     * property is not set.
+     * 
+     * @param key
+     * @return 
+     */
+    public String getProperty(String key) {
+        
+        return _properties.get(key);
+    }
+    
     public String identifier() {
         
         return _identifier;
@@ -76,6 +160,11 @@ public class Dataset {
         return _domain + "#" + _identifier + "#" + _downloadDate;
     }
     
+    public Map<String, String> properties() {
+        
+        return _properties;
+    }
+    
     public boolean successfulDownload() {
         
         return _success;
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.provider.socrata.db;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import org.urban.data.core.util.FileSystem;
+
+/**
+ * Placement of dataset files on storage volumes. The shard map is read from a
+ * tab-delimited file with three columns:
+ * 
+ * 1) domain (or * for all domains)
+ * 2) bucket range of dataset identifiers (from-to, inclusive) or * for all
+ * 3) base directory on the volume (relative paths are resolved against the
+ *    archive base directory)
+ * 
+ * Empty lines and lines that start with # are ignored. Dataset identifiers
+ * are assigned to one of 256 buckets based on their hash code. Entries for a
+ * specific domain take precedence over entries for all domains. Datasets that
+ * are not matched by any entry are stored in the archive base directory.
+ * 
+ * Dataset files have the same relative path on every volume. The catalog
+ * files, the database file, journals, and logs always remain in the archive
+ * base directory.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class ShardMap {
+    
+    public static final int BUCKETS = 256;
+    public static final String FILENAME = "shards.tsv";
+    
+    private static final String WILDCARD = "*";
+    
+    /**
+     * Range of buckets for a domain that is stored on a volume.
+     */
+    private static class Shard {
+        
+        private final String _domain;
+        private final int _from;
+        private final int _to;
+        private final File _volume;
+        
+        public Shard(String domain, int from, int to, File volume) {
+            
+            _domain = domain;
+            _from = from;
+            _to = to;
+            _volume = volume;
+        }
+        
+        public boolean matches(String domain, int bucket) {
+            
+            return (_domain.equals(domain)) && (_from <= bucket) && (bucket <= _to);
+        }
+    }
+    
+    private final File _baseDir;
+    private final File _file;
+    private final long _modified;
+    private final List<Shard> _shards = new ArrayList<>();
+    
+    /**
+     * Read the shard map from the given file. The map is empty if the file
+     * does not exist.
+     * 
+     * @param baseDir
+     * @param file
+     * @throws java.io.IOException 
+     */
+    public ShardMap(File baseDir, File file) throws java.io.IOException {
+        
+        _baseDir = baseDir;
+        _file = file;
+        _modified = file.lastModified();
+        
+        if (file.exists()) {
+            try (BufferedReader in = FileSystem.openReader(file)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if ((line.trim().isEmpty()) || (line.startsWith("#"))) {
+                        continue;
+                    }
+                    String[] tokens = line.split("\t");
+                    if (tokens.length != 3) {
+                        throw new java.io.IOException("invalid shard " + line);
+                    }
+                    int from = 0;
+                    int to = BUCKETS - 1;
+                    if (!tokens[1].equals(WILDCARD)) {
+                        int pos = tokens[1].indexOf('-');
+                        try {
+                            if (pos == -1) {
+                                from = Integer.parseInt(tokens[1]);
+                                to = from;
+                            } else {
+                                from = Integer.parseInt(tokens[1].substring(0, pos));
+                                to = Integer.parseInt(tokens[1].substring(pos + 1));
+                            }
+                        } catch (java.lang.NumberFormatException ex) {
+                            throw new java.io.IOException("invalid bucket range " + tokens[1]);
+                        }
+                    }
+                    File volume = new File(tokens[2]);
+                    if (!volume.isAbsolute()) {
+                        volume = new File(baseDir, tokens[2]);
+                    }
+                    _shards.add(new Shard(tokens[0], from, to, volume));
+                }
+            }
+        }
+    }
+    
+    /**
+     * Read the shard map in the archive base directory.
+     * 
+     * @param baseDir
+     * @throws java.io.IOException 
+     */
+    public ShardMap(File baseDir) throws java.io.IOException {
+        
+        this(baseDir, new File(baseDir, FILENAME));
+    }
+    
+    /**
+     * Bucket for a dataset identifier.
+     * 
+     * @param identifier
+     * @return 
+     */
+    public static int bucket(String identifier) {
+        
+        return (identifier.hashCode() & 0x7fffffff) % BUCKETS;
+    }
+    
+    /**
+     * Get the location of a file in the archive according to this shard map.
+     * The path is relative to the archive base directory (or the volume for
+     * dataset files). Does not check whether the file exists.
+     * 
+     * @param path
+     * @return 
+     */
+    public File file(String path) {
+        
+        String[] tokens = path.split("/");
+        if ((tokens.length == 4) && (tokens[2].equals("tsv"))) {
+            String identifier = tokens[3].substring(0, tokens[3].indexOf('.'));
+            return FileSystem.joinPath(this.volume(tokens[0], identifier), tokens);
+        }
+        return FileSystem.joinPath(_baseDir, tokens);
+    }
+    
+    public boolean isEmpty() {
+        
+        return _shards.isEmpty();
+    }
+    
+    /**
+     * Test if the shard map file has been modified since it was read.
+     * 
+     * @return 
+     */
+    public boolean isModified() {
+        
+        return _file.lastModified() != _modified;
+    }
+    
+    /**
+     * Get the base directory on the volume that stores the given dataset.
+     * 
+     * @param domain
+     * @param identifier
+     * @return 
+     */
+    public File volume(String domain, String identifier) {
+        
+        int bucket = bucket(identifier);
+        for (Shard shard : _shards) {
+            if (shard.matches(domain, bucket)) {
+                return shard._volume;
+            }
+        }
+        for (Shard shard : _shards) {
+            if (shard.matches(WILDCARD, bucket)) {
+                return shard._volume;
+            }
+        }
+        return _baseDir;
+    }
+    
+    /**
+     * List of all volumes in the shard map. The archive base directory is
+     * always the first element.
+     * 
+     * @return 
+     */
+    public List<File> volumes() {
+        
+        LinkedHashSet<File> result = new LinkedHashSet<>();
+        result.add(_baseDir);
+        for (Shard shard : _shards) {
+            result.add(shard._volume);
+        }
+        return new ArrayList<>(result);
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.provider.socrata.download;
+
+import java.util.HashMap;
+
+/**
+ * Per-domain circuit breaker. The circuit for a domain opens after a given
+ * number of consecutive failed requests. While the circuit is open all requests
+ * for the domain are rejected. After the open interval has passed a single
+ * probe request is allowed (half-open state). If the probe succeeds the circuit
+ * is closed again. Otherwise, it is re-opened with twice the open interval
+ * (up to a given maximum).
+ *
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class CircuitBreaker {
+
+    public static final int DEFAULT_THRESHOLD = 5;
+    public static final long DEFAULT_OPENINTERVAL = 60 * 1000;
+    public static final long DEFAULT_MAXOPENINTERVAL = 30 * 60 * 1000;
+
+    private class Circuit {
+
+        private int _failures = 0;
+        private long _interval = _openInterval;
+        private long _openUntil = 0;
+        private boolean _probing = false;
+    }
+
+    private final HashMap<String, Circuit> _circuits = new HashMap<>();
+    private final long _maxOpenInterval;
+    private final long _openInterval;
+    private final int _threshold;
+
+    public CircuitBreaker(int threshold, long openInterval, long maxOpenInterval) {
+
+        _threshold = threshold;
+        _openInterval = openInterval;
+        _maxOpenInterval = maxOpenInterval;
+    }
+
+    public CircuitBreaker() {
+
+        this(DEFAULT_THRESHOLD, DEFAULT_OPENINTERVAL, DEFAULT_MAXOPENINTERVAL);
+    }
+
+    /**
+     * Test if a request for the given domain is allowed. Returns false if the
+     * circuit is open or if there already is a probe request pending for a
+     * half-open circuit.
+     *
+     * @param domain
+     * @return
+     */
+    public synchronized boolean allowRequest(String domain) {
+
+        Circuit circuit = _circuits.get(domain);
+        if (circuit == null) {
+            return true;
+        } else if (circuit._failures < _threshold) {
+            return true;
+        } else if (circuit._probing) {
+            return false;
+        } else if (System.currentTimeMillis() >= circuit._openUntil) {
+            circuit._probing = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Record a failed request for the given domain.
+     *
+     * @param domain
+     */
+    public synchronized void failure(String domain) {
+
+        Circuit circuit = _circuits.get(domain);
+        if (circuit == null) {
+            circuit = new Circuit();
+            _circuits.put(domain, circuit);
+        }
+        circuit._failures++;
+        if (circuit._probing) {
+            circuit._interval = Math.min(circuit._interval * 2, _maxOpenInterval);
+            circuit._probing = false;
+        }
+        if (circuit._failures >= _threshold) {
+            circuit._openUntil = System.currentTimeMillis() + circuit._interval;
+        }
+    }
+
+    /**
+     * Test if the circuit for the given domain is currently open (or
+     * half-open).
+     *
+     * @param domain
+     * @return
+     */
+    public synchronized boolean isOpen(String domain) {
+
+        Circuit circuit = _circuits.get(domain);
+        if (circuit != null) {
+            return (circuit._failures >= _threshold);
+        }
+        return false;
+    }
+
+    /**
+     * Time in milliseconds until the next request for the given domain may be
+     * allowed.
+     *
+     * @param domain
+     * @return
+     */
+    public synchronized long retryDelay(String domain) {
+
+        Circuit circuit = _circuits.get(domain);
+        if (circuit != null) {
+            if (circuit._failures >= _threshold) {
+                if (circuit._probing) {
+                    return circuit._interval;
+                }
+                return Math.max(0, circuit._openUntil - System.currentTimeMillis());
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Record a request for the given domain whose outcome says nothing about
+     * the server (e.g., the request was never sent). Does not change the
+     * number of failures. A pending probe for a half-open circuit is released
+     * so that the next request can probe the domain.
+     *
+     * @param domain
+     */
+    public synchronized void release(String domain) {
+
+        Circuit circuit = _circuits.get(domain);
+        if (circuit != null) {
+            circuit._probing = false;
+        }
+    }
+
+    /**
+     * Record a successful request for the given domain. Closes the circuit.
+     *
+     * @param domain
+     */
+    public synchronized void success(String domain) {
+
+        _circuits.remove(domain);
+    }
+}
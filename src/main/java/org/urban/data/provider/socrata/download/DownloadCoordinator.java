@@ -0,0 +1,423 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.provider.socrata.download;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.urban.data.core.util.FileSystem;
+import org.urban.data.provider.socrata.db.DB;
+
+/**
+ * Coordinate a download run between several nodes that share the same
+ * archive. All nodes compile the same list of download jobs from the catalog
+ * and the database file. Before a node downloads a dataset it has to claim the
+ * lease for the dataset. Leases are files in the lease directory for the
+ * download date. A lease is claimed by creating the lease file exclusively.
+ * The file contains the name of the node that holds the lease and the lease
+ * state (L = leased, S = success, F = failed).
+ * 
+ * Leases are renewed periodically by updating the modification time of the
+ * lease file. A lease that has not been renewed for longer than the lease time
+ * has expired and can be taken over by another node. Only one node can take
+ * over a particular expired lease since the takeover requires the exclusive
+ * creation of a marker file whose name identifies the expired lease (holder
+ * and modification time). The lease time should be well above the renewal
+ * interval (one third of the lease time) plus the clock skew between nodes.
+ * 
+ * When a download finishes the node records the final state in the lease
+ * file. Finished leases are never taken over.
+ * 
+ * The database file is not modified while the download is running. Each node
+ * writes its results to its own database segment. The first node that
+ * finds all leases finished merges the segments into the database file. The
+ * merge is protected by a lock file in the lease directory. The lock is
+ * renewed and taken over like a lease.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class DownloadCoordinator implements AutoCloseable {
+    
+    private static final Logger LOGGER = Logger
+            .getLogger(DownloadCoordinator.class.getName());
+    
+    public static final long DEFAULT_LEASE_TIME = 5 * 60 * 1000;
+    
+    public static final String MERGE_LOCK = "merge.lock";
+    
+    public static final String STATE_LEASED = "L";
+    
+    /**
+     * Result of an attempt to claim the lease for a download job.
+     */
+    public enum Claim {
+        // The lease was acquired by this node
+        ACQUIRED,
+        // The download was finished by another node
+        FINISHED,
+        // Another node holds a valid lease
+        HELD
+    }
+    
+    private final String _date;
+    private final DB _db;
+    private final Set<File> _leases = ConcurrentHashMap.newKeySet();
+    private final File _leaseDir;
+    private final long _leaseTime;
+    private final String _node;
+    private final ScheduledExecutorService _timer;
+    
+    public DownloadCoordinator(
+            DB db,
+            String date,
+            String node,
+            long leaseTime
+    ) throws java.io.IOException {
+        
+        _db = db;
+        _date = date;
+        _node = node;
+        _leaseTime = leaseTime;
+        _leaseDir = db.leaseDir(date);
+        
+        FileSystem.createFolder(_leaseDir);
+        FileSystem.createParentFolder(db.segmentFile(date, node));
+        
+        _timer = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+            Thread thread = new Thread(r, "lease-renewal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        _timer.scheduleWithFixedDelay(
+                this::renew,
+                this.renewalInterval(),
+                this.renewalInterval(),
+                TimeUnit.MILLISECONDS
+        );
+    }
+    
+    public DownloadCoordinator(DB db, String date, String node) throws java.io.IOException {
+        
+        this(db, date, node, DEFAULT_LEASE_TIME);
+    }
+    
+    /**
+     * Try to claim the lease for the given job. A node re-acquires leases
+     * that it held in a previous (interrupted) run.
+     * 
+     * @param job
+     * @return
+     * @throws java.io.IOException 
+     */
+    public Claim claim(DownloadJob job) throws java.io.IOException {
+        
+        File file = this.leaseFile(job);
+        if (this.create(file)) {
+            _leases.add(file);
+            return Claim.ACQUIRED;
+        }
+        
+        long modified = file.lastModified();
+        String[] lease = read(file);
+        if (lease == null) {
+            // The lease is being replaced by another node
+            return Claim.HELD;
+        } else if (!lease[1].equals(STATE_LEASED)) {
+            return Claim.FINISHED;
+        } else if (lease[0].equals(_node)) {
+            file.setLastModified(System.currentTimeMillis());
+            _leases.add(file);
+            return Claim.ACQUIRED;
+        } else if (System.currentTimeMillis() - modified <= _leaseTime) {
+            return Claim.HELD;
+        }
+        
+        // Take over the expired lease. The marker ensures that only one node
+        // replaces this particular lease.
+        File marker = new File(
+                _leaseDir,
+                file.getName() + "." + lease[0] + "." + modified + ".takeover"
+        );
+        if (!this.create(marker)) {
+            return Claim.HELD;
+        }
+        String[] current = read(file);
+        if ((file.lastModified() != modified) || (current == null) || (!current[0].equals(lease[0]))) {
+            // The lease was renewed after all
+            return Claim.HELD;
+        }
+        this.write(file, STATE_LEASED);
+        _leases.add(file);
+        LOGGER.log(
+                Level.INFO,
+                "TAKEOVER {0} FROM {1}",
+                new Object[]{job.url(), lease[0]}
+        );
+        return Claim.ACQUIRED;
+    }
+
+    @Override
+    public void close() {
+
+        _timer.shutdownNow();
+    }
+    
+    /**
+     * Create the given file exclusively. Returns false if the file exists.
+     * 
+     * @param file
+     * @return
+     * @throws java.io.IOException 
+     */
+    private boolean create(File file) throws java.io.IOException {
+        
+        File tmpFile = this.tmpFile(file);
+        Files.write(tmpFile.toPath(), this.content(STATE_LEASED));
+        try {
+            // Hard links are created atomically and fail if the target
+            // exists. This way the lease file is never seen without content.
+            Files.createLink(file.toPath(), tmpFile.toPath());
+            return true;
+        } catch (FileAlreadyExistsException ex) {
+            return false;
+        } finally {
+            tmpFile.delete();
+        }
+    }
+    
+    private byte[] content(String state) {
+        
+        return (_node + "\t" + state + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Record the final state of a job whose lease is held by this node.
+     * 
+     * @param job
+     * @param state
+     * @throws java.io.IOException 
+     */
+    public void finish(DownloadJob job, String state) throws java.io.IOException {
+        
+        File file = this.leaseFile(job);
+        _leases.remove(file);
+        this.write(file, state);
+    }
+    
+    /**
+     * Check whether this node (still) holds the lease for the given job. The
+     * result is false if the lease has been taken over by another node.
+     * 
+     * @param job
+     * @return 
+     */
+    public boolean holds(DownloadJob job) {
+        
+        File file = this.leaseFile(job);
+        String[] lease = read(file);
+        boolean holds = (lease != null)
+                && (lease[0].equals(_node))
+                && (lease[1].equals(STATE_LEASED));
+        if (!holds) {
+            _leases.remove(file);
+        }
+        return holds;
+    }
+    
+    private File leaseFile(DownloadJob job) {
+        
+        return new File(_leaseDir, job.domain() + "#" + job.identifier() + ".lease");
+    }
+    
+    /**
+     * Merge the database segments of all nodes into the database file if all
+     * leases have been finished. Returns true if the segments were merged by
+     * this node.
+     * 
+     * If a node fails after merging the segments but before deleting them
+     * the segments will be merged again. Since the last entry for a dataset
+     * overrides all previous entries this only adds redundant lines to the
+     * database file.
+     * 
+     * @return
+     * @throws java.io.IOException 
+     */
+    public boolean merge() throws java.io.IOException {
+        
+        File[] files = _leaseDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if ((name.endsWith(".lease")) && (!name.startsWith("tmp."))) {
+                    String[] lease = read(file);
+                    if ((lease == null) || (lease[1].equals(STATE_LEASED))) {
+                        return false;
+                    }
+                }
+            }
+        }
+        
+        // The lock is renewed like a lease while the segments are merged.
+        File lock = new File(_leaseDir, MERGE_LOCK);
+        if (!this.lock(lock)) {
+            return false;
+        }
+        _leases.add(lock);
+        try {
+            List<File> segments = _db.segmentFiles(_date);
+            if (!segments.isEmpty()) {
+                _db.merge(segments);
+                for (File segment : segments) {
+                    segment.delete();
+                }
+                LOGGER.log(Level.INFO, "MERGED {0} SEGMENTS", segments.size());
+            }
+        } finally {
+            _leases.remove(lock);
+            String[] holder = read(lock);
+            if ((holder != null) && (holder[0].equals(_node))) {
+                lock.delete();
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Acquire the merge lock. A lock that has not been renewed for longer
+     * than the lease time is taken over in the same way as an expired lease.
+     * Returns false if the lock is held by another node.
+     * 
+     * @param lock
+     * @return
+     * @throws java.io.IOException 
+     */
+    private boolean lock(File lock) throws java.io.IOException {
+        
+        if (this.create(lock)) {
+            return true;
+        }
+        long modified = lock.lastModified();
+        String[] holder = read(lock);
+        if ((holder == null) || (System.currentTimeMillis() - modified <= _leaseTime)) {
+            return false;
+        }
+        File marker = new File(
+                _leaseDir,
+                lock.getName() + "." + holder[0] + "." + modified + ".takeover"
+        );
+        if (!this.create(marker)) {
+            return false;
+        }
+        String[] current = read(lock);
+        if ((lock.lastModified() != modified) || (current == null) || (!current[0].equals(holder[0]))) {
+            // The lock was renewed or released after all
+            return false;
+        }
+        this.write(lock, STATE_LEASED);
+        LOGGER.log(Level.WARNING, "TAKEOVER STALE LOCK FROM {0}", holder[0]);
+        return true;
+    }
+    
+    public String node() {
+        
+        return _node;
+    }
+    
+    /**
+     * Read the holder and the state of a lease. The result is null if the
+     * lease file does not exist or cannot be read.
+     * 
+     * @param file
+     * @return 
+     */
+    private static String[] read(File file) {
+        
+        try {
+            String[] tokens = new String(
+                    Files.readAllBytes(file.toPath()),
+                    StandardCharsets.UTF_8
+            ).trim().split("\t");
+            if (tokens.length == 2) {
+                return tokens;
+            }
+        } catch (java.io.IOException ex) {
+        }
+        return null;
+    }
+    
+    /**
+     * Renew all leases that are held by this node. Leases that have been
+     * taken over by another node are dropped.
+     */
+    private void renew() {
+        
+        long now = System.currentTimeMillis();
+        for (File file : _leases) {
+            String[] lease = read(file);
+            if ((lease != null) && (lease[0].equals(_node)) && (lease[1].equals(STATE_LEASED))) {
+                file.setLastModified(now);
+            } else {
+                LOGGER.log(Level.WARNING, "LOST LEASE {0}", file.getName());
+                _leases.remove(file);
+            }
+        }
+    }
+    
+    /**
+     * Interval (in milliseconds) at which leases are renewed. Jobs whose lease
+     * is held by another node are checked again after this interval.
+     * 
+     * @return 
+     */
+    public long renewalInterval() {
+        
+        return Math.max(1, _leaseTime / 3);
+    }
+    
+    private File tmpFile(File file) {
+        
+        return new File(file.getParentFile(), "tmp." + _node + "." + file.getName());
+    }
+    
+    /**
+     * Replace the content of a lease file.
+     * 
+     * @param file
+     * @param state
+     * @throws java.io.IOException 
+     */
+    private void write(File file, String state) throws java.io.IOException {
+        
+        File tmpFile = this.tmpFile(file);
+        Files.write(tmpFile.toPath(), this.content(state));
+        Files.move(
+                tmpFile.toPath(),
+                file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE
+        );
+    }
+}
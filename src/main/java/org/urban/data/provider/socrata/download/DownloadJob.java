@@ -0,0 +1,203 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.provider.socrata.download;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import org.urban.data.provider.socrata.db.Dataset;
+
+/**
+ * Download of a single dataset file. Keeps track of the number of failed
+ * attempts and the earliest time at which the job may be (re-)run.
+ *
+ * For transfers that are in progress the job also maintains the last
+ * checkpoint. The offset is the number of bytes that have been received from
+ * the server and the size is the length of the partial output file at that
+ * point.
+ *
+ * Jobs that are ready to run are ordered by their estimated size (largest
+ * first).
+ *
+ * Downloaders may attach properties to a job (e.g., the lineage of an
+ * incremental download). The properties are recorded in the database when the
+ * job finishes.
+ *
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class DownloadJob implements Delayed {
+
+    private int _attempts = 0;
+    private final Dataset _dataset;
+    private long _estimatedSize = 0;
+    private long _notBefore = 0;
+    private long _offset = 0;
+    private final Map<String, String> _properties = new LinkedHashMap<>();
+    private long _size = 0;
+    private final String _url;
+
+    public DownloadJob(Dataset dataset, String url) {
+
+        _dataset = dataset;
+        _url = url;
+    }
+
+    public int attempts() {
+
+        return _attempts;
+    }
+
+    /**
+     * Record a checkpoint for a transfer that is in progress.
+     *
+     * @param offset
+     * @param size
+     */
+    public void checkpoint(long offset, long size) {
+
+        _offset = offset;
+        _size = size;
+    }
+
+    @Override
+    public int compareTo(Delayed o) {
+
+        if (o instanceof DownloadJob) {
+            DownloadJob job = (DownloadJob)o;
+            int comp = Long.compare(_notBefore, job._notBefore);
+            if (comp == 0) {
+                comp = Long.compare(job._estimatedSize, _estimatedSize);
+            }
+            return comp;
+        }
+        return Long.compare(
+                this.getDelay(TimeUnit.MILLISECONDS),
+                o.getDelay(TimeUnit.MILLISECONDS)
+        );
+    }
+
+    public Dataset dataset() {
+
+        return _dataset;
+    }
+
+    public String domain() {
+
+        return _dataset.domain();
+    }
+
+    /**
+     * Postpone the job by the given number of milliseconds.
+     *
+     * @param delay
+     */
+    public void delay(long delay) {
+
+        _notBefore = System.currentTimeMillis() + delay;
+    }
+
+    /**
+     * Estimated size of the downloaded file in bytes (zero if unknown).
+     *
+     * @return
+     */
+    public long estimatedSize() {
+
+        return _estimatedSize;
+    }
+
+    /**
+     * Record a failed attempt. Returns the total number of failed attempts.
+     *
+     * @return
+     */
+    public int fail() {
+
+        return ++_attempts;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+
+        return unit.convert(
+                _notBefore - System.currentTimeMillis(),
+                TimeUnit.MILLISECONDS
+        );
+    }
+
+    public String identifier() {
+
+        return _dataset.identifier();
+    }
+
+    /**
+     * Number of bytes received from the server at the last checkpoint.
+     *
+     * @return
+     */
+    public long offset() {
+
+        return _offset;
+    }
+
+    public Map<String, String> properties() {
+
+        return _properties;
+    }
+
+    /**
+     * Restore the number of failed attempts for a job that was read from the
+     * download journal.
+     *
+     * @param attempts
+     */
+    void setAttempts(int attempts) {
+
+        _attempts = attempts;
+    }
+
+    public void setEstimatedSize(long size) {
+
+        _estimatedSize = size;
+    }
+
+    public void setProperty(String key, String value) {
+
+        _properties.put(key, value);
+    }
+
+    /**
+     * Size of the partial output file at the last checkpoint.
+     *
+     * @return
+     */
+    public long size() {
+
+        return _size;
+    }
+
+    @Override
+    public String toString() {
+
+        return _dataset.toString();
+    }
+
+    public String url() {
+
+        return _url;
+    }
+}
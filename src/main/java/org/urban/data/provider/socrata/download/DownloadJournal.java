@@ -0,0 +1,287 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.provider.socrata.download;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import org.urban.data.core.util.FileSystem;
+import org.urban.data.provider.socrata.db.Dataset;
+
+/**
+ * Persistent journal of download jobs. The journal is an append-only
+ * tab-delimited file. Each line records a state change for a job:
+ *
+ * 1) domain
+ * 2) dataset identifier
+ * 3) download date
+ * 4) job state (P = pending, I = in-flight, D = done, F = failed)
+ * 5) number of failed attempts
+ * 6) number of bytes received at the last checkpoint
+ * 7) size of the partial output file at the last checkpoint
+ * 8) download Url
+ *
+ * The journal is created with the full list of pending jobs for a download
+ * run. The first line of the journal records the parameters of the run. The
+ * last line for a job overrides all previous lines for the same job. When a
+ * download run is restarted with the same parameters the journal is used to
+ * resume all jobs that have not been finished. Once all jobs are done or
+ * failed the journal is renamed and no longer resumed.
+ *
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class DownloadJournal implements AutoCloseable {
+
+    public static final String STATE_DONE = "D";
+    public static final String STATE_FAILED = "F";
+    public static final String STATE_INFLIGHT = "I";
+    public static final String STATE_PENDING = "P";
+
+    private static final String PARAMETERS = "#parameters";
+
+    private final PrintWriter _out;
+
+    public DownloadJournal(File file) throws java.io.IOException {
+
+        FileSystem.createParentFolder(file);
+        _out = FileSystem.openPrintWriter(file, true);
+    }
+
+    @Override
+    public void close() {
+
+        _out.close();
+    }
+
+    public void done(DownloadJob job) {
+
+        this.write(job, STATE_DONE);
+    }
+
+    public void failed(DownloadJob job) {
+
+        this.write(job, STATE_FAILED);
+    }
+
+    public void inFlight(DownloadJob job) {
+
+        this.write(job, STATE_INFLIGHT);
+    }
+
+    public void pending(DownloadJob job) {
+
+        this.write(job, STATE_PENDING);
+    }
+
+    /**
+     * Read the journal file. Returns the last recorded state for each job in
+     * the order in which jobs were first added to the journal.
+     *
+     * @param file
+     * @return
+     * @throws java.io.IOException
+     */
+    public static LinkedHashMap<String, String[]> read(File file) throws java.io.IOException {
+
+        LinkedHashMap<String, String[]> jobs = new LinkedHashMap<>();
+        if (file.exists()) {
+            try (BufferedReader in = FileSystem.openReader(file)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] tokens = line.split("\t");
+                    if (tokens.length < 8) {
+                        // Ignore lines that were not written completely
+                        continue;
+                    }
+                    jobs.put(tokens[0] + "#" + tokens[1] + "#" + tokens[2], tokens);
+                }
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Get all jobs in the journal that are either pending or in-flight. For
+     * in-flight jobs the last checkpoint is restored.
+     *
+     * @param file
+     * @return
+     * @throws java.io.IOException
+     */
+    public static List<DownloadJob> unfinished(File file) throws java.io.IOException {
+
+        List<DownloadJob> result = new ArrayList<>();
+        for (String[] tokens : read(file).values()) {
+            String state = tokens[3];
+            if ((state.equals(STATE_PENDING)) || (state.equals(STATE_INFLIGHT))) {
+                DownloadJob job = new DownloadJob(
+                        new Dataset(tokens[1], tokens[0], tokens[2]),
+                        tokens[7]
+                );
+                job.setAttempts(Integer.parseInt(tokens[4]));
+                if (state.equals(STATE_INFLIGHT)) {
+                    job.checkpoint(
+                            Long.parseLong(tokens[5]),
+                            Long.parseLong(tokens[6])
+                    );
+                }
+                result.add(job);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Rename the journal file if all jobs in the journal are done or failed
+     * (see finishedFile). The next download run for the same date then
+     * compiles a new list of jobs. Returns false if the journal contains
+     * unfinished jobs.
+     *
+     * @param file
+     * @return
+     * @throws java.io.IOException
+     */
+    public static boolean finish(File file) throws java.io.IOException {
+
+        if (!unfinished(file).isEmpty()) {
+            return false;
+        }
+        Files.move(
+                file.toPath(),
+                finishedFile(file).toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE
+        );
+        return true;
+    }
+
+    /**
+     * File that a journal is renamed to once all of its jobs have finished.
+     *
+     * @param file
+     * @return
+     */
+    public static File finishedFile(File file) {
+
+        return new File(file.getParentFile(), file.getName() + ".done");
+    }
+
+    /**
+     * Get the parameters of the download run that created the journal.
+     * Returns null if the journal does not exist or does not record any
+     * parameters.
+     *
+     * @param file
+     * @return
+     * @throws java.io.IOException
+     */
+    public static String parameters(File file) throws java.io.IOException {
+
+        if (!file.exists()) {
+            return null;
+        }
+        try (BufferedReader in = FileSystem.openReader(file)) {
+            String line = in.readLine();
+            if ((line != null) && (line.startsWith(PARAMETERS + "\t"))) {
+                return line.substring(PARAMETERS.length() + 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Count the number of jobs in the journal for each state.
+     *
+     * @param file
+     * @return
+     * @throws java.io.IOException
+     */
+    public static HashMap<String, Integer> stats(File file) throws java.io.IOException {
+
+        HashMap<String, Integer> result = new HashMap<>();
+        for (String[] tokens : read(file).values()) {
+            String state = tokens[3];
+            if (result.containsKey(state)) {
+                result.put(state, result.get(state) + 1);
+            } else {
+                result.put(state, 1);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Create a new journal file for a download run with the given parameters
+     * that contains all given jobs as pending. The journal is written to a
+     * temporary file first and then moved into place. A journal file
+     * therefore either contains the full list of jobs for a download run or
+     * does not exist at all.
+     *
+     * @param file
+     * @param parameters
+     * @param jobs
+     * @throws java.io.IOException
+     */
+    public static void create(
+            File file,
+            String parameters,
+            List<DownloadJob> jobs
+    ) throws java.io.IOException {
+
+        FileSystem.createParentFolder(file);
+        File tmpFile = new File(file.getParentFile(), "tmp." + file.getName());
+        try (PrintWriter out = FileSystem.openPrintWriter(tmpFile)) {
+            out.println(PARAMETERS + "\t" + parameters.replace('\t', ' '));
+            for (DownloadJob job : jobs) {
+                out.println(line(job, STATE_PENDING));
+            }
+            if (out.checkError()) {
+                throw new java.io.IOException("Error writing " + tmpFile.getName());
+            }
+        }
+        Files.move(
+                tmpFile.toPath(),
+                file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE
+        );
+    }
+
+    private static String line(DownloadJob job, String state) {
+
+        Dataset dataset = job.dataset();
+        return dataset.domain() + "\t" +
+                dataset.identifier() + "\t" +
+                dataset.downloadDate() + "\t" +
+                state + "\t" +
+                job.attempts() + "\t" +
+                job.offset() + "\t" +
+                job.size() + "\t" +
+                job.url();
+    }
+
+    public synchronized void write(DownloadJob job, String state) {
+
+        _out.println(line(job, state));
+        _out.flush();
+    }
+}
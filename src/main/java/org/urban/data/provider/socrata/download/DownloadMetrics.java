@@ -0,0 +1,136 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.provider.socrata.download;
+
+import java.util.Arrays;
+import org.urban.data.core.util.FileSystem;
+
+/**
+ * Collect statistics for a download run. Maintains the number of successful
+ * and failed transfers, the number of retries, the total number of bytes
+ * received, and the duration of every successful transfer.
+ *
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class DownloadMetrics {
+
+    private long _bytes = 0;
+    private int _failures = 0;
+    private long[] _latencies = new long[1024];
+    private int _retries = 0;
+    private final long _start;
+    private int _successes = 0;
+
+    public DownloadMetrics() {
+
+        _start = System.currentTimeMillis();
+    }
+
+    public synchronized long bytes() {
+
+        return _bytes;
+    }
+
+    /**
+     * Elapsed time in milliseconds since the metrics object was created.
+     *
+     * @return
+     */
+    public long elapsed() {
+
+        return System.currentTimeMillis() - _start;
+    }
+
+    public synchronized void failure() {
+
+        _failures++;
+    }
+
+    public synchronized int failures() {
+
+        return _failures;
+    }
+
+    /**
+     * Get the transfer duration (in milliseconds) at the given percentile
+     * (between 0 and 100). The result is 0 if no transfer has been recorded.
+     *
+     * @param percentile
+     * @return
+     */
+    public synchronized long latency(double percentile) {
+
+        if (_successes == 0) {
+            return 0;
+        }
+        long[] values = Arrays.copyOf(_latencies, _successes);
+        Arrays.sort(values);
+        int index = (int)Math.ceil((percentile / 100.0) * values.length) - 1;
+        return values[Math.max(0, Math.min(index, values.length - 1))];
+    }
+
+    public synchronized void retry() {
+
+        _retries++;
+    }
+
+    public synchronized int retries() {
+
+        return _retries;
+    }
+
+    /**
+     * Record a successful transfer of the given number of bytes that took
+     * the given number of milliseconds.
+     *
+     * @param bytes
+     * @param millis
+     */
+    public synchronized void success(long bytes, long millis) {
+
+        if (_successes == _latencies.length) {
+            _latencies = Arrays.copyOf(_latencies, _latencies.length * 2);
+        }
+        _latencies[_successes++] = millis;
+        _bytes += Math.max(0, bytes);
+    }
+
+    public synchronized int successes() {
+
+        return _successes;
+    }
+
+    @Override
+    public synchronized String toString() {
+
+        double seconds = Math.max(1, this.elapsed()) / 1000.0;
+        return String.format(
+                "%d downloaded, %d failed, %d retries, %s in %.1f s " +
+                "(%.2f datasets/s, %.2f MB/s, p50=%d ms, p95=%d ms, p99=%d ms, max=%d ms)",
+                _successes,
+                _failures,
+                _retries,
+                FileSystem.humanReadableByteCount(_bytes),
+                seconds,
+                _successes / seconds,
+                (_bytes / (1024.0 * 1024.0)) / seconds,
+                this.latency(50),
+                this.latency(95),
+                this.latency(99),
+                this.latency(100)
+        );
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.provider.socrata.download;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import org.urban.data.core.util.FileSystem;
+import org.urban.data.provider.socrata.db.Dataset;
+
+/**
+ * Download profile that specifies column projections and row filters for
+ * datasets. The profile is read from a tab-delimited file with four columns:
+ * 
+ * 1) domain (or * for all domains)
+ * 2) dataset identifier (or * for all datasets in the domain)
+ * 3) $select clause (empty for all columns)
+ * 4) $where clause (empty for all rows)
+ * 
+ * Empty lines and lines that start with # are ignored. If several entries
+ * match a dataset the most specific one is used. An entry with an empty
+ * $select and an empty $where clause excludes the matching datasets from
+ * any less specific projection. These datasets are downloaded in full.
+ * 
+ * Datasets that have a projection are downloaded via the SODA API. The
+ * $select and $where clauses are recorded as properties of the downloaded
+ * version in the database to distinguish it from full snapshots.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class DownloadProfile {
+    
+    public static final String PROPERTY_SELECT = "select";
+    public static final String PROPERTY_WHERE = "where";
+    
+    private static final String WILDCARD = "*";
+    
+    /**
+     * Column projection and row filter for a dataset.
+     */
+    public static class Projection {
+        
+        private final String _select;
+        private final String _where;
+        
+        public Projection(String select, String where) {
+            
+            _select = select;
+            _where = where;
+        }
+        
+        /**
+         * Test if the given version of a dataset was downloaded with this
+         * projection.
+         * 
+         * @param dataset
+         * @return 
+         */
+        public boolean matches(Dataset dataset) {
+            
+            return ((Objects.equals(_select, dataset.getProperty(PROPERTY_SELECT)))
+                    && (Objects.equals(_where, dataset.getProperty(PROPERTY_WHERE))));
+        }
+        
+        public String select() {
+            
+            return _select;
+        }
+        
+        /**
+         * Record the projection in the properties of a download job.
+         * 
+         * @param job 
+         */
+        public void setProperties(DownloadJob job) {
+            
+            if (_select != null) {
+                job.setProperty(PROPERTY_SELECT, _select);
+            }
+            if (_where != null) {
+                job.setProperty(PROPERTY_WHERE, _where);
+            }
+        }
+        
+        @Override
+        public String toString() {
+            
+            return "$select=" + _select + " $where=" + _where;
+        }
+        
+        public String where() {
+            
+            return _where;
+        }
+    }
+    
+    private final HashMap<String, HashMap<String, Projection>> _projections;
+    
+    public DownloadProfile(File file) throws java.io.IOException {
+        
+        _projections = new HashMap<>();
+        
+        try (BufferedReader in = FileSystem.openReader(file)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if ((line.trim().isEmpty()) || (line.startsWith("#"))) {
+                    continue;
+                }
+                String[] tokens = line.split("\t", -1);
+                if (tokens.length < 3) {
+                    throw new java.io.IOException("Invalid profile entry: " + line);
+                }
+                String select = tokens[2].trim();
+                String where = null;
+                if (tokens.length > 3) {
+                    where = tokens[3].trim();
+                }
+                if (!_projections.containsKey(tokens[0])) {
+                    _projections.put(tokens[0], new HashMap<>());
+                }
+                if ((where != null) && (where.isEmpty())) {
+                    where = null;
+                }
+                // An empty projection is recorded as null. Matching datasets
+                // are downloaded like datasets that are not in the profile.
+                Projection projection = null;
+                if ((!select.isEmpty()) || (where != null)) {
+                    projection = new Projection(
+                            (select.isEmpty()) ? null : select,
+                            where
+                    );
+                }
+                _projections.get(tokens[0]).put(tokens[1], projection);
+            }
+        }
+    }
+    
+    /**
+     * Test if the given version of a dataset is a projection, i.e., not a full
+     * snapshot of the dataset.
+     * 
+     * @param dataset
+     * @return 
+     */
+    public static boolean isProjection(Dataset dataset) {
+        
+        return ((dataset.getProperty(PROPERTY_SELECT) != null)
+                || (dataset.getProperty(PROPERTY_WHERE) != null));
+    }
+    
+    /**
+     * Get the projection for a dataset. The result is null if the dataset is
+     * not included in the profile or if its entry has an empty projection.
+     * 
+     * @param domain
+     * @param dataset
+     * @return 
+     */
+    public Projection get(String domain, String dataset) {
+        
+        for (String key : new String[]{domain, WILDCARD}) {
+            Map<String, Projection> datasets = _projections.get(key);
+            if (datasets != null) {
+                if (datasets.containsKey(dataset)) {
+                    return datasets.get(dataset);
+                } else if (datasets.containsKey(WILDCARD)) {
+                    return datasets.get(WILDCARD);
+                }
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Get the projection for a download job. The result is null if the
+     * dataset is not included in the profile or if its entry has an empty
+     * projection.
+     * 
+     * @param job
+     * @return 
+     */
+    public Projection get(DownloadJob job) {
+        
+        return this.get(job.domain(), job.identifier());
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.provider.socrata.download;
+
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Queue of pending download jobs. Jobs that are rescheduled for a retry become
+ * available again once their delay has expired.
+ *
+ * The queue keeps track of the number of jobs that have not been finished yet.
+ * This includes jobs that are currently being processed. A worker that takes a
+ * job from the queue has to call either done() or retry() for the job.
+ *
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class DownloadQueue {
+
+    private static final long POLL_INTERVAL = 500;
+
+    private final AtomicInteger _pending = new AtomicInteger(0);
+    private final DelayQueue<DownloadJob> _queue = new DelayQueue<>();
+
+    public void add(DownloadJob job) {
+
+        _pending.incrementAndGet();
+        _queue.add(job);
+    }
+
+    /**
+     * Mark a job that was taken from the queue as finished.
+     *
+     * @param job
+     */
+    public void done(DownloadJob job) {
+
+        _pending.decrementAndGet();
+    }
+
+    /**
+     * Number of unfinished jobs.
+     *
+     * @return
+     */
+    public int pending() {
+
+        return _pending.get();
+    }
+
+    /**
+     * Put a job that was taken from the queue back into the queue. The job
+     * will not be available before the given delay (in milliseconds) has
+     * passed.
+     *
+     * @param job
+     * @param delay
+     */
+    public void retry(DownloadJob job, long delay) {
+
+        job.delay(delay);
+        _queue.add(job);
+    }
+
+    public int size() {
+
+        return _queue.size();
+    }
+
+    /**
+     * Get the next job that is ready to run. Blocks while there are jobs that
+     * are delayed or still being processed by other workers. Returns null if
+     * all jobs have been finished.
+     *
+     * @return
+     * @throws java.lang.InterruptedException
+     */
+    public DownloadJob take() throws java.lang.InterruptedException {
+
+        while (_pending.get() > 0) {
+            DownloadJob job = _queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            if (job != null) {
+                return job;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.provider.socrata.download;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Model for the schedule of a download run. Downloads are started
+ * longest-processing-time-first (based on their estimated size) by the
+ * download queue. Whenever a worker becomes idle it takes the largest
+ * remaining download. Small downloads therefore fill the gaps at the end of
+ * the run instead of a large download starting last.
+ *
+ * The model predicts the makespan of a run under the assumption that the
+ * transfer time of a download is proportional to its size. It is used to
+ * compare the predicted makespan of the size-aware schedule with the makespan
+ * of a schedule in catalog order and with the actual makespan of the run.
+ *
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class DownloadSchedule {
+
+    private long _busy = 0;
+    private long _bytes = 0;
+    private final List<Long> _sizes = new ArrayList<>();
+    private final int _workers;
+
+    /**
+     * Initialize the schedule for the given download jobs (in catalog order)
+     * and number of workers.
+     *
+     * @param jobs
+     * @param workers
+     */
+    public DownloadSchedule(List<DownloadJob> jobs, int workers) {
+
+        for (DownloadJob job : jobs) {
+            _sizes.add(job.estimatedSize());
+        }
+        _workers = Math.max(1, workers);
+    }
+
+    /**
+     * Record a finished download. The size is the size of the output file
+     * (which is what the estimates are based on) and the duration is the
+     * transfer time in milliseconds.
+     *
+     * @param size
+     * @param millis
+     */
+    public synchronized void finished(long size, long millis) {
+
+        _bytes += size;
+        _busy += millis;
+    }
+
+    /**
+     * Makespan for list scheduling of jobs with the given sizes in the given
+     * order. Each job is assigned to the worker with the smallest load.
+     *
+     * @param sizes
+     * @param workers
+     * @return
+     */
+    public static long makespan(List<Long> sizes, int workers) {
+
+        PriorityQueue<Long> loads = new PriorityQueue<>();
+        for (int iWorker = 0; iWorker < workers; iWorker++) {
+            loads.add(0L);
+        }
+        long makespan = 0;
+        for (long size : sizes) {
+            long load = loads.poll() + size;
+            makespan = Math.max(makespan, load);
+            loads.add(load);
+        }
+        return makespan;
+    }
+
+    /**
+     * Predicted makespan (in estimated bytes) for the size-aware schedule.
+     *
+     * @return
+     */
+    public long lpt() {
+
+        List<Long> sizes = new ArrayList<>(_sizes);
+        Collections.sort(sizes, Collections.reverseOrder());
+        return makespan(sizes, _workers);
+    }
+
+    /**
+     * Lower bound for the makespan (in estimated bytes) of any schedule.
+     *
+     * @return
+     */
+    public long lowerBound() {
+
+        long total = 0;
+        long max = 0;
+        for (long size : _sizes) {
+            total += size;
+            max = Math.max(max, size);
+        }
+        return Math.max(max, (total + _workers - 1) / _workers);
+    }
+
+    /**
+     * Predicted makespan (in estimated bytes) for downloading in catalog
+     * order.
+     *
+     * @return
+     */
+    public long sequential() {
+
+        return makespan(_sizes, _workers);
+    }
+
+    /**
+     * Compare the predicted makespans with the actual makespan of a run. The
+     * estimated sizes are converted into transfer times using the average
+     * throughput of a single transfer in the run.
+     *
+     * @param elapsed Duration of the run in milliseconds
+     * @return
+     */
+    public synchronized String report(long elapsed) {
+
+        double rate = 0;
+        if (_busy > 0) {
+            rate = (double)_bytes / (double)_busy;
+        }
+        return String.format(
+                "predicted makespan %s (size-aware), %s (catalog order), " +
+                "lower bound %s, actual %.1f s",
+                seconds(this.lpt(), rate),
+                seconds(this.sequential(), rate),
+                seconds(this.lowerBound(), rate),
+                elapsed / 1000.0
+        );
+    }
+
+    private static String seconds(long bytes, double bytesPerMilli) {
+
+        if (bytesPerMilli <= 0) {
+            return "n/a";
+        }
+        return String.format("%.1f s", (bytes / bytesPerMilli) / 1000.0);
+    }
+}
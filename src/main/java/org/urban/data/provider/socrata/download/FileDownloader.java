@@ -0,0 +1,341 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.provider.socrata.download;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.input.TeeInputStream;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.urban.data.core.util.FileSystem;
+
+/**
+ * Download a dataset file. The data is written to a partial file first that
+ * is renamed once the transfer is complete. A file with the final name
+ * therefore always contains a complete download.
+ *
+ * Long transfers are checkpointed. At each checkpoint the current gzip member
+ * of the output file is finished and the number of received bytes and the
+ * size of the partial file are recorded in the download journal. An
+ * interrupted transfer is resumed from the last checkpoint by truncating the
+ * partial file and requesting the remaining bytes with a range request. If the
+ * server does not support range requests (or rejects the range) the transfer
+ * starts over.
+ *
+ * For gzip output files the downloader asks the server for a compressed
+ * response. If the server sends gzip content the compressed bytes are written
+ * to the output file as they are, i.e., without decompressing and compressing
+ * the data again. The gzip stream is decompressed on the fly (and the result
+ * discarded) to verify that the received content is complete and not
+ * corrupted. Compressed transfers are not checkpointed since a partial gzip
+ * member cannot be verified when resuming.
+ *
+ * If a transfer watchdog is given all transfers are monitored by the watchdog.
+ * Otherwise, the default connect and read timeouts are used.
+ *
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class FileDownloader {
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+    public static final long CHECKPOINT_INTERVAL = 64L * 1024L * 1024L;
+
+    private final DownloadJournal _journal;
+    private final TransferWatchdog _watchdog;
+
+    public FileDownloader(DownloadJournal journal, TransferWatchdog watchdog) {
+
+        _journal = journal;
+        _watchdog = watchdog;
+    }
+
+    public FileDownloader(DownloadJournal journal) {
+
+        this(journal, null);
+    }
+
+    public FileDownloader() {
+
+        this(null);
+    }
+
+    /**
+     * Download the file for the given job. Returns the number of bytes that
+     * were received from the server. The result is -1 if the output file
+     * already existed.
+     *
+     * @param job
+     * @param outputFile
+     * @return
+     * @throws java.io.IOException
+     */
+    public long download(DownloadJob job, File outputFile) throws java.io.IOException {
+
+        FileSystem.createParentFolder(outputFile);
+
+        if (outputFile.exists()) {
+            return -1;
+        }
+
+        File partFile = partFile(outputFile);
+        if ((job.offset() > 0) && (partFile.length() < job.size())) {
+            job.checkpoint(0, 0);
+        }
+
+        boolean compress = outputFile.getName().endsWith(".gz");
+
+        HttpURLConnection con;
+        con = (HttpURLConnection)new URL(job.url()).openConnection();
+        if (job.offset() > 0) {
+            con.setRequestProperty("Range", "bytes=" + job.offset() + "-");
+        } else if (compress) {
+            // Byte ranges for resumed transfers refer to the uncompressed
+            // content. Compressed content is only requested for new
+            // transfers.
+            con.setRequestProperty("Accept-Encoding", "gzip");
+        }
+
+        TransferWatchdog.Transfer transfer = null;
+        if (_watchdog != null) {
+            transfer = _watchdog.start(job, con);
+        } else {
+            con.setConnectTimeout(TransferWatchdog.DEFAULT_CONNECTTIMEOUT);
+            con.setReadTimeout(TransferWatchdog.DEFAULT_READTIMEOUT);
+        }
+
+        long received;
+        try {
+            // The transfer starts over unless the server sends the requested
+            // range. This includes error responses to a range request. The
+            // partial file is then discarded and the next attempt does not
+            // send the same range again.
+            if (con.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                job.checkpoint(0, 0);
+            }
+            try (InputStream in = this.open(con, transfer)) {
+                if ("gzip".equalsIgnoreCase(con.getContentEncoding())) {
+                    if (compress) {
+                        received = this.passthrough(in, partFile);
+                    } else {
+                        received = this.write(job, new GZIPInputStream(in, BUFFER_SIZE), partFile, false);
+                    }
+                } else {
+                    received = this.write(job, in, partFile, compress);
+                }
+            }
+        } catch (java.io.IOException ex) {
+            // Keep the partial file only if it can be used to resume the
+            // transfer.
+            if (job.offset() == 0) {
+                partFile.delete();
+            }
+            if ((transfer != null) && (transfer.abortReason() != null)) {
+                throw new TransferAbortedException(transfer.abortReason(), ex);
+            }
+            throw ex;
+        } finally {
+            if (transfer != null) {
+                _watchdog.finish(transfer);
+            }
+            con.disconnect();
+        }
+
+        Files.move(
+                partFile.toPath(),
+                outputFile.toPath(),
+                StandardCopyOption.ATOMIC_MOVE
+        );
+
+        return received;
+    }
+
+    private InputStream open(
+            HttpURLConnection con,
+            TransferWatchdog.Transfer transfer
+    ) throws java.io.IOException {
+
+        InputStream in = con.getInputStream();
+        if (transfer != null) {
+            in = transfer.wrap(in);
+        }
+        return in;
+    }
+
+    private OutputStream open(FileOutputStream fos, boolean compress) throws java.io.IOException {
+
+        OutputStream out = new CloseShieldOutputStream(fos);
+        if (compress) {
+            out = new GZIPOutputStream(out, BUFFER_SIZE);
+        }
+        return out;
+    }
+
+    /**
+     * Write a gzip response to the partial file without recompressing it.
+     * The content is decompressed while it is written to verify the gzip
+     * checksums. Returns the number of (compressed) bytes that were received.
+     *
+     * @param in
+     * @param partFile
+     * @return
+     * @throws java.io.IOException
+     */
+    private long passthrough(InputStream in, File partFile) throws java.io.IOException {
+
+        CountingInputStream counter = new CountingInputStream(in);
+        try (OutputStream out = new BufferedOutputStream(
+                new FileOutputStream(partFile),
+                BUFFER_SIZE
+        )) {
+            InputStream tee = new TeeInputStream(counter, out);
+            try (InputStream gz = new GZIPInputStream(
+                    new CloseShieldInputStream(tee),
+                    BUFFER_SIZE
+            )) {
+                IOUtils.copyLarge(gz, NullOutputStream.NULL_OUTPUT_STREAM);
+            }
+            // Copy any remaining bytes that were not consumed by the
+            // decompressor.
+            IOUtils.copyLarge(tee, NullOutputStream.NULL_OUTPUT_STREAM);
+        }
+        return counter.getByteCount();
+    }
+
+    /**
+     * Partial file that is used while the output file is being downloaded.
+     *
+     * @param file
+     * @return
+     */
+    public static File partFile(File file) {
+
+        return new File(file.getAbsolutePath() + ".part");
+    }
+
+    /**
+     * Verify the output files for a job that was in-flight when a previous run
+     * was terminated. Returns true if the output file exists and is complete.
+     * If the partial file is consistent with the last checkpoint it is
+     * truncated to the checkpoint size and kept for resuming the transfer.
+     * Invalid files are deleted.
+     *
+     * @param job
+     * @param outputFile
+     * @return
+     */
+    public boolean verify(DownloadJob job, File outputFile) {
+
+        if (outputFile.exists()) {
+            if (isComplete(outputFile) >= 0) {
+                return true;
+            }
+            outputFile.delete();
+        }
+
+        File partFile = partFile(outputFile);
+        if ((job.offset() > 0) && (partFile.length() >= job.size())) {
+            try {
+                try (RandomAccessFile file = new RandomAccessFile(partFile, "rw")) {
+                    file.setLength(job.size());
+                }
+                long length = job.offset();
+                if (outputFile.getName().endsWith(".gz")) {
+                    try (InputStream in = new GZIPInputStream(
+                            new FileInputStream(partFile)
+                    )) {
+                        length = IOUtils.copyLarge(in, NullOutputStream.NULL_OUTPUT_STREAM);
+                    }
+                }
+                if (length == job.offset()) {
+                    return false;
+                }
+            } catch (java.io.IOException ex) {
+            }
+        }
+        job.checkpoint(0, 0);
+        partFile.delete();
+        return false;
+    }
+
+    /**
+     * Read the given file completely. Returns the number of bytes in the
+     * (uncompressed) file or -1 if the file cannot be read. For gzip files
+     * this verifies the checksum of every member.
+     *
+     * @param file
+     * @return
+     */
+    public static long isComplete(File file) {
+
+        try (InputStream in = FileSystem.openFile(file)) {
+            return IOUtils.copyLarge(in, NullOutputStream.NULL_OUTPUT_STREAM);
+        } catch (java.io.IOException ex) {
+            return -1;
+        }
+    }
+
+    private long write(
+            DownloadJob job,
+            InputStream in,
+            File partFile,
+            boolean compress
+    ) throws java.io.IOException {
+
+        boolean append = (job.offset() > 0);
+        long received = job.offset();
+        long lastCheckpoint = received;
+
+        try (FileOutputStream fos = new FileOutputStream(partFile, append)) {
+            if (append) {
+                fos.getChannel().truncate(job.size());
+            }
+            OutputStream out = this.open(fos, compress);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+                received += n;
+                if ((received - lastCheckpoint) >= CHECKPOINT_INTERVAL) {
+                    out.close();
+                    fos.getFD().sync();
+                    job.checkpoint(received, fos.getChannel().size());
+                    if (_journal != null) {
+                        _journal.inFlight(job);
+                    }
+                    lastCheckpoint = received;
+                    out = this.open(fos, compress);
+                }
+            }
+            out.close();
+        }
+
+        return received;
+    }
+}
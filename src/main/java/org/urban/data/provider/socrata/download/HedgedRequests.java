@@ -0,0 +1,300 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.provider.socrata.download;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Execute requests with hedging. If a request has not completed within a
+ * given percentile of the latency of recent requests a duplicate request is
+ * sent and the result of whichever request completes first is used.
+ * 
+ * The number of hedged requests is limited by a budget, i.e., the maximum
+ * fraction of requests that may be duplicated. Hedging starts once latencies
+ * for a minimum number of requests have been observed.
+ * 
+ * The request that loses the race is not cancelled (blocking I/O cannot be
+ * interrupted reliably). Its result is discarded when it completes. This also
+ * allows to measure how much latency hedging saved. The metrics report the
+ * tail latency of the original requests together with the latency that was
+ * observed by the caller.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class HedgedRequests {
+    
+    public static final double DEFAULT_BUDGET = 0.05;
+    public static final int MIN_SAMPLES = 20;
+    public static final int WINDOW = 1000;
+    
+    /**
+     * Keep track of latencies for a window of recent requests.
+     */
+    private class LatencyWindow {
+        
+        private int _count = 0;
+        private final long[] _values;
+        
+        public LatencyWindow(int size) {
+            
+            _values = new long[size];
+        }
+        
+        public synchronized void add(long value) {
+            
+            _values[_count % _values.length] = value;
+            _count++;
+        }
+        
+        public synchronized long percentile(double percentile) {
+            
+            int size = Math.min(_count, _values.length);
+            if (size == 0) {
+                return 0;
+            }
+            long[] values = Arrays.copyOf(_values, size);
+            Arrays.sort(values);
+            int index = (int)Math.ceil((percentile / 100.0) * size) - 1;
+            return values[Math.max(0, Math.min(index, size - 1))];
+        }
+        
+        public synchronized int size() {
+            
+            return Math.min(_count, _values.length);
+        }
+    }
+    
+    /**
+     * State for a request and its duplicate. The first attempt that completes
+     * successfully is the winner.
+     */
+    private class Race {
+        
+        private long _primaryFinish = -1;
+        private final long _start = System.currentTimeMillis();
+        private int _winner = -1;
+        private long _winnerFinish = -1;
+        
+        /**
+         * Record completion of the given attempt. Returns true if the attempt
+         * is the winner.
+         * 
+         * @param attempt
+         * @return 
+         */
+        public synchronized boolean finish(int attempt) {
+            
+            long now = System.currentTimeMillis();
+            if (attempt == 0) {
+                _primaryFinish = now;
+                _primary.add(now - _start);
+            }
+            if (_winner == -1) {
+                _winner = attempt;
+                _winnerFinish = now;
+                _effective.add(now - _start);
+                if (attempt > 0) {
+                    synchronized (HedgedRequests.this) {
+                        _wins++;
+                    }
+                }
+                return true;
+            } else if ((attempt == 0) && (_winner > 0)) {
+                // The duplicate was faster than the original request.
+                synchronized (HedgedRequests.this) {
+                    _saved += (_primaryFinish - _winnerFinish);
+                }
+            }
+            return false;
+        }
+    }
+    
+    private final double _budget;
+    private final LatencyWindow _effective = new LatencyWindow(WINDOW);
+    private final ExecutorService _executor;
+    private int _hedged = 0;
+    private final double _percentile;
+    private final LatencyWindow _primary = new LatencyWindow(WINDOW);
+    private int _requests = 0;
+    private long _saved = 0;
+    private int _wins = 0;
+    
+    /**
+     * Initialize the latency percentile (between 0 and 100) after which a
+     * request is hedged and the maximum fraction of hedged requests.
+     * 
+     * @param percentile
+     * @param budget 
+     */
+    public HedgedRequests(double percentile, double budget) {
+        
+        _percentile = percentile;
+        _budget = budget;
+        _executor = Executors.newCachedThreadPool((Runnable r) -> {
+            Thread thread = new Thread(r, "hedged-request");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    public HedgedRequests(double percentile) {
+        
+        this(percentile, DEFAULT_BUDGET);
+    }
+    
+    /**
+     * Current delay (in milliseconds) after which requests are hedged. The
+     * result is -1 if not enough requests have been observed yet.
+     * 
+     * @return 
+     */
+    public long delay() {
+        
+        if (_primary.size() < MIN_SAMPLES) {
+            return -1;
+        }
+        return _primary.percentile(_percentile);
+    }
+    
+    /**
+     * Execute the given request. If the request is hedged the result of the
+     * request that completes first is returned. The result of the other
+     * request is passed to the discard consumer (e.g., to delete a temporary
+     * file).
+     * 
+     * @param <T>
+     * @param request
+     * @param discard
+     * @return
+     * @throws java.io.IOException 
+     */
+    public <T> T execute(
+            Callable<T> request,
+            Consumer<T> discard
+    ) throws java.io.IOException {
+        
+        synchronized (this) {
+            _requests++;
+        }
+        long delay = this.delay();
+        
+        Race race = new Race();
+        CompletionService<T> service = new ExecutorCompletionService<>(_executor);
+        service.submit(this.attempt(request, discard, race, 0));
+        int pending = 1;
+        
+        java.io.IOException error = null;
+        try {
+            Future<T> future = null;
+            if (delay >= 0) {
+                future = service.poll(delay, TimeUnit.MILLISECONDS);
+                if ((future == null) && (this.hedge())) {
+                    service.submit(this.attempt(request, discard, race, 1));
+                    pending++;
+                }
+            }
+            while (pending > 0) {
+                if (future == null) {
+                    future = service.take();
+                }
+                pending--;
+                try {
+                    return future.get();
+                } catch (ExecutionException ex) {
+                    if (error == null) {
+                        error = toIOException(ex.getCause());
+                    }
+                }
+                future = null;
+            }
+        } catch (java.lang.InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new java.io.InterruptedIOException();
+        }
+        throw error;
+    }
+    
+    private <T> Callable<T> attempt(
+            Callable<T> request,
+            Consumer<T> discard,
+            Race race,
+            int attempt
+    ) {
+        
+        return () -> {
+            T result = request.call();
+            if (!race.finish(attempt)) {
+                if (discard != null) {
+                    discard.accept(result);
+                }
+                // The caller has already received the result of the other
+                // attempt.
+                throw new java.io.IOException("Discarded duplicate response");
+            }
+            return result;
+        };
+    }
+    
+    /**
+     * Check whether the budget allows another hedged request.
+     * 
+     * @return 
+     */
+    private synchronized boolean hedge() {
+        
+        if (_hedged + 1 > _budget * _requests) {
+            return false;
+        }
+        _hedged++;
+        return true;
+    }
+    
+    private static java.io.IOException toIOException(Throwable cause) {
+        
+        if (cause instanceof java.io.IOException) {
+            return (java.io.IOException)cause;
+        }
+        return new java.io.IOException(cause);
+    }
+    
+    @Override
+    public synchronized String toString() {
+        
+        return String.format(
+                "%d requests, %d hedged (%d won), %d ms saved, " +
+                "p50=%d/%d ms, p95=%d/%d ms, p99=%d/%d ms (original/hedged)",
+                _requests,
+                _hedged,
+                _wins,
+                _saved,
+                _primary.percentile(50),
+                _effective.percentile(50),
+                _primary.percentile(95),
+                _effective.percentile(95),
+                _primary.percentile(99),
+                _effective.percentile(99)
+        );
+    }
+}
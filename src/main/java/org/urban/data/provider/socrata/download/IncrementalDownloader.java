@@ -0,0 +1,634 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.provider.socrata.download;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.urban.data.core.util.ExternalSort;
+import org.urban.data.core.util.FileSystem;
+import org.urban.data.provider.socrata.SocrataHelper;
+import org.urban.data.provider.socrata.SodaQuery;
+import org.urban.data.provider.socrata.db.DB;
+import org.urban.data.provider.socrata.db.Dataset;
+
+/**
+ * Incremental download of a dataset via the SODA API. The job Url is the Url
+ * of the dataset resource.
+ * 
+ * If the previous successful download of the dataset was incremental as well,
+ * only the rows that have been added or modified since the last download are
+ * requested (using $where on the :updated_at system field). These rows are
+ * merged with the previous version of the dataset. Rows in the previous
+ * version that have been modified are replaced by their new version at their
+ * original position. All new rows are appended at the end of the file. The
+ * new and modified rows are spooled to disk and sorted by row identifier
+ * (see ExternalSort). Memory use therefore does not depend on the number of
+ * changed rows.
+ * 
+ * Otherwise, all rows of the dataset are downloaded. In both cases the row
+ * identifier and the last modification timestamp of each row are written to
+ * a separate row identifier file next to the dataset file. This file is
+ * required for the next incremental download.
+ * 
+ * The lineage of each download is recorded in the job properties: the mode
+ * (full or delta), the date of the base version, the number of new or modified
+ * rows, the total number of rows, and the largest :updated_at value.
+ * 
+ * Dataset files have field names in the header and values in SODA format
+ * (SODA layout, see DB.layout). The layout is recorded in the job properties.
+ * 
+ * Rows that are deleted from the dataset are not detected by an incremental
+ * download. If the columns of the dataset change, the dataset is downloaded in
+ * full.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class IncrementalDownloader {
+    
+    private static final Logger LOGGER = Logger
+            .getLogger(IncrementalDownloader.class.getName());
+    
+    public static final String MODE_DELTA = "delta";
+    public static final String MODE_FULL = "full";
+    
+    public static final String PROPERTY_BASE = "base";
+    public static final String PROPERTY_DELTA = "delta";
+    public static final String PROPERTY_MODE = "mode";
+    public static final String PROPERTY_ROWS = "rows";
+    public static final String PROPERTY_UPDATED = "updated";
+    
+    public static final String ROW_ID = ":id";
+    public static final String SELECT = ":id,:updated_at,*";
+    public static final String UPDATED_AT = ":updated_at";
+    
+    static final CSVFormat TSV = SocrataHelper.TSV_FORMAT;
+    
+    /**
+     * Positions of the system fields and the data columns in a SODA query
+     * result.
+     */
+    private class Columns {
+        
+        private final int[] _data;
+        private final int _id;
+        private final List<String> _names = new ArrayList<>();
+        private final int _updatedAt;
+        
+        public Columns(List<String> header) throws java.io.IOException {
+            
+            _id = header.indexOf(ROW_ID);
+            _updatedAt = header.indexOf(UPDATED_AT);
+            if ((_id == -1) || (_updatedAt == -1)) {
+                throw new java.io.IOException("Missing system fields in " + header);
+            }
+            _data = new int[header.size() - 2];
+            int index = 0;
+            for (int iColumn = 0; iColumn < header.size(); iColumn++) {
+                if ((iColumn != _id) && (iColumn != _updatedAt)) {
+                    _data[index++] = iColumn;
+                    _names.add(header.get(iColumn));
+                }
+            }
+        }
+        
+        public List<String> values(CSVRecord row) {
+            
+            List<String> values = new ArrayList<>(_data.length);
+            for (int index : _data) {
+                values.add(row.get(index));
+            }
+            return values;
+        }
+    }
+    
+    /**
+     * Writer for a new dataset file and the associated row identifier file.
+     * Both files are written to partial files first. They are renamed when
+     * the writer is committed.
+     */
+    private class SnapshotWriter implements AutoCloseable {
+        
+        private long _count = 0;
+        private final File _dataFile;
+        private final PrintWriter _ids;
+        private final File _idsFile;
+        private String _maxUpdatedAt;
+        private final CSVPrinter _out;
+        
+        public SnapshotWriter(File dataFile, File idsFile, String updatedAt) throws java.io.IOException {
+            
+            _dataFile = dataFile;
+            _idsFile = idsFile;
+            _maxUpdatedAt = updatedAt;
+            _out = new CSVPrinter(writer(FileDownloader.partFile(dataFile)), TSV);
+            _ids = new PrintWriter(writer(FileDownloader.partFile(idsFile)));
+        }
+        
+        @Override
+        public void close() throws java.io.IOException {
+            
+            _out.close();
+            _ids.close();
+        }
+        
+        /**
+         * Rename the partial files. The dataset file is renamed last since
+         * its existence indicates a complete download.
+         * 
+         * @throws java.io.IOException 
+         */
+        public void commit() throws java.io.IOException {
+            
+            this.close();
+            Files.move(
+                    FileDownloader.partFile(_idsFile).toPath(),
+                    _idsFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE
+            );
+            Files.move(
+                    FileDownloader.partFile(_dataFile).toPath(),
+                    _dataFile.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE
+            );
+        }
+        
+        public void discard() {
+            
+            try {
+                this.close();
+            } catch (java.io.IOException ex) {
+            }
+            FileDownloader.partFile(_dataFile).delete();
+            FileDownloader.partFile(_idsFile).delete();
+        }
+        
+        public void header(List<String> columns) throws java.io.IOException {
+            
+            _out.printRecord(columns);
+        }
+        
+        public void row(List<String> values, String id, String updatedAt) throws java.io.IOException {
+            
+            _out.printRecord(values);
+            _ids.println(id + "\t" + updatedAt);
+            if ((_maxUpdatedAt == null) || (_maxUpdatedAt.compareTo(updatedAt) < 0)) {
+                _maxUpdatedAt = updatedAt;
+            }
+            _count++;
+        }
+    }
+    
+    private final HashMap<String, HashMap<String, Dataset>> _bases;
+    private final DB _db;
+    private final TransferWatchdog _watchdog;
+    
+    /**
+     * Initialize the downloader for all datasets that are downloaded at the
+     * given date. Previous versions of datasets are taken from the database.
+     * 
+     * @param db
+     * @param date
+     * @param watchdog
+     * @throws java.io.IOException 
+     */
+    public IncrementalDownloader(
+            DB db,
+            String date,
+            TransferWatchdog watchdog
+    ) throws java.io.IOException {
+        
+        _db = db;
+        _watchdog = watchdog;
+        _bases = db.getLastSuccessful(date);
+    }
+    
+    /**
+     * Get the previous version of the dataset that can be used as the base for
+     * an incremental download. The result is null if no such version exists.
+     * 
+     * @param job
+     * @return 
+     */
+    private Dataset base(DownloadJob job) {
+        
+        HashMap<String, Dataset> datasets = _bases.get(job.domain());
+        if (datasets != null) {
+            Dataset base = datasets.get(job.identifier());
+            if ((base != null) && (base.getProperty(PROPERTY_UPDATED) != null)) {
+                if ((_db.datasetFile(base).exists()) && (_db.rowIdFile(base).exists())) {
+                    return base;
+                }
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Download new and modified rows and merge them with the base version.
+     * Returns the number of bytes received from the server. The result is -1
+     * if the columns of the dataset have changed.
+     * 
+     * @param job
+     * @param base
+     * @param outputFile
+     * @return
+     * @throws java.io.IOException 
+     */
+    private long delta(DownloadJob job, Dataset base, File outputFile) throws java.io.IOException {
+        
+        String updatedAt = base.getProperty(PROPERTY_UPDATED);
+        File baseFile = _db.datasetFile(base);
+        
+        try (
+                ExternalSort delta = new ExternalSort();
+                ExternalSort baseIds = new ExternalSort();
+                ExternalSort replaced = new ExternalSort();
+                ExternalSort added = new ExternalSort()
+        ) {
+            // Download modified rows. Rows with the same timestamp as the last
+            // row of the previous download are included since they may not
+            // all have been seen before. They simply replace their previous
+            // version. Rows are spooled with their identifier and their
+            // position in the result. The row identifier and timestamp are
+            // the first two values of each row.
+            List<Columns> columns = new ArrayList<>();
+            SodaQuery query = new SodaQuery(job.url())
+                    .select(SELECT)
+                    .where(UPDATED_AT + " >= '" + floatingTimestamp(updatedAt) + "'")
+                    .monitor(_watchdog, job);
+            query.execute(new SodaQuery.RowHandler() {
+                private long _position = 0;
+                @Override
+                public void header(List<String> names) throws java.io.IOException {
+                    columns.add(new Columns(names));
+                }
+                @Override
+                public void row(CSVRecord row) throws java.io.IOException {
+                    Columns cols = columns.get(0);
+                    String id = row.get(cols._id);
+                    JsonArray values = new JsonArray();
+                    values.add(id);
+                    values.add(row.get(cols._updatedAt));
+                    for (String value : cols.values(row)) {
+                        values.add(value);
+                    }
+                    delta.add(id + "\t" + position(_position++) + "\t" + values);
+                }
+            });
+            
+            List<String> header = readHeader(baseFile);
+            if ((!columns.isEmpty()) && (!columns.get(0)._names.equals(header))) {
+                LOGGER.log(Level.INFO, "SCHEMA CHANGED {0}", job.url());
+                return -1;
+            }
+            
+            // Sort the row identifiers of the base version by identifier and
+            // join them with the downloaded rows. Modified rows are assigned
+            // the position of their previous version. New rows keep their
+            // position in the query result.
+            try (BufferedReader in = FileSystem.openReader(_db.rowIdFile(base))) {
+                String line;
+                long position = 0;
+                while ((line = in.readLine()) != null) {
+                    String id = line.substring(0, line.indexOf('\t'));
+                    baseIds.add(id + "\t" + position(position++));
+                }
+            }
+            long deltaCount = join(delta, baseIds, replaced, added);
+            
+            SnapshotWriter out = new SnapshotWriter(
+                    outputFile,
+                    _db.rowIdFile(job.dataset()),
+                    updatedAt
+            );
+            try {
+                out.header(header);
+                // Copy the base version. Modified rows are written at the
+                // position of their previous version.
+                try (
+                        CSVParser rows = new CSVParser(reader(baseFile), TSV);
+                        BufferedReader ids = FileSystem.openReader(_db.rowIdFile(base))
+                ) {
+                    Iterator<CSVRecord> it = rows.iterator();
+                    it.next();
+                    String[] modified = split(replaced.next());
+                    long position = 0;
+                    while (it.hasNext()) {
+                        CSVRecord row = it.next();
+                        String line = ids.readLine();
+                        if (line == null) {
+                            throw new java.io.IOException("Row identifier file does not match " + baseFile.getName());
+                        }
+                        if ((modified != null) && (modified[0].equals(position(position)))) {
+                            this.write(out, modified[1]);
+                            modified = split(replaced.next());
+                        } else {
+                            String[] tokens = line.split("\t");
+                            List<String> values = new ArrayList<>(row.size());
+                            for (String value : row) {
+                                values.add(value);
+                            }
+                            out.row(values, tokens[0], tokens[1]);
+                        }
+                        position++;
+                    }
+                }
+                // Append all rows that did not exist in the base version.
+                String line;
+                while ((line = added.next()) != null) {
+                    this.write(out, split(line)[1]);
+                }
+                out.commit();
+            } catch (java.io.IOException | java.lang.RuntimeException ex) {
+                out.discard();
+                throw ex;
+            }
+            job.setProperty(DB.PROPERTY_LAYOUT, DB.LAYOUT_SODA);
+            job.setProperty(PROPERTY_MODE, MODE_DELTA);
+            job.setProperty(PROPERTY_BASE, base.downloadDate());
+            job.setProperty(PROPERTY_DELTA, Long.toString(deltaCount));
+            job.setProperty(PROPERTY_ROWS, Long.toString(out._count));
+            job.setProperty(PROPERTY_UPDATED, out._maxUpdatedAt);
+            
+            return query.bytes();
+        }
+    }
+    
+    /**
+     * Download the dataset for the given job. Returns the number of bytes that
+     * were received from the server. The result is -1 if the output file
+     * already existed.
+     * 
+     * @param job
+     * @param outputFile
+     * @return
+     * @throws java.io.IOException 
+     */
+    public long download(DownloadJob job, File outputFile) throws java.io.IOException {
+        
+        FileSystem.createParentFolder(outputFile);
+        
+        if (outputFile.exists()) {
+            return -1;
+        }
+        
+        // Malformed content in the downloaded or previous version of the
+        // dataset is reported as an I/O error like any other failed download.
+        try {
+            Dataset base = this.base(job);
+            if (base != null) {
+                long received = this.delta(job, base, outputFile);
+                if (received >= 0) {
+                    return received;
+                }
+            }
+            return this.full(job, outputFile);
+        } catch (java.lang.RuntimeException ex) {
+            throw new java.io.IOException(ex);
+        }
+    }
+    
+    /**
+     * Timestamp literal for SoQL queries. SODA returns timestamps for system
+     * fields with a trailing Z that is not accepted for floating timestamps.
+     * 
+     * @param timestamp
+     * @return 
+     */
+    private static String floatingTimestamp(String timestamp) {
+        
+        if (timestamp.endsWith("Z")) {
+            return timestamp.substring(0, timestamp.length() - 1);
+        }
+        return timestamp;
+    }
+    
+    /**
+     * Download all rows of the dataset.
+     * 
+     * @param job
+     * @param outputFile
+     * @return
+     * @throws java.io.IOException 
+     */
+    private long full(DownloadJob job, File outputFile) throws java.io.IOException {
+        
+        SnapshotWriter out = new SnapshotWriter(
+                outputFile,
+                _db.rowIdFile(job.dataset()),
+                null
+        );
+        List<Columns> columns = new ArrayList<>();
+        SodaQuery query = new SodaQuery(job.url())
+                .select(SELECT)
+                .monitor(_watchdog, job);
+        try {
+            query.execute(new SodaQuery.RowHandler() {
+                @Override
+                public void header(List<String> names) throws java.io.IOException {
+                    columns.add(new Columns(names));
+                    out.header(columns.get(0)._names);
+                }
+                @Override
+                public void row(CSVRecord row) throws java.io.IOException {
+                    Columns cols = columns.get(0);
+                    out.row(cols.values(row), row.get(cols._id), row.get(cols._updatedAt));
+                }
+            });
+            out.commit();
+        } catch (java.io.IOException | java.lang.RuntimeException ex) {
+            out.discard();
+            throw ex;
+        }
+        job.setProperty(DB.PROPERTY_LAYOUT, DB.LAYOUT_SODA);
+        job.setProperty(PROPERTY_MODE, MODE_FULL);
+        job.setProperty(PROPERTY_ROWS, Long.toString(out._count));
+        if (out._maxUpdatedAt != null) {
+            job.setProperty(PROPERTY_UPDATED, out._maxUpdatedAt);
+        }
+        return query.bytes();
+    }
+    
+    /**
+     * Join the downloaded rows (sorted by row identifier and position) with
+     * the row identifiers of the base version (sorted by row identifier). If
+     * a row was received more than once the last version is used. Rows that
+     * exist in the base version are added to the replaced rows, prefixed by
+     * their position in the base version. All other rows are added to the
+     * new rows, prefixed by their position in the query result. Returns the
+     * number of distinct rows that were received.
+     * 
+     * @param delta
+     * @param baseIds
+     * @param replaced
+     * @param added
+     * @return
+     * @throws java.io.IOException 
+     */
+    private static long join(
+            ExternalSort delta,
+            ExternalSort baseIds,
+            ExternalSort replaced,
+            ExternalSort added
+    ) throws java.io.IOException {
+        
+        long count = 0;
+        String[] baseRow = split(baseIds.next());
+        String[] row = split3(delta.next());
+        while (row != null) {
+            String id = row[0];
+            String position = row[1];
+            String values = row[2];
+            // Skip all older versions of the row.
+            while (((row = split3(delta.next())) != null) && (row[0].equals(id))) {
+                values = row[2];
+            }
+            while ((baseRow != null) && (baseRow[0].compareTo(id) < 0)) {
+                baseRow = split(baseIds.next());
+            }
+            if ((baseRow != null) && (baseRow[0].equals(id))) {
+                replaced.add(baseRow[1] + "\t" + values);
+            } else {
+                added.add(position + "\t" + values);
+            }
+            count++;
+        }
+        return count;
+    }
+    
+    /**
+     * Fixed-width representation of a row position. Positions are compared
+     * as strings when they are sorted.
+     * 
+     * @param position
+     * @return 
+     */
+    private static String position(long position) {
+        
+        return String.format("%019d", position);
+    }
+    
+    static Reader reader(File file) throws java.io.IOException {
+        
+        return new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(file)),
+                StandardCharsets.UTF_8
+        );
+    }
+    
+    /**
+     * Read the column names from a dataset file.
+     * 
+     * @param file
+     * @return
+     * @throws java.io.IOException 
+     */
+    private static List<String> readHeader(File file) throws java.io.IOException {
+        
+        List<String> header = new ArrayList<>();
+        try (CSVParser parser = new CSVParser(reader(file), TSV)) {
+            Iterator<CSVRecord> it = parser.iterator();
+            if (it.hasNext()) {
+                for (String name : it.next()) {
+                    header.add(name);
+                }
+            }
+        }
+        return header;
+    }
+    
+    /**
+     * Split a sorted line at the first tab. Returns null for null.
+     * 
+     * @param line
+     * @return 
+     */
+    private static String[] split(String line) {
+        
+        if (line == null) {
+            return null;
+        }
+        int pos = line.indexOf('\t');
+        return new String[]{line.substring(0, pos), line.substring(pos + 1)};
+    }
+    
+    /**
+     * Split a downloaded row into row identifier, position and values.
+     * Returns null for null.
+     * 
+     * @param line
+     * @return 
+     */
+    private static String[] split3(String line) {
+        
+        if (line == null) {
+            return null;
+        }
+        String[] tokens = split(line);
+        String[] rest = split(tokens[1]);
+        return new String[]{tokens[0], rest[0], rest[1]};
+    }
+    
+    /**
+     * Write a spooled row (Json array with row identifier, timestamp and
+     * values) to the snapshot.
+     * 
+     * @param out
+     * @param row
+     * @throws java.io.IOException 
+     */
+    private void write(SnapshotWriter out, String row) throws java.io.IOException {
+        
+        JsonArray array = new JsonParser().parse(row).getAsJsonArray();
+        List<String> values = new ArrayList<>(array.size() - 2);
+        for (int iValue = 2; iValue < array.size(); iValue++) {
+            values.add(array.get(iValue).getAsString());
+        }
+        out.row(values, array.get(0).getAsString(), array.get(1).getAsString());
+    }
+    
+    static OutputStreamWriter writer(File file) throws java.io.IOException {
+        
+        return new OutputStreamWriter(
+                new GZIPOutputStream(new FileOutputStream(file)),
+                StandardCharsets.UTF_8
+        );
+    }
+}
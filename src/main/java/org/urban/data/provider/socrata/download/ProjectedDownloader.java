@@ -0,0 +1,118 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.provider.socrata.download;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.urban.data.core.util.FileSystem;
+import org.urban.data.provider.socrata.SocrataDataset;
+import org.urban.data.provider.socrata.SodaQuery;
+import org.urban.data.provider.socrata.db.DB;
+
+/**
+ * Download a projection of a dataset via the SODA API. The $select and $where
+ * clauses are taken from the properties of the download job (see
+ * DownloadProfile). The query result is written to the output file in TSV
+ * format while the result pages are received. The file is in SODA layout
+ * (see DB.layout).
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class ProjectedDownloader {
+    
+    public static final String PROPERTY_ROWS = "rows";
+    
+    private final TransferWatchdog _watchdog;
+    
+    public ProjectedDownloader(TransferWatchdog watchdog) {
+        
+        _watchdog = watchdog;
+    }
+    
+    /**
+     * Test if the given job is a download of a dataset projection.
+     * 
+     * @param job
+     * @return 
+     */
+    public static boolean accepts(DownloadJob job) {
+        
+        return ((job.properties().containsKey(DownloadProfile.PROPERTY_SELECT))
+                || (job.properties().containsKey(DownloadProfile.PROPERTY_WHERE)));
+    }
+    
+    /**
+     * Download the dataset projection for the given job. Returns the number
+     * of bytes that were received from the server. The result is -1 if the
+     * output file already existed.
+     * 
+     * @param job
+     * @param outputFile
+     * @return
+     * @throws java.io.IOException 
+     */
+    public long download(DownloadJob job, File outputFile) throws java.io.IOException {
+        
+        FileSystem.createParentFolder(outputFile);
+        
+        if (outputFile.exists()) {
+            return -1;
+        }
+        
+        SodaQuery query = new SocrataDataset(job.url(), false)
+                .query()
+                .select(job.properties().get(DownloadProfile.PROPERTY_SELECT))
+                .where(job.properties().get(DownloadProfile.PROPERTY_WHERE))
+                .monitor(_watchdog, job);
+        
+        // The partial file is removed if the download fails for any reason.
+        // After a successful download it has been renamed already.
+        File partFile = FileDownloader.partFile(outputFile);
+        long rows;
+        try {
+            try (CSVPrinter out = new CSVPrinter(
+                    IncrementalDownloader.writer(partFile),
+                    IncrementalDownloader.TSV
+            )) {
+                rows = query.execute(new SodaQuery.RowHandler() {
+                    @Override
+                    public void header(List<String> columns) throws java.io.IOException {
+                        out.printRecord(columns);
+                    }
+                    @Override
+                    public void row(CSVRecord row) throws java.io.IOException {
+                        out.printRecord(row);
+                    }
+                });
+            }
+            Files.move(
+                    partFile.toPath(),
+                    outputFile.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE
+            );
+        } finally {
+            partFile.delete();
+        }
+        
+        job.setProperty(DB.PROPERTY_LAYOUT, DB.LAYOUT_SODA);
+        job.setProperty(PROPERTY_ROWS, Long.toString(rows));
+        return query.bytes();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.provider.socrata.download;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Retry policy for failed downloads. Uses exponential backoff with full
+ * jitter, i.e., the delay before the n-th retry is chosen uniformly at random
+ * from the interval [0, min(maxDelay, baseDelay * 2^n)].
+ *
+ * Failures that are not transient (e.g., 404 responses) should not be retried.
+ *
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class RetryPolicy {
+
+    public static final long DEFAULT_BASEDELAY = 5000;
+    public static final long DEFAULT_MAXDELAY = 5 * 60 * 1000;
+
+    private final long _baseDelay;
+    private final int _maxAttempts;
+    private final long _maxDelay;
+
+    public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay) {
+
+        _maxAttempts = Math.max(1, maxAttempts);
+        _baseDelay = baseDelay;
+        _maxDelay = maxDelay;
+    }
+
+    public RetryPolicy(int maxAttempts) {
+
+        this(maxAttempts, DEFAULT_BASEDELAY, DEFAULT_MAXDELAY);
+    }
+
+    /**
+     * Delay in milliseconds before the next attempt for a job that has failed
+     * the given number of times.
+     *
+     * @param attempts
+     * @return
+     */
+    public long delay(int attempts) {
+
+        long cap = _baseDelay;
+        for (int iAttempt = 1; iAttempt < attempts; iAttempt++) {
+            cap = cap * 2;
+            if (cap >= _maxDelay) {
+                break;
+            }
+        }
+        cap = Math.min(cap, _maxDelay);
+        if (cap <= 0) {
+            return 0;
+        }
+        return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    public int maxAttempts() {
+
+        return _maxAttempts;
+    }
+
+    /**
+     * True if a job that has failed the given number of times should be
+     * attempted again.
+     *
+     * @param attempts
+     * @return
+     */
+    public boolean retry(int attempts) {
+
+        return attempts < _maxAttempts;
+    }
+
+    /**
+     * Test whether the exception signals a transient failure. Missing files,
+     * malformed Urls and unknown hosts will not be fixed by trying again.
+     *
+     * @param ex
+     * @return
+     */
+    public boolean isTransient(java.io.IOException ex) {
+
+        return !((ex instanceof java.io.FileNotFoundException)
+                || (ex instanceof java.net.MalformedURLException)
+                || (ex instanceof java.net.UnknownHostException));
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.provider.socrata.download;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import org.urban.data.provider.socrata.db.DB;
+import org.urban.data.provider.socrata.db.Dataset;
+
+/**
+ * Estimate the size of dataset downloads. The estimate for a dataset that has
+ * been downloaded before is the size of the last successfully downloaded file.
+ * For all other datasets the size is estimated from the number of columns in
+ * the catalog and the median number of bytes per column for datasets with a
+ * known size. The estimates are only used to order downloads. Their absolute
+ * values do not need to be accurate.
+ *
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class SizeEstimator {
+
+    private Long _bytesPerColumn = null;
+    private final HashMap<String, Integer> _columns = new HashMap<>();
+    private final DB _db;
+    private final HashMap<String, HashMap<String, Dataset>> _previous;
+    private final List<Double> _samples = new ArrayList<>();
+
+    public SizeEstimator(DB db, String date) throws java.io.IOException {
+
+        _db = db;
+        _previous = db.getLastSuccessful(date);
+    }
+
+    /**
+     * Add the number of columns for a dataset in the catalog.
+     *
+     * @param domain
+     * @param identifier
+     * @param columns
+     */
+    public void add(String domain, String identifier, int columns) {
+
+        _columns.put(key(domain, identifier), columns);
+        long size = this.previousSize(domain, identifier);
+        if ((size > 0) && (columns > 0)) {
+            _samples.add((double)size / (double)columns);
+            _bytesPerColumn = null;
+        }
+    }
+
+    /**
+     * Median number of bytes per column for all datasets with a known size.
+     * Defaults to 1 if no size is known.
+     *
+     * @return
+     */
+    private long bytesPerColumn() {
+
+        if (_bytesPerColumn == null) {
+            if (_samples.isEmpty()) {
+                _bytesPerColumn = 1L;
+            } else {
+                List<Double> values = new ArrayList<>(_samples);
+                Collections.sort(values);
+                _bytesPerColumn = Math.max(1L, Math.round(values.get(values.size() / 2)));
+            }
+        }
+        return _bytesPerColumn;
+    }
+
+    /**
+     * Estimated download size (in bytes) for the given job. The result is
+     * zero if nothing is known about the dataset.
+     *
+     * @param job
+     * @return
+     */
+    public long estimate(DownloadJob job) {
+
+        long size = this.previousSize(job.domain(), job.identifier());
+        if (size > 0) {
+            return size;
+        }
+        Integer columns = _columns.get(key(job.domain(), job.identifier()));
+        if (columns != null) {
+            return columns * this.bytesPerColumn();
+        }
+        return 0;
+    }
+
+    private static String key(String domain, String identifier) {
+
+        return domain + "#" + identifier;
+    }
+
+    /**
+     * Size of the file for the last successful download of a dataset. The
+     * result is zero if the dataset has not been downloaded before.
+     *
+     * @param domain
+     * @param identifier
+     * @return
+     */
+    private long previousSize(String domain, String identifier) {
+
+        HashMap<String, Dataset> datasets = _previous.get(domain);
+        if (datasets != null) {
+            Dataset dataset = datasets.get(identifier);
+            if (dataset != null) {
+                File file = _db.datasetFile(dataset);
+                if (file.exists()) {
+                    return file.length();
+                }
+            }
+        }
+        return 0;
+    }
+}
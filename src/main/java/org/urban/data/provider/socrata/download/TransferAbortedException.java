@@ -0,0 +1,32 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.provider.socrata.download;
+
+/**
+ * Exception that is raised if a transfer was aborted by the transfer watchdog,
+ * e.g., because it exceeded the transfer deadline or was too slow.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class TransferAbortedException extends java.io.IOException {
+    
+    private static final long serialVersionUID = 1L;
+    
+    public TransferAbortedException(String message, Throwable cause) {
+        
+        super(message, cause);
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.urban.data.provider.socrata.download;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.io.input.ProxyInputStream;
+
+/**
+ * Monitor for transfers that are in progress. Sets connect and read timeouts
+ * for every connection and periodically checks all active transfers. A
+ * transfer is aborted if it exceeds the total transfer deadline or if, once
+ * the first bytes have been received, the transfer rate over the last window
+ * falls below the minimum rate. Aborting a transfer closes the connection;
+ * the downloader then raises a TransferAbortedException and the job can be
+ * rescheduled.
+ * 
+ * Transfers that have not received any data for a while are logged as
+ * stalled when they are detected. In addition, the number of active and
+ * stalled transfers is logged at regular intervals.
+ * 
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class TransferWatchdog implements AutoCloseable {
+    
+    private static final Logger LOGGER = Logger
+            .getLogger(TransferWatchdog.class.getName());
+    
+    public static final long CHECK_INTERVAL = 5000;
+    public static final int DEFAULT_CONNECTTIMEOUT = 30 * 1000;
+    public static final long DEFAULT_MAXDURATION = 6L * 60L * 60L * 1000L;
+    public static final long DEFAULT_MINRATE = 1024;
+    public static final int DEFAULT_READTIMEOUT = 10 * 60 * 1000;
+    public static final long DEFAULT_WINDOW = 5 * 60 * 1000;
+    public static final long REPORT_INTERVAL = 60 * 1000;
+    public static final long STALL_THRESHOLD = 60 * 1000;
+    
+    /**
+     * Handle for a transfer that is being monitored.
+     */
+    public class Transfer {
+        
+        private volatile String _abortReason = null;
+        private volatile long _bytes = 0;
+        private final HttpURLConnection _con;
+        private final DownloadJob _job;
+        private volatile long _lastRead;
+        private boolean _stalled = false;
+        private final long _start;
+        private long _windowBytes = 0;
+        private long _windowStart = 0;
+        
+        private Transfer(DownloadJob job, HttpURLConnection con) {
+            
+            _job = job;
+            _con = con;
+            _start = System.currentTimeMillis();
+            _lastRead = _start;
+        }
+        
+        private void abort(String reason) {
+            
+            LOGGER.log(Level.WARNING, "ABORT {0}: {1}", new Object[]{_job.url(), reason});
+            _abortReason = reason;
+            _con.disconnect();
+        }
+        
+        /**
+         * Reason why the transfer was aborted. The result is null if the
+         * transfer was not aborted by the watchdog.
+         * 
+         * @return 
+         */
+        public String abortReason() {
+            
+            return _abortReason;
+        }
+        
+        /**
+         * Number of bytes that have been read so far.
+         * 
+         * @return 
+         */
+        public long bytes() {
+            
+            return _bytes;
+        }
+        
+        public DownloadJob job() {
+            
+            return _job;
+        }
+        
+        /**
+         * Wrap the input stream for the connection to keep track of the
+         * number of bytes that are read.
+         * 
+         * @param in
+         * @return 
+         */
+        public InputStream wrap(InputStream in) {
+            
+            return new ProxyInputStream(in) {
+                @Override
+                protected void beforeRead(int n) throws java.io.IOException {
+                    // Closing the connection does not interrupt a read that
+                    // is blocked on all platforms. Fail the next read in
+                    // that case.
+                    if (_abortReason != null) {
+                        throw new TransferAbortedException(_abortReason, null);
+                    }
+                }
+                @Override
+                protected void afterRead(int n) {
+                    if (n > 0) {
+                        _bytes += n;
+                        _lastRead = System.currentTimeMillis();
+                    }
+                }
+            };
+        }
+    }
+    
+    private final int _connectTimeout;
+    private long _lastReport;
+    private final long _maxDuration;
+    private final long _minRate;
+    private final int _readTimeout;
+    private final ScheduledExecutorService _timer;
+    private final Set<Transfer> _transfers = ConcurrentHashMap.newKeySet();
+    private final long _window;
+    
+    /**
+     * Initialize the timeouts (in milliseconds) and the minimum transfer rate
+     * (in bytes per second). The minimum rate is checked for consecutive
+     * windows of the given length. A value of zero or less disables the
+     * respective check.
+     * 
+     * @param connectTimeout
+     * @param readTimeout
+     * @param maxDuration
+     * @param minRate 
+     * @param window 
+     */
+    public TransferWatchdog(
+            int connectTimeout,
+            int readTimeout,
+            long maxDuration,
+            long minRate,
+            long window
+    ) {
+        
+        _connectTimeout = Math.max(0, connectTimeout);
+        _readTimeout = Math.max(0, readTimeout);
+        _maxDuration = maxDuration;
+        _minRate = minRate;
+        _window = window;
+        
+        _lastReport = System.currentTimeMillis();
+        _timer = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+            Thread thread = new Thread(r, "transfer-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        _timer.scheduleWithFixedDelay(
+                this::check,
+                CHECK_INTERVAL,
+                CHECK_INTERVAL,
+                TimeUnit.MILLISECONDS
+        );
+    }
+    
+    public TransferWatchdog(
+            int connectTimeout,
+            int readTimeout,
+            long maxDuration,
+            long minRate
+    ) {
+        
+        this(connectTimeout, readTimeout, maxDuration, minRate, DEFAULT_WINDOW);
+    }
+    
+    public TransferWatchdog() {
+        
+        this(
+                DEFAULT_CONNECTTIMEOUT,
+                DEFAULT_READTIMEOUT,
+                DEFAULT_MAXDURATION,
+                DEFAULT_MINRATE
+        );
+    }
+    
+    /**
+     * Check all active transfers. Aborts transfers that exceed the deadline
+     * or that are too slow and reports stalled transfers.
+     */
+    private void check() {
+        
+        long now = System.currentTimeMillis();
+        int stalled = 0;
+        for (Transfer transfer : _transfers) {
+            if (transfer._abortReason != null) {
+                continue;
+            }
+            long elapsed = now - transfer._start;
+            if ((_maxDuration > 0) && (elapsed > _maxDuration)) {
+                transfer.abort("exceeded transfer deadline of " + (_maxDuration / 1000) + " s");
+                continue;
+            }
+            long bytes = transfer._bytes;
+            if ((_minRate > 0) && (bytes > 0)) {
+                // The window starts with the first check after the first
+                // bytes were received. Waiting for the first byte is covered
+                // by the read timeout.
+                if (transfer._windowStart == 0) {
+                    transfer._windowStart = now;
+                    transfer._windowBytes = bytes;
+                } else if ((now - transfer._windowStart) >= _window) {
+                    long rate = ((bytes - transfer._windowBytes) * 1000L) / (now - transfer._windowStart);
+                    if (rate < _minRate) {
+                        transfer.abort(
+                                "transfer rate of " + rate +
+                                " bytes/s below minimum of " + _minRate
+                        );
+                        continue;
+                    }
+                    transfer._windowStart = now;
+                    transfer._windowBytes = bytes;
+                }
+            }
+            long idle = now - transfer._lastRead;
+            if (idle >= STALL_THRESHOLD) {
+                stalled++;
+                if (!transfer._stalled) {
+                    LOGGER.log(
+                            Level.WARNING,
+                            "STALLED {0} (no data for {1} s, {2} bytes received)",
+                            new Object[]{transfer._job.url(), idle / 1000, bytes}
+                    );
+                    transfer._stalled = true;
+                }
+            } else {
+                transfer._stalled = false;
+            }
+        }
+        if ((now - _lastReport) >= REPORT_INTERVAL) {
+            if (!_transfers.isEmpty()) {
+                LOGGER.log(
+                        Level.INFO,
+                        "IN-FLIGHT {0} ({1} stalled)",
+                        new Object[]{_transfers.size(), stalled}
+                );
+            }
+            _lastReport = now;
+        }
+    }
+    
+    @Override
+    public void close() {
+        
+        _timer.shutdownNow();
+    }
+    
+    /**
+     * Stop monitoring the given transfer.
+     * 
+     * @param transfer 
+     */
+    public void finish(Transfer transfer) {
+        
+        _transfers.remove(transfer);
+    }
+    
+    /**
+     * Start monitoring a transfer for the given connection. Sets the connect
+     * and read timeout for the connection. Needs to be called before the
+     * connection is opened.
+     * 
+     * @param job
+     * @param con
+     * @return 
+     */
+    public Transfer start(DownloadJob job, HttpURLConnection con) {
+        
+        con.setConnectTimeout(_connectTimeout);
+        con.setReadTimeout(_readTimeout);
+        Transfer transfer = new Transfer(job, con);
+        _transfers.add(transfer);
+        return transfer;
+    }
+    
+    /**
+     * Number of transfers that are currently in progress.
+     * 
+     * @return 
+     */
+    public int size() {
+        
+        return _transfers.size();
+    }
+}
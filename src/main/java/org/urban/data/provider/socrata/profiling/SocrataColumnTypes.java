@@ -18,16 +18,16 @@ package org.urban.data.provider.socrata.profiling;
 import com.google.gson.JsonArray;
 import java.io.File;
 import java.io.PrintWriter;
-import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVPrinter;
 import org.urban.data.core.query.JQuery;
-import org.urban.data.core.query.JsonQuery;
+import org.urban.data.core.query.ResultStream;
 import org.urban.data.core.query.ResultTuple;
 import org.urban.data.core.query.SelectClause;
 import org.urban.data.core.util.FileSystem;
+import org.urban.data.provider.socrata.CatalogQuery;
 
 /**
  * Generate a load file containing Socrata data types for all columns in the
@@ -57,17 +57,10 @@ public class SocrataColumnTypes {
         select.add("types", new JQuery("/resource/columns_datatype"));
         select.add("names", new JQuery("/resource/columns_name"));
         
-        List<ResultTuple> rs = null;
-        try {
-            rs = new JsonQuery(catalogFile).executeQuery(select);
-        } catch (java.io.IOException ex) {
-            LOGGER.log(Level.SEVERE, "QUERY", ex);
-            System.exit(-1);
-        }
-        
         try (
         		PrintWriter out = FileSystem.openPrintWriter(outputFile);
         		CSVPrinter csv = new CSVPrinter(out, CSVFormat.TDF);
+                ResultStream rs = CatalogQuery.query(catalogFile).stream(select, false);
 		) {
             for (ResultTuple row : rs) {
                 String datasetId = row.getAsString("id");
@@ -89,6 +82,9 @@ public class SocrataColumnTypes {
         } catch (java.io.IOException ex) {
             LOGGER.log(Level.SEVERE, "RUN", ex);
             System.exit(-1);
+        } catch (java.io.UncheckedIOException ex) {
+            LOGGER.log(Level.SEVERE, "RUN", ex.getCause());
+            System.exit(-1);
         }
     }
 }
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+import org.urban.data.provider.socrata.CatalogDiff;
+
+/**
+ *
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class CatalogDiffTest {
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    public CatalogDiffTest() {
+    }
+    
+    private String dataset(
+            String id,
+            String domain,
+            String name,
+            String columns,
+            String updated,
+            String description
+    ) {
+        
+        StringBuilder cols = new StringBuilder();
+        StringBuilder types = new StringBuilder();
+        for (String column : columns.split(",")) {
+            if (cols.length() > 0) {
+                cols.append(",");
+                types.append(",");
+            }
+            cols.append("\"").append(column).append("\"");
+            types.append("\"text\"");
+        }
+        return "{\"resource\": {"
+                + "\"id\": \"" + id + "\", "
+                + "\"name\": \"" + name + "\", "
+                + "\"description\": \"" + description + "\", "
+                + "\"columns_field_name\": [" + cols + "], "
+                + "\"columns_datatype\": [" + types + "], "
+                + "\"data_updated_at\": \"" + updated + "\"}, "
+                + "\"classification\": {\"tags\": [\"a\"]}, "
+                + "\"metadata\": {\"domain\": \"" + domain + "\"}}";
+    }
+    
+    private List<String> diff(File from, File to, int bufferSize) throws java.io.IOException {
+        
+        List<String> result = new ArrayList<>();
+        new CatalogDiff(from, to, null, bufferSize).diff((CatalogDiff.Change change) -> {
+            result.add(
+                    change.type() + " " + change.domain() + " "
+                    + change.dataset() + " " + change.details()
+            );
+        });
+        return result;
+    }
+    
+    private File write(String name, String... datasets) throws java.io.IOException {
+        
+        File file = folder.newFile(name);
+        String text = "[\n" + String.join(",\n", datasets) + "\n]";
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+    
+    @Test
+    public void testDiff() throws java.io.IOException {
+        
+        File from = this.write(
+                "from.json",
+                this.dataset("aaaa-0001", "x.org", "A", "c1,c2", "2020-01-01", "d"),
+                this.dataset("aaaa-0002", "x.org", "B", "c1,c2", "2020-01-01", "d"),
+                this.dataset("aaaa-0003", "x.org", "C", "c1,c2", "2020-01-01", "d"),
+                this.dataset("aaaa-0004", "x.org", "D", "c1,c2", "2020-01-01", "d"),
+                this.dataset("aaaa-0005", "x.org", "E", "c1,c2", "2020-01-01", "d"),
+                // The same identifier in a different domain is a different
+                // dataset.
+                this.dataset("aaaa-0005", "y.org", "E", "c1,c2", "2020-01-01", "d")
+        );
+        File to = this.write(
+                "to.json",
+                this.dataset("aaaa-0006", "x.org", "F", "c1", "2020-01-01", "d"),
+                this.dataset("aaaa-0005", "y.org", "E", "c1,c2", "2020-01-01", "d"),
+                this.dataset("aaaa-0004", "x.org", "D", "c2,c3", "2020-02-01", "d"),
+                this.dataset("aaaa-0003", "x.org", "C", "c1,c2", "2020-02-01", "d"),
+                this.dataset("aaaa-0002", "x.org", "B", "c1,c2", "2020-01-01", "new"),
+                this.dataset("aaaa-0005", "x.org", "E", "c1,c2", "2020-01-01", "d")
+        );
+        
+        List<String> expected = Arrays.asList(
+                "REMOVED x.org aaaa-0001 ",
+                "METADATA x.org aaaa-0002 description",
+                "DATA x.org aaaa-0003 2020-01-01 -> 2020-02-01",
+                "COLUMNS x.org aaaa-0004 +c3,-c1",
+                "DATA x.org aaaa-0004 2020-01-01 -> 2020-02-01",
+                "ADDED x.org aaaa-0006 "
+        );
+        for (int bufferSize : new int[]{1, 2, 1000}) {
+            assertEquals(expected, this.diff(from, to, bufferSize));
+        }
+        assertTrue(this.diff(to, to, 1).isEmpty());
+    }
+    
+    @Test
+    public void testDuplicateDatasets() throws java.io.IOException {
+        
+        // A dataset that is listed twice in one catalog must not be reported
+        // as removed or added.
+        String a = this.dataset("aaaa-0001", "x.org", "A", "c1", "2020-01-01", "d");
+        String b = this.dataset("aaaa-0002", "x.org", "B", "c1", "2020-01-01", "d");
+        File from = this.write("from.json", a, b, a);
+        File to = this.write("to.json", b, a, b, b);
+        for (int bufferSize : new int[]{1, 1000}) {
+            assertTrue(this.diff(from, to, bufferSize).isEmpty());
+            assertTrue(this.diff(to, from, bufferSize).isEmpty());
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.urban.data.provider.socrata.download.CircuitBreaker;
+import org.urban.data.provider.socrata.download.RetryPolicy;
+
+/**
+ *
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class CircuitBreakerTest {
+    
+    public CircuitBreakerTest() {
+    }
+
+    @Test
+    public void testOpenAndProbe() throws java.lang.InterruptedException {
+    
+        CircuitBreaker breaker = new CircuitBreaker(2, 50, 1000);
+        
+        assertTrue(breaker.allowRequest("a.gov"));
+        breaker.failure("a.gov");
+        assertTrue(breaker.allowRequest("a.gov"));
+        breaker.failure("a.gov");
+        assertTrue(breaker.isOpen("a.gov"));
+        assertFalse(breaker.allowRequest("a.gov"));
+        assertTrue(breaker.allowRequest("b.gov"));
+        
+        Thread.sleep(60);
+        // Only a single probe is allowed for a half-open circuit.
+        assertTrue(breaker.allowRequest("a.gov"));
+        assertFalse(breaker.allowRequest("a.gov"));
+        // Failed probe re-opens the circuit with a longer interval.
+        breaker.failure("a.gov");
+        assertFalse(breaker.allowRequest("a.gov"));
+        assertTrue(breaker.retryDelay("a.gov") > 50);
+        
+        breaker.success("a.gov");
+        assertFalse(breaker.isOpen("a.gov"));
+        assertTrue(breaker.allowRequest("a.gov"));
+    }
+    
+    @Test
+    public void testRelease() throws java.lang.InterruptedException {
+    
+        CircuitBreaker breaker = new CircuitBreaker(1, 20, 1000);
+        
+        breaker.failure("a.gov");
+        Thread.sleep(30);
+        assertTrue(breaker.allowRequest("a.gov"));
+        assertFalse(breaker.allowRequest("a.gov"));
+        // A probe without an outcome neither closes nor re-opens the
+        // circuit. The next request is allowed to probe the domain.
+        breaker.release("a.gov");
+        assertTrue(breaker.isOpen("a.gov"));
+        assertTrue(breaker.allowRequest("a.gov"));
+        // Releasing a closed circuit has no effect.
+        breaker.release("b.gov");
+        assertFalse(breaker.isOpen("b.gov"));
+    }
+    
+    @Test
+    public void testRetryPolicy() {
+        
+        RetryPolicy policy = new RetryPolicy(3, 100, 250);
+        assertTrue(policy.retry(1));
+        assertTrue(policy.retry(2));
+        assertFalse(policy.retry(3));
+        for (int iAttempt = 1; iAttempt < 10; iAttempt++) {
+            long delay = policy.delay(iAttempt);
+            assertTrue((delay >= 0) && (delay <= 250));
+        }
+        assertFalse(policy.isTransient(new java.io.FileNotFoundException()));
+        assertFalse(policy.isTransient(new java.net.UnknownHostException()));
+        assertTrue(policy.isTransient(new java.net.SocketTimeoutException()));
+    }
+}
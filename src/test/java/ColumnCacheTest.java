@@ -0,0 +1,144 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.gson.JsonElement;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+import org.urban.data.core.query.ColumnCache;
+import org.urban.data.core.query.JPredicate;
+import org.urban.data.core.query.JQuery;
+import org.urban.data.core.query.JsonQuery;
+import org.urban.data.core.query.ResultTuple;
+import org.urban.data.core.query.SelectClause;
+import org.urban.data.core.query.TupleReader;
+
+/**
+ *
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class ColumnCacheTest {
+    
+    private static final List<String> PATHS = Arrays.asList(
+            "id",
+            "value",
+            "meta/domain",
+            "tags"
+    );
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    public ColumnCacheTest() {
+    }
+    
+    private List<JsonElement[]> read(TupleReader reader) throws java.io.IOException {
+        
+        List<JsonElement[]> result = new ArrayList<>();
+        try {
+            JsonElement[] tuple;
+            while ((tuple = reader.next()) != null) {
+                result.add(tuple);
+            }
+        } finally {
+            reader.close();
+        }
+        return result;
+    }
+    
+    @Test
+    public void testPartialCoverage() throws java.io.IOException {
+        
+        List<String> docs = JsonTestData.documents(1000);
+        File file = folder.newFile("docs.json");
+        JsonTestData.write(docs, file, "results");
+        ColumnCache cache = ColumnCache.build(file, "results", PATHS);
+        
+        // Selected paths that are not covered are read from the Json file.
+        SelectClause select = JsonTestData.select();
+        JPredicate[] predicates = new JPredicate[]{
+            null,
+            JPredicate.eq("meta/domain", "dom2"),
+            JPredicate.and(
+                    JPredicate.eq("meta/domain", "dom2"),
+                    JPredicate.contains("name", "[{", false)
+            ),
+            JPredicate.or(
+                    JPredicate.exists("value"),
+                    JPredicate.eq("meta/nested/x", "7")
+            )
+        };
+        for (JPredicate predicate : predicates) {
+            JsonTestData.assertTuples(
+                    JsonTestData.eval(docs, select, predicate),
+                    this.read(cache.reader(select, predicate, false))
+            );
+            // The same result is returned for queries that use the existing
+            // cache.
+            JsonQuery query = new JsonQuery(file, "results").cache(PATHS);
+            if (predicate != null) {
+                query.where(predicate);
+            }
+            List<JsonElement[]> tuples = new ArrayList<>();
+            for (ResultTuple tuple : query.executeQuery(select)) {
+                JsonElement[] values = new JsonElement[tuple.size()];
+                for (int iCol = 0; iCol < values.length; iCol++) {
+                    values[iCol] = tuple.get(iCol);
+                }
+                tuples.add(values);
+            }
+            JsonTestData.assertTuples(JsonTestData.eval(docs, select, predicate), tuples);
+        }
+    }
+    
+    @Test
+    public void testRoundTrip() throws java.io.IOException {
+        
+        List<String> docs = JsonTestData.documents(1000);
+        File file = folder.newFile("docs.json");
+        JsonTestData.write(docs, file, "results");
+        
+        ColumnCache.build(file, "results", PATHS);
+        ColumnCache cache = ColumnCache.open(file, "results", PATHS);
+        assertNotNull(cache);
+        assertEquals(docs.size(), cache.documents());
+        for (String path : PATHS) {
+            assertTrue(cache.covers(new JQuery(path)));
+        }
+        assertFalse(cache.covers(new JQuery("name")));
+        
+        SelectClause select = new SelectClause();
+        for (String path : PATHS) {
+            select.add(path, new JQuery(path));
+        }
+        JsonTestData.assertTuples(
+                JsonTestData.eval(docs, select, null),
+                this.read(cache.reader(select, null, false))
+        );
+        
+        // The cache is ignored if the paths, the target path, or the Json
+        // file do not match its stamp.
+        assertNull(ColumnCache.open(file, "results", PATHS.subList(0, 2)));
+        assertNull(ColumnCache.open(file, "data", PATHS));
+        JsonTestData.write(docs.subList(0, 10), file, "results");
+        assertNull(ColumnCache.open(file, "results", PATHS));
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.urban.data.core.query.DocumentSplitter;
+
+/**
+ *
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class DocumentSplitterTest {
+    
+    /**
+     * Input stream that returns at most a few bytes per read. Documents and
+     * string literals are therefore split across many buffer boundaries.
+     */
+    private static class TrickleInputStream extends FilterInputStream {
+        
+        public TrickleInputStream(InputStream in) {
+            
+            super(in);
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws java.io.IOException {
+            
+            return super.read(b, off, Math.min(len, 3));
+        }
+    }
+    
+    public DocumentSplitterTest() {
+    }
+    
+    private static String array(List<String> docs) {
+        
+        return "[\n  " + String.join(" ,\n  ", docs) + "\n]";
+    }
+    
+    private void assertSplit(
+            String text,
+            String targetPath,
+            List<String> docs,
+            boolean trickle
+    ) throws java.io.IOException {
+        
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        InputStream in = new ByteArrayInputStream(bytes);
+        if (trickle) {
+            in = new TrickleInputStream(in);
+        }
+        List<String> result = new ArrayList<>();
+        try (DocumentSplitter splitter = new DocumentSplitter(in)) {
+            assertTrue(splitter.open(targetPath));
+            byte[] doc;
+            while ((doc = splitter.next()) != null) {
+                // The offset points to the first byte of the document in the
+                // input.
+                int offset = (int)splitter.offset();
+                assertArrayEquals(
+                        doc,
+                        Arrays.copyOfRange(bytes, offset, offset + doc.length)
+                );
+                result.add(new String(doc, StandardCharsets.UTF_8));
+            }
+        }
+        assertEquals(docs, result);
+    }
+    
+    @Test
+    public void testEscapesAndBrackets() throws java.io.IOException {
+        
+        List<String> docs = Arrays.asList(
+                "{\"a\": \"]\"}",
+                "{\"a\": \"}\", \"b\": \"[[{\"}",
+                "{\"a\": \"quote \\\" ] still in string\"}",
+                "{\"a\": \"backslash \\\\\", \"b\": [1, {\"c\": \"\\\\\\\"}\"}]}",
+                "{\"a\": \"unicode \u00e9 \\u00e9\"}",
+                "{}",
+                "{\"a\": {\"b\": {\"c\": [[], [{}]]}}}"
+        );
+        for (boolean trickle : new boolean[]{false, true}) {
+            this.assertSplit(array(docs), "", docs, trickle);
+        }
+    }
+    
+    @Test
+    public void testGeneratedDocuments() throws java.io.IOException {
+        
+        List<String> docs = JsonTestData.documents(2000);
+        this.assertSplit(array(docs), "", docs, false);
+        this.assertSplit(array(docs.subList(0, 200)), "", docs.subList(0, 200), true);
+    }
+    
+    @Test
+    public void testPrimitives() throws java.io.IOException {
+        
+        List<String> docs = Arrays.asList(
+                "1",
+                "-2.5e3",
+                "\"a]b\"",
+                "true",
+                "null",
+                "\"x\\\"y,\"",
+                "[]",
+                "[1, [2, \"]\"]]"
+        );
+        for (boolean trickle : new boolean[]{false, true}) {
+            this.assertSplit(array(docs), "", docs, trickle);
+            // Primitives without whitespace before the delimiter
+            this.assertSplit("[" + String.join(",", docs) + "]", "", docs, trickle);
+        }
+    }
+    
+    @Test
+    public void testTargetPath() throws java.io.IOException {
+        
+        List<String> docs = JsonTestData.documents(10);
+        String text = "{\"results\" : " + array(docs) + ", \"resultSetSize\": 10}";
+        this.assertSplit(text, "results", docs, false);
+        this.assertSplit(text, "results", docs, true);
+        try (DocumentSplitter splitter = new DocumentSplitter(
+                new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8))
+        )) {
+            assertFalse(splitter.open("data"));
+        }
+        this.assertSplit("{\"results\": []}", "results", new ArrayList<>(), false);
+    }
+    
+    @Test(expected = java.io.IOException.class)
+    public void testTruncatedInput() throws java.io.IOException {
+        
+        byte[] bytes = "[{\"a\": \"]}".getBytes(StandardCharsets.UTF_8);
+        try (DocumentSplitter splitter = new DocumentSplitter(new ByteArrayInputStream(bytes))) {
+            splitter.open("");
+            splitter.next();
+        }
+    }
+}
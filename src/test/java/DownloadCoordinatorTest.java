@@ -0,0 +1,177 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+import org.urban.data.provider.socrata.db.DB;
+import org.urban.data.provider.socrata.db.DatabaseWriter;
+import org.urban.data.provider.socrata.db.Dataset;
+import org.urban.data.provider.socrata.download.DownloadCoordinator;
+import org.urban.data.provider.socrata.download.DownloadCoordinator.Claim;
+import org.urban.data.provider.socrata.download.DownloadJob;
+
+/**
+ *
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class DownloadCoordinatorTest {
+    
+    private static final String DATE = "20200101";
+    private static final long LEASE_TIME = 60 * 1000;
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    public DownloadCoordinatorTest() {
+    }
+    
+    /**
+     * Set the modification time of all files in the lease directory to a
+     * time before the lease time. This is the state that a failed node leaves
+     * behind.
+     * 
+     * @param db 
+     */
+    private void expire(DB db) {
+        
+        long modified = System.currentTimeMillis() - 2 * LEASE_TIME;
+        for (File file : db.leaseDir(DATE).listFiles()) {
+            assertTrue(file.setLastModified(modified));
+        }
+    }
+    
+    private DownloadJob job(String identifier) {
+        
+        Dataset dataset = new Dataset(identifier, "data.cityofnewyork.us", DATE);
+        return new DownloadJob(dataset, "http://localhost/" + identifier);
+    }
+    
+    private void write(DB db, DownloadCoordinator coordinator, DownloadJob job) throws java.io.IOException {
+        
+        File segment = db.segmentFile(DATE, coordinator.node());
+        try (DatabaseWriter writer = new DatabaseWriter(segment, true)) {
+            writer.write(job.dataset());
+        }
+        coordinator.finish(job, DB.DOWNLOAD_SUCCESS);
+    }
+    
+    @Test
+    public void testClaim() throws java.io.IOException {
+        
+        DB db = new DB(folder.newFolder());
+        DownloadJob job = this.job("aaaa-0000");
+        try (
+                DownloadCoordinator node1 = new DownloadCoordinator(db, DATE, "node1", LEASE_TIME);
+                DownloadCoordinator node2 = new DownloadCoordinator(db, DATE, "node2", LEASE_TIME)
+        ) {
+            // A lease is held by one node only.
+            assertEquals(Claim.ACQUIRED, node1.claim(job));
+            assertEquals(Claim.HELD, node2.claim(job));
+            assertTrue(node1.holds(job));
+            assertFalse(node2.holds(job));
+            // The holder re-acquires its own lease.
+            assertEquals(Claim.ACQUIRED, node1.claim(job));
+            // Finished leases are not claimed again.
+            node1.finish(job, DB.DOWNLOAD_SUCCESS);
+            assertEquals(Claim.FINISHED, node1.claim(job));
+            assertEquals(Claim.FINISHED, node2.claim(job));
+        }
+    }
+    
+    @Test
+    public void testMerge() throws java.io.IOException {
+        
+        DB db = new DB(folder.newFolder());
+        DownloadJob job1 = this.job("aaaa-0000");
+        DownloadJob job2 = this.job("aaaa-0001");
+        try (
+                DownloadCoordinator node1 = new DownloadCoordinator(db, DATE, "node1", LEASE_TIME);
+                DownloadCoordinator node2 = new DownloadCoordinator(db, DATE, "node2", LEASE_TIME)
+        ) {
+            assertEquals(Claim.ACQUIRED, node1.claim(job1));
+            assertEquals(Claim.ACQUIRED, node2.claim(job2));
+            this.write(db, node1, job1);
+            // The segments are not merged while a lease is held.
+            assertFalse(node1.merge());
+            assertTrue(db.getDatasets().isEmpty());
+            this.write(db, node2, job2);
+            assertTrue(node2.merge());
+            List<Dataset> datasets = db.getDatasets();
+            assertEquals(2, datasets.size());
+            assertTrue(db.segmentFiles(DATE).isEmpty());
+            assertFalse(new File(db.leaseDir(DATE), DownloadCoordinator.MERGE_LOCK).exists());
+        }
+    }
+    
+    @Test
+    public void testMergeLock() throws java.io.IOException {
+        
+        DB db = new DB(folder.newFolder());
+        File lock = new File(db.leaseDir(DATE), DownloadCoordinator.MERGE_LOCK);
+        try (
+                DownloadCoordinator node1 = new DownloadCoordinator(db, DATE, "node1", LEASE_TIME);
+                DownloadCoordinator node2 = new DownloadCoordinator(db, DATE, "node2", LEASE_TIME)
+        ) {
+            // The segments are not merged while another node holds the lock.
+            Files.write(lock.toPath(), "node3\tL\n".getBytes(StandardCharsets.UTF_8));
+            assertFalse(node1.merge());
+            assertTrue(lock.exists());
+            // A stale lock is taken over by a single node only.
+            this.expire(db);
+            long modified = lock.lastModified();
+            File marker = new File(
+                    db.leaseDir(DATE),
+                    lock.getName() + ".node3." + modified + ".takeover"
+            );
+            assertTrue(marker.createNewFile());
+            assertFalse(node2.merge());
+            assertTrue(marker.delete());
+            assertTrue(node1.merge());
+            assertFalse(lock.exists());
+        }
+    }
+    
+    @Test
+    public void testTakeover() throws java.io.IOException {
+        
+        DB db = new DB(folder.newFolder());
+        DownloadJob job = this.job("aaaa-0000");
+        try (
+                DownloadCoordinator node1 = new DownloadCoordinator(db, DATE, "node1", LEASE_TIME);
+                DownloadCoordinator node2 = new DownloadCoordinator(db, DATE, "node2", LEASE_TIME);
+                DownloadCoordinator node3 = new DownloadCoordinator(db, DATE, "node3", LEASE_TIME)
+        ) {
+            assertEquals(Claim.ACQUIRED, node1.claim(job));
+            // An expired lease is taken over by one node only.
+            this.expire(db);
+            assertEquals(Claim.ACQUIRED, node2.claim(job));
+            assertEquals(Claim.HELD, node3.claim(job));
+            assertFalse(node1.holds(job));
+            assertTrue(node2.holds(job));
+            // The segments are merged once the new holder finished the job.
+            assertFalse(node1.merge());
+            this.write(db, node2, job);
+            assertTrue(node1.merge());
+            assertEquals(1, db.getDatasets().size());
+        }
+    }
+}
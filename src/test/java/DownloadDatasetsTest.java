@@ -0,0 +1,150 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+import org.urban.data.provider.socrata.SocrataCatalog;
+import org.urban.data.provider.socrata.benchmark.MockSocrataServer;
+import org.urban.data.provider.socrata.cli.Args;
+import org.urban.data.provider.socrata.cli.DownloadDatasets;
+import org.urban.data.provider.socrata.db.DB;
+import org.urban.data.provider.socrata.db.Dataset;
+import org.urban.data.provider.socrata.download.DownloadJob;
+import org.urban.data.provider.socrata.download.DownloadJournal;
+
+/**
+ *
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class DownloadDatasetsTest {
+    
+    private static final String DATE = "20200101";
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private MockSocrataServer _api;
+    
+    public DownloadDatasetsTest() {
+    }
+    
+    @Before
+    public void setUp() throws java.io.IOException {
+        
+        _api = new MockSocrataServer().domains(2).datasets(3).rows(10, 100).start(0);
+        System.setProperty(
+                SocrataCatalog.API_PROPERTY,
+                _api.url() + MockSocrataServer.CATALOG_PATH
+        );
+    }
+    
+    @After
+    public void tearDown() {
+        
+        System.clearProperty(SocrataCatalog.API_PROPERTY);
+        _api.close();
+    }
+    
+    /**
+     * Mark the first job in a finished journal as in-flight and restore the
+     * journal. This is the state that an interrupted run leaves behind.
+     * 
+     * @param db
+     * @return
+     * @throws java.io.IOException 
+     */
+    private DownloadJob interrupt(DB db) throws java.io.IOException {
+        
+        File journalFile = db.journalFile(DATE);
+        Files.copy(
+                DownloadJournal.finishedFile(journalFile).toPath(),
+                journalFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING
+        );
+        String[] tokens = DownloadJournal.read(journalFile).values().iterator().next();
+        DownloadJob job = new DownloadJob(
+                new Dataset(tokens[1], tokens[0], tokens[2]),
+                tokens[7]
+        );
+        try (DownloadJournal journal = new DownloadJournal(journalFile)) {
+            journal.inFlight(job);
+        }
+        assertTrue(db.datasetFile(job.dataset()).delete());
+        return job;
+    }
+    
+    private int run(File baseDir, String... options) throws java.io.IOException {
+        
+        List<String> params = new ArrayList<>();
+        params.add("download");
+        params.add("--" + Args.PARA_BASEDIR + "=" + baseDir.getAbsolutePath());
+        params.add("--" + Args.PARA_DATE + "=" + DATE);
+        params.add("--" + Args.PARA_THREADS + "=2");
+        params.addAll(Arrays.asList(options));
+        DownloadDatasets command = new DownloadDatasets();
+        command.run(new Args(params.toArray(new String[params.size()])));
+        return command.metrics().successes();
+    }
+    
+    @Test
+    public void testFinishedRun() throws java.io.IOException {
+        
+        File baseDir = folder.newFolder();
+        DB db = new DB(baseDir);
+        File journalFile = db.journalFile(DATE);
+        
+        // A finished run does not prevent the next run for the same date
+        // from selecting datasets in the catalog.
+        assertEquals(3, this.run(baseDir, "--domain=" + _api.domainName(0)));
+        assertFalse(journalFile.exists());
+        assertTrue(DownloadJournal.finishedFile(journalFile).exists());
+        assertEquals(3, this.run(baseDir));
+        assertEquals(0, this.run(baseDir));
+        assertFalse(journalFile.exists());
+    }
+    
+    @Test
+    public void testResume() throws java.io.IOException {
+        
+        File baseDir = folder.newFolder();
+        DB db = new DB(baseDir);
+        File journalFile = db.journalFile(DATE);
+        assertEquals(6, this.run(baseDir));
+        
+        // Only the unfinished job is resumed. It would not be selected from
+        // the catalog because all datasets are recorded as downloaded.
+        DownloadJob job = this.interrupt(db);
+        assertEquals(1, this.run(baseDir));
+        assertTrue(db.datasetFile(job.dataset()).exists());
+        assertFalse(journalFile.exists());
+        
+        // The journal is not resumed by a run with different parameters.
+        job = this.interrupt(db);
+        assertEquals(0, this.run(baseDir, "--domain=" + job.dataset().domain()));
+        assertFalse(db.datasetFile(job.dataset()).exists());
+        assertFalse(journalFile.exists());
+    }
+}
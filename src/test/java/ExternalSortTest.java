@@ -0,0 +1,103 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+import org.urban.data.core.util.ExternalSort;
+
+/**
+ *
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class ExternalSortTest {
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    public ExternalSortTest() {
+    }
+    
+    private List<String> lines(int count) {
+        
+        Random random = new Random(42);
+        List<String> lines = new ArrayList<>();
+        for (int iLine = 0; iLine < count; iLine++) {
+            // Few distinct values so that the input contains duplicates.
+            lines.add(random.nextInt(count / 4) + "\t" + random.nextInt(3));
+        }
+        lines.add("");
+        return lines;
+    }
+    
+    private List<String> sort(List<String> lines, File directory, int bufferSize) throws java.io.IOException {
+        
+        List<String> result = new ArrayList<>();
+        try (ExternalSort sorter = new ExternalSort(directory, bufferSize)) {
+            for (String line : lines) {
+                sorter.add(line);
+            }
+            String line;
+            while ((line = sorter.next()) != null) {
+                result.add(line);
+            }
+        }
+        return result;
+    }
+    
+    @Test
+    public void testInMemorySort() throws java.io.IOException {
+        
+        File directory = folder.newFolder();
+        List<String> lines = this.lines(1000);
+        List<String> expected = new ArrayList<>(lines);
+        Collections.sort(expected);
+        assertEquals(expected, this.sort(lines, directory, lines.size() + 1));
+        assertEquals(0, directory.list().length);
+    }
+    
+    @Test
+    public void testMultiRunMerge() throws java.io.IOException {
+        
+        List<String> lines = this.lines(1000);
+        List<String> expected = new ArrayList<>(lines);
+        Collections.sort(expected);
+        // Buffer sizes that split the input into many runs, with and without
+        // a partially filled buffer at the end.
+        for (int bufferSize : new int[]{1, 7, 100, 1001}) {
+            File directory = folder.newFolder();
+            assertEquals(expected, this.sort(lines, directory, bufferSize));
+            assertEquals(0, directory.list().length);
+        }
+    }
+    
+    @Test
+    public void testEmpty() throws java.io.IOException {
+        
+        File directory = folder.newFolder();
+        try (ExternalSort sorter = new ExternalSort(directory, 10)) {
+            assertNull(sorter.next());
+            assertNull(sorter.next());
+        }
+        assertEquals(0, directory.list().length);
+    }
+}
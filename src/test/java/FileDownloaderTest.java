@@ -0,0 +1,155 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+import org.urban.data.provider.socrata.db.Dataset;
+import org.urban.data.provider.socrata.download.DownloadJob;
+import org.urban.data.provider.socrata.download.FileDownloader;
+
+/**
+ *
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class FileDownloaderTest {
+    
+    private static final byte[] CONTENT = "a\tb\n1\t2\n3\t4\n5\t6\n"
+            .getBytes(StandardCharsets.UTF_8);
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private final List<String> _ranges = new ArrayList<>();
+    private HttpServer _server = null;
+    
+    public FileDownloaderTest() {
+    }
+    
+    @After
+    public void tearDown() {
+        
+        if (_server != null) {
+            _server.stop(0);
+        }
+    }
+    
+    /**
+     * Start a server for the test content. If acceptRange is false all
+     * range requests are answered with 416 (Range Not Satisfiable). Returns
+     * the Url for the content.
+     * 
+     * @param acceptRange
+     * @return
+     * @throws java.io.IOException 
+     */
+    private String start(boolean acceptRange) throws java.io.IOException {
+        
+        _server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        _server.createContext("/rows.tsv", (HttpExchange exchange) -> {
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            synchronized (_ranges) {
+                _ranges.add(range);
+            }
+            byte[] body = CONTENT;
+            int status = HttpURLConnection.HTTP_OK;
+            if (range != null) {
+                if (acceptRange) {
+                    int offset = Integer.parseInt(range.substring(6, range.length() - 1));
+                    body = Arrays.copyOfRange(CONTENT, offset, CONTENT.length);
+                    status = HttpURLConnection.HTTP_PARTIAL;
+                } else {
+                    body = "Range Not Satisfiable".getBytes(StandardCharsets.UTF_8);
+                    status = 416;
+                }
+            }
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        _server.start();
+        return "http://localhost:" + _server.getAddress().getPort() + "/rows.tsv";
+    }
+    
+    /**
+     * Job for a transfer that was interrupted after the first few bytes of
+     * the content had been written to the partial file.
+     * 
+     * @param url
+     * @param outputFile
+     * @return
+     * @throws java.io.IOException 
+     */
+    private DownloadJob interrupted(String url, File outputFile) throws java.io.IOException {
+        
+        Files.write(
+                FileDownloader.partFile(outputFile).toPath(),
+                Arrays.copyOf(CONTENT, 4)
+        );
+        DownloadJob job = new DownloadJob(new Dataset("abcd-1234", "x.org", "20200101"), url);
+        job.checkpoint(4, 4);
+        return job;
+    }
+    
+    @Test
+    public void testResume() throws java.io.IOException {
+        
+        File outputFile = new File(folder.getRoot(), "rows.tsv");
+        DownloadJob job = this.interrupted(this.start(true), outputFile);
+        
+        assertEquals(CONTENT.length, new FileDownloader().download(job, outputFile));
+        assertArrayEquals(CONTENT, Files.readAllBytes(outputFile.toPath()));
+        assertFalse(FileDownloader.partFile(outputFile).exists());
+        assertEquals(Arrays.asList("bytes=4-"), _ranges);
+    }
+    
+    @Test
+    public void testResumeRejected() throws java.io.IOException {
+        
+        File outputFile = new File(folder.getRoot(), "rows.tsv");
+        DownloadJob job = this.interrupted(this.start(false), outputFile);
+        FileDownloader downloader = new FileDownloader();
+        
+        // The rejected range is not requested again. The next attempt
+        // downloads the whole file.
+        try {
+            downloader.download(job, outputFile);
+            fail("Range request did not fail");
+        } catch (java.io.IOException ex) {
+        }
+        assertEquals(0, job.offset());
+        assertFalse(FileDownloader.partFile(outputFile).exists());
+        assertFalse(outputFile.exists());
+        
+        assertEquals(CONTENT.length, downloader.download(job, outputFile));
+        assertArrayEquals(CONTENT, Files.readAllBytes(outputFile.toPath()));
+        assertEquals(Arrays.asList("bytes=4-", null), _ranges);
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+import org.urban.data.core.util.FileSystem;
+import org.urban.data.provider.socrata.SocrataCatalog;
+import org.urban.data.provider.socrata.benchmark.MockSocrataServer;
+import org.urban.data.provider.socrata.cli.Args;
+import org.urban.data.provider.socrata.cli.DownloadDatasets;
+import org.urban.data.provider.socrata.db.DB;
+import org.urban.data.provider.socrata.db.Dataset;
+import org.urban.data.provider.socrata.download.IncrementalDownloader;
+
+/**
+ *
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class IncrementalDownloaderTest {
+    
+    private static final String BASE_DATE = "20200101";
+    private static final String DATE = "20200102";
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private MockSocrataServer _api;
+    
+    public IncrementalDownloaderTest() {
+    }
+    
+    @Before
+    public void setUp() throws java.io.IOException {
+        
+        _api = new MockSocrataServer().domains(1).datasets(2).rows(10, 100).start(0);
+        System.setProperty(
+                SocrataCatalog.API_PROPERTY,
+                _api.url() + MockSocrataServer.CATALOG_PATH
+        );
+    }
+    
+    @After
+    public void tearDown() {
+        
+        System.clearProperty(SocrataCatalog.API_PROPERTY);
+        _api.close();
+    }
+    
+    private List<Dataset> datasets(DB db, String date) throws java.io.IOException {
+        
+        List<Dataset> result = new ArrayList<>();
+        for (Dataset dataset : db.getDatasets()) {
+            if (dataset.downloadDate().equals(date)) {
+                result.add(dataset);
+            }
+        }
+        return result;
+    }
+    
+    private Dataset dataset(DB db, String identifier, String date) throws java.io.IOException {
+        
+        for (Dataset dataset : this.datasets(db, date)) {
+            if (dataset.identifier().equals(identifier)) {
+                return dataset;
+            }
+        }
+        return null;
+    }
+    
+    private List<String> ids(DB db, Dataset dataset) throws java.io.IOException {
+        
+        List<String> ids = new ArrayList<>();
+        for (String line : this.lines(db.rowIdFile(dataset))) {
+            ids.add(line.split("\t")[0]);
+        }
+        return ids;
+    }
+    
+    private List<String> lines(File file) throws java.io.IOException {
+        
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader in = FileSystem.openReader(file)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+    
+    private void run(File baseDir, String date) throws java.io.IOException {
+        
+        String[] params = new String[]{
+            "download",
+            "--" + Args.PARA_BASEDIR + "=" + baseDir.getAbsolutePath(),
+            "--" + Args.PARA_DATE + "=" + date,
+            "--" + Args.PARA_INCREMENTAL
+        };
+        new DownloadDatasets().run(new Args(params));
+    }
+    
+    @Test
+    public void testMerge() throws java.io.IOException {
+        
+        File baseDir = folder.newFolder();
+        DB db = new DB(baseDir);
+        this.run(baseDir, BASE_DATE);
+        Dataset base = this.datasets(db, BASE_DATE).get(0);
+        assertEquals(IncrementalDownloader.MODE_FULL, base.getProperty(IncrementalDownloader.PROPERTY_MODE));
+        assertEquals(DB.LAYOUT_SODA, DB.layout(base));
+        
+        _api.modifyRow(base.identifier(), 2);
+        _api.appendRows(base.identifier(), 5);
+        this.run(baseDir, DATE);
+        Dataset dataset = this.dataset(db, base.identifier(), DATE);
+        assertNotNull(dataset);
+        assertEquals(IncrementalDownloader.MODE_DELTA, dataset.getProperty(IncrementalDownloader.PROPERTY_MODE));
+        assertEquals(BASE_DATE, dataset.getProperty(IncrementalDownloader.PROPERTY_BASE));
+        assertEquals(DB.LAYOUT_SODA, DB.layout(dataset));
+        
+        // The modified row is replaced at its original position and the new
+        // rows are appended. All other rows are unchanged.
+        List<String> baseRows = this.lines(db.datasetFile(base));
+        List<String> rows = this.lines(db.datasetFile(dataset));
+        assertEquals(baseRows.size() + 5, rows.size());
+        assertEquals(
+                Long.toString(baseRows.size() + 4),
+                dataset.getProperty(IncrementalDownloader.PROPERTY_ROWS)
+        );
+        for (int iRow = 0; iRow < baseRows.size(); iRow++) {
+            if (iRow == 3) {
+                assertNotEquals(baseRows.get(iRow), rows.get(iRow));
+            } else {
+                assertEquals(baseRows.get(iRow), rows.get(iRow));
+            }
+        }
+        List<String> baseIds = this.ids(db, base);
+        List<String> ids = this.ids(db, dataset);
+        assertEquals(baseIds, ids.subList(0, baseIds.size()));
+        assertTrue(Integer.parseInt(dataset.getProperty(IncrementalDownloader.PROPERTY_DELTA)) >= 6);
+        
+        // The merged version equals a full download of the same version.
+        File fullDir = folder.newFolder();
+        DB fullDB = new DB(fullDir);
+        this.run(fullDir, DATE);
+        Dataset full = this.dataset(fullDB, base.identifier(), DATE);
+        assertEquals(IncrementalDownloader.MODE_FULL, full.getProperty(IncrementalDownloader.PROPERTY_MODE));
+        assertEquals(this.lines(fullDB.datasetFile(full)), rows);
+        assertEquals(this.ids(fullDB, full), ids);
+    }
+    
+    @Test
+    public void testSchemaChange() throws java.io.IOException {
+        
+        File baseDir = folder.newFolder();
+        DB db = new DB(baseDir);
+        this.run(baseDir, BASE_DATE);
+        Dataset base = this.datasets(db, BASE_DATE).get(0);
+        
+        // Change the columns of the base version. The dataset is downloaded
+        // in full instead of being merged.
+        File file = db.datasetFile(base);
+        List<String> rows = this.lines(file);
+        rows.set(0, rows.get(0) + "\tdeleted_column");
+        try (PrintWriter out = FileSystem.openPrintWriter(file)) {
+            for (String row : rows) {
+                out.println(row);
+            }
+        }
+        _api.appendRows(base.identifier(), 5);
+        this.run(baseDir, DATE);
+        Dataset dataset = this.dataset(db, base.identifier(), DATE);
+        assertNotNull(dataset);
+        assertEquals(IncrementalDownloader.MODE_FULL, dataset.getProperty(IncrementalDownloader.PROPERTY_MODE));
+        assertNull(dataset.getProperty(IncrementalDownloader.PROPERTY_BASE));
+        List<String> header = Arrays.asList(this.lines(db.datasetFile(dataset)).get(0).split("\t"));
+        assertFalse(header.contains("deleted_column"));
+        assertEquals(rows.size() + 5, this.lines(db.datasetFile(dataset)).size());
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.urban.data.core.query.JPathTrie;
+import org.urban.data.core.query.JPredicate;
+import org.urban.data.core.query.SelectClause;
+
+/**
+ *
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class JPathTrieTest {
+    
+    public JPathTrieTest() {
+    }
+    
+    private List<JsonElement[]> read(List<String> docs, JPathTrie trie) throws java.io.IOException {
+        
+        List<JsonElement[]> result = new ArrayList<>();
+        for (String doc : docs) {
+            JsonElement[] tuple = trie.read(new JsonReader(new StringReader(doc)));
+            if (tuple != null) {
+                result.add(tuple);
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void testNonObjectDocuments() throws java.io.IOException {
+        
+        SelectClause select = JsonTestData.select();
+        JPathTrie trie = new JPathTrie(select);
+        for (String doc : new String[]{"42", "\"text\"", "null", "true", "[{\"id\": 1}]"}) {
+            JsonElement[] tuple = trie.read(new JsonReader(new StringReader(doc)));
+            assertEquals(select.size(), tuple.length);
+            for (JsonElement el : tuple) {
+                assertNull(el);
+            }
+        }
+        // Filter conditions on documents that are not objects behave like
+        // conditions on an empty object.
+        for (JPredicate predicate : JsonTestData.predicates()) {
+            JPathTrie filter = new JPathTrie(select, predicate);
+            JsonElement[] tuple = filter.read(new JsonReader(new StringReader("42")));
+            assertEquals(predicate.eval(new JsonObject()), tuple != null);
+        }
+    }
+    
+    @Test
+    public void testPredicates() throws java.io.IOException {
+        
+        List<String> docs = JsonTestData.documents(1000);
+        SelectClause select = JsonTestData.select();
+        for (JPredicate predicate : JsonTestData.predicates()) {
+            List<JsonElement[]> expected = JsonTestData.eval(docs, select, predicate);
+            assertFalse(predicate.toString(), expected.isEmpty());
+            assertTrue(predicate.toString(), expected.size() < docs.size());
+            JsonTestData.assertTuples(
+                    expected,
+                    this.read(docs, new JPathTrie(select, predicate))
+            );
+        }
+    }
+    
+    @Test
+    public void testSelect() throws java.io.IOException {
+        
+        List<String> docs = JsonTestData.documents(1000);
+        SelectClause select = JsonTestData.select();
+        JsonTestData.assertTuples(
+                JsonTestData.eval(docs, select, null),
+                this.read(docs, new JPathTrie(select))
+        );
+    }
+}
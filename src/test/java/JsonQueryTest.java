@@ -0,0 +1,134 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.gson.JsonElement;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+import org.urban.data.core.query.ColumnCache;
+import org.urban.data.core.query.JPathTrie;
+import org.urban.data.core.query.JPredicate;
+import org.urban.data.core.query.JQuery;
+import org.urban.data.core.query.JsonQuery;
+import org.urban.data.core.query.ParallelReader;
+import org.urban.data.core.query.ResultTuple;
+import org.urban.data.core.query.SelectClause;
+import org.urban.data.core.util.FileSystem;
+
+/**
+ *
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class JsonQueryTest {
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    public JsonQueryTest() {
+    }
+    
+    private List<JsonElement[]> execute(
+            JsonQuery query,
+            SelectClause select
+    ) throws java.io.IOException {
+        
+        List<JsonElement[]> result = new ArrayList<>();
+        for (ResultTuple tuple : query.executeQuery(select)) {
+            JsonElement[] values = new JsonElement[tuple.size()];
+            for (int iCol = 0; iCol < values.length; iCol++) {
+                values[iCol] = tuple.get(iCol);
+            }
+            result.add(values);
+        }
+        return result;
+    }
+    
+    @Test
+    public void testEvaluationModes() throws java.io.IOException {
+        
+        List<String> docs = JsonTestData.documents(2000);
+        File file = folder.newFile("docs.json");
+        JsonTestData.write(docs, file, "results");
+        
+        SelectClause select = JsonTestData.select();
+        List<String> paths = new ArrayList<>();
+        for (int iCol = 0; iCol < select.size(); iCol++) {
+            paths.add(select.get(iCol).path().toString());
+        }
+        
+        List<JPredicate> predicates = new ArrayList<>();
+        predicates.add(null);
+        predicates.addAll(Arrays.asList(JsonTestData.predicates()));
+        for (JPredicate predicate : predicates) {
+            List<JsonElement[]> expected = JsonTestData.eval(docs, select, predicate);
+            JsonQuery[] queries = new JsonQuery[]{
+                new JsonQuery(file, "results"),
+                new JsonQuery(file, "results").parallel(3),
+                new JsonQuery(file, "results").cache(paths)
+            };
+            for (JsonQuery query : queries) {
+                if (predicate != null) {
+                    query.where(predicate);
+                }
+                JsonTestData.assertTuples(expected, this.execute(query, select));
+            }
+        }
+        assertTrue(ColumnCache.file(file).exists());
+    }
+    
+    @Test
+    public void testParallelReaderOrder() throws java.io.IOException {
+        
+        // Documents vary in size so that batches are parsed at different
+        // speeds. The tuples still have to be returned in document order.
+        List<String> docs = JsonTestData.documents(5000);
+        File file = folder.newFile("docs.json");
+        JsonTestData.write(docs, file, "");
+        
+        SelectClause select = new SelectClause().add("id", new JQuery("id"));
+        for (JPredicate predicate : new JPredicate[]{null, JsonTestData.predicates()[2]}) {
+            List<JsonElement[]> expected = JsonTestData.eval(docs, select, predicate);
+            List<JsonElement[]> tuples = new ArrayList<>();
+            try (ParallelReader reader = new ParallelReader(
+                    FileSystem.openFile(file),
+                    "",
+                    new JPathTrie(select, predicate),
+                    4
+            )) {
+                JsonElement[] tuple;
+                while ((tuple = reader.next()) != null) {
+                    tuples.add(tuple);
+                }
+            }
+            JsonTestData.assertTuples(expected, tuples);
+        }
+    }
+    
+    @Test
+    public void testWrongTargetPath() throws java.io.IOException {
+        
+        File file = folder.newFile("docs.json");
+        JsonTestData.write(JsonTestData.documents(10), file, "results");
+        SelectClause select = JsonTestData.select();
+        assertTrue(this.execute(new JsonQuery(file, "data"), select).isEmpty());
+        assertTrue(this.execute(new JsonQuery(file, "data").parallel(2), select).isEmpty());
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2020 New York University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import org.urban.data.core.query.JPredicate;
+import org.urban.data.core.query.JQuery;
+import org.urban.data.core.query.SelectClause;
+
+/**
+ * Synthetic Json documents for query tests. Documents are generated from a
+ * fixed seed. They contain nested objects and arrays, missing and null values,
+ * and strings with escape sequences and brackets.
+ *
+ * @author Heiko Mueller <heiko.mueller@nyu.edu>
+ */
+public class JsonTestData {
+
+    private static final String[] NAMES = new String[]{
+        "plain",
+        "with \\\"quotes\\\"",
+        "back\\\\slash",
+        "ends with backslash \\\\",
+        "brackets [{ and }]",
+        "comma, colon: and ]",
+        "escaped \\u00e9\\t\\n",
+        ""
+    };
+
+    /**
+     * Generate the given number of documents as Json text.
+     *
+     * @param count
+     * @return
+     */
+    public static List<String> documents(int count) {
+
+        Random random = new Random(42);
+        List<String> docs = new ArrayList<>();
+        for (int iDoc = 0; iDoc < count; iDoc++) {
+            StringBuilder buf = new StringBuilder();
+            buf.append("{\"id\": \"doc-").append(iDoc).append("\"");
+            buf.append(", \"name\": \"")
+                    .append(NAMES[random.nextInt(NAMES.length)])
+                    .append("\"");
+            int value = random.nextInt(4);
+            if (value == 1) {
+                buf.append(", \"value\": null");
+            } else if (value > 1) {
+                buf.append(", \"value\": ").append(random.nextInt(100));
+            }
+            buf.append(", \"tags\": [");
+            int tags = random.nextInt(4);
+            for (int iTag = 0; iTag < tags; iTag++) {
+                if (iTag > 0) {
+                    buf.append(", ");
+                }
+                buf.append("\"t").append(random.nextInt(6)).append("\"");
+            }
+            buf.append("]");
+            if (random.nextInt(10) == 0) {
+                buf.append(", \"meta\": \"not an object\"");
+            } else {
+                buf.append(", \"meta\": {\"domain\": \"dom")
+                        .append(random.nextInt(5))
+                        .append("\", \"nested\": {\"x\": ")
+                        .append(iDoc)
+                        .append(", \"empty\": {}}, \"list\": [{\"a\": \"]\"}, [1, [2]]]}");
+            }
+            // Pad some documents so that their sizes vary a lot
+            if (random.nextInt(20) == 0) {
+                buf.append(", \"text\": \"");
+                for (int iChar = 0; iChar < 5000; iChar++) {
+                    buf.append((char)('a' + random.nextInt(26)));
+                }
+                buf.append("\"");
+            }
+            buf.append("}");
+            docs.add(buf.toString());
+        }
+        return docs;
+    }
+
+    /**
+     * Evaluate the select clause and the predicate on the fully parsed
+     * documents. Returns one tuple for each document that satisfies the
+     * predicate (which may be null).
+     *
+     * @param docs
+     * @param select
+     * @param predicate
+     * @return
+     */
+    public static List<JsonElement[]> eval(
+            List<String> docs,
+            SelectClause select,
+            JPredicate predicate
+    ) {
+
+        List<JsonElement[]> result = new ArrayList<>();
+        for (String doc : docs) {
+            JsonObject obj = new JsonParser().parse(doc).getAsJsonObject();
+            if ((predicate != null) && (!predicate.eval(obj))) {
+                continue;
+            }
+            JsonElement[] tuple = new JsonElement[select.size()];
+            for (int iCol = 0; iCol < select.size(); iCol++) {
+                tuple[iCol] = select.get(iCol).eval(obj);
+            }
+            result.add(tuple);
+        }
+        return result;
+    }
+
+    /**
+     * Predicates that cover all types of filter conditions and their
+     * combinations.
+     *
+     * @return
+     */
+    public static JPredicate[] predicates() {
+
+        return new JPredicate[]{
+            JPredicate.eq("meta/domain", "dom1"),
+            JPredicate.and(
+                    JPredicate.in("meta/domain", "dom1", "dom3"),
+                    JPredicate.range("value", 10.0, 60.0)
+            ),
+            JPredicate.or(
+                    JPredicate.arrayContains("tags", "t3", false),
+                    JPredicate.contains("name", "[{", false)
+            ),
+            JPredicate.not(JPredicate.exists("value")),
+            JPredicate.and(
+                    JPredicate.matches("id", "^doc-1"),
+                    JPredicate.not(JPredicate.eq("meta/nested/x", "10"))
+            )
+        };
+    }
+
+    /**
+     * Select clause with nested paths, paths that are a prefix of other
+     * paths, and a path that does not exist.
+     *
+     * @return
+     */
+    public static SelectClause select() {
+
+        return new SelectClause()
+                .add("id", new JQuery("id"))
+                .add("name", new JQuery("name"))
+                .add("value", new JQuery("value"))
+                .add("tags", new JQuery("tags"))
+                .add("meta", new JQuery("meta"))
+                .add("domain", new JQuery("meta/domain"))
+                .add("x", new JQuery("meta/nested/x"))
+                .add("list", new JQuery("meta/list"))
+                .add("missing", new JQuery("meta/nested/missing"));
+    }
+
+    /**
+     * Write the documents as a Json array. The array is the value of the
+     * given element if the target path is not empty.
+     *
+     * @param docs
+     * @param file
+     * @param targetPath
+     * @throws java.io.IOException
+     */
+    public static void write(
+            List<String> docs,
+            File file,
+            String targetPath
+    ) throws java.io.IOException {
+
+        StringBuilder buf = new StringBuilder();
+        if (!targetPath.isEmpty()) {
+            buf.append("{\"").append(targetPath).append("\": ");
+        }
+        buf.append("[\n");
+        for (int iDoc = 0; iDoc < docs.size(); iDoc++) {
+            if (iDoc > 0) {
+                buf.append(",\n");
+            }
+            buf.append(docs.get(iDoc));
+        }
+        buf.append("\n]");
+        if (!targetPath.isEmpty()) {
+            buf.append(", \"resultSetSize\": ").append(docs.size()).append("}");
+        }
+        Files.write(file.toPath(), buf.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Assert that two lists of tuples are equal. Missing values (null) and
+     * Json null values are distinguished.
+     *
+     * @param expected
+     * @param actual
+     */
+    public static void assertTuples(List<JsonElement[]> expected, List<JsonElement[]> actual) {
+
+        assertEquals(expected.size(), actual.size());
+        for (int iTuple = 0; iTuple < expected.size(); iTuple++) {
+            JsonElement[] exp = expected.get(iTuple);
+            JsonElement[] act = actual.get(iTuple);
+            assertEquals(exp.length, act.length);
+            for (int iCol = 0; iCol < exp.length; iCol++) {
+                assertEquals("tuple " + iTuple + ", column " + iCol, exp[iCol], act[iCol]);
+            }
+        }
+    }
+}